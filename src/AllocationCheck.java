@@ -0,0 +1,236 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The AllocationCheck class is a command-line tool that checks the server's binary request path allocates no
+ * memory in steady state.
+ * <p>
+ * It starts a server in the same JVM, connects to it in binary mode and sends runs of searches, inserts and
+ * removes. For each run it reads how many bytes the connection's handler and sender threads and the lane threads
+ * the requests run on allocated, through the JVM's per-thread allocation counter, and divides by the number of
+ * requests. Each run is sent once to warm up and once to measure, so class loading, JIT compilation and buffers
+ * that grow to their working size are not counted. The tool exits with status 1 if any run allocated, so it can
+ * gate a build.
+ * <p>
+ * The server uses the B+ tree backend unless the settings say otherwise: inserting a new value into the AVL tree
+ * allocates its node, which is storage rather than request handling, and would hide any allocation on the path.
+ * <p>
+ * Usage: {@code java AllocationCheck [--requests=N] [server settings in the form name=value]}
+ */
+public class AllocationCheck {
+
+    /** Keys the searches, inserts and removes use */
+    private static final int KEY_RANGE = 4096;
+
+    /** Requests sent in each run */
+    private final int requests;
+
+    /** Output stream to the server */
+    private final ObjectOutputStream outputStream;
+
+    /** Input stream from the server */
+    private final ObjectInputStream inputStream;
+
+    /** The JVM's thread bean, which can report the bytes a thread allocated */
+    private final com.sun.management.ThreadMXBean threads;
+
+    /** Ids of the server threads reading and running this tool's requests */
+    private final long[] serverThreadIds;
+
+    /**
+     * The main method is the entry point. Starts the server, measures each run and prints the report.
+     *
+     * @param args Command-line options: --requests=N and server settings in the form name=value.
+     */
+    public static void main(String[] args) throws Exception {
+        int requests = 200_000;
+        List<String> settings = new ArrayList<>();
+        settings.add("tree.backend=BPLUS");
+        for (String arg : args) {
+            if (arg.startsWith("--requests=")) {
+                requests = Integer.parseInt(arg.substring("--requests=".length()));
+            } else {
+                settings.add(arg);
+            }
+        }
+
+        ServerConfig config;
+        try {
+            config = ServerConfig.load(settings.toArray(new String[0]));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid setting: " + e.getMessage());
+            System.exit(2);
+            return;
+        }
+        Thread serverThread = new Thread(() -> new Server(config).startServer(), "server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        AllocationCheck check = new AllocationCheck(connect(config.port), requests);
+        boolean clean = check.run();
+        System.exit(clean ? 0 : 1);
+    }
+
+    /**
+     * Connects to the server, retrying while it starts.
+     *
+     * @param port The server's port.
+     * @return The connected socket.
+     * @throws IOException if the server does not accept connections within a few seconds.
+     */
+    private static Socket connect(int port) throws IOException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return new Socket("localhost", port);
+            } catch (IOException e) {
+                if (attempt == 50) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    /**
+     * Constructor for AllocationCheck. Reads the greeting, switches to binary mode and finds the server threads.
+     *
+     * @param socket   The connection to the server.
+     * @param requests Requests to send in each run.
+     * @throws IOException if the handshake fails or the server threads cannot be found.
+     */
+    public AllocationCheck(Socket socket, int requests) throws IOException, ClassNotFoundException {
+        this.requests = requests;
+        socket.setTcpNoDelay(true);
+        outputStream = new ObjectOutputStream(socket.getOutputStream());
+        outputStream.flush();
+        inputStream = new ObjectInputStream(socket.getInputStream());
+        inputStream.readObject();
+
+        outputStream.writeInt(Protocol.BINARY_MODE);
+        outputStream.flush();
+        inputStream.readInt();
+
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        serverThreadIds = findServerThreads();
+    }
+
+    /**
+     * Finds the server threads this connection's requests go through: its handler and sender threads, the only
+     * ones since the tool opens one connection, and the threads of every lane.
+     *
+     * @return The thread ids.
+     * @throws IOException if there is no handler thread.
+     */
+    private static long[] findServerThreads() throws IOException {
+        List<Long> ids = new ArrayList<>();
+        boolean handlerFound = false;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith(Server.HANDLER_THREAD_PREFIX)) {
+                ids.add(thread.getId());
+                handlerFound = true;
+            } else if (thread.getName().startsWith(Server.SENDER_THREAD_PREFIX)
+                    || thread.getName().contains(ExecutionLanes.THREAD_INFIX)) {
+                ids.add(thread.getId());
+            }
+        }
+        if (!handlerFound) {
+            throw new IOException("No client handler thread found");
+        }
+        return ids.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    /**
+     * Adds up the bytes the server threads have allocated so far.
+     *
+     * @return The bytes.
+     */
+    private long serverAllocatedBytes() {
+        long total = 0;
+        for (long allocated : threads.getThreadAllocatedBytes(serverThreadIds)) {
+            total += allocated;
+        }
+        return total;
+    }
+
+    /**
+     * Measures every run and prints the bytes allocated per request.
+     *
+     * @return True if no run allocated.
+     * @throws IOException if the connection fails.
+     */
+    public boolean run() throws IOException {
+        // Half the keys in the tree, so searches both hit and miss
+        for (int key = 0; key < KEY_RANGE; key += 2) {
+            request(Protocol.INSERT, key);
+        }
+
+        boolean clean = true;
+        clean &= measure("search", Protocol.SEARCH, Protocol.SEARCH);
+        clean &= measure("insert present", Protocol.INSERT, -1);
+        clean &= measure("remove absent", Protocol.REMOVE, -1);
+        clean &= measure("insert/remove", Protocol.INSERT, Protocol.REMOVE);
+        System.out.println(clean ? "No allocation on the request path" : "The request path allocates");
+        return clean;
+    }
+
+    /**
+     * Sends a run twice, to warm up and to measure, and prints the bytes the server threads allocated per request.
+     *
+     * @param name   Name of the run in the report.
+     * @param first  Opcode of the requests on even keys.
+     * @param second Opcode of the requests on odd keys, or -1 to send first on odd keys shifted to even ones.
+     * @return True if the measured run allocated nothing.
+     * @throws IOException if the connection fails.
+     */
+    private boolean measure(String name, int first, int second) throws IOException {
+        sendRun(first, second);
+        long before = serverAllocatedBytes();
+        sendRun(first, second);
+        long allocated = serverAllocatedBytes() - before;
+        System.out.printf("%-16s %8.2f bytes/request%n", name, (double) allocated / requests);
+        return allocated == 0;
+    }
+
+    /**
+     * Sends one run of requests, each waiting for its reply.
+     *
+     * @param first  Opcode of the requests on even keys.
+     * @param second Opcode of the requests on odd keys, or -1 to use first on even keys throughout.
+     * @throws IOException if the connection fails.
+     */
+    private void sendRun(int first, int second) throws IOException {
+        for (int i = 0; i < requests; i++) {
+            int key = i % KEY_RANGE;
+            if (second < 0) {
+                // Inserts of present keys hit the even keys, removes of absent keys the odd ones
+                request(first, first == Protocol.INSERT ? key & ~1 : key | 1);
+            } else if (first == second) {
+                request(first, key);
+            } else {
+                // Insert and remove the same odd key, so the tree ends the run as it started
+                request(i % 2 == 0 ? first : second, (key & ~1) | 1);
+            }
+        }
+    }
+
+    /**
+     * Sends a request with one int operand and reads its status.
+     *
+     * @param opcode The operation code.
+     * @param value  The operand.
+     * @throws IOException if the connection fails or the server is busy.
+     */
+    private void request(int opcode, int value) throws IOException {
+        outputStream.writeInt(opcode);
+        outputStream.writeInt(value);
+        outputStream.flush();
+        if (inputStream.readInt() == Protocol.STATUS_BUSY) {
+            throw new IOException("Server busy, raise its rate limits");
+        }
+    }
+}
@@ -0,0 +1,304 @@
+import java.io.PrintStream;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The AsyncLogger class prints the server's log messages without making request threads wait on the console.
+ * <p>
+ * A record is a constant message template with up to two numbers and one object to fill its "{}" placeholders.
+ * In asynchronous mode records are copied into a preallocated ring buffer and a background thread formats and
+ * prints them, so logging from a request thread only claims a slot with a compare-and-set and fills in a few
+ * fields. When the buffer is full the record is dropped and counted instead of blocking. In synchronous mode
+ * records are formatted and printed right away, like plain System.out.println.
+ * <p>
+ * Records below the configured level are discarded before anything is copied, and per-request records can be
+ * sampled so only one in N is kept.
+ */
+public class AsyncLogger {
+
+    /** Severity of a record, from most to least severe */
+    public enum Level {
+        ERROR, WARN, INFO, DEBUG
+    }
+
+    /** How records are printed */
+    public enum Mode {
+        /** Printed by the thread that logs them */
+        SYNC,
+        /** Printed by a background thread */
+        ASYNC
+    }
+
+    /** Nanoseconds the background thread sleeps when there is nothing to print */
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /** Whether records are printed by a background thread */
+    private final boolean async;
+
+    /** Ordinal of the least severe level that is logged */
+    private final int levelOrdinal;
+
+    /** Only one in this many sampled records is logged */
+    private final int sampleRate;
+
+    /** Where records are printed */
+    private final PrintStream out;
+
+    /** Ring buffer size minus one, the size is a power of two */
+    private final int mask;
+
+    /** Sequence number of the record stored in each slot, set last to publish the record */
+    private final AtomicLongArray published;
+
+    /** Level ordinal of each slot */
+    private final int[] levels;
+
+    /** Message template of each slot */
+    private final String[] templates;
+
+    /** First number of each slot */
+    private final long[] firstArgs;
+
+    /** Second number of each slot */
+    private final long[] secondArgs;
+
+    /** Object of each slot, may be null */
+    private final Object[] objectArgs;
+
+    /** Next sequence number to claim */
+    private final AtomicLong tail = new AtomicLong();
+
+    /** Next sequence number to print, only written by the background thread */
+    private volatile long head;
+
+    /** Records dropped because the buffer was full */
+    private final LongAdder dropped = new LongAdder();
+
+    /** Dropped records already reported in the log, only used by the background thread */
+    private long reportedDropped;
+
+    /** Builder reused by the background thread to format records */
+    private final StringBuilder line = new StringBuilder(256);
+
+    /**
+     * Constructor for AsyncLogger. In asynchronous mode this starts the background thread and registers a
+     * shutdown hook that prints whatever is left in the buffer.
+     *
+     * @param mode       How records are printed.
+     * @param level      Least severe level that is logged.
+     * @param sampleRate Only one in this many sampled records is logged.
+     * @param bufferSize Number of records the buffer holds, rounded up to a power of two.
+     * @param out        Where records are printed.
+     */
+    public AsyncLogger(Mode mode, Level level, int sampleRate, int bufferSize, PrintStream out) {
+        this.async = mode == Mode.ASYNC;
+        this.levelOrdinal = level.ordinal();
+        this.sampleRate = Math.max(1, sampleRate);
+        this.out = out;
+
+        int capacity = Integer.highestOneBit(Math.max(2, bufferSize) * 2 - 1);
+        this.mask = capacity - 1;
+        this.published = new AtomicLongArray(capacity);
+        this.levels = new int[capacity];
+        this.templates = new String[capacity];
+        this.firstArgs = new long[capacity];
+        this.secondArgs = new long[capacity];
+        this.objectArgs = new Object[capacity];
+
+        // Mark every slot as empty, sequence numbers start at zero
+        for (int i = 0; i < capacity; i++) {
+            published.set(i, -1);
+        }
+
+        if (async) {
+            Thread drainer = new Thread(this::drainLoop, "log-drainer");
+            drainer.setDaemon(true);
+            drainer.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(this::drain, "log-flush"));
+        }
+    }
+
+    /**
+     * Creates a logger from the server configuration, printing to System.out.
+     *
+     * @param config The server configuration.
+     * @return The logger.
+     */
+    public static AsyncLogger create(ServerConfig config) {
+        return new AsyncLogger(config.logMode, config.logLevel, config.logSampleRate, config.logBufferSize,
+                System.out);
+    }
+
+    /**
+     * Checks whether records of a level are logged.
+     *
+     * @param level The level to check.
+     * @return True if records of the level are logged.
+     */
+    public boolean isEnabled(Level level) {
+        return level.ordinal() <= levelOrdinal;
+    }
+
+    /**
+     * Logs a record with one object.
+     *
+     * @param level    The level of the record.
+     * @param template The message, with "{}" where the object goes.
+     * @param object   The object to print.
+     */
+    public void log(Level level, String template, Object object) {
+        if (isEnabled(level)) {
+            append(level, template, 0, 0, object);
+        }
+    }
+
+    /**
+     * Logs a record with two numbers.
+     *
+     * @param level    The level of the record.
+     * @param template The message, with "{}" where each number goes.
+     * @param first    The first number.
+     * @param second   The second number.
+     */
+    public void log(Level level, String template, long first, long second) {
+        if (isEnabled(level)) {
+            append(level, template, first, second, null);
+        }
+    }
+
+    /**
+     * Logs a record with two numbers, keeping only one in every sampleRate records.
+     * Used for records written for every request.
+     *
+     * @param level    The level of the record.
+     * @param template The message, with "{}" where each number goes.
+     * @param first    The first number.
+     * @param second   The second number.
+     */
+    public void logSampled(Level level, String template, long first, long second) {
+        if (isEnabled(level) && (sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0)) {
+            append(level, template, first, second, null);
+        }
+    }
+
+    /**
+     * Gets the number of records dropped because the buffer was full.
+     *
+     * @return The number of dropped records.
+     */
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Stores a record in the buffer, or prints it right away in synchronous mode.
+     */
+    private void append(Level level, String template, long first, long second, Object object) {
+        if (!async) {
+            synchronized (line) {
+                formatRecord(level.ordinal(), template, first, second, object);
+                out.println(line);
+            }
+            return;
+        }
+
+        // Claim a sequence number, giving up if the background thread has not freed its slot yet
+        long sequence;
+        do {
+            sequence = tail.get();
+            if (sequence - head > mask) {
+                dropped.increment();
+                return;
+            }
+        } while (!tail.compareAndSet(sequence, sequence + 1));
+
+        int slot = (int) sequence & mask;
+        levels[slot] = level.ordinal();
+        templates[slot] = template;
+        firstArgs[slot] = first;
+        secondArgs[slot] = second;
+        objectArgs[slot] = object;
+
+        // Publishing the sequence number makes the fields above visible to the background thread
+        published.lazySet(slot, sequence);
+    }
+
+    /**
+     * Prints records as they are published, parking briefly whenever the buffer is empty.
+     */
+    private void drainLoop() {
+        while (true) {
+            if (drain() == 0) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Prints every record published so far.
+     *
+     * @return The number of records printed.
+     */
+    private synchronized int drain() {
+        int printed = 0;
+        long next = head;
+        while (true) {
+            int slot = (int) next & mask;
+            if (published.get(slot) != next) {
+                break;
+            }
+
+            formatRecord(levels[slot], templates[slot], firstArgs[slot], secondArgs[slot], objectArgs[slot]);
+            out.println(line);
+
+            // Drop the reference so the buffer does not keep the object alive
+            objectArgs[slot] = null;
+            templates[slot] = null;
+            next++;
+            head = next;
+            printed++;
+        }
+
+        long lost = dropped.sum() - reportedDropped;
+        if (lost > 0) {
+            reportedDropped += lost;
+            out.println("WARN: Log buffer full, dropped " + lost + " records");
+        }
+        if (printed > 0) {
+            out.flush();
+        }
+        return printed;
+    }
+
+    /**
+     * Formats a record into the line builder. Warnings and errors are prefixed with their level.
+     * The first placeholder takes the object if there is one, otherwise the first number.
+     */
+    private void formatRecord(int level, String template, long first, long second, Object object) {
+        line.setLength(0);
+        if (level <= Level.WARN.ordinal()) {
+            line.append(Level.values()[level]).append(": ");
+        }
+
+        int argument = 0;
+        int from = 0;
+        int placeholder;
+        while ((placeholder = template.indexOf("{}", from)) >= 0) {
+            line.append(template, from, placeholder);
+            if (object != null && argument == 0) {
+                line.append(object);
+            } else if (argument == (object != null ? 1 : 0)) {
+                line.append(first);
+            } else {
+                line.append(second);
+            }
+            argument++;
+            from = placeholder + 2;
+        }
+        line.append(template, from, template.length());
+    }
+}
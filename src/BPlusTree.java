@@ -0,0 +1,695 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+/**
+ * The BPlusTree class is a B+ tree of int values, an alternative backing structure to BinarySearchTree.
+ * <p>
+ * A binary tree costs a cache miss for every level it descends, about 24 levels for ten million values. Here
+ * every node holds a sorted int array of up to fanout values, so a search only visits a few nodes and scans a few
+ * cache lines in each. Values live in the leaves, which are linked left to right, so an in-order traversal is a
+ * sequential sweep over the leaves. Internal nodes hold separators: child i holds the values from separator i-1
+ * up to but not including separator i. Nodes other than the root are kept at least half full by borrowing from
+ * or merging with a sibling on remove.
+ * <p>
+ * A B+ tree has no pre-order or post-order of its own. Those traversals are of the perfectly balanced binary
+ * search tree over the same values, so they can still be used to rebuild a tree on the client.
+ */
+public class BPlusTree implements OrderedIntSet {
+
+    /** Smallest fanout that still lets nodes split and merge */
+    public static final int MIN_FANOUT = 4;
+
+    /** Ranges of keys at most this long are scanned instead of halved, 16 ints fill one cache line */
+    private static final int SCAN_LENGTH = 16;
+
+    /**
+     * A node of the tree, a leaf if it has no children array.
+     */
+    private static final class Node {
+        final int[] keys;       // Values in a leaf, separators in an internal node, one spare slot for splitting
+        final Node[] children;  // Children of an internal node, null in a leaf
+        int count;              // Number of keys in use, an internal node has one more child than keys
+        Node next;              // Next leaf to the right, null in internal nodes and the last leaf
+
+        Node(int fanout, boolean leaf) {
+            keys = new int[fanout + 1];
+            children = leaf ? null : new Node[fanout + 2];
+        }
+    }
+
+    /** Most keys a node holds */
+    private final int fanout;
+
+    /** Fewest keys a node other than the root holds */
+    private final int minKeys;
+
+    /** Root of tree, an empty leaf when the tree is empty */
+    private Node root;
+
+    /** Number of levels, 1 while the root is a leaf */
+    private int levels = 1;
+
+    /** Number of values in the tree */
+    private int size;
+
+    /** Number of nodes split on insert */
+    private long splits;
+
+    /** Number of nodes merged into a sibling on remove */
+    private long merges;
+
+    /** Set by insertRec when a node split, the new node to the right of it */
+    private Node splitRight;
+
+    /** Set by insertRec when a node split, the separator between it and splitRight */
+    private int splitKey;
+
+    /**
+     * Initializes an empty B+ tree.
+     *
+     * @param fanout Most values per node, at least MIN_FANOUT.
+     */
+    public BPlusTree(int fanout) {
+        if (fanout < MIN_FANOUT) {
+            throw new IllegalArgumentException("Fanout must be at least " + MIN_FANOUT);
+        }
+        this.fanout = fanout;
+        this.minKeys = fanout / 2;
+        this.root = new Node(fanout, true);
+    }
+
+    /**
+     * Inserts a new value into the tree. If the root splits, a new root is added above it.
+     *
+     * @param value The value to be inserted.
+     * @return True if the value was added, false if it was already in the tree.
+     */
+    @Override
+    public boolean insert(int value) {
+        if (!insertRec(root, value)) {
+            return false;
+        }
+        if (splitRight != null) {
+            Node newRoot = new Node(fanout, false);
+            newRoot.keys[0] = splitKey;
+            newRoot.children[0] = root;
+            newRoot.children[1] = splitRight;
+            newRoot.count = 1;
+            splitRight = null;
+            root = newRoot;
+            levels++;
+        }
+        size++;
+        return true;
+    }
+
+    /**
+     * Recursively inserts a value. If the node overflows it is split and the new right node is left in splitRight
+     * for the parent to link.
+     *
+     * @param node  The root of the current subtree.
+     * @param value The value to be inserted.
+     * @return True if the value was added.
+     */
+    private boolean insertRec(Node node, int value) {
+        if (node.children == null) {
+            int index = lowerBound(node.keys, node.count, value);
+            if (index < node.count && node.keys[index] == value) {
+                return false;
+            }
+            insertAt(node.keys, node.count, index, value);
+            node.count++;
+            if (node.count > fanout) {
+                splitLeaf(node);
+            }
+            return true;
+        }
+
+        int index = upperBound(node.keys, node.count, value);
+        if (!insertRec(node.children[index], value)) {
+            return false;
+        }
+
+        // Link the child's new right sibling next to it
+        if (splitRight != null) {
+            Node right = splitRight;
+            splitRight = null;
+            insertAt(node.keys, node.count, index, splitKey);
+            System.arraycopy(node.children, index + 1, node.children, index + 2, node.count - index);
+            node.children[index + 1] = right;
+            node.count++;
+            if (node.count > fanout) {
+                splitInternal(node);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Splits an overflowing leaf, moving its upper half to a new leaf linked after it.
+     *
+     * @param leaf The leaf to split.
+     */
+    private void splitLeaf(Node leaf) {
+        int leftCount = leaf.count / 2;
+        Node right = new Node(fanout, true);
+        right.count = leaf.count - leftCount;
+        System.arraycopy(leaf.keys, leftCount, right.keys, 0, right.count);
+        right.next = leaf.next;
+
+        // The new leaf is complete before it is linked, for optimistic readers
+        leaf.next = right;
+        leaf.count = leftCount;
+        splitKey = right.keys[0];
+        splitRight = right;
+        splits++;
+    }
+
+    /**
+     * Splits an overflowing internal node. The middle separator moves up to the parent.
+     *
+     * @param node The node to split.
+     */
+    private void splitInternal(Node node) {
+        int middle = node.count / 2;
+        Node right = new Node(fanout, false);
+        right.count = node.count - middle - 1;
+        System.arraycopy(node.keys, middle + 1, right.keys, 0, right.count);
+        System.arraycopy(node.children, middle + 1, right.children, 0, right.count + 1);
+
+        splitKey = node.keys[middle];
+        splitRight = right;
+        splits++;
+        Arrays.fill(node.children, middle + 1, node.count + 1, null);
+        node.count = middle;
+    }
+
+    /**
+     * Removes a value from the tree. If the root is left with a single child, the child becomes the root.
+     *
+     * @param value The value to be removed.
+     * @return True if the value was removed, false if it was not in the tree.
+     */
+    @Override
+    public boolean remove(int value) {
+        if (!removeRec(root, value)) {
+            return false;
+        }
+        if (root.children != null && root.count == 0) {
+            root = root.children[0];
+            levels--;
+        }
+        size--;
+        return true;
+    }
+
+    /**
+     * Recursively removes a value, refilling any child left less than half full.
+     * Separators equal to the removed value can stay, they still divide the children correctly.
+     *
+     * @param node  The root of the current subtree.
+     * @param value The value to be removed.
+     * @return True if the value was removed.
+     */
+    private boolean removeRec(Node node, int value) {
+        if (node.children == null) {
+            int index = lowerBound(node.keys, node.count, value);
+            if (index == node.count || node.keys[index] != value) {
+                return false;
+            }
+            removeAt(node.keys, node.count, index);
+            node.count--;
+            return true;
+        }
+
+        int index = upperBound(node.keys, node.count, value);
+        Node child = node.children[index];
+        if (!removeRec(child, value)) {
+            return false;
+        }
+        if (child.count < minKeys) {
+            rebalance(node, index);
+        }
+        return true;
+    }
+
+    /**
+     * Refills a child that fell below half full, from a sibling with keys to spare or else by merging with one.
+     *
+     * @param parent The parent of the child.
+     * @param index  The index of the child.
+     */
+    private void rebalance(Node parent, int index) {
+        Node child = parent.children[index];
+        Node left = index > 0 ? parent.children[index - 1] : null;
+        Node right = index < parent.count ? parent.children[index + 1] : null;
+
+        if (left != null && left.count > minKeys) {
+            borrowFromLeft(parent, index, left, child);
+        } else if (right != null && right.count > minKeys) {
+            borrowFromRight(parent, index, child, right);
+        } else if (left != null) {
+            merge(parent, index - 1, left, child);
+        } else {
+            merge(parent, index, child, right);
+        }
+    }
+
+    /**
+     * Moves the last key of a left sibling into a child.
+     *
+     * @param parent The parent of both nodes.
+     * @param index  The index of the child.
+     * @param left   The child's left sibling.
+     * @param child  The child.
+     */
+    private void borrowFromLeft(Node parent, int index, Node left, Node child) {
+        if (child.children == null) {
+            insertAt(child.keys, child.count, 0, left.keys[left.count - 1]);
+            child.count++;
+            left.count--;
+            parent.keys[index - 1] = child.keys[0];
+            return;
+        }
+
+        // The separator comes down in front of the child, the left sibling's last key goes up in its place
+        System.arraycopy(child.children, 0, child.children, 1, child.count + 1);
+        insertAt(child.keys, child.count, 0, parent.keys[index - 1]);
+        child.children[0] = left.children[left.count];
+        child.count++;
+        parent.keys[index - 1] = left.keys[left.count - 1];
+        left.children[left.count] = null;
+        left.count--;
+    }
+
+    /**
+     * Moves the first key of a right sibling into a child.
+     *
+     * @param parent The parent of both nodes.
+     * @param index  The index of the child.
+     * @param child  The child.
+     * @param right  The child's right sibling.
+     */
+    private void borrowFromRight(Node parent, int index, Node child, Node right) {
+        if (child.children == null) {
+            child.keys[child.count] = right.keys[0];
+            child.count++;
+            removeAt(right.keys, right.count, 0);
+            right.count--;
+            parent.keys[index] = right.keys[0];
+            return;
+        }
+
+        // The separator comes down at the end of the child, the right sibling's first key goes up in its place
+        child.keys[child.count] = parent.keys[index];
+        child.children[child.count + 1] = right.children[0];
+        child.count++;
+        parent.keys[index] = right.keys[0];
+        removeAt(right.keys, right.count, 0);
+        System.arraycopy(right.children, 1, right.children, 0, right.count);
+        right.children[right.count] = null;
+        right.count--;
+    }
+
+    /**
+     * Merges a node into its left sibling and removes it from the parent.
+     *
+     * @param parent    The parent of both nodes.
+     * @param separator The index of the separator between them.
+     * @param left      The node that is kept.
+     * @param right     The node merged into it.
+     */
+    private void merge(Node parent, int separator, Node left, Node right) {
+        if (left.children == null) {
+            System.arraycopy(right.keys, 0, left.keys, left.count, right.count);
+            left.count += right.count;
+            left.next = right.next;
+        } else {
+            // The separator comes down between the two halves
+            left.keys[left.count] = parent.keys[separator];
+            System.arraycopy(right.keys, 0, left.keys, left.count + 1, right.count);
+            System.arraycopy(right.children, 0, left.children, left.count + 1, right.count + 1);
+            left.count += right.count + 1;
+        }
+
+        removeAt(parent.keys, parent.count, separator);
+        System.arraycopy(parent.children, separator + 2, parent.children, separator + 1,
+                parent.count - separator - 1);
+        parent.children[parent.count] = null;
+        parent.count--;
+        merges++;
+    }
+
+    /**
+     * Searches for a value.
+     *
+     * @param value The value to search for.
+     * @return True if value is found, false if not found.
+     */
+    @Override
+    public boolean search(int value) {
+        Node leaf = findLeaf(value);
+        int index = lowerBound(leaf.keys, leaf.count, value);
+        return index < leaf.count && leaf.keys[index] == value;
+    }
+
+    /**
+     * Finds the largest value at most a given one. Leaves only link to the right, so on the way down the subtree
+     * just left of the path is remembered; if the leaf holds nothing small enough, the answer is the last value
+     * of that subtree.
+     *
+     * @param value The value to look from.
+     * @return The value found, or NONE if every value is larger.
+     */
+    @Override
+    public long floor(int value) {
+        Node left = null;
+        Node node = root;
+        while (node.children != null) {
+            int index = upperBound(node.keys, node.count, value);
+            if (index > 0) {
+                left = node.children[index - 1];
+            }
+            node = node.children[index];
+        }
+        int index = upperBound(node.keys, node.count, value);
+        if (index > 0) {
+            return node.keys[index - 1];
+        }
+        if (left == null) {
+            return NONE;
+        }
+        while (left.children != null) {
+            left = left.children[left.count];
+        }
+        return left.keys[left.count - 1];
+    }
+
+    /**
+     * Finds the smallest value at least a given one: in the value's leaf, or else first in the next leaf.
+     *
+     * @param value The value to look from.
+     * @return The value found, or NONE if every value is smaller.
+     */
+    @Override
+    public long ceiling(int value) {
+        Node leaf = findLeaf(value);
+        int index = lowerBound(leaf.keys, leaf.count, value);
+        if (index < leaf.count) {
+            return leaf.keys[index];
+        }
+        return leaf.next != null ? leaf.next.keys[0] : NONE;
+    }
+
+    /**
+     * Searches for a value without any locking. A node being changed may be seen half shifted, so counts and
+     * child indexes are kept inside the arrays and a missing child gives up instead of failing.
+     *
+     * @param value    The value to search for.
+     * @param maxSteps The most nodes to visit.
+     * @return 1 if the value was found, 0 if not, -1 if the search gave up.
+     */
+    @Override
+    public int searchBounded(int value, int maxSteps) {
+        Node node = root;
+        for (int steps = 0; node != null && steps < maxSteps; steps++) {
+            int[] keys = node.keys;
+            int count = Math.min(node.count, keys.length);
+            Node[] children = node.children;
+            if (children == null) {
+                int index = lowerBound(keys, count, value);
+                return index < count && keys[index] == value ? 1 : 0;
+            }
+            node = children[Math.min(upperBound(keys, count, value), children.length - 1)];
+        }
+        return -1;
+    }
+
+    /**
+     * Searches for many values in one pass over the leaves.
+     * The probes are sorted first. Consecutive probes usually fall in the same leaf or the next one, so the tree
+     * is only descended again when a probe lies beyond both.
+     *
+     * @param values The values to search for.
+     * @return A bitset with bit i set if values[i] is in the tree, packed 64 bits per long.
+     */
+    @Override
+    public long[] searchAll(int[] values) {
+        // Pack each value above its index so sorting keeps track of where the answer goes
+        long[] probes = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            probes[i] = ((long) values[i] << 32) | i;
+        }
+        Arrays.sort(probes);
+
+        long[] found = new long[(values.length + 63) >>> 6];
+        Node leaf = null;
+        for (long probe : probes) {
+            int value = (int) (probe >> 32);
+            if (leaf == null || leaf.count == 0 || value > leaf.keys[leaf.count - 1]) {
+                Node next = leaf != null ? leaf.next : null;
+                leaf = next != null && value <= next.keys[next.count - 1] ? next : findLeaf(value);
+            }
+            int index = lowerBound(leaf.keys, leaf.count, value);
+            if (index < leaf.count && leaf.keys[index] == value) {
+                int position = (int) probe;
+                found[position >>> 6] |= 1L << position;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Finds the leaf a value belongs in.
+     *
+     * @param value The value.
+     * @return The leaf.
+     */
+    private Node findLeaf(int value) {
+        Node node = root;
+        while (node.children != null) {
+            node = node.children[upperBound(node.keys, node.count, value)];
+        }
+        return node;
+    }
+
+    /**
+     * Gets the number of values in the tree.
+     *
+     * @return The number of values.
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the height of the tree, the number of levels from the root down to the leaves.
+     *
+     * @return Height of tree, 0 if it is empty.
+     */
+    @Override
+    public int height() {
+        return size == 0 ? 0 : levels;
+    }
+
+    /**
+     * Adds counters describing the shape of the tree. Every search visits one node per level.
+     *
+     * @param stats The map to add the counters to.
+     */
+    @Override
+    public void addShapeStats(Map<String, Long> stats) {
+        stats.put("tree.size", (long) size);
+        stats.put("tree.height", (long) height());
+        stats.put("tree.path.avg.milli", height() * 1000L);
+        stats.put("tree.splits", splits);
+        stats.put("tree.merges", merges);
+    }
+
+    /**
+     * Counts the values at each depth. Every value is in a leaf and every leaf is at the bottom level.
+     *
+     * @return The number of values at each depth, the root being at depth 0.
+     */
+    @Override
+    public long[] depthHistogram() {
+        long[] counts = new long[height()];
+        if (size > 0) {
+            counts[levels - 1] = size;
+        }
+        return counts;
+    }
+
+    /**
+     * Gets a traversal as an int array. In-order sweeps the linked leaves; pre-order and post-order are those of
+     * the balanced binary search tree over the same values.
+     *
+     * @param order     Protocol.IN_ORDER, Protocol.PRE_ORDER or Protocol.POST_ORDER.
+     * @param cancelled Checked every CANCEL_CHECK_INTERVAL values; the traversal stops once it returns true.
+     * @return The values in the requested order, or null if the traversal was cancelled.
+     */
+    @Override
+    public int[] traversalValues(int order, BooleanSupplier cancelled) {
+        int[] sorted = new int[size];
+        Node leaf = root;
+        while (leaf.children != null) {
+            leaf = leaf.children[0];
+        }
+        for (int next = 0, checked = 0; leaf != null; leaf = leaf.next) {
+            System.arraycopy(leaf.keys, 0, sorted, next, leaf.count);
+            next += leaf.count;
+            if (next - checked >= CANCEL_CHECK_INTERVAL) {
+                if (cancelled.getAsBoolean()) {
+                    return null;
+                }
+                checked = next;
+            }
+        }
+        if (order == Protocol.IN_ORDER) {
+            return sorted;
+        }
+
+        int[] values = new int[size];
+        return fillBalanced(sorted, 0, size, order, values, 0, cancelled) < 0 ? null : values;
+    }
+
+    /**
+     * Copies the values above a given one in ascending order, from its leaf onwards along the leaf chain.
+     *
+     * @param after Copy values greater than this, or NONE to start from the smallest value.
+     * @param out   The array to fill.
+     * @return The number of values copied, fewer than out.length only if no more values are left.
+     */
+    @Override
+    public int valuesAfter(long after, int[] out) {
+        if (after >= Integer.MAX_VALUE) {
+            return 0;
+        }
+        int from = after == NONE ? Integer.MIN_VALUE : (int) after + 1;
+        Node leaf = findLeaf(from);
+        int index = lowerBound(leaf.keys, leaf.count, from);
+
+        int count = 0;
+        for (; leaf != null && count < out.length; leaf = leaf.next, index = 0) {
+            int copied = Math.min(leaf.count - index, out.length - count);
+            System.arraycopy(leaf.keys, index, out, count, copied);
+            count += copied;
+        }
+        return count;
+    }
+
+    /**
+     * Recursively copies the balanced binary search tree over a sorted range into an array in the requested
+     * order. The middle value of the range is the root.
+     *
+     * @param sorted    The values in ascending order.
+     * @param from      First value of the range.
+     * @param to        End of the range, exclusive.
+     * @param order     Protocol.PRE_ORDER or Protocol.POST_ORDER.
+     * @param values    The array being filled.
+     * @param next      Index of the next free slot.
+     * @param cancelled Checked whenever next reaches a multiple of CANCEL_CHECK_INTERVAL.
+     * @return Index of the next free slot after the range, or -1 if the traversal was cancelled.
+     */
+    private static int fillBalanced(int[] sorted, int from, int to, int order, int[] values, int next,
+                                    BooleanSupplier cancelled) {
+        if (from >= to) {
+            return next;
+        }
+        if (next > 0 && (next & (CANCEL_CHECK_INTERVAL - 1)) == 0 && cancelled.getAsBoolean()) {
+            return -1;
+        }
+        int middle = (from + to) >>> 1;
+        if (order == Protocol.PRE_ORDER) {
+            values[next++] = sorted[middle];
+        }
+        next = fillBalanced(sorted, from, middle, order, values, next, cancelled);
+        if (next < 0) {
+            return next;
+        }
+        next = fillBalanced(sorted, middle + 1, to, order, values, next, cancelled);
+        if (next < 0) {
+            return next;
+        }
+        if (order == Protocol.POST_ORDER) {
+            values[next++] = sorted[middle];
+        }
+        return next;
+    }
+
+    /**
+     * Finds the first key that is at least a value. Halves the range until it fits in a cache line, then scans.
+     *
+     * @param keys  The sorted keys.
+     * @param count Number of keys in use.
+     * @param value The value to look for.
+     * @return The index of the key, or count if every key is smaller.
+     */
+    private static int lowerBound(int[] keys, int count, int value) {
+        int low = 0;
+        int high = count;
+        while (high - low > SCAN_LENGTH) {
+            int middle = (low + high) >>> 1;
+            if (keys[middle] < value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        while (low < high && keys[low] < value) {
+            low++;
+        }
+        return low;
+    }
+
+    /**
+     * Finds the first key that is larger than a value, which is the index of the child the value belongs in.
+     *
+     * @param keys  The sorted keys.
+     * @param count Number of keys in use.
+     * @param value The value to look for.
+     * @return The index of the key, or count if no key is larger.
+     */
+    private static int upperBound(int[] keys, int count, int value) {
+        int low = 0;
+        int high = count;
+        while (high - low > SCAN_LENGTH) {
+            int middle = (low + high) >>> 1;
+            if (keys[middle] <= value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        while (low < high && keys[low] <= value) {
+            low++;
+        }
+        return low;
+    }
+
+    /**
+     * Inserts a key into a sorted array, shifting the keys after it right.
+     *
+     * @param keys  The keys.
+     * @param count Number of keys in use before the insert.
+     * @param index Where the key goes.
+     * @param value The key.
+     */
+    private static void insertAt(int[] keys, int count, int index, int value) {
+        System.arraycopy(keys, index, keys, index + 1, count - index);
+        keys[index] = value;
+    }
+
+    /**
+     * Removes a key from a sorted array, shifting the keys after it left.
+     *
+     * @param keys  The keys.
+     * @param count Number of keys in use before the remove.
+     * @param index The key to remove.
+     */
+    private static void removeAt(int[] keys, int count, int index) {
+        System.arraycopy(keys, index + 1, keys, index, count - index - 1);
+    }
+}
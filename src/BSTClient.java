@@ -0,0 +1,793 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.OptionalInt;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The BSTClient class is a headless client for the server that can be embedded in other programs.
+ * Every operation returns right away with a CompletableFuture that is completed with a typed result once the
+ * server replies.
+ * <p>
+ * The client keeps a small pool of connections and spreads requests over them. Each connection can have many
+ * requests in flight. When a connection breaks, its pending requests fail with an IOException and the next
+ * request reconnects it; reconnect attempts are spaced out so a server that is down is not hammered.
+ * Requests the server turns away because it is overloaded fail with a ServerBusyException carrying the
+ * suggested wait before retrying.
+ * <p>
+ * With a near cache, search results are kept on the client and repeated searches are answered locally. Every
+ * connection then subscribes to invalidations, and the cache is cleared whenever a connection is (re)opened since
+ * invalidations may have been missed while it was down.
+ * <p>
+ * A client works on one namespace of the server, the default one unless another is named when connecting. Every
+ * connection selects it as part of its handshake.
+ * <p>
+ * Futures are completed on a connection's reader thread, so callbacks attached to them should not block.
+ */
+public class BSTClient implements AutoCloseable {
+
+    /** Time to wait after a failed connection attempt before trying again */
+    private static final long RECONNECT_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    /** Host of the server */
+    private final String host;
+
+    /** Port of the server */
+    private final int port;
+
+    /** Connections in the pool, replaced when they break */
+    private final BSTConnection[] connections;
+
+    /** Earliest time the matching pool slot may try to reconnect, in System.nanoTime() terms */
+    private final long[] nextReconnect;
+
+    /** Round-robin position for picking a connection */
+    private final AtomicInteger nextConnection = new AtomicInteger();
+
+    /** Set once the client is closed */
+    private volatile boolean closed;
+
+    /** Cached search results, null if the client has no near cache */
+    private final NearCache nearCache;
+
+    /** Namespace every connection selects, empty for the default one */
+    private final String namespace;
+
+    /**
+     * Connects to the server.
+     *
+     * @param host     The host of the server.
+     * @param port     The port of the server.
+     * @param poolSize The number of connections to keep open.
+     * @return The connected client.
+     * @throws IOException if the first connection cannot be opened.
+     */
+    public static BSTClient connect(String host, int port, int poolSize) throws IOException {
+        return connect(host, port, poolSize, 0);
+    }
+
+    /**
+     * Connects to the server, keeping search results in a near cache.
+     *
+     * @param host          The host of the server.
+     * @param port          The port of the server.
+     * @param poolSize      The number of connections to keep open.
+     * @param nearCacheSize The most search results to cache, 0 for no cache.
+     * @return The connected client.
+     * @throws IOException if the first connection cannot be opened.
+     */
+    public static BSTClient connect(String host, int port, int poolSize, int nearCacheSize) throws IOException {
+        return connect(host, port, poolSize, nearCacheSize, TreeRegistry.DEFAULT);
+    }
+
+    /**
+     * Connects to a namespace of the server, keeping search results in a near cache.
+     *
+     * @param host          The host of the server.
+     * @param port          The port of the server.
+     * @param poolSize      The number of connections to keep open.
+     * @param nearCacheSize The most search results to cache, 0 for no cache.
+     * @param namespace     The namespace to work on, empty for the default one.
+     * @return The connected client.
+     * @throws IOException if the first connection cannot be opened or the server refuses the namespace.
+     */
+    public static BSTClient connect(String host, int port, int poolSize, int nearCacheSize, String namespace)
+            throws IOException {
+        if (!TreeRegistry.isValidName(namespace)) {
+            throw new IllegalArgumentException("Invalid namespace name: " + namespace);
+        }
+        BSTClient client = new BSTClient(host, port, poolSize, nearCacheSize, namespace);
+
+        // Open the first connection right away so a wrong address is reported here
+        client.connections[0] = client.openConnection();
+        return client;
+    }
+
+    /**
+     * Constructor for BSTClient, connections are opened when first needed.
+     *
+     * @param host     The host of the server.
+     * @param port     The port of the server.
+     * @param poolSize      The number of connections to keep open.
+     * @param nearCacheSize The most search results to cache, 0 for no cache.
+     * @param namespace     The namespace to work on, empty for the default one.
+     */
+    private BSTClient(String host, int port, int poolSize, int nearCacheSize, String namespace) {
+        if (poolSize <= 0) {
+            throw new IllegalArgumentException("Pool size must be positive");
+        }
+        this.host = host;
+        this.port = port;
+        this.connections = new BSTConnection[poolSize];
+        this.nextReconnect = new long[poolSize];
+        Arrays.fill(nextReconnect, System.nanoTime());
+        this.nearCache = nearCacheSize > 0 ? new NearCache(nearCacheSize) : null;
+        this.namespace = namespace;
+    }
+
+    /**
+     * Inserts a value into the tree.
+     *
+     * @param value The value to insert.
+     * @return A future completed with true if the value was added, false if it was already in the tree.
+     */
+    public CompletableFuture<Boolean> insert(int value) {
+        return send(Protocol.INSERT, outputStream -> outputStream.writeInt(value),
+                (status, inputStream) -> checkStatus(status) == Protocol.STATUS_OK);
+    }
+
+    /**
+     * Inserts a value that the server removes again once its time to live runs out. Inserting a value already in
+     * the tree resets its time to live.
+     *
+     * @param value     The value to insert.
+     * @param ttlMillis Milliseconds until the value is removed, positive.
+     * @return A future completed with true if the value was added, false if it was already in the tree.
+     */
+    public CompletableFuture<Boolean> insert(int value, int ttlMillis) {
+        if (ttlMillis <= 0) {
+            throw new IllegalArgumentException("Time to live must be positive: " + ttlMillis);
+        }
+        return send(Protocol.INSERT_TTL, outputStream -> {
+            outputStream.writeInt(value);
+            outputStream.writeInt(ttlMillis);
+        }, (status, inputStream) -> checkStatus(status) == Protocol.STATUS_OK);
+    }
+
+    /**
+     * Removes a value from the tree.
+     *
+     * @param value The value to remove.
+     * @return A future completed with true if the value was removed, false if it was not in the tree.
+     */
+    public CompletableFuture<Boolean> remove(int value) {
+        return send(Protocol.REMOVE, outputStream -> outputStream.writeInt(value),
+                (status, inputStream) -> checkStatus(status) == Protocol.STATUS_OK);
+    }
+
+    /**
+     * Has the server apply a batch of operations atomically: the inserts and removes are made only if every
+     * condition in the batch holds, and no other client sees the tree in between.
+     *
+     * @param batch The operations.
+     * @return A future completed with true if the batch was applied, false if a condition did not hold and
+     *         nothing was changed.
+     */
+    public CompletableFuture<Boolean> apply(TreeBatch batch) {
+        return send(Protocol.BATCH, batch::write, (status, inputStream) -> {
+            checkStatus(status);
+
+            // Either the number of values changed or the index of the failed condition
+            inputStream.readInt();
+            return status == Protocol.STATUS_OK;
+        });
+    }
+
+    /**
+     * Replaces one value with another in one step, so no client sees both or neither.
+     *
+     * @param from The value to remove, which must be in the tree.
+     * @param to   The value to insert, which must not be in the tree.
+     * @return A future completed with true if the value was moved, false if from was missing or to was already
+     *         there, in which case nothing changed.
+     */
+    public CompletableFuture<Boolean> moveKey(int from, int to) {
+        return apply(new TreeBatch().requirePresent(from).requireAbsent(to).remove(from).insert(to));
+    }
+
+    /**
+     * Inserts a value only if another value is not in the tree, checked and done in one step.
+     *
+     * @param value The value to insert, which must not be in the tree yet.
+     * @param guard The value that must not be in the tree.
+     * @return A future completed with true if the value was inserted, false if either value was already there.
+     */
+    public CompletableFuture<Boolean> insertIfAbsent(int value, int guard) {
+        return apply(new TreeBatch().requireAbsent(guard).requireAbsent(value).insert(value));
+    }
+
+    /**
+     * Searches the tree for a value. With a near cache, a cached result is returned without asking the server.
+     *
+     * @param value The value to search for.
+     * @return A future completed with true if the value is in the tree.
+     */
+    public CompletableFuture<Boolean> search(int value) {
+        if (nearCache == null) {
+            return send(Protocol.SEARCH, outputStream -> outputStream.writeInt(value),
+                    (status, inputStream) -> checkStatus(status) == Protocol.STATUS_OK);
+        }
+
+        Boolean cached = nearCache.get(value);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        // Remember the epoch so the result is dropped if an invalidation crosses it
+        long epoch = nearCache.epoch();
+        return send(Protocol.SEARCH, outputStream -> outputStream.writeInt(value), (status, inputStream) -> {
+            boolean found = checkStatus(status) == Protocol.STATUS_OK;
+            nearCache.put(value, found, epoch);
+            return found;
+        });
+    }
+
+    /**
+     * Searches the tree for many values in one request.
+     *
+     * @param values The values to search for.
+     * @return A future completed with a bitset in which bit i is set if values[i] is in the tree.
+     */
+    public CompletableFuture<BitSet> searchAll(int... values) {
+        return send(Protocol.MULTI_SEARCH, outputStream -> {
+            outputStream.writeInt(values.length);
+            for (int value : values) {
+                outputStream.writeInt(value);
+            }
+        }, BSTClient::readBitset);
+    }
+
+    /**
+     * Gets the values of the tree in in-order.
+     *
+     * @return A future completed with the values in ascending order.
+     */
+    public CompletableFuture<int[]> inOrder() {
+        return send(Protocol.IN_ORDER, null, BSTClient::readTraversal);
+    }
+
+    /**
+     * Gets the values of the tree in pre-order.
+     *
+     * @return A future completed with the values in pre-order.
+     */
+    public CompletableFuture<int[]> preOrder() {
+        return send(Protocol.PRE_ORDER, null, BSTClient::readTraversal);
+    }
+
+    /**
+     * Gets the values of the tree in post-order.
+     *
+     * @return A future completed with the values in post-order.
+     */
+    public CompletableFuture<int[]> postOrder() {
+        return send(Protocol.POST_ORDER, null, BSTClient::readTraversal);
+    }
+
+    /**
+     * Gets a traversal in the compact encoding, which is several times smaller on the wire than a list of ints.
+     *
+     * @param order    Protocol.IN_ORDER, Protocol.PRE_ORDER or Protocol.POST_ORDER.
+     * @param compress Whether the server should also Deflate the encoding, worth it for pre-order and post-order.
+     * @return A future completed with the values in the requested order.
+     */
+    public CompletableFuture<int[]> traversal(int order, boolean compress) {
+        return traversal(order, compress, false);
+    }
+
+    /**
+     * Gets a traversal in the compact encoding, optionally letting the server copy an in-order traversal in
+     * chunks. A chunked traversal holds up writes on the server for one chunk at a time instead of the whole
+     * traversal, but a value inserted or removed meanwhile may or may not be in it.
+     *
+     * @param order    Protocol.IN_ORDER, Protocol.PRE_ORDER or Protocol.POST_ORDER.
+     * @param compress Whether the server should also Deflate the encoding, worth it for pre-order and post-order.
+     * @param chunked  Whether an in-order traversal may be copied in chunks rather than as one snapshot.
+     * @return A future completed with the values in the requested order.
+     */
+    public CompletableFuture<int[]> traversal(int order, boolean compress, boolean chunked) {
+        return traversalDecoder(order, compress, chunked).thenApply(decoder -> {
+            try {
+                return decoder.decodeAll();
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /**
+     * Gets the changes to the tree since a version. Used by TreeReplica to stay in step with the server.
+     *
+     * @param epoch The epoch of the server the caller's version came from, 0 for none.
+     * @param since The version the caller has, 0 for none.
+     * @return A future completed with the changes, or a snapshot of the whole tree if they are no longer known or
+     *         the server is a different process.
+     */
+    public CompletableFuture<ChangeLog.Changes> changesSince(long epoch, long since) {
+        return send(Protocol.CHANGES_SINCE, outputStream -> {
+            outputStream.writeLong(epoch);
+            outputStream.writeLong(since);
+        }, BSTClient::readChanges);
+    }
+
+    /**
+     * Gets a traversal in the compact encoding without decoding it, so the caller can decode it in chunks.
+     *
+     * @param order    Protocol.IN_ORDER, Protocol.PRE_ORDER or Protocol.POST_ORDER.
+     * @param compress Whether the server should also Deflate the encoding.
+     * @return A future completed with a decoder positioned at the first value.
+     */
+    public CompletableFuture<TraversalCodec.Decoder> traversalDecoder(int order, boolean compress) {
+        return traversalDecoder(order, compress, false);
+    }
+
+    /**
+     * Gets a traversal in the compact encoding without decoding it, optionally copied in chunks.
+     *
+     * @param order    Protocol.IN_ORDER, Protocol.PRE_ORDER or Protocol.POST_ORDER.
+     * @param compress Whether the server should also Deflate the encoding.
+     * @param chunked  Whether an in-order traversal may be copied in chunks rather than as one snapshot.
+     * @return A future completed with a decoder positioned at the first value.
+     */
+    public CompletableFuture<TraversalCodec.Decoder> traversalDecoder(int order, boolean compress,
+                                                                      boolean chunked) {
+        int flags = (compress ? TraversalCodec.FLAG_DEFLATE : 0) | (chunked ? TraversalCodec.FLAG_CHUNKED : 0);
+        return send(Protocol.TRAVERSAL_COMPACT, outputStream -> {
+            outputStream.writeInt(order);
+            outputStream.writeInt(flags);
+        }, BSTClient::readCompactTraversal);
+    }
+
+    /**
+     * Finds the largest value in the tree at most a given one.
+     *
+     * @param value The value to look from.
+     * @return A future completed with the value found, or empty if every value is larger.
+     */
+    public CompletableFuture<OptionalInt> floor(int value) {
+        return neighbor(Protocol.FLOOR, value);
+    }
+
+    /**
+     * Finds the smallest value in the tree at least a given one.
+     *
+     * @param value The value to look from.
+     * @return A future completed with the value found, or empty if every value is smaller.
+     */
+    public CompletableFuture<OptionalInt> ceiling(int value) {
+        return neighbor(Protocol.CEILING, value);
+    }
+
+    /**
+     * Finds the largest value in the tree below a given one.
+     *
+     * @param value The value to look from.
+     * @return A future completed with the value found, or empty if no value is smaller.
+     */
+    public CompletableFuture<OptionalInt> lower(int value) {
+        return neighbor(Protocol.LOWER, value);
+    }
+
+    /**
+     * Finds the smallest value in the tree above a given one.
+     *
+     * @param value The value to look from.
+     * @return A future completed with the value found, or empty if no value is larger.
+     */
+    public CompletableFuture<OptionalInt> higher(int value) {
+        return neighbor(Protocol.HIGHER, value);
+    }
+
+    /**
+     * Finds the smallest value in the tree.
+     *
+     * @return A future completed with the value, or empty if the tree is empty.
+     */
+    public CompletableFuture<OptionalInt> min() {
+        return neighbor(Protocol.MIN, null);
+    }
+
+    /**
+     * Finds the largest value in the tree.
+     *
+     * @return A future completed with the value, or empty if the tree is empty.
+     */
+    public CompletableFuture<OptionalInt> max() {
+        return neighbor(Protocol.MAX, null);
+    }
+
+    /**
+     * Sends a neighbor query.
+     *
+     * @param opcode The query, Protocol.FLOOR to Protocol.MAX.
+     * @param value  The value to look from, null for MIN and MAX.
+     * @return A future completed with the value found, or empty if there is none.
+     */
+    private CompletableFuture<OptionalInt> neighbor(int opcode, Integer value) {
+        return send(opcode, value == null ? null : outputStream -> outputStream.writeInt(value),
+                (status, inputStream) -> checkStatus(status) == Protocol.STATUS_OK
+                        ? OptionalInt.of(inputStream.readInt()) : OptionalInt.empty());
+    }
+
+    /**
+     * Freezes the server's tree into its read-only index, which answers searches until the next change.
+     *
+     * @return A future completed with the number of values frozen.
+     */
+    public CompletableFuture<Integer> freeze() {
+        return send(Protocol.FREEZE, null, (status, inputStream) -> {
+            checkStatus(status);
+            return inputStream.readInt();
+        });
+    }
+
+    /**
+     * Drops the server's frozen index, so reads go to the tree again.
+     *
+     * @return A future completed once the server has thawed the tree.
+     */
+    public CompletableFuture<Void> thaw() {
+        return send(Protocol.THAW, null, (status, inputStream) -> {
+            checkStatus(status);
+            return null;
+        });
+    }
+
+    /**
+     * Gets the server's metrics, such as request counts and latency percentiles for each operation.
+     *
+     * @return A future completed with the metrics by name, in the order the server sent them.
+     */
+    public CompletableFuture<Map<String, Long>> stats() {
+        return send(Protocol.STATS, null, BSTClient::readStats);
+    }
+
+    /**
+     * Gets the shape of the server's tree: its size, height, average search path length in thousandths of a node
+     * (tree.path.avg.milli), rebalancing counters, and the number of values at each depth (tree.depth.N).
+     *
+     * @return A future completed with the statistics by name, in the order the server sent them.
+     */
+    public CompletableFuture<Map<String, Long>> treeStats() {
+        return send(Protocol.TREE_STATS, null, BSTClient::readStats);
+    }
+
+    /**
+     * Maps a long key to a value in the server's key/value store, replacing any previous value.
+     *
+     * @param key   The key.
+     * @param value The value.
+     * @return A future completed with true if the key was added, false if an existing value was replaced.
+     */
+    public CompletableFuture<Boolean> put(long key, byte[] value) {
+        return send(Protocol.KV_PUT, outputStream -> {
+            outputStream.writeLong(key);
+            writeBytes(outputStream, value);
+        }, (status, inputStream) -> checkStatus(status) == Protocol.STATUS_OK);
+    }
+
+    /**
+     * Gets the value of a long key from the server's key/value store.
+     *
+     * @param key The key.
+     * @return A future completed with the value, or null if the key is not in the store.
+     */
+    public CompletableFuture<byte[]> get(long key) {
+        return send(Protocol.KV_GET, outputStream -> outputStream.writeLong(key), BSTClient::readValue);
+    }
+
+    /**
+     * Removes a long key from the server's key/value store.
+     *
+     * @param key The key.
+     * @return A future completed with true if the key was removed, false if it was not in the store.
+     */
+    public CompletableFuture<Boolean> delete(long key) {
+        return send(Protocol.KV_DELETE, outputStream -> outputStream.writeLong(key),
+                (status, inputStream) -> checkStatus(status) == Protocol.STATUS_OK);
+    }
+
+    /**
+     * Maps a byte array key to a value in the server's key/value store, replacing any previous value.
+     *
+     * @param key   The key.
+     * @param value The value.
+     * @return A future completed with true if the key was added, false if an existing value was replaced.
+     */
+    public CompletableFuture<Boolean> put(byte[] key, byte[] value) {
+        return send(Protocol.KV_PUT_BYTES, outputStream -> {
+            writeBytes(outputStream, key);
+            writeBytes(outputStream, value);
+        }, (status, inputStream) -> checkStatus(status) == Protocol.STATUS_OK);
+    }
+
+    /**
+     * Gets the value of a byte array key from the server's key/value store.
+     *
+     * @param key The key.
+     * @return A future completed with the value, or null if the key is not in the store.
+     */
+    public CompletableFuture<byte[]> get(byte[] key) {
+        return send(Protocol.KV_GET_BYTES, outputStream -> writeBytes(outputStream, key), BSTClient::readValue);
+    }
+
+    /**
+     * Removes a byte array key from the server's key/value store.
+     *
+     * @param key The key.
+     * @return A future completed with true if the key was removed, false if it was not in the store.
+     */
+    public CompletableFuture<Boolean> delete(byte[] key) {
+        return send(Protocol.KV_DELETE_BYTES, outputStream -> writeBytes(outputStream, key),
+                (status, inputStream) -> checkStatus(status) == Protocol.STATUS_OK);
+    }
+
+    /**
+     * Gets the near cache, for example to read its hit and miss counts.
+     *
+     * @return The near cache, or null if the client has none.
+     */
+    public NearCache nearCache() {
+        return nearCache;
+    }
+
+    /**
+     * Closes every connection. Pending requests fail.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (connections) {
+            for (BSTConnection connection : connections) {
+                if (connection != null) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends a request on the next usable connection of the pool.
+     *
+     * @param opcode        The operation code.
+     * @param requestWriter Writes the operands, or null if there are none.
+     * @param replyReader   Reads the reply.
+     * @param <T>           The type of the result.
+     * @return A future completed with the result.
+     */
+    <T> CompletableFuture<T> send(int opcode, BSTConnection.RequestWriter requestWriter,
+                                  BSTConnection.ReplyReader<T> replyReader) {
+        try {
+            return connection().send(opcode, requestWriter, replyReader);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Picks a connection round robin, reconnecting the slot if its connection has broken.
+     *
+     * @return An open connection.
+     * @throws IOException if the client is closed or no connection could be opened.
+     */
+    private BSTConnection connection() throws IOException {
+        if (closed) {
+            throw new IOException("Client is closed");
+        }
+
+        int start = Math.floorMod(nextConnection.getAndIncrement(), connections.length);
+        IOException lastFailure = null;
+
+        // Try each slot once, starting at the round-robin position
+        for (int i = 0; i < connections.length; i++) {
+            int slot = (start + i) % connections.length;
+            synchronized (connections) {
+                BSTConnection connection = connections[slot];
+                if (connection != null && !connection.isClosed()) {
+                    return connection;
+                }
+                if (System.nanoTime() - nextReconnect[slot] < 0) {
+                    continue;
+                }
+                try {
+                    connections[slot] = openConnection();
+                    return connections[slot];
+                } catch (ServerBusyException e) {
+                    // Wait as long as the server asked before trying this slot again
+                    nextReconnect[slot] = System.nanoTime()
+                            + Math.max(RECONNECT_BACKOFF_NANOS, TimeUnit.MILLISECONDS.toNanos(e.getRetryAfterMillis()));
+                    lastFailure = e;
+                } catch (IOException e) {
+                    nextReconnect[slot] = System.nanoTime() + RECONNECT_BACKOFF_NANOS;
+                    lastFailure = e;
+                }
+            }
+        }
+        throw lastFailure != null ? lastFailure : new IOException("Not connected, waiting to reconnect");
+    }
+
+    /**
+     * Opens a connection, subscribed to invalidations if there is a near cache.
+     *
+     * @return The connection.
+     * @throws IOException if connecting fails.
+     */
+    private BSTConnection openConnection() throws IOException {
+        if (nearCache == null) {
+            return new BSTConnection(host, port, namespace, null, null);
+        }
+        BSTConnection connection = new BSTConnection(host, port, namespace, nearCache::invalidate, nearCache::clear);
+
+        // Invalidations sent while this connection was down were missed
+        nearCache.clear();
+        return connection;
+    }
+
+    /**
+     * Checks a status code, turning error codes into exceptions.
+     *
+     * @param status The status code of a reply.
+     * @return The status code.
+     * @throws IllegalStateException if the server reported an error. Only the request fails, the connection
+     *                               stays usable.
+     * @throws CancellationException if the server gave up on the request after its time limit.
+     */
+    static int checkStatus(int status) {
+        if (status == Protocol.STATUS_ERROR) {
+            throw new IllegalStateException("Server could not handle the request");
+        }
+        if (status == Protocol.STATUS_CANCELLED) {
+            throw new CancellationException("Server gave up on the request after its time limit");
+        }
+        return status;
+    }
+
+    /**
+     * Writes a byte array as an int length followed by the bytes.
+     *
+     * @param outputStream The stream to write to.
+     * @param bytes        The bytes.
+     * @throws IOException if writing fails.
+     */
+    private static void writeBytes(ObjectOutputStream outputStream, byte[] bytes) throws IOException {
+        outputStream.writeInt(bytes.length);
+        outputStream.write(bytes);
+    }
+
+    /**
+     * Reads a key/value lookup reply.
+     *
+     * @param status      The status code of the reply.
+     * @param inputStream The stream to read the value from.
+     * @return The value, or null if the key was not found.
+     * @throws IOException if reading fails.
+     */
+    private static byte[] readValue(int status, ObjectInputStream inputStream) throws IOException {
+        if (checkStatus(status) == Protocol.STATUS_NOT_FOUND) {
+            return null;
+        }
+        byte[] value = new byte[inputStream.readInt()];
+        inputStream.readFully(value);
+        return value;
+    }
+
+    /**
+     * Reads a bitset reply.
+     *
+     * @param status      The status code of the reply.
+     * @param inputStream The stream to read the bitset from.
+     * @return The bitset.
+     * @throws IOException if reading fails.
+     */
+    private static BitSet readBitset(int status, ObjectInputStream inputStream) throws IOException {
+        checkStatus(status);
+        long[] words = new long[inputStream.readInt()];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = inputStream.readLong();
+        }
+        return BitSet.valueOf(words);
+    }
+
+    /**
+     * Reads a metrics reply.
+     *
+     * @param status      The status code of the reply.
+     * @param inputStream The stream to read the metrics from.
+     * @return The metrics by name.
+     * @throws IOException if reading fails.
+     */
+    private static Map<String, Long> readStats(int status, ObjectInputStream inputStream) throws IOException {
+        checkStatus(status);
+        int count = inputStream.readInt();
+        Map<String, Long> stats = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            stats.put(inputStream.readUTF(), inputStream.readLong());
+        }
+        return stats;
+    }
+
+    /**
+     * Reads a compact traversal reply, inflating it if it was compressed but leaving the values encoded.
+     *
+     * @param status      The status code of the reply.
+     * @param inputStream The stream to read the traversal from.
+     * @return A decoder for the values.
+     * @throws IOException if reading or inflating fails.
+     */
+    private static TraversalCodec.Decoder readCompactTraversal(int status, ObjectInputStream inputStream)
+            throws IOException {
+        checkStatus(status);
+        int count = inputStream.readInt();
+        int flags = inputStream.readInt();
+        byte[] encoded = new byte[inputStream.readInt()];
+        inputStream.readFully(encoded);
+        if ((flags & TraversalCodec.FLAG_DEFLATE) != 0) {
+            encoded = TraversalCodec.inflate(encoded, count);
+        }
+        return new TraversalCodec.Decoder(encoded, encoded.length, count);
+    }
+
+    /**
+     * Reads a changes reply.
+     *
+     * @param status      The status code of the reply.
+     * @param inputStream The stream to read the changes from.
+     * @return The changes or snapshot.
+     * @throws IOException if reading or decoding fails.
+     */
+    private static ChangeLog.Changes readChanges(int status, ObjectInputStream inputStream) throws IOException {
+        checkStatus(status);
+        long epoch = inputStream.readLong();
+        long version = inputStream.readLong();
+        int count = inputStream.readInt();
+        if (status == Protocol.STATUS_SNAPSHOT) {
+            byte[] encoded = new byte[inputStream.readInt()];
+            inputStream.readFully(encoded);
+            return new ChangeLog.Changes(epoch, version, true, TraversalCodec.decode(encoded, encoded.length, count),
+                    null);
+        }
+
+        int[] values = new int[count];
+        byte[] operations = new byte[count];
+        for (int i = 0; i < count; i++) {
+            operations[i] = inputStream.readByte();
+            values[i] = inputStream.readInt();
+        }
+        return new ChangeLog.Changes(epoch, version, false, values, operations);
+    }
+
+    /**
+     * Reads the values of a traversal reply.
+     *
+     * @param status      The status code of the reply.
+     * @param inputStream The stream to read the values from.
+     * @return The values in the order they were sent.
+     * @throws IOException if reading fails.
+     */
+    private static int[] readTraversal(int status, ObjectInputStream inputStream) throws IOException {
+        checkStatus(status);
+        int[] values = new int[inputStream.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = inputStream.readInt();
+        }
+        return values;
+    }
+}
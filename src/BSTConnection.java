@@ -0,0 +1,294 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.IntConsumer;
+
+/**
+ * The BSTConnection class is a single connection to the server used by BSTClient.
+ * The connection is switched to binary replies when it is opened. Requests can be written from any thread and
+ * several can be in flight at once: the server answers them in order, so every request is queued when it is
+ * written and a reader thread completes the oldest queued request each time a reply arrives.
+ */
+class BSTConnection {
+
+    /**
+     * Writes the operands of a request after its operation code.
+     */
+    interface RequestWriter {
+        /**
+         * Writes the operands.
+         *
+         * @param outputStream The stream to write to.
+         * @throws IOException if writing fails.
+         */
+        void write(ObjectOutputStream outputStream) throws IOException;
+    }
+
+    /**
+     * Reads the rest of a reply after its status code.
+     *
+     * @param <T> The type of the result.
+     */
+    interface ReplyReader<T> {
+        /**
+         * Reads the reply.
+         *
+         * @param status      The status code that started the reply.
+         * @param inputStream The stream to read the rest of the reply from.
+         * @return The result of the request.
+         * @throws IOException if reading fails.
+         */
+        T read(int status, ObjectInputStream inputStream) throws IOException;
+    }
+
+    /**
+     * A request waiting for its reply.
+     *
+     * @param <T> The type of the result.
+     */
+    private static final class PendingRequest<T> {
+        final ReplyReader<T> replyReader;   // Reads the reply
+        final CompletableFuture<T> future;  // Completed with the result
+
+        PendingRequest(ReplyReader<T> replyReader) {
+            this.replyReader = replyReader;
+            this.future = new CompletableFuture<>();
+        }
+
+        void complete(int status, ObjectInputStream inputStream) throws IOException {
+            future.complete(replyReader.read(status, inputStream));
+        }
+    }
+
+    /** Socket connected to the server */
+    private final Socket socket;
+
+    /** Output stream for sending requests */
+    private final ObjectOutputStream outputStream;
+
+    /** Input stream for receiving replies */
+    private final ObjectInputStream inputStream;
+
+    /** Requests written to the server and not answered yet, oldest first */
+    private final Queue<PendingRequest<?>> pending = new ConcurrentLinkedQueue<>();
+
+    /** Lock held while queueing and writing a request, so the queue order matches the order on the wire */
+    private final Object writeLock = new Object();
+
+    /** Set once the connection has failed or was closed, guarded by writeLock */
+    private boolean closed;
+
+    /** Receives values the server reports as inserted or removed, null if not subscribed */
+    private final IntConsumer invalidationListener;
+
+    /** Told to drop everything cached when the server dropped invalidations, null if not subscribed */
+    private final Runnable flushListener;
+
+    /**
+     * Constructor for BSTConnection, connects to the server and switches the connection to binary replies.
+     *
+     * @param host                 The host of the server.
+     * @param port                 The port of the server.
+     * @param namespace            The namespace requests go to, empty for the default one.
+     * @param invalidationListener Receives values that were inserted or removed, or null to not subscribe.
+     *                             Called on the reader thread, in order with the replies.
+     * @param flushListener        Called the same way when invalidations were dropped and everything cached must
+     *                             go, null if not subscribing.
+     * @throws IOException if connecting or the handshake fails.
+     */
+    BSTConnection(String host, int port, String namespace, IntConsumer invalidationListener,
+                  Runnable flushListener) throws IOException {
+        this.invalidationListener = invalidationListener;
+        this.flushListener = flushListener;
+        socket = new Socket(InetAddress.getByName(host), port);
+        try {
+            socket.setTcpNoDelay(true);
+            outputStream = new ObjectOutputStream(socket.getOutputStream());
+            outputStream.flush();
+            inputStream = new ObjectInputStream(socket.getInputStream());
+
+            // Read the connection successful message
+            readGreeting();
+
+            // Ask for binary replies and wait for the confirmation
+            outputStream.writeInt(Protocol.BINARY_MODE);
+            outputStream.flush();
+            if (inputStream.readInt() != Protocol.STATUS_OK) {
+                throw new IOException("Server refused binary mode");
+            }
+
+            // Select the namespace, the default one needs no request
+            if (!namespace.isEmpty()) {
+                outputStream.writeInt(Protocol.USE_NAMESPACE);
+                outputStream.writeUTF(namespace);
+                outputStream.flush();
+                if (inputStream.readInt() != Protocol.STATUS_OK) {
+                    throw new IOException("Server refused namespace " + namespace);
+                }
+            }
+
+            // Subscribe before any request is sent, so no reply can be cached without its invalidations
+            if (invalidationListener != null) {
+                outputStream.writeInt(Protocol.SUBSCRIBE);
+                outputStream.flush();
+                if (readStatus() != Protocol.STATUS_OK) {
+                    throw new IOException("Server refused subscription");
+                }
+            }
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+
+        Thread reader = new Thread(this::readReplies, "bst-client-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Reads the message the server sends when a connection is accepted.
+     *
+     * @throws ServerBusyException if the server turned the connection away because it is full.
+     * @throws IOException         if the message cannot be read.
+     */
+    private void readGreeting() throws IOException {
+        Object greeting;
+        try {
+            greeting = inputStream.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unexpected greeting from server", e);
+        }
+
+        if (greeting instanceof String && ((String) greeting).startsWith(Protocol.BUSY_PREFIX)) {
+            String retryAfter = ((String) greeting).substring(Protocol.BUSY_PREFIX.length()).trim();
+            throw new ServerBusyException(Long.parseLong(retryAfter));
+        }
+    }
+
+    /**
+     * Sends a request.
+     *
+     * @param opcode        The operation code.
+     * @param requestWriter Writes the operands, or null if there are none.
+     * @param replyReader   Reads the reply.
+     * @param <T>           The type of the result.
+     * @return A future completed with the result, or exceptionally if the connection fails first.
+     */
+    <T> CompletableFuture<T> send(int opcode, RequestWriter requestWriter, ReplyReader<T> replyReader) {
+        PendingRequest<T> request = new PendingRequest<>(replyReader);
+        try {
+            synchronized (writeLock) {
+                if (closed) {
+                    throw new IOException("Connection is closed");
+                }
+                pending.add(request);
+                outputStream.writeInt(opcode);
+                if (requestWriter != null) {
+                    requestWriter.write(outputStream);
+                }
+                outputStream.flush();
+            }
+        } catch (IOException e) {
+            fail(e);
+            request.future.completeExceptionally(e);
+        }
+        return request.future;
+    }
+
+    /**
+     * Reads replies until the connection fails, completing the oldest pending request for each one.
+     */
+    private void readReplies() {
+        try {
+            while (true) {
+                int status = readStatus();
+                PendingRequest<?> request = pending.poll();
+                if (request == null) {
+                    throw new IOException("Reply without a request");
+                }
+
+                // A busy reply only carries the suggested wait, the request was not performed
+                if (status == Protocol.STATUS_BUSY) {
+                    request.future.completeExceptionally(new ServerBusyException(inputStream.readInt()));
+                    continue;
+                }
+
+                try {
+                    request.complete(status, inputStream);
+                } catch (RuntimeException e) {
+                    request.future.completeExceptionally(e);
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Reads the status code that starts the next reply, handing any invalidations or flushes pushed before it to
+     * the listeners.
+     *
+     * @return The status code.
+     * @throws IOException if reading fails or an invalidation arrives on a connection that did not subscribe.
+     */
+    private int readStatus() throws IOException {
+        int status = inputStream.readInt();
+        while (status == Protocol.PUSH_INVALIDATE || status == Protocol.PUSH_FLUSH) {
+            if (invalidationListener == null) {
+                throw new IOException("Invalidation on a connection that did not subscribe");
+            }
+            if (status == Protocol.PUSH_INVALIDATE) {
+                invalidationListener.accept(inputStream.readInt());
+            } else {
+                flushListener.run();
+            }
+            status = inputStream.readInt();
+        }
+        return status;
+    }
+
+    /**
+     * Marks the connection as failed, closes the socket and fails every pending request.
+     *
+     * @param cause The error that broke the connection.
+     */
+    private void fail(IOException cause) {
+        // Close first so a writer blocked on the socket gives up the write lock
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already failing, nothing more to do
+        }
+
+        synchronized (writeLock) {
+            closed = true;
+            PendingRequest<?> request;
+            while ((request = pending.poll()) != null) {
+                request.future.completeExceptionally(cause);
+            }
+        }
+    }
+
+    /**
+     * Checks whether the connection can still be used.
+     *
+     * @return True if the connection has failed or was closed.
+     */
+    boolean isClosed() {
+        synchronized (writeLock) {
+            return closed;
+        }
+    }
+
+    /**
+     * Closes the connection, failing any pending requests.
+     */
+    void close() {
+        fail(new IOException("Connection closed by client"));
+    }
+}
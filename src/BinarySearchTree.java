@@ -1,14 +1,40 @@
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
 
 /**
  * The BinarySearchTree class represents an implementation of a binary search tree (BST).
+ * Inserts and removes rebalance the nodes on their path with AVL rotations, so the height stays logarithmic
+ * whatever order values arrive in.
  */
-public class BinarySearchTree {
+public class BinarySearchTree implements OrderedIntSet {
 
     /** Root of tree */
     private Node root;
 
+    /** Set by insertRec when a new node was created */
+    private boolean inserted;
+
+    /** Number of values in the tree */
+    private int size;
+
+    /** Sum of the depths of all nodes, the root being at depth 0, kept up to date by every change */
+    private long pathLength;
+
+    /** Number of left rotations performed */
+    private long leftRotations;
+
+    /** Number of right rotations performed */
+    private long rightRotations;
+
+    /** Number of promote calls that moved a value up */
+    private long promotions;
+
+    /** Path from the root down to a value, used by promote and rebuild, reused between calls and grown as needed */
+    private Node[] walkPath = new Node[64];
+
     /**
      * Initializes an empty binary search tree.
      * Root is set to null so that the BST is empty at the start.
@@ -21,9 +47,15 @@ public class BinarySearchTree {
      * Inserts a new value into the BST.
      *
      * @param value The value to be inserted.
+     * @return True if the value was added, false if it was already in the tree.
      */
-    public void insert(int value) {
-        root = insertRec(root, value);
+    public boolean insert(int value) {
+        inserted = false;
+        root = insertRec(root, value, 0);
+        if (inserted) {
+            size++;
+        }
+        return inserted;
     }
 
     /**
@@ -31,24 +63,31 @@ public class BinarySearchTree {
      *
      * @param root  The root of the current subtree.
      * @param value The value to be inserted.
+     * @param depth The depth of the current subtree's root.
      * @return The updated root of the subtree.
      */
-    private Node insertRec(Node root, int value) {
+    private Node insertRec(Node root, int value, int depth) {
         // If root null, empty spot is reached and can insert the new node
         if (root == null) {
+            inserted = true;
+            pathLength += depth;
             return new Node(value);
         }
 
         // If value to be inserted is less than value of root, go up left subtree
         if (value < root.value) {
-            root.left = insertRec(root.left, value);
+            root.left = insertRec(root.left, value, depth + 1);
 
             // Value is greater than value of root, go up right subtree
         } else if (value > root.value) {
-            root.right = insertRec(root.right, value);
+            root.right = insertRec(root.right, value, depth + 1);
         }
 
-        // Avoid repeats if value is already in tree
+        // Avoid repeats if value is already in tree, otherwise rebalance on the way back up
+        if (inserted) {
+            update(root);
+            return balanceRec(root);
+        }
         return root;
     }
 
@@ -57,9 +96,10 @@ public class BinarySearchTree {
      *
      * @param root  The root of the current subtree.
      * @param value The value to be removed.
+     * @param depth The depth of the current subtree's root.
      * @return The updated root of the subtree.
      */
-    private Node removeRec(Node root, int value) {
+    private Node removeRec(Node root, int value, int depth) {
         // Tree empty
         if (root == null) {
             return null;
@@ -67,17 +107,19 @@ public class BinarySearchTree {
 
         // If value is less than root value, go left
         if (value < root.value) {
-            root.left = removeRec(root.left, value);
+            root.left = removeRec(root.left, value, depth + 1);
             // If value is greater than, go right
         } else if (value > root.value) {
-            root.right = removeRec(root.right, value);
+            root.right = removeRec(root.right, value, depth + 1);
             // Else if value is equal to root value, remove node
         } else {
-            // If node does not have left child, replace with its right child
+            // If node does not have left child, replace with its right child, which moves up a level
             if (root.left == null) {
+                pathLength -= depth + getSize(root.right);
                 return root.right;
                 // Node has no right child, replace with lefts child
             } else if (root.right == null) {
+                pathLength -= depth + getSize(root.left);
                 return root.left;
             }
 
@@ -85,15 +127,16 @@ public class BinarySearchTree {
             root.value = maxValue(root.left);
 
             // Remove node that had the max value
-            root.left = removeRec(root.left, root.value);
+            root.left = removeRec(root.left, root.value, depth + 1);
         }
 
         // Balance tree after removing node
+        update(root);
         return balanceRec(root);
     }
 
     /**
-     * Finds the maximum value in a subtree. Method used within removeRec.
+     * Finds the maximum value in a subtree. Method used within removeRec and max.
      *
      * @param node The root of the subtree.
      * @return The maximum value in the subtree.
@@ -123,7 +166,8 @@ public class BinarySearchTree {
     public boolean remove(int value) {
         // If value is found in tree, call removeRec to remove node and return true
         if (search(value)) {
-            root = removeRec(root, value);
+            root = removeRec(root, value, 0);
+            size--;
             return true;
         } else {
             return false;
@@ -140,6 +184,178 @@ public class BinarySearchTree {
         return searchRec(root, value);
     }
 
+    /**
+     * Finds the largest value at most a given one, in one walk down from the root.
+     *
+     * @param value The value to look from.
+     * @return The value found, or NONE if every value is larger.
+     */
+    public long floor(int value) {
+        long best = NONE;
+        Node node = root;
+        while (node != null) {
+            if (node.value == value) {
+                return value;
+            }
+
+            // A node below the value is the best so far, anything closer is in its right subtree
+            if (node.value < value) {
+                best = node.value;
+                node = node.right;
+            } else {
+                node = node.left;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Finds the smallest value at least a given one, in one walk down from the root.
+     *
+     * @param value The value to look from.
+     * @return The value found, or NONE if every value is smaller.
+     */
+    public long ceiling(int value) {
+        long best = NONE;
+        Node node = root;
+        while (node != null) {
+            if (node.value == value) {
+                return value;
+            }
+
+            // A node above the value is the best so far, anything closer is in its left subtree
+            if (node.value > value) {
+                best = node.value;
+                node = node.left;
+            } else {
+                node = node.right;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Finds the smallest value by following left children.
+     *
+     * @return The value, or NONE if the tree is empty.
+     */
+    @Override
+    public long min() {
+        if (root == null) {
+            return NONE;
+        }
+        Node node = root;
+        while (node.left != null) {
+            node = node.left;
+        }
+        return node.value;
+    }
+
+    /**
+     * Finds the largest value by following right children.
+     *
+     * @return The value, or NONE if the tree is empty.
+     */
+    @Override
+    public long max() {
+        return root == null ? NONE : maxValue(root);
+    }
+
+    /**
+     * Searches for a value without any locking, giving up after a number of steps.
+     * Meant for optimistic readers that run while another thread may be changing the tree: the answer is only
+     * trusted if no change happened during the search, and the step limit stops the walk if a rotation in
+     * progress briefly links nodes in a loop.
+     *
+     * @param value    The value to search for.
+     * @param maxSteps The most nodes to visit.
+     * @return 1 if the value was found, 0 if not, -1 if the limit was reached first.
+     */
+    public int searchBounded(int value, int maxSteps) {
+        Node node = root;
+        for (int steps = 0; node != null; steps++) {
+            if (steps == maxSteps) {
+                return -1;
+            }
+            if (value == node.value) {
+                return 1;
+            }
+            node = value < node.value ? node.left : node.right;
+        }
+        return 0;
+    }
+
+    /**
+     * Searches for many values in one walk of the tree.
+     * The probes are sorted first, so each node only has to split the probes that reached it into those that go
+     * left, the one it matches and those that go right. The tree is walked once instead of once per probe.
+     *
+     * @param values The values to search for.
+     * @return A bitset with bit i set if values[i] is in the tree, packed 64 bits per long.
+     */
+    public long[] searchAll(int[] values) {
+        // Pack each value above its index so sorting keeps track of where the answer goes
+        long[] probes = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            probes[i] = ((long) values[i] << 32) | i;
+        }
+        Arrays.sort(probes);
+
+        long[] found = new long[(values.length + 63) >>> 6];
+        searchAllRec(root, probes, 0, probes.length, found);
+        return found;
+    }
+
+    /**
+     * Recursively searches for a range of sorted probes.
+     *
+     * @param root   The root of the current subtree.
+     * @param probes The packed probes, sorted by value.
+     * @param from   First probe of the range.
+     * @param to     End of the range, exclusive.
+     * @param found  The bitset of found values.
+     */
+    private void searchAllRec(Node root, long[] probes, int from, int to, long[] found) {
+        // No probes left for this subtree, or leaf reached
+        if (root == null || from >= to) {
+            return;
+        }
+
+        // Probes below the node's value go left, probes above go right, equal probes were found
+        int lessEnd = firstProbeAtLeast(probes, from, to, root.value);
+        int equalEnd = lessEnd;
+        while (equalEnd < to && (int) (probes[equalEnd] >> 32) == root.value) {
+            int index = (int) probes[equalEnd];
+            found[index >>> 6] |= 1L << index;
+            equalEnd++;
+        }
+
+        searchAllRec(root.left, probes, from, lessEnd, found);
+        searchAllRec(root.right, probes, equalEnd, to, found);
+    }
+
+    /**
+     * Finds the first probe in a sorted range whose value is at least the given value.
+     *
+     * @param probes The packed probes, sorted by value.
+     * @param from   First probe of the range.
+     * @param to     End of the range, exclusive.
+     * @param value  The value to look for.
+     * @return The index of the probe, or to if every probe is smaller.
+     */
+    private static int firstProbeAtLeast(long[] probes, int from, int to, int value) {
+        long key = (long) value << 32;
+        while (from < to) {
+            int middle = (from + to) >>> 1;
+            if (probes[middle] < key) {
+                from = middle + 1;
+            } else {
+                to = middle;
+            }
+        }
+        return from;
+    }
+
     /**
      * Recursively searches for a value in the BST.
      *
@@ -236,20 +452,36 @@ public class BinarySearchTree {
 
     /**
      * Gets the height of a node.
-     * Height of a node is the number of edges on the longest path from the node to a leaf.
+     * Height of a node is the number of nodes on the longest path from the node down to a leaf.
      * Returns zero if node is null which means it does not exist.
-     * If not zero, the height is calculated by taking the maximum height of the left and right subtrees and adding
-     * 1.
-     * The 1 is for the edge to the parent node.
+     * The height is stored in the node and kept up to date by update, so this does not walk the subtree.
      *
-     * @param node The node to calculate the height for.
+     * @param node The node to get the height of.
      * @return The height of the node.
      */
-    private int getHeight(Node node) {
-        if (node == null) {
-            return 0;
-        }
-        return 1 + Math.max(getHeight(node.left), getHeight(node.right));
+    private static int getHeight(Node node) {
+        return node == null ? 0 : node.height;
+    }
+
+    /**
+     * Gets the number of nodes in the subtree below a node, zero if node is null.
+     *
+     * @param node The node to get the size of.
+     * @return The size of the node's subtree.
+     */
+    private static int getSize(Node node) {
+        return node == null ? 0 : node.size;
+    }
+
+    /**
+     * Recomputes the stored height and size of a node from its children.
+     * Must be called on every node whose children changed, from the bottom up.
+     *
+     * @param node The node to update.
+     */
+    private static void update(Node node) {
+        node.height = 1 + Math.max(getHeight(node.left), getHeight(node.right));
+        node.size = 1 + getSize(node.left) + getSize(node.right);
     }
 
     /**
@@ -271,8 +503,8 @@ public class BinarySearchTree {
         // Store y's left child in x
         Node x = y.left;
 
-        // Store y's right child in z
-        Node z = y.right;
+        // Store x's right child in z
+        Node z = x.right;
 
         // Make y right child of x
         x.right = y;
@@ -280,6 +512,12 @@ public class BinarySearchTree {
         // Make z left child of y
         y.left = z;
 
+        // y is now below x. x's left subtree moves up a level and y's right subtree moves down one
+        update(y);
+        update(x);
+        pathLength += getSize(y.right) - getSize(x.left);
+        rightRotations++;
+
         // Return new root of subtree
         return x;
     }
@@ -303,10 +541,300 @@ public class BinarySearchTree {
         // Make z right child of x
         x.right = z;
 
+        // x is now below y. y's right subtree moves up a level and x's left subtree moves down one
+        update(x);
+        update(y);
+        pathLength += getSize(x.left) - getSize(y.right);
+        leftRotations++;
+
         // Return new root of subtree
         return y;
     }
 
+    /**
+     * Moves a value toward the root by semi-splaying its search path. Walking up from the value two nodes at a
+     * time, a parent and child on the same side are handled by rotating the grandparent, lifting the parent above
+     * it, and a child on the other side by a double rotation that lifts the child above both. Every node on the
+     * path ends up about half as deep as before, the value itself included, so values promoted often gather near
+     * the root while the rest of the tree is only disturbed along that one path.
+     * <p>
+     * The set of values does not change, only the shape. Promotions ignore the AVL balance, so afterwards the tree
+     * is no longer height-balanced and its height can grow past the AVL bound. Later inserts and removes only
+     * rotate the unbalanced nodes on their own path, which may undo part of a promotion but does not rebalance
+     * the rest of the tree.
+     *
+     * @param value The value to promote.
+     * @return True if the tree changed, false if the value is not in the tree or is already the root.
+     */
+    @Override
+    public boolean promote(int value) {
+        // Record the path down to the value
+        int depth = 0;
+        Node node = root;
+        while (node != null && node.value != value) {
+            if (depth + 1 == walkPath.length) {
+                walkPath = Arrays.copyOf(walkPath, walkPath.length * 2);
+            }
+            walkPath[depth++] = node;
+            node = value < node.value ? node.left : node.right;
+        }
+        if (node == null || depth == 0) {
+            return false;
+        }
+        walkPath[depth] = node;
+
+        // Work up the path, replacing each grandparent with whichever node the step lifts
+        int i = depth;
+        while (i >= 2) {
+            Node child = walkPath[i];
+            Node parent = walkPath[i - 1];
+            Node grandparent = walkPath[i - 2];
+            boolean parentIsLeft = grandparent.left == parent;
+            Node top;
+            if ((parent.left == child) == parentIsLeft) {
+                // Zig-zig: lift the parent, the child comes up with it
+                top = parentIsLeft ? rightRotate(grandparent) : leftRotate(grandparent);
+            } else if (parentIsLeft) {
+                // Zig-zag: lift the child above both
+                grandparent.left = leftRotate(parent);
+                top = rightRotate(grandparent);
+            } else {
+                grandparent.right = rightRotate(parent);
+                top = leftRotate(grandparent);
+            }
+            replaceChild(i >= 3 ? walkPath[i - 3] : null, grandparent, top);
+            walkPath[i - 2] = top;
+            i -= 2;
+        }
+        if (i == 1) {
+            // One node left above: a single rotation makes the lifted node the root
+            root = root.left == walkPath[1] ? rightRotate(root) : leftRotate(root);
+        }
+
+        // Every node on the path took part in a rotation, so their heights are already up to date
+        Arrays.fill(walkPath, 0, depth + 1, null);
+        promotions++;
+        return true;
+    }
+
+    /**
+     * Adds values saved in pre-order, rebuilding the shape they were saved with. Each value is attached as a leaf
+     * where a plain search for it ends, without rotations, so a tree saved unbalanced by promotions comes back
+     * the same. Values already in the tree are skipped.
+     *
+     * @param preOrder The values in pre-order.
+     */
+    @Override
+    public void rebuild(int[] preOrder) {
+        for (int value : preOrder) {
+            // Record the path down to where the value belongs
+            int depth = 0;
+            Node node = root;
+            while (node != null && node.value != value) {
+                if (depth == walkPath.length) {
+                    walkPath = Arrays.copyOf(walkPath, walkPath.length * 2);
+                }
+                walkPath[depth++] = node;
+                node = value < node.value ? node.left : node.right;
+            }
+            if (node != null) {
+                continue;
+            }
+
+            Node leaf = new Node(value);
+            if (depth == 0) {
+                root = leaf;
+            } else if (value < walkPath[depth - 1].value) {
+                walkPath[depth - 1].left = leaf;
+            } else {
+                walkPath[depth - 1].right = leaf;
+            }
+            for (int i = depth - 1; i >= 0; i--) {
+                update(walkPath[i]);
+            }
+            Arrays.fill(walkPath, 0, depth, null);
+            pathLength += depth;
+            size++;
+        }
+    }
+
+    /**
+     * Replaces one child of a node, or the root.
+     *
+     * @param parent   The node whose child is replaced, or null to replace the root.
+     * @param oldChild The child being replaced.
+     * @param newChild Its replacement.
+     */
+    private void replaceChild(Node parent, Node oldChild, Node newChild) {
+        if (parent == null) {
+            root = newChild;
+        } else if (parent.left == oldChild) {
+            parent.left = newChild;
+        } else {
+            parent.right = newChild;
+        }
+    }
+
+    /**
+     * Finds the depth of a value, the number of nodes above it on its search path.
+     *
+     * @param value The value to look for.
+     * @return The depth, the root being at depth 0, or -1 if the value is not in the tree.
+     */
+    public int depthOf(int value) {
+        int depth = 0;
+        Node node = root;
+        while (node != null) {
+            if (node.value == value) {
+                return depth;
+            }
+            node = value < node.value ? node.left : node.right;
+            depth++;
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the number of values in the tree.
+     *
+     * @return The number of values.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds counters describing the shape of the tree. Every counter is kept up to date by insert and remove, so
+     * this does not walk the tree.
+     *
+     * @param stats The map to add the counters to.
+     */
+    @Override
+    public void addShapeStats(Map<String, Long> stats) {
+        stats.put("tree.size", (long) size);
+        stats.put("tree.height", (long) height());
+        stats.put("tree.path.avg.milli", size == 0 ? 0 : (pathLength + size) * 1000 / size);
+        stats.put("tree.rotations.left", leftRotations);
+        stats.put("tree.rotations.right", rightRotations);
+        stats.put("tree.promotions", promotions);
+    }
+
+    /**
+     * Counts the nodes at each depth. Walks the whole tree, with a stack instead of recursion so a degenerate tree
+     * cannot overflow the thread's stack.
+     *
+     * @return The number of nodes at each depth, the root being at depth 0.
+     */
+    @Override
+    public long[] depthHistogram() {
+        long[] counts = new long[height()];
+        Node[] nodes = new Node[height()];
+        int[] depths = new int[height()];
+        int top = 0;
+        if (root != null) {
+            nodes[top++] = root;
+        }
+        while (top > 0) {
+            Node node = nodes[--top];
+            int depth = depths[top];
+            counts[depth]++;
+
+            // The stack holds at most one waiting sibling per level plus two children, never more than the height
+            if (node.left != null) {
+                nodes[top] = node.left;
+                depths[top++] = depth + 1;
+            }
+            if (node.right != null) {
+                nodes[top] = node.right;
+                depths[top++] = depth + 1;
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Gets a traversal as an int array, avoiding the boxed list of the traversal methods.
+     *
+     * @param order     Protocol.IN_ORDER, Protocol.PRE_ORDER or Protocol.POST_ORDER.
+     * @param cancelled Checked every CANCEL_CHECK_INTERVAL values; the traversal stops once it returns true.
+     * @return The values in the requested order, or null if the traversal was cancelled.
+     */
+    @Override
+    public int[] traversalValues(int order, BooleanSupplier cancelled) {
+        int[] values = new int[size];
+        return fillTraversal(root, order, values, 0, cancelled) < 0 ? null : values;
+    }
+
+    /**
+     * Copies the values above a given one in ascending order. Walks down to the first such value, keeping the
+     * nodes whose value and right subtree are still to come on a stack, so no node before it is visited.
+     *
+     * @param after Copy values greater than this, or NONE to start from the smallest value.
+     * @param out   The array to fill.
+     * @return The number of values copied, fewer than out.length only if no more values are left.
+     */
+    @Override
+    public int valuesAfter(long after, int[] out) {
+        // The stack never holds more than one root-to-leaf path
+        Node[] stack = new Node[Math.max(1, height())];
+        int depth = 0;
+        for (Node node = root; node != null; ) {
+            if (node.value > after) {
+                stack[depth++] = node;
+                node = node.left;
+            } else {
+                node = node.right;
+            }
+        }
+
+        int count = 0;
+        while (depth > 0 && count < out.length) {
+            Node node = stack[--depth];
+            out[count++] = node.value;
+            for (node = node.right; node != null; node = node.left) {
+                stack[depth++] = node;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Recursively copies a subtree into an array in the requested order.
+     *
+     * @param node      The root of the current subtree.
+     * @param order     Protocol.IN_ORDER, Protocol.PRE_ORDER or Protocol.POST_ORDER.
+     * @param values    The array being filled.
+     * @param next      Index of the next free slot.
+     * @param cancelled Checked whenever next reaches a multiple of CANCEL_CHECK_INTERVAL.
+     * @return Index of the next free slot after the subtree, or -1 if the traversal was cancelled.
+     */
+    private int fillTraversal(Node node, int order, int[] values, int next, BooleanSupplier cancelled) {
+        if (node == null) {
+            return next;
+        }
+        if (next > 0 && (next & (CANCEL_CHECK_INTERVAL - 1)) == 0 && cancelled.getAsBoolean()) {
+            return -1;
+        }
+        if (order == Protocol.PRE_ORDER) {
+            values[next++] = node.value;
+        }
+        next = fillTraversal(node.left, order, values, next, cancelled);
+        if (next < 0) {
+            return next;
+        }
+        if (order == Protocol.IN_ORDER) {
+            values[next++] = node.value;
+        }
+        next = fillTraversal(node.right, order, values, next, cancelled);
+        if (next < 0) {
+            return next;
+        }
+        if (order == Protocol.POST_ORDER) {
+            values[next++] = node.value;
+        }
+        return next;
+    }
+
     /**
      * Method to return in-order traversal of BST.
      *
@@ -0,0 +1,103 @@
+import java.util.Arrays;
+
+/**
+ * The BytesKeyValueTree class is an ordered key/value store with byte array keys.
+ * Keys are compared byte by byte as unsigned values, a shorter key coming first when it is a prefix of a
+ * longer one, which is the order of UTF-8 strings.
+ */
+public class BytesKeyValueTree extends KeyValueTree {
+
+    /** Key of each node */
+    private byte[][] keys = new byte[left.length][];
+
+    /** Key being inserted or removed, only used while holding the write lock */
+    private byte[] probe;
+
+    /**
+     * Maps a key to a value, replacing any previous value.
+     *
+     * @param key   The key, stored as given so the caller must not change it afterwards.
+     * @param value The value, stored as given so the caller must not change it afterwards.
+     * @return True if the key was added, false if an existing value was replaced.
+     */
+    public boolean put(byte[] key, byte[] value) {
+        long stamp = lock.writeLock();
+        try {
+            probe = key;
+            return putProbe(value);
+        } finally {
+            probe = null;
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Gets the value of a key.
+     *
+     * @param key The key.
+     * @return The value, or null if the key is not in the tree. The array is shared and must not be changed.
+     */
+    public byte[] get(byte[] key) {
+        long stamp = lock.readLock();
+        try {
+            int node = root;
+            while (node != NIL) {
+                int comparison = Arrays.compareUnsigned(key, keys[node]);
+                if (comparison == 0) {
+                    return values[node];
+                }
+                node = comparison < 0 ? left[node] : right[node];
+            }
+            return null;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Removes a key.
+     *
+     * @param key The key.
+     * @return True if the key was removed, false if it was not in the tree.
+     */
+    public boolean delete(byte[] key) {
+        long stamp = lock.writeLock();
+        try {
+            probe = key;
+            return deleteProbe();
+        } finally {
+            probe = null;
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    protected int compareProbe(int node) {
+        return Arrays.compareUnsigned(probe, keys[node]);
+    }
+
+    @Override
+    protected void storeProbe(int node) {
+        keys[node] = probe;
+    }
+
+    @Override
+    protected void loadProbe(int node) {
+        probe = keys[node];
+    }
+
+    @Override
+    protected void copyKey(int from, int to) {
+        keys[to] = keys[from];
+    }
+
+    @Override
+    protected void clearKey(int node) {
+        keys[node] = null;
+    }
+
+    @Override
+    protected void growKeys(int capacity) {
+        keys = Arrays.copyOf(keys, capacity);
+    }
+}
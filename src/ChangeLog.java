@@ -0,0 +1,164 @@
+import java.security.SecureRandom;
+
+/**
+ * The ChangeLog class remembers the most recent inserts and removes so clients can catch up on what changed
+ * instead of downloading the whole tree again.
+ * <p>
+ * Every change to the tree increments the tree version and is stored in a ring buffer under that version. A
+ * client that last saw version V asks for the changes after V: if they are all still in the ring it gets just
+ * those, otherwise it gets a snapshot of the whole tree. The owner of the log appends to it while holding the
+ * tree's write lock and reads it while holding at least the read lock, so the log has no locking of its own.
+ * <p>
+ * Versions only mean something within one server process: after a restart the versions start over and the same
+ * number stands for a different tree. Every reply therefore carries EPOCH, a random number picked when the
+ * process starts, and a client whose epoch differs gets a snapshot.
+ */
+public class ChangeLog {
+
+    /**
+     * Changes since a version, or a snapshot of the tree if they are no longer all known.
+     */
+    public static final class Changes {
+        /** Epoch of the server process the version belongs to */
+        public final long epoch;
+
+        /** Version of the tree these changes bring the client to */
+        public final long version;
+
+        /** Whether values holds the whole tree in ascending order instead of changes */
+        public final boolean snapshot;
+
+        /** Changed values oldest first, or the whole tree if snapshot is set */
+        public final int[] values;
+
+        /** Protocol.INSERT or Protocol.REMOVE for each changed value, null for a snapshot */
+        public final byte[] operations;
+
+        /**
+         * Constructor for Changes.
+         *
+         * @param epoch      Epoch of the server process the version belongs to.
+         * @param version    Version of the tree these changes bring the client to.
+         * @param snapshot   Whether values holds the whole tree.
+         * @param values     The changed values, or the whole tree.
+         * @param operations The operation of each changed value, null for a snapshot.
+         */
+        public Changes(long epoch, long version, boolean snapshot, int[] values, byte[] operations) {
+            this.epoch = epoch;
+            this.version = version;
+            this.snapshot = snapshot;
+            this.values = values;
+            this.operations = operations;
+        }
+    }
+
+    /** Random number standing for this server process, never 0 so it differs from a client with no copy yet */
+    public static final long EPOCH = newEpoch();
+
+    /** Ring buffer size minus one, the size is a power of two; -1 if the log keeps nothing */
+    private final int mask;
+
+    /** Value of each remembered change */
+    private final int[] values;
+
+    /** Operation of each remembered change */
+    private final byte[] operations;
+
+    /** Version of the tree, the number of changes ever appended */
+    private long version;
+
+    /** Version the log started at, changes before it were never recorded here */
+    private final long start;
+
+    /**
+     * Constructor for ChangeLog.
+     *
+     * @param capacity Number of changes remembered, rounded up to a power of two; 0 to only count versions.
+     */
+    public ChangeLog(int capacity) {
+        this(capacity, 0);
+    }
+
+    /**
+     * Constructor for ChangeLog, continuing the versions of a tree restored from a snapshot.
+     * Clients at an older version get a snapshot, since the changes before it are not known.
+     *
+     * @param capacity Number of changes remembered, rounded up to a power of two; 0 to only count versions.
+     * @param version  Version of the restored tree.
+     */
+    public ChangeLog(int capacity, long version) {
+        this.version = version;
+        this.start = version;
+        int size = capacity > 0 ? Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) : 0;
+        this.mask = size - 1;
+        this.values = new int[size];
+        this.operations = new byte[size];
+    }
+
+    /**
+     * Records a change and moves the version forward.
+     *
+     * @param operation Protocol.INSERT or Protocol.REMOVE.
+     * @param value     The value that was inserted or removed.
+     */
+    public void append(int operation, int value) {
+        version++;
+        if (mask >= 0) {
+            int slot = (int) version & mask;
+            values[slot] = value;
+            operations[slot] = (byte) operation;
+        }
+    }
+
+    /**
+     * Gets the current version.
+     *
+     * @return The version, 0 for a tree that never changed.
+     */
+    public long version() {
+        return version;
+    }
+
+    /**
+     * Checks whether every change after a version is still remembered.
+     *
+     * @param epoch The epoch the client's version belongs to.
+     * @param since The version the client has.
+     * @return True if the changes can be sent, false if the client needs a snapshot.
+     */
+    public boolean covers(long epoch, long since) {
+        return epoch == EPOCH && since >= start && since <= version && version - since <= mask + 1;
+    }
+
+    /**
+     * Gets the changes after a version, which must be covered.
+     *
+     * @param since The version the client has.
+     * @return The changes, oldest first.
+     */
+    public Changes since(long since) {
+        int count = (int) (version - since);
+        int[] changedValues = new int[count];
+        byte[] changedOperations = new byte[count];
+        for (int i = 0; i < count; i++) {
+            int slot = (int) (since + 1 + i) & mask;
+            changedValues[i] = values[slot];
+            changedOperations[i] = operations[slot];
+        }
+        return new Changes(EPOCH, version, false, changedValues, changedOperations);
+    }
+
+    /**
+     * Picks the epoch of this process.
+     *
+     * @return A random number other than 0.
+     */
+    private static long newEpoch() {
+        SecureRandom random = new SecureRandom();
+        long epoch;
+        do {
+            epoch = random.nextLong();
+        } while (epoch == 0);
+        return epoch;
+    }
+}
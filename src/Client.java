@@ -2,39 +2,36 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.*;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
 
 
 /**
  * The Client class represents a graphical client application that connects to a server and interacts with it.
  * This class extends `JFrame` for GUI functionality and implements `Runnable` to run the client in a separate thread.
  * <p>
- * The client communicates with the server using sockets and streams, sending and receiving messages.
- * It includes graphical elements for user interaction, such as buttons for inserting, removing, and searching values
- * in a Binary Search Tree (BST), as well as buttons for different BST traversal types.
+ * The client communicates with the server through a BSTClient, which handles the connection off the event
+ * dispatch thread. It includes graphical elements for user interaction, such as buttons for inserting, removing,
+ * and searching values in a Binary Search Tree (BST), as well as buttons for different BST traversal types.
  * <p>
- * The client can send requests to the server for modifying the BST or performing different traversals. It receives
- * updates and traversal results from the server and displays them in the console.
+ * The client can send requests to the server for modifying the BST or performing different traversals. Results
+ * arrive asynchronously. Modification results are displayed in the console. Traversals are decoded in the
+ * background a chunk at a time and shown in a list that only renders the visible rows; a pre-order traversal is
+ * also shown as a tree whose nodes are worked out as they are expanded, so even huge trees do not freeze the GUI.
  */
 public class Client extends JFrame implements Runnable {
 
     /** Host server for this application */
     private final String host;
 
-    /** Socket to communicate with server */
-    private Socket client;
-
-    /** Input stream for receiving data from the server */
-    private ObjectInputStream inputStream;
-
-    /** Output stream for sending data to server */
-    private ObjectOutputStream outputStream;
-
-    /** To store messages sent from server */
-    private String messageFromServer = "";
+    /** Headless client used to talk to the server, null until connected */
+    private volatile BSTClient client;
 
     /** The main GUI frame */
     private final JFrame frame = new JFrame();
@@ -64,6 +61,24 @@ public class Client extends JFrame implements Runnable {
     /** Button for post-order traversal */
     private final JButton postOrderButton = new JButton("Post-Order Traversal");
 
+    /** Values decoded from the last traversal */
+    private final IntListModel traversalModel = new IntListModel();
+
+    /** List showing the last traversal, only visible rows are rendered */
+    private final JList<String> traversalList = new JList<>(traversalModel);
+
+    /** Tree view of the last pre-order traversal, expanded lazily */
+    private final JTree treeView = new JTree(new PreOrderTreeModel(new int[0]));
+
+    /** Shows the progress of the last traversal */
+    private final JLabel traversalStatus = new JLabel(" ");
+
+    /** Number of values decoded before each update of the list */
+    private static final int TRAVERSAL_CHUNK = 1 << 16;
+
+    /** Background decoder of the traversal being shown, only used on the event dispatch thread */
+    private SwingWorker<Integer, int[]> traversalWorker;
+
 
     /**
      * Constructor for Client instance with specified host
@@ -88,6 +103,16 @@ public class Client extends JFrame implements Runnable {
     private void setFrame() {
         // Set default close operation
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+
+        // Close the connection when the window is closed
+        frame.addWindowListener(
+                new WindowAdapter() {
+                    @Override
+                    public void windowClosing(WindowEvent e) {
+                        closeConnection();
+                    }
+                });
+
         // Set input text field to be non-editable initially
         inputTextField.setEditable(false);
 
@@ -106,9 +131,21 @@ public class Client extends JFrame implements Runnable {
         // Add the input field panel to the main frame
         frame.add(inputFieldPanel, BorderLayout.NORTH);
 
+        // A prototype row gives every row the same height, so the list never measures rows off screen
+        traversalList.setPrototypeCellValue(Integer.toString(Integer.MIN_VALUE));
+        treeView.setLargeModel(true);
+        treeView.setRowHeight(traversalList.getFixedCellHeight());
+
+        // Traversal views below the input field, progress at the bottom
+        JTabbedPane traversalTabs = new JTabbedPane();
+        traversalTabs.addTab("Traversal", new JScrollPane(traversalList));
+        traversalTabs.addTab("Tree (from pre-order)", new JScrollPane(treeView));
+        frame.add(traversalTabs, BorderLayout.CENTER);
+        frame.add(traversalStatus, BorderLayout.SOUTH);
+
         // Pack the components and set frame's size
         frame.pack();
-        frame.setSize(1080, 300);
+        frame.setSize(1080, 600);
 
         // Make frame visible
         frame.setVisible(true);
@@ -119,18 +156,6 @@ public class Client extends JFrame implements Runnable {
      * Defines actions to be performed when specific buttons are clicked.
      */
     private void setButtons() {
-        // Action listeners for the input text field
-        inputTextField.addActionListener(
-                new ActionListener() {
-                    @Override
-                    public void actionPerformed(ActionEvent e) {
-                        // Send user input to server and clear the text field
-                        sendData(e.getActionCommand());
-                        inputTextField.setText("");
-
-                    }
-                });
-
         // Action listener for insert button
         insertButton.addActionListener(
                 new ActionListener() {
@@ -140,7 +165,7 @@ public class Client extends JFrame implements Runnable {
                         String userInput = inputTextField.getText();
                         if (!userInput.isEmpty()) {
                             int value = Integer.parseInt(userInput);
-                            sendBSTModificationRequest(1, value);
+                            sendBSTModificationRequest(Protocol.INSERT, value);
                             inputTextField.setText("");
                         }
 
@@ -159,7 +184,7 @@ public class Client extends JFrame implements Runnable {
                         String userInput = inputTextField.getText();
                         if (!userInput.isEmpty()) {
                             int value = Integer.parseInt(userInput);
-                            sendBSTModificationRequest(2, value);
+                            sendBSTModificationRequest(Protocol.REMOVE, value);
                             inputTextField.setText("");
                         }
                     }
@@ -175,7 +200,7 @@ public class Client extends JFrame implements Runnable {
                         String userInput = inputTextField.getText();
                         if (!userInput.isEmpty()) {
                             int value = Integer.parseInt(userInput);
-                            sendBSTModificationRequest(3, value);
+                            sendBSTModificationRequest(Protocol.SEARCH, value);
                             inputTextField.setText("");
                         }
                     }
@@ -188,7 +213,7 @@ public class Client extends JFrame implements Runnable {
                     @Override
                     public void actionPerformed(ActionEvent e) {
                         // Request traversal
-                        sendTraversalRequest(4);
+                        sendTraversalRequest(Protocol.IN_ORDER);
                     }
                 }
         );
@@ -198,7 +223,7 @@ public class Client extends JFrame implements Runnable {
                     @Override
                     public void actionPerformed(ActionEvent e) {
                         // Request traversal
-                        sendTraversalRequest(5);
+                        sendTraversalRequest(Protocol.PRE_ORDER);
                     }
                 }
         );
@@ -208,28 +233,27 @@ public class Client extends JFrame implements Runnable {
                     @Override
                     public void actionPerformed(ActionEvent e) {
                         // Request traversal
-                        sendTraversalRequest(6);
+                        sendTraversalRequest(Protocol.POST_ORDER);
                     }
                 }
         );
     }
 
     /**
-     * Establishes a connection to the server, initializes input and output streams,
-     * and processes the communication with the server.
+     * Establishes a connection to the server and enables the input field once connected.
+     * Requests are sent by the button listeners and answered asynchronously, so this method returns as soon as
+     * the connection is up.
      */
     @Override
     public void run() {
         try {
-            // Attempt to create a socket and connect to server, display successful connection message
-            client = new Socket(InetAddress.getByName(host), 23612);
-            System.out.println("Successfully connected to: " + client.getInetAddress().getHostAddress() + "\n");
-
-            // Initialize input and output streams
-            getStreams();
+            // Attempt to connect to server, display successful connection message
+            // Searches are cached on this side when -Dbst.client.nearCache=<entries> is given
+            client = BSTClient.connect(host, Protocol.DEFAULT_PORT, 1, Integer.getInteger("bst.client.nearCache", 0));
+            System.out.println("Successfully connected to: " + InetAddress.getByName(host).getHostAddress() + "\n");
 
-            // Process connection with server
-            processConnection();
+            // Enable the input field to be editable
+            SwingUtilities.invokeLater(this::setTextFieldEditable);
 
         } catch (UnknownHostException e) {
             // Handle unknown host exception
@@ -237,171 +261,142 @@ public class Client extends JFrame implements Runnable {
             e.printStackTrace();
 
         } catch (IOException e) {
-            // Handle exceptions related to streams and establishing successful connection
-            System.out.println("Error establishing connection or initializing streams ");
-            e.printStackTrace();
-
-        } finally {
-            // Close the connection when finished
-            closeConnection();
-        }
-    }
-
-    /**
-     * Initializes the input and output streams for communication with the server.
-     * This method creates ObjectInputStream and ObjectOutputStream instances using the
-     * server's socket InputStream and OutputStream, respectively.
-     * Method will be called after a successful connection is established.
-     *
-     * @throws IOException if input / output error occurs when initializing streams
-     */
-    private void getStreams() throws IOException {
-
-        // Create ObjectInputStream to read data from the server
-        outputStream = new ObjectOutputStream(client.getOutputStream());
-        outputStream.flush();   // Flush so that buffered data is sent
-
-        // Create ObjectOutputStream to send data to the client
-        inputStream = new ObjectInputStream(client.getInputStream());
-    }
-
-    /**
-     * Processes the communication with the server after a successful connection.
-     * Reads messages from the server and prints update messages sent from server.
-     *
-     * @throws IOException if an input / output error occurs during communication with the server.
-     */
-    private void processConnection() throws IOException {
-
-        // Enable the input field to be editable
-        setTextFieldEditable();
-
-        do {
-            try {
-
-                // Read an object / message from the server
-                messageFromServer = (String) inputStream.readObject();
-
-                // Print out update message after performing insert, remove, or search
-                if (messageFromServer.startsWith("SERVER>>> BST_UPDATE>>>")) {
-                    System.out.println(messageFromServer);
-
-                    // Print out the traversal user requests from server
-                } else if (messageFromServer.startsWith("BST_TRAVERSAL>>>")) {
-                    System.out.println(messageFromServer);
-
-                    // Handle any other message sent from server
-                } else {
-                    System.out.println(messageFromServer);
-                }
-
-                // Wait for confirmation from the server before proceeding to the next action
-                waitForServerConfirmation();
-
-            } catch (ClassNotFoundException e) {
-                // Handle the case where an unknown object type is received
-                System.out.println("Unknown object type received");
-            }
-        } while (!messageFromServer.equals("SERVER>>> EXIT_SIGNAL"));
-        // Close the connection when the server signals the client to exit (NOTE: Inactive currently)
-        closeConnection();
-    }
-
-    /**
-     * Waits for a confirmation message from the server indicating readiness for the next action.
-     * If the confirmation is received, it enables the input text field for user interaction.
-     */
-    private void waitForServerConfirmation() {
-        try {
-
-            // Check if there is data available in the input stream
-            if (inputStream.available() > 0) {
-
-                // Read the confirmation message from server
-                String confirmation = (String) inputStream.readObject();
-
-                // Check if confirmation indicates server is ready for next action from client
-                if (confirmation.equals("SERVER>>> READY_FOR_NEXT_ACTION")) {
-                    System.out.println("Server is ready for the next action");
-
-                    // Enable input text field to be editable again
-                    setTextFieldEditable();
-                }
-            }
-            // Throw if an input / output error occurs while reading from the server or if the received object's class is not found.
-        } catch (IOException | ClassNotFoundException e) {
+            // Handle exceptions related to establishing successful connection
+            System.out.println("Error establishing connection");
             e.printStackTrace();
         }
     }
 
     /**
      * Sends a request to the server for a binary search tree (BST) modification.
-     * The modification choice and associated value are sent as integers to the server.
-     * The modification is read by the server and determines which action was requested by client.
+     * The input field is disabled until the server has answered, so one request is handled at a time.
      *
      * @param modificationChoice The type of BST modification operation (1 for insert, 2 for remove, 3 for search).
      * @param value              The value associated with the BST modification operation.
      */
     private void sendBSTModificationRequest(int modificationChoice, int value) {
-//        setTextFieldEditable(false);
-
-        try {
-
-            // Send modification choice to server
-            outputStream.writeInt(modificationChoice);
+        // Ignore requests made before the connection is up
+        if (client == null) {
+            return;
+        }
 
-            // Send the value to be used for BST modification to the server
-            outputStream.writeInt(value);
+        CompletableFuture<Boolean> result;
+        Function<Boolean, String> message;
+
+        switch (modificationChoice) {
+            case Protocol.INSERT:
+                result = client.insert(value);
+                message = added -> added ? "Successfully inserted value: " + value
+                        : "Value: " + value + " was already in the tree";
+                break;
+            case Protocol.REMOVE:
+                result = client.remove(value);
+                message = removed -> removed ? "Successfully removed value: " + value : "Value was not found";
+                break;
+            default:
+                result = client.search(value);
+                message = found -> "Value: " + value + (found ? " was found" : " was not found");
+                break;
+        }
 
-            // Flush to make sure it is sent immediately
-            outputStream.flush();
+        inputTextField.setEditable(false);
+        result.whenComplete((success, error) -> {
+            // Print the result, or the error if the request failed
+            if (error != null) {
+                System.out.println("Error processing BST modification request: " + error.getMessage());
+            } else {
+                System.out.println("BST_UPDATE " + message.apply(success));
+            }
 
-        } catch (IOException e) {
-            // Handle an error that occurs while writing the object to the output stream
-            System.out.println("Error writing BST modification request");
-        }
+            // Enable input text field to be editable again
+            SwingUtilities.invokeLater(this::setTextFieldEditable);
+        });
     }
 
     /**
-     * Sends a traversal request to the server.
+     * Sends a traversal request to the server and shows the result as it is decoded.
+     * The encoded reply is decoded on a background thread a chunk at a time, and each chunk is appended to the
+     * list on the event dispatch thread. A new traversal cancels one still being decoded.
      *
      * @param traversalChoice The type of traversal operation to be performed on the server
      *                        (4 for in-order, 5 for pre-order, 6 for post-order).
      */
     private void sendTraversalRequest(int traversalChoice) {
-//        setTextFieldEditable(false);
-
-        try {
-
-            // Write the traversal choice to the output stream
-            outputStream.writeInt(traversalChoice);
-
-            // Flush to make sure it is sent immediately
-            outputStream.flush();
+        // Ignore requests made before the connection is up
+        if (client == null) {
+            return;
+        }
 
-        } catch (IOException e) {
-            System.out.println("Error writing BST traversal request");
+        String traversalType;
+        switch (traversalChoice) {
+            case Protocol.PRE_ORDER:
+                traversalType = "Pre-order";
+                break;
+            case Protocol.POST_ORDER:
+                traversalType = "Post-order";
+                break;
+            default:
+                traversalType = "In-order";
+                break;
         }
-    }
 
-    /**
-     * Sends a message to the server.
-     *
-     * @param messageFromClient The message to be sent to the server from the client.
-     */
-    private void sendData(String messageFromClient) {
-        try {
+        // Pre-order and post-order are not sorted, so they are worth compressing
+        CompletableFuture<TraversalCodec.Decoder> result =
+                client.traversalDecoder(traversalChoice, traversalChoice != Protocol.IN_ORDER);
 
-            // Write the message to the server using ObjectOutputStream
-            outputStream.writeObject("CLIENT>>> " + messageFromClient);
+        if (traversalWorker != null) {
+            traversalWorker.cancel(false);
+        }
+        traversalModel.reset(0);
+        traversalStatus.setText("Loading " + traversalType + " traversal...");
+
+        traversalWorker = new SwingWorker<Integer, int[]>() {
+            @Override
+            protected Integer doInBackground() throws Exception {
+                // Wait for the reply here rather than on the event dispatch thread
+                TraversalCodec.Decoder decoder = result.get();
+                while (decoder.remaining() > 0 && !isCancelled()) {
+                    int[] chunk = new int[Math.min(TRAVERSAL_CHUNK, decoder.remaining())];
+                    decoder.next(chunk, 0, chunk.length);
+                    publish(chunk);
+                }
+                return decoder.count();
+            }
 
-            // Flush to make sure it is sent immediately
-            outputStream.flush();
+            @Override
+            protected void process(List<int[]> chunks) {
+                if (isCancelled()) {
+                    return;
+                }
+                for (int[] chunk : chunks) {
+                    traversalModel.append(chunk, chunk.length);
+                }
+                traversalStatus.setText("Loading " + traversalType + " traversal... "
+                        + traversalModel.getSize() + " values");
+            }
 
-        } catch (IOException e) {
-            // Handle IOException if an error occurs while writing the object
-            System.out.println("Error writing object");
-        }
+            @Override
+            protected void done() {
+                if (isCancelled()) {
+                    return;
+                }
+                try {
+                    int count = get();
+                    traversalStatus.setText(traversalType + " traversal: " + count + " values");
+                    System.out.println("BST_TRAVERSAL " + traversalType + ": " + count + " values");
+
+                    // The tree view can be built from a pre-order traversal
+                    if (traversalChoice == Protocol.PRE_ORDER) {
+                        treeView.setModel(new PreOrderTreeModel(traversalModel.toArray()));
+                    }
+                } catch (InterruptedException | ExecutionException e) {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    traversalStatus.setText("Error processing BST traversal request: " + cause.getMessage());
+                    System.out.println("Error processing BST traversal request: " + cause.getMessage());
+                }
+            }
+        };
+        traversalWorker.execute();
     }
 
     /**
@@ -412,7 +407,7 @@ public class Client extends JFrame implements Runnable {
     }
 
     /**
-     * Closes the connection to the server, including input and output streams.
+     * Closes the connection to the server.
      * This method would be called when the client is done interacting with the server.
      */
     private void closeConnection() {
@@ -420,16 +415,8 @@ public class Client extends JFrame implements Runnable {
         // Print message indicating disconnection process
         System.out.println("Disconnecting from server");
 
-        try {
-
-            // Close input / output streams and client socket
-            outputStream.close();
-            inputStream.close();
+        if (client != null) {
             client.close();
-
-        } catch (IOException e) {
-            // Print the stack trace if an IOException occurs during the disconnection process
-            e.printStackTrace();
         }
     }
 
@@ -0,0 +1,171 @@
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The CountingBloomFilter class answers "definitely not present" for int values without touching the tree.
+ * <p>
+ * Each value maps to k counters. Adding a value increments its counters and removing it decrements them, so
+ * unlike a plain Bloom filter values can be taken out again. A value whose counters are not all above zero was
+ * never added, while a value whose counters are all above zero is only probably present, at the configured
+ * false-positive rate. Counters are 4 bits wide, sixteen to a long, and are updated with compare-and-set so
+ * lookups never lock. A counter that reaches 15 sticks there, since its true count is no longer known; this
+ * only makes the filter more permissive.
+ */
+public class CountingBloomFilter {
+
+    /** Largest value a 4-bit counter holds */
+    private static final long MAX_COUNT = 15;
+
+    /** Counters, sixteen per long */
+    private final AtomicLongArray counters;
+
+    /** Number of counters */
+    private final int counterCount;
+
+    /** Counters per value */
+    private final int hashCount;
+
+    /** False-positive rate the filter was sized for */
+    private final double falsePositiveRate;
+
+    /** Lookups answered as definite misses */
+    private final LongAdder definiteMisses = new LongAdder();
+
+    /** Lookups the filter let through that the tree then missed */
+    private final LongAdder falsePositives = new LongAdder();
+
+    /** Counters that reached the maximum and stopped counting */
+    private final LongAdder saturated = new LongAdder();
+
+    /**
+     * Constructor for CountingBloomFilter, sized with the standard Bloom filter formulas.
+     *
+     * @param expectedValues    Number of values the filter is sized for.
+     * @param falsePositiveRate Rate of false positives expected once it holds that many values.
+     */
+    public CountingBloomFilter(int expectedValues, double falsePositiveRate) {
+        if (expectedValues <= 0 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("Filter needs a positive size and a rate between 0 and 1");
+        }
+        double log2 = Math.log(2);
+        long counters = (long) Math.ceil(-expectedValues * Math.log(falsePositiveRate) / (log2 * log2));
+        this.counterCount = (int) Math.min(Integer.MAX_VALUE - 15, Math.max(64, counters));
+        this.hashCount = Math.max(1, (int) Math.round((double) counterCount / expectedValues * log2));
+        this.falsePositiveRate = falsePositiveRate;
+        this.counters = new AtomicLongArray((counterCount + 15) >>> 4);
+    }
+
+    /**
+     * Checks whether a value may be present.
+     *
+     * @param value The value.
+     * @return False if the value is definitely not present, true if it probably is.
+     */
+    public boolean mightContain(int value) {
+        long hash = mix(value);
+        int first = (int) hash;
+        int second = (int) (hash >>> 32);
+        for (int i = 0; i < hashCount; i++) {
+            if (count(index(first, second, i)) == 0) {
+                definiteMisses.increment();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds a value, which must not already be present.
+     *
+     * @param value The value.
+     */
+    public void add(int value) {
+        long hash = mix(value);
+        for (int i = 0; i < hashCount; i++) {
+            update(index((int) hash, (int) (hash >>> 32), i), 1);
+        }
+    }
+
+    /**
+     * Removes a value, which must have been added.
+     *
+     * @param value The value.
+     */
+    public void remove(int value) {
+        long hash = mix(value);
+        for (int i = 0; i < hashCount; i++) {
+            update(index((int) hash, (int) (hash >>> 32), i), -1);
+        }
+    }
+
+    /**
+     * Records that the filter let a lookup through but the value was not found.
+     */
+    public void recordFalsePositive() {
+        falsePositives.increment();
+    }
+
+    /**
+     * Adds the filter's size and counters to a map of metrics.
+     *
+     * @param stats The map to add the metrics to.
+     */
+    public void addStats(Map<String, Long> stats) {
+        stats.put("bloom.counters", (long) counterCount);
+        stats.put("bloom.hashes", (long) hashCount);
+        stats.put("bloom.bytes", counters.length() * 8L);
+        stats.put("bloom.fpp.ppm", Math.round(falsePositiveRate * 1_000_000));
+        stats.put("bloom.misses", definiteMisses.sum());
+        stats.put("bloom.false.positives", falsePositives.sum());
+        stats.put("bloom.saturated", saturated.sum());
+    }
+
+    /**
+     * Picks the i-th counter of a value by double hashing.
+     */
+    private int index(int first, int second, int i) {
+        return Math.floorMod(first + i * second, counterCount);
+    }
+
+    /**
+     * Reads a counter.
+     */
+    private long count(int index) {
+        return (counters.get(index >>> 4) >>> ((index & 15) << 2)) & MAX_COUNT;
+    }
+
+    /**
+     * Adds one to or subtracts one from a counter, leaving saturated and empty counters alone.
+     */
+    private void update(int index, int delta) {
+        int word = index >>> 4;
+        int shift = (index & 15) << 2;
+        while (true) {
+            long current = counters.get(word);
+            long count = (current >>> shift) & MAX_COUNT;
+            if (count == MAX_COUNT || (delta < 0 && count == 0)) {
+                return;
+            }
+            long updated = current + ((long) delta << shift);
+            if (counters.compareAndSet(word, current, updated)) {
+                if (count + delta == MAX_COUNT) {
+                    saturated.increment();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Spreads the bits of a value over a long, the two halves serve as the two hashes.
+     */
+    private static long mix(int value) {
+        long hash = value * 0x9E3779B97F4A7C15L;
+        hash ^= hash >>> 32;
+        hash *= 0xD6E8FEB86659FD93L;
+        hash ^= hash >>> 32;
+        // An odd second hash visits different counters for each i
+        return hash | (1L << 32);
+    }
+}
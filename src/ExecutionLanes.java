@@ -0,0 +1,312 @@
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The ExecutionLanes class keeps requests that walk the whole tree from crowding out cheap ones.
+ * <p>
+ * Requests fall into three lanes, each with its own bounded pool of threads. Point reads, such as searches and
+ * neighbor queries, touch one path of the tree; writes do too but wait for the write lock or the sequencer's
+ * writer thread; bulk requests, traversals, tree statistics and namespace switches that may load a snapshot from
+ * disk, cost time in proportion to the size of a tree and run on a few low-priority threads. However many clients
+ * ask for traversals at once, at most a few run, a bounded number wait, and the rest are turned away as busy, so
+ * the point read and write threads stay free.
+ * <p>
+ * A connection hands its requests to the lanes one at a time, in the order they arrived, so its replies keep
+ * that order; the tasks of one lane wait in a preallocated ring buffer that idle threads take from. Neither
+ * handing over a task nor waiting for one allocates, so the allocation-free request path stays allocation-free
+ * on the lane threads.
+ * <p>
+ * Each bulk request has a deadline counted from its arrival. The work checks it while it runs, and once it has
+ * passed the work stops and the client is told the request was cancelled.
+ */
+public class ExecutionLanes {
+
+    /** Part of the name of every lane thread, between the lane name and the thread number */
+    public static final String THREAD_INFIX = "-lane-";
+
+    /** Spins before an idle lane thread parks */
+    private static final int SPINS_BEFORE_PARK = 200;
+
+    /** Lane a request runs in */
+    public enum Lane {
+        /** Reads of one value or its neighbors */
+        POINT_READ,
+        /** Inserts, removes and batches, applied under the write lock or through the sequencer */
+        WRITE,
+        /** Requests that walk or load a whole tree, run on low-priority threads */
+        BULK
+    }
+
+    /**
+     * The threads of one lane and the ring buffer of tasks waiting for them.
+     * <p>
+     * Tasks are claimed and taken with a sequence number per slot: a slot whose sequence equals the position
+     * being written is free, one whose sequence is one past the position being read holds a task. The ring is at
+     * least as large as the number of tasks the lane accepts, so accepted tasks always find a free slot.
+     */
+    private static final class Pool {
+        final String name;                  // Name of the lane in thread names and metrics
+        final int limit;                    // Most tasks running or waiting at once
+        final int mask;                     // Ring buffer size minus one, the size is a power of two
+        final Runnable[] tasks;             // Task of each slot
+        final AtomicLongArray sequences;    // Sequence of each slot, set last to publish or free the slot
+        final AtomicLong tail = new AtomicLong();   // Next position to write
+        final AtomicLong head = new AtomicLong();   // Next position to read
+        final AtomicInteger pending = new AtomicInteger();   // Tasks accepted and not finished yet
+        final AtomicInteger active = new AtomicInteger();    // Tasks running now
+        final LongAdder rejected = new LongAdder();          // Tasks turned away because the lane was full
+        final Thread[] threads;             // Threads of the lane
+        final AtomicIntegerArray idle;      // 1 for each thread that found nothing to run and is about to park
+
+        /**
+         * Constructor for Pool, starts the threads.
+         *
+         * @param lane     The lane.
+         * @param threads  Number of threads.
+         * @param queue    Number of tasks that may wait for a thread.
+         * @param priority Priority of the threads.
+         */
+        Pool(Lane lane, int threads, int queue, int priority) {
+            name = lane.name().toLowerCase(Locale.ROOT);
+            limit = threads + queue;
+            int capacity = Integer.highestOneBit(Math.max(2, limit) * 2 - 1);
+            mask = capacity - 1;
+            tasks = new Runnable[capacity];
+            sequences = new AtomicLongArray(capacity);
+            for (int i = 0; i < capacity; i++) {
+                sequences.set(i, i);
+            }
+
+            this.threads = new Thread[threads];
+            idle = new AtomicIntegerArray(threads);
+            for (int i = 0; i < threads; i++) {
+                int index = i;
+                Thread thread = new Thread(() -> work(index), name + THREAD_INFIX + (i + 1));
+                thread.setDaemon(true);
+                thread.setPriority(priority);
+                this.threads[i] = thread;
+            }
+            for (Thread thread : this.threads) {
+                thread.start();
+            }
+        }
+
+        /**
+         * Hands a task to the lane unless it already has as many tasks as it accepts.
+         *
+         * @param task The task.
+         * @return True if the task will run, false if the lane was full.
+         */
+        boolean offer(Runnable task) {
+            if (pending.incrementAndGet() > limit) {
+                pending.decrementAndGet();
+                rejected.increment();
+                return false;
+            }
+
+            // Claim a position; the slot is free since at most limit tasks are in the ring
+            long position = tail.getAndIncrement();
+            int slot = (int) position & mask;
+            while (sequences.get(slot) != position) {
+                Thread.onSpinWait();
+            }
+            tasks[slot] = task;
+            sequences.set(slot, position + 1);
+
+            // A volatile write before the flags are read, so either a thread about to park sees the task or it
+            // is seen idle here and woken
+            for (int i = 0; i < threads.length; i++) {
+                if (idle.get(i) == 1 && idle.compareAndSet(i, 1, 0)) {
+                    LockSupport.unpark(threads[i]);
+                    break;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Takes the next task if one has been published.
+         *
+         * @return The task, or null if there is none.
+         */
+        Runnable poll() {
+            while (true) {
+                long position = head.get();
+                int slot = (int) position & mask;
+                if (sequences.get(slot) != position + 1) {
+                    return null;
+                }
+                if (head.compareAndSet(position, position + 1)) {
+                    Runnable task = tasks[slot];
+                    tasks[slot] = null;
+                    sequences.set(slot, position + mask + 1);
+                    return task;
+                }
+            }
+        }
+
+        /**
+         * Runs tasks as they come, spinning briefly and then parking when there are none.
+         *
+         * @param index Index of the calling thread.
+         */
+        void work(int index) {
+            int spins = 0;
+            while (true) {
+                Runnable task = poll();
+                if (task == null) {
+                    if (spins++ < SPINS_BEFORE_PARK) {
+                        Thread.onSpinWait();
+                        continue;
+                    }
+
+                    // Announce the park before the last check, so a task offered after it wakes this thread
+                    idle.set(index, 1);
+                    task = poll();
+                    if (task == null) {
+                        LockSupport.park(this);
+                        idle.set(index, 0);
+                        continue;
+                    }
+                    idle.set(index, 0);
+                }
+                spins = 0;
+
+                active.incrementAndGet();
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    // Tasks answer their own failures, this only keeps the thread alive on a bug
+                    System.err.println("Task failed in " + name + " lane: " + t);
+                } finally {
+                    active.decrementAndGet();
+                    pending.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    /** Pool of each lane, indexed by ordinal */
+    private final Pool[] pools;
+
+    /** Longest a bulk request may take, including its wait for a thread, in nanoseconds, 0 for no limit */
+    private final long bulkTimeoutNanos;
+
+    /** Bulk requests given up on after their deadline */
+    private final LongAdder cancelled = new LongAdder();
+
+    /**
+     * Constructor for ExecutionLanes, starts the threads of every lane.
+     *
+     * @param readThreads       Number of threads running point reads.
+     * @param readQueue         Number of point read tasks that may wait for a thread.
+     * @param writeThreads      Number of threads running writes.
+     * @param writeQueue        Number of write tasks that may wait for a thread.
+     * @param bulkThreads       Number of threads running bulk requests.
+     * @param bulkQueue         Number of bulk tasks that may wait for a thread, 0 for none.
+     * @param bulkTimeoutMillis Longest a bulk request may take, 0 for no limit.
+     */
+    public ExecutionLanes(int readThreads, int readQueue, int writeThreads, int writeQueue,
+                          int bulkThreads, int bulkQueue, int bulkTimeoutMillis) {
+        this.bulkTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(bulkTimeoutMillis);
+        pools = new Pool[Lane.values().length];
+        pools[Lane.POINT_READ.ordinal()] = new Pool(Lane.POINT_READ, readThreads, readQueue, Thread.NORM_PRIORITY);
+        pools[Lane.WRITE.ordinal()] = new Pool(Lane.WRITE, writeThreads, writeQueue, Thread.NORM_PRIORITY);
+        pools[Lane.BULK.ordinal()] = new Pool(Lane.BULK, bulkThreads, bulkQueue, Thread.MIN_PRIORITY);
+    }
+
+    /**
+     * Creates the lanes described by the server configuration.
+     *
+     * @param config The server configuration.
+     * @return The lanes.
+     */
+    public static ExecutionLanes create(ServerConfig config) {
+        return new ExecutionLanes(config.readThreads, config.readQueue, config.writeThreads, config.writeQueue,
+                config.bulkThreads, config.bulkQueue, config.bulkTimeoutMillis);
+    }
+
+    /**
+     * Gets the lane of a request.
+     *
+     * @param opcode The operation code.
+     * @return The lane it runs in.
+     */
+    public static Lane laneOf(int opcode) {
+        switch (opcode) {
+            case Protocol.IN_ORDER:
+            case Protocol.PRE_ORDER:
+            case Protocol.POST_ORDER:
+            case Protocol.TRAVERSAL_COMPACT:
+            case Protocol.TREE_STATS:
+                // Switching to an evicted namespace reads its whole snapshot from disk
+            case Protocol.USE_NAMESPACE:
+                return Lane.BULK;
+            case Protocol.INSERT:
+            case Protocol.INSERT_TTL:
+            case Protocol.REMOVE:
+            case Protocol.BATCH:
+            case Protocol.KV_PUT:
+            case Protocol.KV_DELETE:
+            case Protocol.KV_PUT_BYTES:
+            case Protocol.KV_DELETE_BYTES:
+                return Lane.WRITE;
+            default:
+                return Lane.POINT_READ;
+        }
+    }
+
+    /**
+     * Hands a task to the threads of a lane, unless the lane is full.
+     *
+     * @param lane The lane.
+     * @param task The task.
+     * @return True if the task will run, false if it was turned away.
+     */
+    public boolean execute(Lane lane, Runnable task) {
+        return pools[lane.ordinal()].offer(task);
+    }
+
+    /**
+     * Gets the deadline of a bulk request.
+     *
+     * @param arrival When the request arrived, from System.nanoTime.
+     * @return When the request is given up on, from System.nanoTime, or 0 if there is no limit.
+     */
+    public long bulkDeadline(long arrival) {
+        if (bulkTimeoutNanos == 0) {
+            return 0;
+        }
+        long deadline = arrival + bulkTimeoutNanos;
+        return deadline == 0 ? 1 : deadline;
+    }
+
+    /**
+     * Counts a bulk request given up on after its deadline.
+     */
+    public void recordCancelled() {
+        cancelled.increment();
+    }
+
+    /**
+     * Adds the lanes' counters to a map of metrics.
+     *
+     * @param stats The map to add the counters to.
+     */
+    public void addStats(Map<String, Long> stats) {
+        for (Pool pool : pools) {
+            int active = pool.active.get();
+            stats.put("lane." + pool.name + ".active", (long) active);
+            stats.put("lane." + pool.name + ".queued", (long) Math.max(0, pool.pending.get() - active));
+            stats.put("lane." + pool.name + ".rejected", pool.rejected.sum());
+        }
+        stats.put("lane.bulk.cancelled", cancelled.sum());
+    }
+}
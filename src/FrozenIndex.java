@@ -0,0 +1,176 @@
+import java.util.Arrays;
+
+/**
+ * The FrozenIndex class is an immutable copy of the tree's values laid out for fast searching.
+ * <p>
+ * The values are stored in Eytzinger order: the root of the balanced search tree over the values is at index 1
+ * and the children of index k are at 2k and 2k + 1, all in one int array. A search walks down the array with no
+ * pointers to follow. Each step picks the child with arithmetic instead of a branch, so there are no
+ * mispredictions, and the top levels that every search reads stay together in a few cache lines. The grandchildren
+ * four levels below index k sit side by side at 16k to 16k + 15, one cache line, so the memory system can fetch
+ * them while the search is still comparing at higher levels.
+ * <p>
+ * Multi-key searches walk several probes down the array in lock step. Their loads do not depend on each other, so
+ * the cache misses of one probe overlap those of the others instead of being paid one after another.
+ */
+public class FrozenIndex {
+
+    /** Number of probes searchAll walks down the array together */
+    private static final int INTERLEAVE = 8;
+
+    /** The values in Eytzinger order from index 1, index 0 is unused */
+    private final int[] eytzinger;
+
+    /** The values in ascending order, for traversals */
+    private final int[] sorted;
+
+    /** Number of levels of the implicit tree, the most steps a search takes */
+    private final int levels;
+
+    /**
+     * Constructor for FrozenIndex.
+     *
+     * @param sorted The values in ascending order. The array is kept, not copied, and must not be changed.
+     */
+    public FrozenIndex(int[] sorted) {
+        this.sorted = sorted;
+        this.eytzinger = new int[sorted.length + 1];
+        this.levels = 32 - Integer.numberOfLeadingZeros(sorted.length);
+        fill(1, 0);
+    }
+
+    /**
+     * Recursively places the sorted values in Eytzinger order. An in-order walk of the implicit tree visits the
+     * indexes in ascending order of their values.
+     *
+     * @param index Index of the current node of the implicit tree.
+     * @param next  Index of the next sorted value to place.
+     * @return Index of the next sorted value after the subtree.
+     */
+    private int fill(int index, int next) {
+        if (index >= eytzinger.length) {
+            return next;
+        }
+        next = fill(2 * index, next);
+        eytzinger[index] = sorted[next++];
+        return fill(2 * index + 1, next);
+    }
+
+    /**
+     * Searches for a value.
+     *
+     * @param value The value to search for.
+     * @return True if the value is in the index.
+     */
+    public boolean contains(int value) {
+        int[] keys = eytzinger;
+        int n = keys.length - 1;
+        int index = 1;
+        while (index <= n) {
+            // Go right if the node is smaller, without a branch
+            index = 2 * index + (keys[index] < value ? 1 : 0);
+        }
+        return found(keys, index, value);
+    }
+
+    /**
+     * Searches for many values, walking INTERLEAVE probes down the array at a time.
+     *
+     * @param values The values to search for.
+     * @return A bitset with bit i set if values[i] is in the index, packed 64 bits per long.
+     */
+    public long[] searchAll(int[] values) {
+        int[] keys = eytzinger;
+        int n = keys.length - 1;
+        long[] found = new long[(values.length + 63) >>> 6];
+        int[] indexes = new int[INTERLEAVE];
+
+        for (int start = 0; start < values.length; start += INTERLEAVE) {
+            int group = Math.min(INTERLEAVE, values.length - start);
+            for (int j = 0; j < group; j++) {
+                indexes[j] = 1;
+            }
+
+            // Every probe of the group takes one step per level; probes that already left the array stay put
+            for (int level = 0; level < levels; level++) {
+                for (int j = 0; j < group; j++) {
+                    int index = indexes[j];
+                    if (index <= n) {
+                        indexes[j] = 2 * index + (keys[index] < values[start + j] ? 1 : 0);
+                    }
+                }
+            }
+
+            for (int j = 0; j < group; j++) {
+                if (found(keys, indexes[j], values[start + j])) {
+                    int position = start + j;
+                    found[position >>> 6] |= 1L << position;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Checks the end of a search. The index past the last node encodes the path taken, one bit per level, 1 for
+     * right. Dropping the trailing right turns and the last left turn leads back to the node where the search last
+     * went left, the smallest value that is not smaller than the one searched for.
+     *
+     * @param keys  The values in Eytzinger order.
+     * @param index The index the search ended at.
+     * @param value The value searched for.
+     * @return True if that node holds the value.
+     */
+    private static boolean found(int[] keys, int index, int value) {
+        index >>>= Integer.numberOfTrailingZeros(~index) + 1;
+        return index != 0 && keys[index] == value;
+    }
+
+    /**
+     * Finds the largest value at most a given one, by binary search of the sorted values.
+     *
+     * @param value The value to look from.
+     * @return The value found, or OrderedIntSet.NONE if every value is larger.
+     */
+    public long floor(int value) {
+        int index = Arrays.binarySearch(sorted, value);
+        if (index >= 0) {
+            return value;
+        }
+        int insertion = -index - 1;
+        return insertion > 0 ? sorted[insertion - 1] : OrderedIntSet.NONE;
+    }
+
+    /**
+     * Finds the smallest value at least a given one, by binary search of the sorted values.
+     *
+     * @param value The value to look from.
+     * @return The value found, or OrderedIntSet.NONE if every value is smaller.
+     */
+    public long ceiling(int value) {
+        int index = Arrays.binarySearch(sorted, value);
+        if (index >= 0) {
+            return value;
+        }
+        int insertion = -index - 1;
+        return insertion < sorted.length ? sorted[insertion] : OrderedIntSet.NONE;
+    }
+
+    /**
+     * Gets the number of values in the index.
+     *
+     * @return The number of values.
+     */
+    public int size() {
+        return sorted.length;
+    }
+
+    /**
+     * Gets the values in ascending order.
+     *
+     * @return A copy of the values.
+     */
+    public int[] sortedValues() {
+        return sorted.clone();
+    }
+}
@@ -0,0 +1,71 @@
+import javax.swing.AbstractListModel;
+import java.util.Arrays;
+
+/**
+ * The IntListModel class is a list model backed by an int array, used to show traversals in a JList.
+ * Values are kept as ints and only turned into text when the list asks for a row, which a JList with a fixed
+ * cell height only does for the rows on screen. Values can be appended in chunks while a traversal is still being
+ * decoded. Like every Swing model it must only be used on the event dispatch thread.
+ */
+public class IntListModel extends AbstractListModel<String> {
+
+    /** Version of the serialized form */
+    private static final long serialVersionUID = 1L;
+
+    /** The values, possibly with unused space at the end */
+    private int[] values = new int[0];
+
+    /** Number of values in the list */
+    private int size;
+
+    /**
+     * Removes every value and makes room for a traversal of known size.
+     *
+     * @param capacity The number of values expected.
+     */
+    public void reset(int capacity) {
+        int removed = size;
+        values = new int[capacity];
+        size = 0;
+        if (removed > 0) {
+            fireIntervalRemoved(this, 0, removed - 1);
+        }
+    }
+
+    /**
+     * Appends values to the end of the list.
+     *
+     * @param chunk  Array holding the values.
+     * @param length Number of values of the array to append.
+     */
+    public void append(int[] chunk, int length) {
+        if (length == 0) {
+            return;
+        }
+        if (size + length > values.length) {
+            values = Arrays.copyOf(values, Math.max(size + length, values.length * 2));
+        }
+        System.arraycopy(chunk, 0, values, size, length);
+        size += length;
+        fireIntervalAdded(this, size - length, size - 1);
+    }
+
+    /**
+     * Gets the values in the list.
+     *
+     * @return A copy of the values.
+     */
+    public int[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return Integer.toString(values[index]);
+    }
+}
@@ -0,0 +1,94 @@
+import java.util.Arrays;
+
+/**
+ * The InvalidationBroadcaster class tells subscribed connections which values were inserted or removed, so clients
+ * can drop cached search results.
+ * <p>
+ * Publishing never touches a socket. The thread that changed the tree only adds the invalidation to each
+ * subscriber's bounded queue, which that subscriber's own connection drains and sends between its replies, so a
+ * subscriber that reads slowly delays nobody else. One that falls so far behind that its queue fills gets a single
+ * flush frame instead, telling it to drop everything it cached.
+ * <p>
+ * Subscribers are kept in an array that is copied whenever one subscribes or leaves, which is rare, so pushing an
+ * invalidation walks a plain array and allocates nothing.
+ */
+public class InvalidationBroadcaster {
+
+    /**
+     * A connection that receives invalidations.
+     */
+    public interface Subscriber {
+        /**
+         * Queues an invalidation for the client, without waiting for its socket.
+         *
+         * @param value The value that was inserted or removed.
+         */
+        void invalidate(int value);
+    }
+
+    /** Connections that subscribed, replaced rather than changed */
+    private volatile Subscriber[] subscribers = new Subscriber[0];
+
+    /**
+     * Adds a subscriber. Adding one that already subscribed does nothing.
+     *
+     * @param subscriber The subscriber.
+     */
+    public synchronized void subscribe(Subscriber subscriber) {
+        if (indexOf(subscriber) < 0) {
+            Subscriber[] added = Arrays.copyOf(subscribers, subscribers.length + 1);
+            added[subscribers.length] = subscriber;
+            subscribers = added;
+        }
+    }
+
+    /**
+     * Removes a subscriber, for example when its connection closes.
+     *
+     * @param subscriber The subscriber.
+     */
+    public synchronized void unsubscribe(Subscriber subscriber) {
+        int index = indexOf(subscriber);
+        if (index >= 0) {
+            Subscriber[] removed = new Subscriber[subscribers.length - 1];
+            System.arraycopy(subscribers, 0, removed, 0, index);
+            System.arraycopy(subscribers, index + 1, removed, index, removed.length - index);
+            subscribers = removed;
+        }
+    }
+
+    /**
+     * Queues an invalidation for every subscriber.
+     *
+     * @param value The value that was inserted or removed.
+     */
+    public void publish(int value) {
+        for (Subscriber subscriber : subscribers) {
+            subscriber.invalidate(value);
+        }
+    }
+
+    /**
+     * Finds a subscriber in the array.
+     *
+     * @param subscriber The subscriber.
+     * @return Its index, or -1 if it did not subscribe.
+     */
+    private int indexOf(Subscriber subscriber) {
+        for (int i = 0; i < subscribers.length; i++) {
+            if (subscribers[i] == subscriber) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the number of subscribers.
+     *
+     * @return The number of subscribers.
+     */
+    public int subscriberCount() {
+        return subscribers.length;
+    }
+}
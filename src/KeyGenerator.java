@@ -0,0 +1,140 @@
+import java.util.SplittableRandom;
+
+/**
+ * The KeyGenerator class produces the keys used by the load and benchmark tools.
+ * Keys are drawn from the range 0 to keyRange - 1 following one of several distributions.
+ * An instance is not thread safe, each thread should use its own generator.
+ */
+public class KeyGenerator {
+
+    /** Available key distributions */
+    public enum Distribution {
+        /** Every key in the range is equally likely */
+        UNIFORM,
+        /** Keys follow a Zipfian distribution, with the hot keys scattered across the range */
+        ZIPF,
+        /** Keys are handed out in increasing order, wrapping at the end of the range */
+        SEQUENTIAL
+    }
+
+    /** The distribution keys are drawn from */
+    private final Distribution distribution;
+
+    /** Number of distinct keys */
+    private final int keyRange;
+
+    /** Source of randomness */
+    private final SplittableRandom random;
+
+    /** Next key for the sequential distribution */
+    private int nextSequential;
+
+    /** Skew of the Zipfian distribution */
+    private final double theta;
+
+    /** Precomputed Zipfian constants, see Gray et al. "Quickly Generating Billion-Record Synthetic Databases" */
+    private double zetaN;
+    private double alpha;
+    private double eta;
+
+    /**
+     * Constructor for KeyGenerator.
+     * For the Zipfian distribution this walks the whole key range once, so keep one generator per thread
+     * instead of creating them per request.
+     *
+     * @param distribution The distribution to draw keys from.
+     * @param keyRange     The number of distinct keys.
+     * @param theta        The skew of the Zipfian distribution, usually 0.99. Ignored for the others.
+     * @param seed         Seed for the random source.
+     */
+    public KeyGenerator(Distribution distribution, int keyRange, double theta, long seed) {
+        if (keyRange <= 0) {
+            throw new IllegalArgumentException("Key range must be positive");
+        }
+        this.distribution = distribution;
+        this.keyRange = keyRange;
+        this.theta = theta;
+        this.random = new SplittableRandom(seed);
+        this.nextSequential = (int) Math.floorMod(seed, (long) keyRange);
+
+        if (distribution == Distribution.ZIPF) {
+            zetaN = zeta(keyRange, theta);
+            double zeta2 = zeta(2, theta);
+            alpha = 1.0 / (1.0 - theta);
+            eta = (1 - Math.pow(2.0 / keyRange, 1 - theta)) / (1 - zeta2 / zetaN);
+        }
+    }
+
+    /**
+     * Draws the next key.
+     *
+     * @return A key between 0 and keyRange - 1.
+     */
+    public int nextKey() {
+        switch (distribution) {
+            case ZIPF:
+                // Scatter the ranks so the hot keys are not all next to each other in the tree
+                return (int) Math.floorMod(mix(nextZipfRank()), (long) keyRange);
+            case SEQUENTIAL:
+                int key = nextSequential;
+                nextSequential = key + 1 == keyRange ? 0 : key + 1;
+                return key;
+            default:
+                return random.nextInt(keyRange);
+        }
+    }
+
+    /**
+     * Draws a number between 0 and bound - 1 from the generator's random source.
+     *
+     * @param bound The exclusive upper bound.
+     * @return The random number.
+     */
+    public int nextInt(int bound) {
+        return random.nextInt(bound);
+    }
+
+    /**
+     * Draws the rank of the next Zipfian key, where rank 0 is the most popular.
+     *
+     * @return The rank between 0 and keyRange - 1.
+     */
+    private long nextZipfRank() {
+        double u = random.nextDouble();
+        double uz = u * zetaN;
+        if (uz < 1.0) {
+            return 0;
+        }
+        if (uz < 1.0 + Math.pow(0.5, theta)) {
+            return 1;
+        }
+        return Math.min(keyRange - 1, (long) (keyRange * Math.pow(eta * u - eta + 1, alpha)));
+    }
+
+    /**
+     * Computes the generalized harmonic number used by the Zipfian distribution.
+     *
+     * @param n     Number of terms.
+     * @param theta The skew.
+     * @return The sum of 1 / i^theta for i from 1 to n.
+     */
+    private static double zeta(long n, double theta) {
+        double sum = 0;
+        for (long i = 1; i <= n; i++) {
+            sum += 1.0 / Math.pow(i, theta);
+        }
+        return sum;
+    }
+
+    /**
+     * Mixes the bits of a value so that neighbouring ranks map to unrelated keys.
+     *
+     * @param value The value to mix.
+     * @return The mixed value.
+     */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 33)) * 0xff51afd7ed558ccdL;
+        value = (value ^ (value >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return value ^ (value >>> 33);
+    }
+}
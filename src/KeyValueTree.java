@@ -0,0 +1,321 @@
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * The KeyValueTree class is the base of the ordered key/value stores, balanced binary search trees that map a
+ * key to a byte array value.
+ * <p>
+ * Nodes are not objects: a node is an index into parallel arrays holding the children, the height and the
+ * value, and subclasses keep the keys in an array of their own type. Keys are therefore never boxed, and
+ * removed nodes go on a free list to be reused. The tree is kept balanced with AVL rotations, so every
+ * operation visits O(log n) nodes.
+ * <p>
+ * Subclasses take the write lock, place the key being inserted or removed in a probe field and call
+ * {@link #putProbe} or {@link #deleteProbe}. Lookups are written in the subclasses and hold the read lock.
+ */
+public abstract class KeyValueTree {
+
+    /** Index standing for a missing child */
+    protected static final int NIL = -1;
+
+    /** Number of nodes the arrays start with */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** Guards every field, lookups share the read lock */
+    protected final StampedLock lock = new StampedLock();
+
+    /** Index of the root node, NIL if the tree is empty */
+    protected int root = NIL;
+
+    /** Left child of each node, also links the free list */
+    protected int[] left = new int[INITIAL_CAPACITY];
+
+    /** Right child of each node */
+    protected int[] right = new int[INITIAL_CAPACITY];
+
+    /** Height of each node, a leaf has height 1 */
+    private int[] height = new int[INITIAL_CAPACITY];
+
+    /** Value of each node */
+    protected byte[][] values = new byte[INITIAL_CAPACITY][];
+
+    /** First node of the free list */
+    private int freeHead = NIL;
+
+    /** Nodes handed out so far, including freed ones */
+    private int used;
+
+    /** Number of keys in the tree */
+    private int size;
+
+    /** Set by putProbe when a new key was added, and by deleteProbe when a key was removed */
+    private boolean changed;
+
+    /**
+     * Compares the probe key with the key of a node.
+     *
+     * @param node The node.
+     * @return Negative, zero or positive as the probe key is less than, equal to or greater than the node's key.
+     */
+    protected abstract int compareProbe(int node);
+
+    /**
+     * Stores the probe key in a node.
+     *
+     * @param node The node.
+     */
+    protected abstract void storeProbe(int node);
+
+    /**
+     * Makes the key of a node the probe key.
+     *
+     * @param node The node.
+     */
+    protected abstract void loadProbe(int node);
+
+    /**
+     * Copies the key of one node to another.
+     *
+     * @param from The node to copy from.
+     * @param to   The node to copy to.
+     */
+    protected abstract void copyKey(int from, int to);
+
+    /**
+     * Releases the key of a node that was freed.
+     *
+     * @param node The node.
+     */
+    protected abstract void clearKey(int node);
+
+    /**
+     * Grows the key array.
+     *
+     * @param capacity The new number of nodes.
+     */
+    protected abstract void growKeys(int capacity);
+
+    /**
+     * Gets the number of keys.
+     *
+     * @return The number of keys.
+     */
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Maps the probe key to a value, replacing any previous value. The caller must hold the write lock.
+     *
+     * @param value The value.
+     * @return True if the key was added, false if an existing value was replaced.
+     */
+    protected boolean putProbe(byte[] value) {
+        changed = false;
+        root = insert(root, value);
+        return changed;
+    }
+
+    /**
+     * Removes the probe key. The caller must hold the write lock.
+     *
+     * @return True if the key was removed, false if it was not in the tree.
+     */
+    protected boolean deleteProbe() {
+        changed = false;
+        root = delete(root);
+        return changed;
+    }
+
+    /**
+     * Recursively inserts the probe key.
+     *
+     * @param node  The root of the current subtree.
+     * @param value The value.
+     * @return The updated root of the subtree.
+     */
+    private int insert(int node, byte[] value) {
+        // Empty spot reached, add the key here
+        if (node == NIL) {
+            int added = allocate();
+            storeProbe(added);
+            values[added] = value;
+            changed = true;
+            size++;
+            return added;
+        }
+
+        // The child is assigned after the call because adding a node may replace the arrays
+        int comparison = compareProbe(node);
+        if (comparison < 0) {
+            int child = insert(left[node], value);
+            left[node] = child;
+        } else if (comparison > 0) {
+            int child = insert(right[node], value);
+            right[node] = child;
+        } else {
+            // Key already present, only the value changes
+            values[node] = value;
+            return node;
+        }
+        return balance(node);
+    }
+
+    /**
+     * Recursively removes the probe key.
+     *
+     * @param node The root of the current subtree.
+     * @return The updated root of the subtree.
+     */
+    private int delete(int node) {
+        if (node == NIL) {
+            return NIL;
+        }
+
+        int comparison = compareProbe(node);
+        if (comparison < 0) {
+            left[node] = delete(left[node]);
+        } else if (comparison > 0) {
+            right[node] = delete(right[node]);
+        } else if (left[node] == NIL || right[node] == NIL) {
+            // At most one child, which takes the node's place
+            int child = left[node] != NIL ? left[node] : right[node];
+            free(node);
+            changed = true;
+            return child;
+        } else {
+            // Two children, move the smallest key of the right subtree here and remove it from there
+            int successor = right[node];
+            while (left[successor] != NIL) {
+                successor = left[successor];
+            }
+            copyKey(successor, node);
+            values[node] = values[successor];
+            loadProbe(node);
+            right[node] = delete(right[node]);
+        }
+        return balance(node);
+    }
+
+    /**
+     * Updates the height of a node and rotates it if its subtrees differ in height by more than one.
+     *
+     * @param node The node.
+     * @return The root of the subtree after balancing.
+     */
+    private int balance(int node) {
+        updateHeight(node);
+        int balance = heightOf(left[node]) - heightOf(right[node]);
+
+        // Left heavy
+        if (balance > 1) {
+            if (heightOf(left[left[node]]) < heightOf(right[left[node]])) {
+                left[node] = rotateLeft(left[node]);
+            }
+            return rotateRight(node);
+        }
+
+        // Right heavy
+        if (balance < -1) {
+            if (heightOf(right[right[node]]) < heightOf(left[right[node]])) {
+                right[node] = rotateRight(right[node]);
+            }
+            return rotateLeft(node);
+        }
+        return node;
+    }
+
+    /**
+     * Performs a right rotation.
+     *
+     * @param node The node to rotate.
+     * @return The new root of the subtree.
+     */
+    private int rotateRight(int node) {
+        int pivot = left[node];
+        left[node] = right[pivot];
+        right[pivot] = node;
+        updateHeight(node);
+        updateHeight(pivot);
+        return pivot;
+    }
+
+    /**
+     * Performs a left rotation.
+     *
+     * @param node The node to rotate.
+     * @return The new root of the subtree.
+     */
+    private int rotateLeft(int node) {
+        int pivot = right[node];
+        right[node] = left[pivot];
+        left[pivot] = node;
+        updateHeight(node);
+        updateHeight(pivot);
+        return pivot;
+    }
+
+    /**
+     * Gets the height of a node, 0 for a missing child.
+     *
+     * @param node The node.
+     * @return The height.
+     */
+    private int heightOf(int node) {
+        return node == NIL ? 0 : height[node];
+    }
+
+    /**
+     * Recomputes the height of a node from its children.
+     *
+     * @param node The node.
+     */
+    private void updateHeight(int node) {
+        height[node] = 1 + Math.max(heightOf(left[node]), heightOf(right[node]));
+    }
+
+    /**
+     * Takes a node from the free list, or a new one if the list is empty, growing the arrays when they are full.
+     *
+     * @return The node, a leaf without key or value.
+     */
+    private int allocate() {
+        int node;
+        if (freeHead != NIL) {
+            node = freeHead;
+            freeHead = left[node];
+        } else {
+            if (used == left.length) {
+                int capacity = left.length * 2;
+                left = Arrays.copyOf(left, capacity);
+                right = Arrays.copyOf(right, capacity);
+                height = Arrays.copyOf(height, capacity);
+                values = Arrays.copyOf(values, capacity);
+                growKeys(capacity);
+            }
+            node = used++;
+        }
+        left[node] = NIL;
+        right[node] = NIL;
+        height[node] = 1;
+        return node;
+    }
+
+    /**
+     * Puts a node on the free list and drops its key and value.
+     *
+     * @param node The node.
+     */
+    private void free(int node) {
+        clearKey(node);
+        values[node] = null;
+        left[node] = freeHead;
+        freeHead = node;
+        size--;
+    }
+}
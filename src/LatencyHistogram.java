@@ -0,0 +1,175 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The LatencyHistogram class records latencies in nanoseconds into a fixed set of log-linear buckets.
+ * Each power of two is split into 16 sub-buckets, so a recorded value is reported within about 6% of its
+ * real value. All buckets are allocated up front, so recording never allocates and can be done from any thread.
+ */
+public class LatencyHistogram {
+
+    /** Number of bits used for the sub-buckets inside one power of two */
+    private static final int SUB_BUCKET_BITS = 5;
+
+    /** Values below this are recorded exactly */
+    private static final int EXACT_LIMIT = 1 << SUB_BUCKET_BITS;
+
+    /** Number of sub-buckets for every power of two above the exact range */
+    private static final int HALF = EXACT_LIMIT >> 1;
+
+    /** Total number of buckets, enough to cover every positive long */
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) * HALF + HALF;
+
+    /** Count of recorded values in each bucket */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    /** Number of recorded values */
+    private final AtomicLong totalCount = new AtomicLong();
+
+    /** Sum of recorded values, used for the mean */
+    private final AtomicLong totalSum = new AtomicLong();
+
+    /** Largest recorded value */
+    private final AtomicLong maxValue = new AtomicLong();
+
+    /**
+     * Records one value.
+     * Negative values are recorded as zero.
+     *
+     * @param nanos The latency to record in nanoseconds.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(bucketIndex(nanos));
+        totalCount.incrementAndGet();
+        totalSum.addAndGet(nanos);
+
+        // Only attempt to update the max when the value is larger, which is rare after warm up
+        long max = maxValue.get();
+        while (nanos > max && !maxValue.compareAndSet(max, nanos)) {
+            max = maxValue.get();
+        }
+    }
+
+    /**
+     * Adds all values recorded in another histogram to this one.
+     *
+     * @param other The histogram to add.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long count = other.counts.get(i);
+            if (count != 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+        totalCount.addAndGet(other.totalCount.get());
+        totalSum.addAndGet(other.totalSum.get());
+
+        long otherMax = other.maxValue.get();
+        long max = maxValue.get();
+        while (otherMax > max && !maxValue.compareAndSet(max, otherMax)) {
+            max = maxValue.get();
+        }
+    }
+
+    /**
+     * Clears all recorded values.
+     * Values recorded concurrently with a reset may be partially lost.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        totalCount.set(0);
+        totalSum.set(0);
+        maxValue.set(0);
+    }
+
+    /**
+     * Gets the number of recorded values.
+     *
+     * @return The number of recorded values.
+     */
+    public long count() {
+        return totalCount.get();
+    }
+
+    /**
+     * Gets the largest recorded value.
+     *
+     * @return The largest recorded value in nanoseconds.
+     */
+    public long max() {
+        return maxValue.get();
+    }
+
+    /**
+     * Gets the mean of the recorded values.
+     *
+     * @return The mean in nanoseconds, or zero if nothing was recorded.
+     */
+    public double mean() {
+        long count = totalCount.get();
+        return count == 0 ? 0.0 : (double) totalSum.get() / count;
+    }
+
+    /**
+     * Gets the value at a percentile.
+     * The returned value is the upper end of the bucket holding the percentile, capped at the max.
+     *
+     * @param percentile The percentile between 0 and 100.
+     * @return The value at the percentile in nanoseconds, or zero if nothing was recorded.
+     */
+    public long valueAtPercentile(double percentile) {
+        long count = totalCount.get();
+        if (count == 0) {
+            return 0;
+        }
+
+        // Rank of the value we are looking for, at least the first value
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), maxValue.get());
+            }
+        }
+        return maxValue.get();
+    }
+
+    /**
+     * Finds the bucket for a value.
+     *
+     * @param value The non-negative value.
+     * @return The index of its bucket.
+     */
+    private static int bucketIndex(long value) {
+        if (value < EXACT_LIMIT) {
+            return (int) value;
+        }
+
+        // Shift so that the remaining value falls between HALF and EXACT_LIMIT
+        int highestBit = 63 - Long.numberOfLeadingZeros(value);
+        int shift = highestBit - SUB_BUCKET_BITS + 1;
+        return shift * HALF + (int) (value >>> shift);
+    }
+
+    /**
+     * Finds the largest value that falls into a bucket.
+     *
+     * @param index The index of the bucket.
+     * @return The largest value of the bucket.
+     */
+    private static long bucketUpperBound(int index) {
+        if (index < EXACT_LIMIT) {
+            return index;
+        }
+        int shift = index / HALF - 1;
+        long sub = index - (long) shift * HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,501 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The LoadGenerator class is a command-line tool that puts load on a running Server.
+ * It opens a number of connections and sends a configurable mix of operations at a fixed total rate.
+ * <p>
+ * Requests are scheduled open loop: every request has an intended start time taken from the schedule,
+ * and its latency is measured from that time rather than from when it was actually written. A slow server
+ * therefore shows up as queueing delay in the results instead of silently lowering the request rate.
+ * <p>
+ * Usage: {@code java LoadGenerator --connections=8 --rate=5000 --duration=30 --mix=insert:20,remove:10,search:65,traversal:5}
+ * <br>
+ * Options: host, port, connections, rate (total requests per second), duration and warmup (seconds),
+ * mix (operation:weight list using insert, remove, search, traversal, inorder, preorder, postorder),
+ * keys (uniform, zipf or sequential), key-range, zipf-theta, max-in-flight (per connection) and seed.
+ */
+public class LoadGenerator {
+
+    /** Host of the server */
+    private String host = "localhost";
+
+    /** Port of the server */
+    private int port = Protocol.DEFAULT_PORT;
+
+    /** Number of connections to open */
+    private int connections = 4;
+
+    /** Total requests per second across all connections */
+    private double rate = 1000;
+
+    /** Seconds to run the measured part of the test */
+    private int durationSeconds = 10;
+
+    /** Seconds to run before recording results */
+    private int warmupSeconds = 2;
+
+    /** Operation codes in the mix */
+    private int[] mixOpcodes = {Protocol.INSERT, Protocol.REMOVE, Protocol.SEARCH, Protocol.IN_ORDER};
+
+    /** Weights of the operations in the mix */
+    private int[] mixWeights = {20, 10, 65, 5};
+
+    /** Distribution of the keys */
+    private KeyGenerator.Distribution distribution = KeyGenerator.Distribution.UNIFORM;
+
+    /** Number of distinct keys */
+    private int keyRange = 100_000;
+
+    /** Skew of the Zipfian distribution */
+    private double zipfTheta = 0.99;
+
+    /** Maximum number of requests waiting for a response on one connection */
+    private int maxInFlight = 1024;
+
+    /** Seed for the key generators */
+    private long seed = 42;
+
+    /** Latency of every operation, indexed by operation code */
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Protocol.POST_ORDER + 1];
+
+    /** Number of requests that failed */
+    private final LongAdder errors = new LongAdder();
+
+    /**
+     * The main method is the entry point. Parses the options, runs the test and prints the report.
+     *
+     * @param args Command-line options in the form --name=value.
+     */
+    public static void main(String[] args) {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            generator.parseArguments(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+        }
+        generator.run();
+    }
+
+    /**
+     * Constructor for LoadGenerator, creates one histogram per operation.
+     */
+    public LoadGenerator() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Reads the command-line options.
+     *
+     * @param args Command-line options in the form --name=value.
+     * @throws IllegalArgumentException if an option is unknown or has an invalid value.
+     */
+    private void parseArguments(String[] args) {
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                throw new IllegalArgumentException("Expected --name=value but got: " + arg);
+            }
+            String name = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+
+            switch (name) {
+                case "host":
+                    host = value;
+                    break;
+                case "port":
+                    port = Integer.parseInt(value);
+                    break;
+                case "connections":
+                    connections = Integer.parseInt(value);
+                    break;
+                case "rate":
+                    rate = Double.parseDouble(value);
+                    break;
+                case "duration":
+                    durationSeconds = Integer.parseInt(value);
+                    break;
+                case "warmup":
+                    warmupSeconds = Integer.parseInt(value);
+                    break;
+                case "mix":
+                    parseMix(value);
+                    break;
+                case "keys":
+                    distribution = KeyGenerator.Distribution.valueOf(value.toUpperCase(Locale.ROOT));
+                    break;
+                case "key-range":
+                    keyRange = Integer.parseInt(value);
+                    break;
+                case "zipf-theta":
+                    zipfTheta = Double.parseDouble(value);
+                    break;
+                case "max-in-flight":
+                    maxInFlight = Integer.parseInt(value);
+                    break;
+                case "seed":
+                    seed = Long.parseLong(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + name);
+            }
+        }
+
+        if (connections <= 0 || rate <= 0 || durationSeconds <= 0 || maxInFlight <= 0) {
+            throw new IllegalArgumentException("connections, rate, duration and max-in-flight must be positive");
+        }
+    }
+
+    /**
+     * Reads the operation mix, for example "insert:20,search:80".
+     *
+     * @param value The mix option.
+     */
+    private void parseMix(String value) {
+        String[] parts = value.split(",");
+        mixOpcodes = new int[parts.length];
+        mixWeights = new int[parts.length];
+
+        for (int i = 0; i < parts.length; i++) {
+            String[] entry = parts[i].trim().split(":");
+            mixOpcodes[i] = opcodeFor(entry[0].trim());
+            mixWeights[i] = entry.length > 1 ? Integer.parseInt(entry[1].trim()) : 1;
+            if (mixWeights[i] < 0) {
+                throw new IllegalArgumentException("Mix weights must not be negative");
+            }
+        }
+    }
+
+    /**
+     * Maps an operation name from the mix option to its operation code.
+     *
+     * @param name The operation name.
+     * @return The operation code.
+     */
+    private static int opcodeFor(String name) {
+        switch (name.toLowerCase(Locale.ROOT)) {
+            case "insert":
+                return Protocol.INSERT;
+            case "remove":
+                return Protocol.REMOVE;
+            case "search":
+                return Protocol.SEARCH;
+            case "traversal":
+            case "inorder":
+                return Protocol.IN_ORDER;
+            case "preorder":
+                return Protocol.PRE_ORDER;
+            case "postorder":
+                return Protocol.POST_ORDER;
+            default:
+                throw new IllegalArgumentException("Unknown operation in mix: " + name);
+        }
+    }
+
+    /**
+     * Runs the test: connects, drives the schedule until the end time, waits for outstanding responses
+     * and prints the report.
+     */
+    private void run() {
+        List<LoadConnection> loadConnections = new ArrayList<>();
+        long interval = (long) (connections * 1_000_000_000.0 / rate);
+        long startTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(200);
+        long measureStart = startTime + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long endTime = measureStart + TimeUnit.SECONDS.toNanos(durationSeconds);
+
+        try {
+            for (int i = 0; i < connections; i++) {
+                // Stagger the connections so that their requests do not all leave at the same instant
+                long firstSend = startTime + interval * i / connections;
+                loadConnections.add(new LoadConnection(i, firstSend, interval, measureStart, endTime));
+            }
+        } catch (IOException e) {
+            System.err.println("Could not connect to " + host + ":" + port + ": " + e.getMessage());
+            for (LoadConnection connection : loadConnections) {
+                connection.close();
+            }
+            return;
+        }
+
+        System.out.printf("Running %d connections at %.0f requests/s for %ds (+%ds warm up)%n",
+                connections, rate, durationSeconds, warmupSeconds);
+
+        for (LoadConnection connection : loadConnections) {
+            connection.start();
+        }
+        for (LoadConnection connection : loadConnections) {
+            connection.join(endTime + TimeUnit.SECONDS.toNanos(30));
+        }
+
+        printReport();
+    }
+
+    /**
+     * Prints throughput and latency percentiles for every operation in the mix.
+     */
+    private void printReport() {
+        System.out.printf("%n%-12s %10s %12s %10s %10s %10s %10s%n",
+                "operation", "count", "ops/s", "p50(us)", "p99(us)", "p99.9(us)", "max(us)");
+
+        LatencyHistogram all = new LatencyHistogram();
+        for (int opcode = 0; opcode < histograms.length; opcode++) {
+            LatencyHistogram histogram = histograms[opcode];
+            if (histogram.count() == 0) {
+                continue;
+            }
+            all.add(histogram);
+            printRow(Protocol.opcodeName(opcode), histogram);
+        }
+        printRow("all", all);
+
+        if (errors.sum() > 0) {
+            System.out.println("Failed requests: " + errors.sum());
+        }
+    }
+
+    /**
+     * Prints one line of the report.
+     *
+     * @param name      The name of the row.
+     * @param histogram The latencies of the row.
+     */
+    private void printRow(String name, LatencyHistogram histogram) {
+        System.out.printf("%-12s %10d %12.1f %10.1f %10.1f %10.1f %10.1f%n",
+                name,
+                histogram.count(),
+                histogram.count() / (double) durationSeconds,
+                histogram.valueAtPercentile(50) / 1000.0,
+                histogram.valueAtPercentile(99) / 1000.0,
+                histogram.valueAtPercentile(99.9) / 1000.0,
+                histogram.max() / 1000.0);
+    }
+
+    /**
+     * Picks the next operation from the mix.
+     *
+     * @param keys The generator supplying the randomness.
+     * @return The operation code.
+     */
+    private int nextOpcode(KeyGenerator keys) {
+        int total = 0;
+        for (int weight : mixWeights) {
+            total += weight;
+        }
+        int pick = keys.nextInt(Math.max(total, 1));
+        for (int i = 0; i < mixWeights.length; i++) {
+            pick -= mixWeights[i];
+            if (pick < 0) {
+                return mixOpcodes[i];
+            }
+        }
+        return mixOpcodes[mixOpcodes.length - 1];
+    }
+
+    /**
+     * Inner class representing one connection to the server.
+     * A sender thread writes requests at their scheduled times and a receiver thread reads the replies, so the
+     * schedule never waits for the server. Replies arrive in request order, so the intended start times are
+     * kept in a small ring and matched up as replies come back.
+     */
+    private class LoadConnection {
+        private final Socket socket;                // Socket connected to the server
+        private final ObjectOutputStream outputStream;  // Output stream for sending requests
+        private final ObjectInputStream inputStream;    // Input stream for receiving replies
+        private final KeyGenerator keys;            // Keys and operation picks for this connection
+        private final long firstSend;               // Intended start of the first request
+        private final long interval;                // Nanoseconds between two requests
+        private final long measureStart;            // Requests scheduled before this are warm up
+        private final long endTime;                 // No requests are scheduled after this
+        private final long[] pendingStarts;         // Intended start times of requests awaiting a reply
+        private final int[] pendingOpcodes;         // Operation codes of requests awaiting a reply
+        private int head;                           // Next pending slot to be answered
+        private int size;                           // Number of pending requests
+        private boolean senderDone;                 // Set when the sender has written its last request
+        private Thread sender;                      // Thread writing requests
+        private Thread receiver;                    // Thread reading replies
+
+        /**
+         * Constructor for LoadConnection, connects to the server and reads the greeting.
+         *
+         * @param id           Number of the connection, used for the seed and thread names.
+         * @param firstSend    Intended start of the first request.
+         * @param interval     Nanoseconds between two requests.
+         * @param measureStart Requests scheduled before this time are not recorded.
+         * @param endTime      No requests are scheduled after this time.
+         * @throws IOException if connecting fails.
+         */
+        LoadConnection(int id, long firstSend, long interval, long measureStart, long endTime) throws IOException {
+            this.firstSend = firstSend;
+            this.interval = interval;
+            this.measureStart = measureStart;
+            this.endTime = endTime;
+            this.keys = new KeyGenerator(distribution, keyRange, zipfTheta, seed + id);
+            this.pendingStarts = new long[maxInFlight];
+            this.pendingOpcodes = new int[maxInFlight];
+
+            socket = new Socket(InetAddress.getByName(host), port);
+            socket.setTcpNoDelay(true);
+            outputStream = new ObjectOutputStream(socket.getOutputStream());
+            outputStream.flush();
+            inputStream = new ObjectInputStream(socket.getInputStream());
+
+            // Read the connection successful message
+            try {
+                inputStream.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Unexpected greeting from server", e);
+            }
+
+            sender = new Thread(this::sendLoop, "load-sender-" + id);
+            receiver = new Thread(this::receiveLoop, "load-receiver-" + id);
+        }
+
+        /**
+         * Starts the sender and receiver threads.
+         */
+        void start() {
+            receiver.start();
+            sender.start();
+        }
+
+        /**
+         * Waits for both threads to finish, closing the connection if the deadline passes first.
+         *
+         * @param deadline The latest time to wait until, in System.nanoTime() terms.
+         */
+        void join(long deadline) {
+            try {
+                sender.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+                receiver.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            close();
+        }
+
+        /**
+         * Writes requests at their scheduled times until the end time.
+         */
+        private void sendLoop() {
+            long next = firstSend;
+            try {
+                while (next < endTime) {
+                    // Wait for the scheduled time of the next request
+                    long now;
+                    while ((now = System.nanoTime()) < next) {
+                        LockSupport.parkNanos(next - now);
+                    }
+
+                    int opcode = nextOpcode(keys);
+                    addPending(opcode, next);
+
+                    outputStream.writeInt(opcode);
+                    if (opcode == Protocol.INSERT || opcode == Protocol.REMOVE || opcode == Protocol.SEARCH) {
+                        outputStream.writeInt(keys.nextKey());
+                    }
+                    outputStream.flush();
+
+                    // The schedule does not move when the server is slow, late requests stay late
+                    next += interval;
+                }
+            } catch (IOException e) {
+                errors.increment();
+                System.err.println("Send failed: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                synchronized (this) {
+                    senderDone = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Reads replies until the sender is done and every request has been answered.
+         */
+        private void receiveLoop() {
+            try {
+                while (true) {
+                    int slot;
+                    synchronized (this) {
+                        while (size == 0 && !senderDone) {
+                            wait();
+                        }
+                        if (size == 0) {
+                            return;
+                        }
+                        slot = head;
+                    }
+
+                    // Every request is answered with a result message and a ready message
+                    inputStream.readObject();
+                    inputStream.readObject();
+                    long completed = System.nanoTime();
+
+                    long intendedStart = pendingStarts[slot];
+                    int opcode = pendingOpcodes[slot];
+                    removePending();
+
+                    if (intendedStart >= measureStart) {
+                        histograms[opcode].record(completed - intendedStart);
+                    }
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                errors.increment();
+                System.err.println("Receive failed: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Adds a request to the pending ring, waiting while the ring is full.
+         *
+         * @param opcode        The operation code of the request.
+         * @param intendedStart The scheduled start of the request.
+         * @throws InterruptedException if interrupted while waiting.
+         */
+        private synchronized void addPending(int opcode, long intendedStart) throws InterruptedException {
+            while (size == pendingStarts.length) {
+                wait();
+            }
+            int slot = (head + size) % pendingStarts.length;
+            pendingStarts[slot] = intendedStart;
+            pendingOpcodes[slot] = opcode;
+            size++;
+            notifyAll();
+        }
+
+        /**
+         * Removes the oldest request from the pending ring.
+         */
+        private synchronized void removePending() {
+            head = (head + 1) % pendingStarts.length;
+            size--;
+            notifyAll();
+        }
+
+        /**
+         * Closes the streams and the socket, ignoring errors.
+         */
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing left to do with a connection that fails to close
+            }
+        }
+    }
+}
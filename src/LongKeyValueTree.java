@@ -0,0 +1,100 @@
+import java.util.Arrays;
+
+/**
+ * The LongKeyValueTree class is an ordered key/value store with primitive long keys.
+ * Keys are compared as signed longs.
+ */
+public class LongKeyValueTree extends KeyValueTree {
+
+    /** Key of each node */
+    private long[] keys = new long[left.length];
+
+    /** Key being inserted or removed, only used while holding the write lock */
+    private long probe;
+
+    /**
+     * Maps a key to a value, replacing any previous value.
+     *
+     * @param key   The key.
+     * @param value The value, stored as given so the caller must not change it afterwards.
+     * @return True if the key was added, false if an existing value was replaced.
+     */
+    public boolean put(long key, byte[] value) {
+        long stamp = lock.writeLock();
+        try {
+            probe = key;
+            return putProbe(value);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Gets the value of a key.
+     *
+     * @param key The key.
+     * @return The value, or null if the key is not in the tree. The array is shared and must not be changed.
+     */
+    public byte[] get(long key) {
+        long stamp = lock.readLock();
+        try {
+            int node = root;
+            while (node != NIL) {
+                long nodeKey = keys[node];
+                if (key == nodeKey) {
+                    return values[node];
+                }
+                node = key < nodeKey ? left[node] : right[node];
+            }
+            return null;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Removes a key.
+     *
+     * @param key The key.
+     * @return True if the key was removed, false if it was not in the tree.
+     */
+    public boolean delete(long key) {
+        long stamp = lock.writeLock();
+        try {
+            probe = key;
+            return deleteProbe();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    protected int compareProbe(int node) {
+        return Long.compare(probe, keys[node]);
+    }
+
+    @Override
+    protected void storeProbe(int node) {
+        keys[node] = probe;
+    }
+
+    @Override
+    protected void loadProbe(int node) {
+        probe = keys[node];
+    }
+
+    @Override
+    protected void copyKey(int from, int to) {
+        keys[to] = keys[from];
+    }
+
+    @Override
+    protected void clearKey(int node) {
+        // Nothing to release for a primitive key
+    }
+
+    @Override
+    protected void growKeys(int capacity) {
+        keys = Arrays.copyOf(keys, capacity);
+    }
+}
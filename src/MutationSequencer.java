@@ -0,0 +1,278 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The MutationSequencer class funnels every insert and remove through one writer thread.
+ * <p>
+ * Write lane threads publish commands into a preallocated ring buffer and wait for their result. The writer thread
+ * takes whatever commands have been published, applies them to the tree as one batch and then wakes the waiting
+ * threads. Only the writer thread ever changes the tree, so writers never compete for it, and a batch only
+ * costs one write lock acquisition, which readers use to detect that they overlapped a change.
+ * <p>
+ * Each submitting thread reuses one completion object, so submitting a command does not allocate.
+ * <p>
+ * A command that throws fails on its own: its submitter gets an IllegalStateException, the rest of the batch is
+ * still applied, and the writer thread carries on with the next batch. When there is nothing to apply the writer
+ * thread parks until a submitter wakes it.
+ */
+public class MutationSequencer {
+
+    /** Command that inserts a value */
+    public static final int INSERT = 1;
+
+    /** Command that removes a value */
+    public static final int REMOVE = 2;
+
+    /** Spins before a waiting thread parks */
+    private static final int SPINS_BEFORE_PARK = 200;
+
+    /**
+     * Result of a command, reused by the thread that submitted it.
+     */
+    private static final class Completion {
+        final Thread waiter = Thread.currentThread();   // Thread waiting for the result
+        volatile boolean done;                          // Set by the writer once result is valid
+        boolean result;                                 // Result of the command
+        Throwable failure;                              // What the command threw, null if it succeeded
+    }
+
+    /** Tree the commands are applied to */
+    private final SharedTree tree;
+
+    /** Ring buffer size minus one, the size is a power of two */
+    private final int mask;
+
+    /** Most commands applied in one batch */
+    private final int maxBatch;
+
+    /** Sequence number of the command stored in each slot, set last to publish the command */
+    private final AtomicLongArray published;
+
+    /** Command of each slot */
+    private final int[] commands;
+
+    /** Value of each slot */
+    private final int[] values;
+
+    /** Completion of each slot */
+    private final Completion[] completions;
+
+    /** Next sequence number to claim */
+    private final AtomicLong tail = new AtomicLong();
+
+    /** Next sequence number to apply, only written by the writer thread */
+    private volatile long head;
+
+    /** The writer thread, woken by submitters when it is idle */
+    private final Thread writer;
+
+    /** Set while the writer thread has found nothing to apply and is about to park or parked */
+    private volatile boolean writerIdle;
+
+    /** Completion object of each submitting thread */
+    private final ThreadLocal<Completion> threadCompletion = ThreadLocal.withInitial(Completion::new);
+
+    /** Batches applied, read for statistics */
+    private volatile long batches;
+
+    /** Commands applied, read for statistics */
+    private volatile long applied;
+
+    /**
+     * Constructor for MutationSequencer, starts the writer thread.
+     *
+     * @param tree       The tree the commands are applied to.
+     * @param ringSize   Number of commands the ring holds, rounded up to a power of two.
+     * @param maxBatch   Most commands applied under one lock acquisition.
+     */
+    public MutationSequencer(SharedTree tree, int ringSize, int maxBatch) {
+        this.tree = tree;
+        this.maxBatch = Math.max(1, maxBatch);
+
+        int capacity = Integer.highestOneBit(Math.max(2, ringSize) * 2 - 1);
+        this.mask = capacity - 1;
+        this.published = new AtomicLongArray(capacity);
+        this.commands = new int[capacity];
+        this.values = new int[capacity];
+        this.completions = new Completion[capacity];
+        for (int i = 0; i < capacity; i++) {
+            published.set(i, -1);
+        }
+
+        writer = new Thread(this::writeLoop, "tree-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Submits a command and waits for the writer thread to apply it.
+     * If the ring is full the caller waits for space, which slows down writers instead of queueing without limit.
+     *
+     * @param command INSERT or REMOVE.
+     * @param value   The value of the command.
+     * @return The result of the tree operation.
+     * @throws IllegalStateException if the command threw on the writer thread.
+     */
+    public boolean submit(int command, int value) {
+        Completion completion = threadCompletion.get();
+        completion.done = false;
+        completion.failure = null;
+
+        // Claim a sequence number once its slot has been freed by the writer
+        long sequence = tail.getAndIncrement();
+        while (sequence - head > mask) {
+            LockSupport.parkNanos(1_000);
+        }
+
+        int slot = (int) sequence & mask;
+        commands[slot] = command;
+        values[slot] = value;
+        completions[slot] = completion;
+
+        // A volatile write, so either the writer sees the command before parking or this thread sees it idle
+        published.set(slot, sequence);
+        if (writerIdle) {
+            LockSupport.unpark(writer);
+        }
+
+        // Spin briefly since batches are usually short, then park until woken
+        for (int spins = 0; !completion.done; spins++) {
+            if (spins < SPINS_BEFORE_PARK) {
+                Thread.onSpinWait();
+            } else {
+                LockSupport.park(this);
+            }
+        }
+        if (completion.failure != null) {
+            throw new IllegalStateException("Write failed on the writer thread", completion.failure);
+        }
+        return completion.result;
+    }
+
+    /**
+     * Gets the number of batches applied.
+     *
+     * @return The number of batches.
+     */
+    public long batchCount() {
+        return batches;
+    }
+
+    /**
+     * Gets the number of commands applied.
+     *
+     * @return The number of commands.
+     */
+    public long appliedCount() {
+        return applied;
+    }
+
+    /**
+     * Applies published commands in batches, parking when there are none.
+     */
+    private void writeLoop() {
+        long next = 0;
+        while (true) {
+            long end = publishedEnd(next);
+            if (end == next) {
+                end = awaitCommands(next);
+            }
+
+            try {
+                applyBatch(next, end);
+            } catch (Throwable t) {
+                // Only taking or releasing the lock gets here, the commands have been failed and woken already
+                System.err.println("Sequencer batch failed: " + t);
+            }
+
+            batches++;
+            applied += end - next;
+            next = end;
+            head = next;
+        }
+    }
+
+    /**
+     * Finds how many commands in a row have been published, up to one batch.
+     *
+     * @param next Sequence number of the first command not applied yet.
+     * @return Sequence number after the last published command of the batch.
+     */
+    private long publishedEnd(long next) {
+        long end = next;
+        while (end - next < maxBatch && published.get((int) end & mask) == end) {
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * Waits until at least one command has been published, spinning briefly and then parking until a
+     * submitter wakes the writer.
+     *
+     * @param next Sequence number of the first command not applied yet.
+     * @return Sequence number after the last published command of the batch.
+     */
+    private long awaitCommands(long next) {
+        for (int spins = 0; spins < SPINS_BEFORE_PARK; spins++) {
+            Thread.onSpinWait();
+            long end = publishedEnd(next);
+            if (end != next) {
+                return end;
+            }
+        }
+        while (true) {
+            // Announce the park before the last check, so a command published after it wakes the writer
+            writerIdle = true;
+            long end = publishedEnd(next);
+            if (end != next) {
+                writerIdle = false;
+                return end;
+            }
+            LockSupport.park(this);
+            writerIdle = false;
+        }
+    }
+
+    /**
+     * Applies a batch of commands under one write lock and wakes their submitters, even if taking or releasing
+     * the lock fails. A command that throws is failed on its own and the rest of the batch is still applied.
+     *
+     * @param next Sequence number of the first command of the batch.
+     * @param end  Sequence number after the last command of the batch.
+     */
+    private void applyBatch(long next, long end) {
+        long done = next;
+        try {
+            long stamp = tree.lockForBatch();
+            try {
+                for (; done < end; done++) {
+                    int slot = (int) done & mask;
+                    Completion completion = completions[slot];
+                    try {
+                        completion.result = commands[slot] == INSERT
+                                ? tree.applyInsert(values[slot]) : tree.applyRemove(values[slot]);
+                    } catch (Throwable t) {
+                        completion.result = false;
+                        completion.failure = t;
+                    }
+                }
+            } finally {
+                tree.unlockBatch(stamp);
+            }
+        } finally {
+            // Wake the submitters only after the batch is visible to readers
+            for (long sequence = next; sequence < end; sequence++) {
+                int slot = (int) sequence & mask;
+                Completion completion = completions[slot];
+                completions[slot] = null;
+                if (sequence >= done) {
+                    completion.failure = new IllegalStateException("Batch was not applied");
+                }
+                completion.done = true;
+                LockSupport.unpark(completion.waiter);
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The NearCache class keeps recent search results on the client so repeated searches for the same value are
+ * answered without a round trip.
+ * <p>
+ * The cache holds a bounded number of values and evicts the least recently used one when full. It stays correct
+ * through invalidations pushed by the server whenever a value is inserted or removed. A search reply can cross an
+ * invalidation on the wire, so every invalidation also advances an epoch: a reply is only cached if no
+ * invalidation arrived between sending the search and receiving its answer.
+ */
+public class NearCache {
+
+    /** Cached search results, in least recently used order */
+    private final LinkedHashMap<Integer, Boolean> entries;
+
+    /** Number of invalidations received, guarded by this */
+    private long epoch;
+
+    /** Searches answered from the cache */
+    private final LongAdder hits = new LongAdder();
+
+    /** Searches sent to the server */
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Constructor for NearCache.
+     *
+     * @param maxEntries The most search results kept.
+     */
+    public NearCache(int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive");
+        }
+        entries = new LinkedHashMap<Integer, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Looks up a cached search result.
+     *
+     * @param value The searched value.
+     * @return The cached result, or null if the server has to be asked.
+     */
+    public synchronized Boolean get(int value) {
+        Boolean found = entries.get(value);
+        if (found != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return found;
+    }
+
+    /**
+     * Gets the current epoch, taken before a search is sent.
+     *
+     * @return The number of invalidations received so far.
+     */
+    public synchronized long epoch() {
+        return epoch;
+    }
+
+    /**
+     * Caches a search result unless an invalidation arrived after the search was sent.
+     *
+     * @param value The searched value.
+     * @param found The result from the server.
+     * @param since The epoch taken before the search was sent.
+     */
+    public synchronized void put(int value, boolean found, long since) {
+        if (epoch == since) {
+            entries.put(value, found);
+        }
+    }
+
+    /**
+     * Drops the cached result of a value that was inserted or removed.
+     *
+     * @param value The changed value.
+     */
+    public synchronized void invalidate(int value) {
+        epoch++;
+        entries.remove(value);
+    }
+
+    /**
+     * Drops every cached result, used when a connection was (re)opened or the server dropped invalidations.
+     */
+    public synchronized void clear() {
+        epoch++;
+        entries.clear();
+    }
+
+    /**
+     * Gets the number of searches answered from the cache.
+     *
+     * @return The number of hits.
+     */
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Gets the number of searches that went to the server.
+     *
+     * @return The number of misses.
+     */
+    public long missCount() {
+        return misses.sum();
+    }
+}
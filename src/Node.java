@@ -1,6 +1,8 @@
 /**
  * The Node class represents a node in a binary search tree.
  * Each node has a value and two children, to the left and right of it.
+ * It also keeps the height and size of the subtree below it, which the tree updates on every change so balancing
+ * and its statistics never have to walk a subtree.
  */
 public class Node {
 
@@ -13,6 +15,12 @@ public class Node {
     /** Right child of node */
     Node right;
 
+    /** Number of nodes on the longest path from this node down to a leaf, 1 for a leaf */
+    int height = 1;
+
+    /** Number of nodes in the subtree rooted at this node */
+    int size = 1;
+
     /**
      * Constructor for Node class.
      * Constructs a new Node with the given value.
@@ -0,0 +1,268 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+/**
+ * The OrderedIntSet interface is the set of ordered int operations the server's shared tree is built on.
+ * BinarySearchTree and BPlusTree both implement it, so the backing structure can be chosen in the server
+ * configuration without changing anything above SharedTree. Implementations are not thread-safe; SharedTree
+ * guards them with its lock.
+ */
+public interface OrderedIntSet {
+
+    /** Backing structures the server can be configured with */
+    enum Backend {
+        /** The AVL-balanced binary search tree, one node per value */
+        AVL(40),
+        /** The B+ tree, sorted blocks of values in linked leaves */
+        BPLUS(8);
+
+        /** Rough heap bytes per value, for memory budgets */
+        public final int bytesPerValue;
+
+        Backend(int bytesPerValue) {
+            this.bytesPerValue = bytesPerValue;
+        }
+    }
+
+    /** Returned by the neighbor queries when there is no such value; every int value fits in a long above it */
+    long NONE = Long.MIN_VALUE;
+
+    /** Values copied between checks of whether a traversal has been cancelled, a power of two */
+    int CANCEL_CHECK_INTERVAL = 4096;
+
+    /** Supplier for traversals that are never cancelled */
+    BooleanSupplier NOT_CANCELLED = () -> false;
+
+    /**
+     * Inserts a value.
+     *
+     * @param value The value to insert.
+     * @return True if the value was added, false if it was already in the set.
+     */
+    boolean insert(int value);
+
+    /**
+     * Removes a value.
+     *
+     * @param value The value to remove.
+     * @return True if the value was removed, false if it was not in the set.
+     */
+    boolean remove(int value);
+
+    /**
+     * Searches for a value.
+     *
+     * @param value The value to search for.
+     * @return True if the value is in the set.
+     */
+    boolean search(int value);
+
+    /**
+     * Searches for a value without any locking, giving up after a number of steps.
+     * Meant for optimistic readers that run while another thread may be changing the set: the answer is only
+     * trusted if no change happened during the search. The search must not throw or loop forever on a
+     * half-finished change.
+     *
+     * @param value    The value to search for.
+     * @param maxSteps The most nodes to visit.
+     * @return 1 if the value was found, 0 if not, -1 if the search gave up.
+     */
+    int searchBounded(int value, int maxSteps);
+
+    /**
+     * Searches for many values at once.
+     *
+     * @param values The values to search for.
+     * @return A bitset with bit i set if values[i] is in the set, packed 64 bits per long.
+     */
+    long[] searchAll(int[] values);
+
+    /**
+     * Finds the largest value at most a given one.
+     *
+     * @param value The value to look from.
+     * @return The value found, or NONE if every value is larger.
+     */
+    long floor(int value);
+
+    /**
+     * Finds the smallest value at least a given one.
+     *
+     * @param value The value to look from.
+     * @return The value found, or NONE if every value is smaller.
+     */
+    long ceiling(int value);
+
+    /**
+     * Finds the largest value below a given one, its predecessor.
+     *
+     * @param value The value to look from.
+     * @return The value found, or NONE if no value is smaller.
+     */
+    default long lower(int value) {
+        return value == Integer.MIN_VALUE ? NONE : floor(value - 1);
+    }
+
+    /**
+     * Finds the smallest value above a given one, its successor.
+     *
+     * @param value The value to look from.
+     * @return The value found, or NONE if no value is larger.
+     */
+    default long higher(int value) {
+        return value == Integer.MAX_VALUE ? NONE : ceiling(value + 1);
+    }
+
+    /**
+     * Finds the smallest value.
+     *
+     * @return The value, or NONE if the set is empty.
+     */
+    default long min() {
+        return ceiling(Integer.MIN_VALUE);
+    }
+
+    /**
+     * Finds the largest value.
+     *
+     * @return The value, or NONE if the set is empty.
+     */
+    default long max() {
+        return floor(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Moves a value closer to the root so later searches for it visit fewer nodes, without changing the set.
+     * Structures whose shape is fixed by their values ignore it.
+     *
+     * @param value The value to promote.
+     * @return True if the structure changed.
+     */
+    default boolean promote(int value) {
+        return false;
+    }
+
+    /**
+     * Adds values saved in pre-order, such as a namespace snapshot. Structures with a shape of their own rebuild
+     * the shape the values were saved with; the default just inserts them.
+     *
+     * @param preOrder The values in pre-order.
+     */
+    default void rebuild(int[] preOrder) {
+        for (int value : preOrder) {
+            insert(value);
+        }
+    }
+
+    /**
+     * Gets the number of values in the set.
+     *
+     * @return The number of values.
+     */
+    int size();
+
+    /**
+     * Gets the height of the structure, the number of nodes on the longest path from the root down.
+     *
+     * @return The height, 0 if the set is empty.
+     */
+    int height();
+
+    /**
+     * Adds counters describing the shape of the structure, such as its size, height and the average number of
+     * nodes a search visits. Must be cheap: the counters are kept up to date as the structure changes.
+     *
+     * @param stats The map to add the counters to.
+     */
+    void addShapeStats(Map<String, Long> stats);
+
+    /**
+     * Counts the values at each depth. May walk the whole structure.
+     *
+     * @return The number of values at each depth, the root being at depth 0.
+     */
+    long[] depthHistogram();
+
+    /**
+     * Gets a traversal as an int array.
+     *
+     * @param order Protocol.IN_ORDER, Protocol.PRE_ORDER or Protocol.POST_ORDER.
+     * @return The values in the requested order.
+     */
+    default int[] traversalValues(int order) {
+        return traversalValues(order, NOT_CANCELLED);
+    }
+
+    /**
+     * Gets a traversal as an int array, giving up part way if it is cancelled.
+     *
+     * @param order     Protocol.IN_ORDER, Protocol.PRE_ORDER or Protocol.POST_ORDER.
+     * @param cancelled Checked every CANCEL_CHECK_INTERVAL values; the traversal stops once it returns true.
+     * @return The values in the requested order, or null if the traversal was cancelled.
+     */
+    int[] traversalValues(int order, BooleanSupplier cancelled);
+
+    /**
+     * Copies the values above a given one in ascending order, so an in-order traversal can be taken a piece at a
+     * time, each piece starting after the last value of the one before.
+     *
+     * @param after Copy values greater than this, or NONE to start from the smallest value.
+     * @param out   The array to fill.
+     * @return The number of values copied, fewer than out.length only if no more values are left.
+     */
+    int valuesAfter(long after, int[] out);
+
+    /**
+     * Gets the in-order traversal.
+     *
+     * @return A list of the values in ascending order.
+     */
+    default List<Integer> inOrderTraversal() {
+        return toList(traversalValues(Protocol.IN_ORDER));
+    }
+
+    /**
+     * Gets the pre-order traversal.
+     *
+     * @return A list of the values in pre-order.
+     */
+    default List<Integer> preOrderTraversal() {
+        return toList(traversalValues(Protocol.PRE_ORDER));
+    }
+
+    /**
+     * Gets the post-order traversal.
+     *
+     * @return A list of the values in post-order.
+     */
+    default List<Integer> postOrderTraversal() {
+        return toList(traversalValues(Protocol.POST_ORDER));
+    }
+
+    /**
+     * Creates an empty set of the configured kind.
+     *
+     * @param backend The backing structure.
+     * @param fanout  Most values per node, used by the B+ tree.
+     * @return The empty set.
+     */
+    static OrderedIntSet create(Backend backend, int fanout) {
+        return backend == Backend.BPLUS ? new BPlusTree(fanout) : new BinarySearchTree();
+    }
+
+    /**
+     * Boxes an array of values into a list.
+     *
+     * @param values The values.
+     * @return A list of the values in the same order.
+     */
+    static List<Integer> toList(int[] values) {
+        List<Integer> result = new ArrayList<>(values.length);
+        for (int value : values) {
+            result.add(value);
+        }
+        return result;
+    }
+}
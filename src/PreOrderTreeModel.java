@@ -0,0 +1,134 @@
+import javax.swing.event.TreeModelListener;
+import javax.swing.tree.TreeModel;
+import javax.swing.tree.TreePath;
+
+/**
+ * The PreOrderTreeModel class shows a binary search tree in a JTree straight from its pre-order traversal.
+ * <p>
+ * No node objects are built up front. In a pre-order traversal a subtree is a contiguous range whose first value
+ * is its root, followed by every value of the left subtree (all smaller than the root) and then every value of the
+ * right subtree (all larger). Because the range is split in two by the root's value, the boundary can be found
+ * with a binary search. A node's children are only worked out when the JTree asks for them, which it only does
+ * for expanded nodes, so opening the view costs the same for a tree of ten values or ten million.
+ */
+public class PreOrderTreeModel implements TreeModel {
+
+    /**
+     * A subtree, the range of the pre-order traversal it occupies.
+     */
+    public static final class Subtree {
+        private final int[] preOrder;   // The whole traversal
+        private final int start;        // Index of the subtree's root
+        private final int end;          // End of the subtree's range, exclusive
+        private final String side;      // "L" or "R" for children, empty for the root
+
+        Subtree(int[] preOrder, int start, int end, String side) {
+            this.preOrder = preOrder;
+            this.start = start;
+            this.end = end;
+            this.side = side;
+        }
+
+        /**
+         * Gets the index where the right subtree starts, the first value larger than the root.
+         */
+        int rightStart() {
+            int root = preOrder[start];
+            int low = start + 1;
+            int high = end;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (preOrder[middle] < root) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Subtree && ((Subtree) other).start == start && ((Subtree) other).end == end;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * start + end;
+        }
+
+        @Override
+        public String toString() {
+            String value = Integer.toString(preOrder[start]);
+            return side.isEmpty() ? value : side + ": " + value + "  (" + (end - start) + " values)";
+        }
+    }
+
+    /** The root subtree, null for an empty tree */
+    private final Subtree root;
+
+    /**
+     * Constructor for PreOrderTreeModel.
+     *
+     * @param preOrder The pre-order traversal of a binary search tree. The array is kept, not copied.
+     */
+    public PreOrderTreeModel(int[] preOrder) {
+        root = preOrder.length > 0 ? new Subtree(preOrder, 0, preOrder.length, "") : null;
+    }
+
+    @Override
+    public Object getRoot() {
+        return root;
+    }
+
+    @Override
+    public Object getChild(Object parent, int index) {
+        Subtree subtree = (Subtree) parent;
+        int split = subtree.rightStart();
+        boolean hasLeft = split > subtree.start + 1;
+
+        // The left child comes first when there is one
+        if (index == 0 && hasLeft) {
+            return new Subtree(subtree.preOrder, subtree.start + 1, split, "L");
+        }
+        return new Subtree(subtree.preOrder, split, subtree.end, "R");
+    }
+
+    @Override
+    public int getChildCount(Object parent) {
+        Subtree subtree = (Subtree) parent;
+        int split = subtree.rightStart();
+        return (split > subtree.start + 1 ? 1 : 0) + (split < subtree.end ? 1 : 0);
+    }
+
+    @Override
+    public boolean isLeaf(Object node) {
+        Subtree subtree = (Subtree) node;
+        return subtree.end - subtree.start == 1;
+    }
+
+    @Override
+    public int getIndexOfChild(Object parent, Object child) {
+        for (int i = 0; i < getChildCount(parent); i++) {
+            if (getChild(parent, i).equals(child)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void valueForPathChanged(TreePath path, Object newValue) {
+        // The view is read-only
+    }
+
+    @Override
+    public void addTreeModelListener(TreeModelListener listener) {
+        // The model never changes, so there is nothing to tell listeners
+    }
+
+    @Override
+    public void removeTreeModelListener(TreeModelListener listener) {
+        // The model never changes, so there is nothing to tell listeners
+    }
+}
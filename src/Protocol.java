@@ -0,0 +1,313 @@
+/**
+ * The Protocol class holds the operation codes and reply strings shared by the server and the clients.
+ * Every request starts with one of the operation codes below written as an int, followed by its operands.
+ */
+public final class Protocol {
+
+    /** Default port on which the server listens */
+    public static final int DEFAULT_PORT = 23612;
+
+    /** Exit signal (NOTE: Inactive currently) */
+    public static final int EXIT = 0;
+
+    /** Insert a value, followed by the int value */
+    public static final int INSERT = 1;
+
+    /** Remove a value, followed by the int value */
+    public static final int REMOVE = 2;
+
+    /** Search for a value, followed by the int value */
+    public static final int SEARCH = 3;
+
+    /** In-order traversal */
+    public static final int IN_ORDER = 4;
+
+    /** Pre-order traversal */
+    public static final int PRE_ORDER = 5;
+
+    /** Post-order traversal */
+    public static final int POST_ORDER = 6;
+
+    /**
+     * Switch the connection to binary replies. After this every reply starts with an int status code followed
+     * by the fields of the operation instead of the "SERVER>>>" messages.
+     */
+    public static final int BINARY_MODE = 7;
+
+    /**
+     * Server statistics. Like every operation code from here on it is always answered in binary: the status,
+     * the number of entries, then each entry as a UTF name followed by a long value.
+     */
+    public static final int STATS = 8;
+
+    /**
+     * Map a long key to a value, followed by the long key, the int length of the value and its bytes.
+     * Answered with STATUS_OK if the key was added or STATUS_ALREADY_PRESENT if its value was replaced.
+     */
+    public static final int KV_PUT = 9;
+
+    /**
+     * Get the value of a long key, followed by the long key.
+     * Answered with STATUS_OK, the int length of the value and its bytes, or STATUS_NOT_FOUND.
+     */
+    public static final int KV_GET = 10;
+
+    /** Remove a long key, followed by the long key. Answered with STATUS_OK or STATUS_NOT_FOUND */
+    public static final int KV_DELETE = 11;
+
+    /**
+     * Map a byte array key to a value, followed by the int length of the key, its bytes, the int length of the
+     * value and its bytes. Answered like KV_PUT.
+     */
+    public static final int KV_PUT_BYTES = 12;
+
+    /** Get the value of a byte array key, followed by the int length of the key and its bytes. Answered like KV_GET */
+    public static final int KV_GET_BYTES = 13;
+
+    /** Remove a byte array key, followed by the int length of the key and its bytes. Answered like KV_DELETE */
+    public static final int KV_DELETE_BYTES = 14;
+
+    /**
+     * Search for many values at once, followed by the int number of values and the values.
+     * Answered with STATUS_OK, the int number of longs in the bitset and the longs; bit i of the bitset, counted
+     * from the lowest bit of the first long, is set if value i was found.
+     */
+    public static final int MULTI_SEARCH = 15;
+
+    /**
+     * Subscribe to invalidations. Only allowed in binary mode; answered with STATUS_OK, after which the server may
+     * push PUSH_INVALIDATE frames between replies whenever a value is inserted or removed, or a PUSH_FLUSH frame
+     * in their place when the connection fell too far behind.
+     */
+    public static final int SUBSCRIBE = 16;
+
+    /**
+     * Compact traversal, followed by the int traversal order (IN_ORDER, PRE_ORDER or POST_ORDER) and int flags,
+     * where TraversalCodec.FLAG_DEFLATE asks for compression and TraversalCodec.FLAG_CHUNKED lets an in-order
+     * traversal be copied in chunks that writes can get in between, so it is not one snapshot. Answered with
+     * STATUS_OK, the int number of values, the int flags applied, the int number of bytes and the bytes of
+     * TraversalCodec's encoding, or STATUS_ERROR for an unknown order.
+     */
+    public static final int TRAVERSAL_COMPACT = 17;
+
+    /**
+     * Changes since a tree version, followed by the long epoch and the long version the client has (0 and 0 for
+     * none). Answered with STATUS_OK, the long epoch, the long new version, the int number of changes and for each
+     * change a byte operation (INSERT or REMOVE) and the int value; or, if the changes are no longer all known or
+     * the epoch is not the server's, with STATUS_SNAPSHOT, the long epoch, the long version, the int number of
+     * values, the int number of bytes and the whole tree in ascending order in TraversalCodec's encoding.
+     */
+    public static final int CHANGES_SINCE = 18;
+
+    /**
+     * Freeze the tree into a read-only index that answers searches until the next change.
+     * Answered with STATUS_OK and the int number of values frozen.
+     */
+    public static final int FREEZE = 19;
+
+    /** Drop the frozen index, if any, so reads go to the tree again. Answered with STATUS_OK. */
+    public static final int THAW = 20;
+
+    /**
+     * Tree shape statistics. Answered like STATS, with the tree's size, height, average search path length and
+     * rebalancing counters, followed by tree.depth.N entries holding the number of values at each depth N.
+     */
+    public static final int TREE_STATS = 21;
+
+    /**
+     * Select the namespace later requests on this connection go to, followed by the name as a modified UTF-8
+     * string (ObjectOutputStream.writeUTF); the empty name selects the default namespace. A subscription moves to
+     * the new namespace. Runs in the bulk lane, since it may load the namespace from disk. Answered with STATUS_OK,
+     * STATUS_ERROR if the name is invalid or the namespace could not be loaded, or STATUS_BUSY or STATUS_CANCELLED
+     * like a traversal.
+     */
+    public static final int USE_NAMESPACE = 22;
+
+    /**
+     * Insert a value that is removed again after a time, followed by the int value and the int time to live in
+     * milliseconds. If the value is already in the tree its time to live is reset to the new one. A plain REMOVE
+     * cancels it; a plain INSERT of a value already in the tree leaves its time to live as it is. Answered with
+     * STATUS_OK if the value was added, STATUS_ALREADY_PRESENT if it was already there, or STATUS_ERROR if the
+     * time to live is not positive.
+     */
+    public static final int INSERT_TTL = 23;
+
+    /**
+     * Largest value at most a given one, followed by the int value.
+     * The neighbor queries FLOOR to MAX are answered with STATUS_OK and the int value found, or STATUS_NOT_FOUND
+     * if there is none.
+     */
+    public static final int FLOOR = 24;
+
+    /** Smallest value at least a given one, followed by the int value. Answered like FLOOR. */
+    public static final int CEILING = 25;
+
+    /** Largest value below a given one, followed by the int value. Answered like FLOOR. */
+    public static final int LOWER = 26;
+
+    /** Smallest value above a given one, followed by the int value. Answered like FLOOR. */
+    public static final int HIGHER = 27;
+
+    /** Smallest value in the tree. Answered like FLOOR. */
+    public static final int MIN = 28;
+
+    /** Largest value in the tree. Answered like FLOOR. */
+    public static final int MAX = 29;
+
+    /**
+     * Apply a batch of operations atomically, followed by the int number of operations and for each a byte
+     * operation (BATCH_INSERT, BATCH_REMOVE, BATCH_REQUIRE_PRESENT or BATCH_REQUIRE_ABSENT) and the int value.
+     * The operations are checked in order, each seeing the tree as the ones before it left it, and only if every
+     * condition holds are the inserts and removes applied; no other request sees the tree in between. Answered
+     * with STATUS_OK and the int number of values changed, STATUS_CONDITION_FAILED and the int index of the first
+     * condition that did not hold, or STATUS_ERROR for an unknown operation.
+     */
+    public static final int BATCH = 30;
+
+    /** Batch operation: insert the value, which does nothing if it is already in the tree */
+    public static final byte BATCH_INSERT = 1;
+
+    /** Batch operation: remove the value, which does nothing if it is not in the tree */
+    public static final byte BATCH_REMOVE = 2;
+
+    /** Batch operation: fail the batch unless the value is in the tree */
+    public static final byte BATCH_REQUIRE_PRESENT = 3;
+
+    /** Batch operation: fail the batch if the value is in the tree */
+    public static final byte BATCH_REQUIRE_ABSENT = 4;
+
+    /** Number of operation codes the server keeps metrics for */
+    public static final int OPCODE_SLOTS = 64;
+
+    /** Status: the operation succeeded, or the searched value was found */
+    public static final int STATUS_OK = 0;
+
+    /** Status: the value was not in the tree */
+    public static final int STATUS_NOT_FOUND = 1;
+
+    /**
+     * Status: the server is overloaded or the client is over its rate limit and the request was not performed.
+     * Followed by an int with the suggested wait in milliseconds before retrying.
+     */
+    public static final int STATUS_BUSY = 2;
+
+    /** Status: the request could not be handled */
+    public static final int STATUS_ERROR = 3;
+
+    /** Status: the inserted value was already in the tree */
+    public static final int STATUS_ALREADY_PRESENT = 4;
+
+    /** Status: the reply holds a full snapshot instead of the changes asked for */
+    public static final int STATUS_SNAPSHOT = 5;
+
+    /** Status: a condition of a batch did not hold and nothing was changed. Followed by the int index of it. */
+    public static final int STATUS_CONDITION_FAILED = 6;
+
+    /** Status: a traversal or other bulk request ran past the server's time limit and was abandoned */
+    public static final int STATUS_CANCELLED = 7;
+
+    /**
+     * Start of a frame pushed to subscribed connections, not a reply to any request.
+     * Followed by the int value that was inserted or removed.
+     */
+    public static final int PUSH_INVALIDATE = -1;
+
+    /**
+     * Start of a frame pushed to a subscribed connection whose invalidations piled up faster than it read them.
+     * Has no fields; the client must drop everything it cached, since some invalidations were never sent.
+     */
+    public static final int PUSH_FLUSH = -2;
+
+    /** Confirmation message sent after every completed request */
+    public static final String READY_FOR_NEXT_ACTION = "SERVER>>> READY_FOR_NEXT_ACTION\n";
+
+    /**
+     * Start of the message sent instead of the connection successful message when the server cannot take another
+     * client. It is followed by the suggested wait in milliseconds and the connection is closed.
+     */
+    public static final String BUSY_PREFIX = "SERVER>>> SERVER_BUSY retry after ";
+
+    /** Exit message sent in reply to the exit signal */
+    public static final String EXIT_SIGNAL = "SERVER>>> EXIT_SIGNAL";
+
+    /**
+     * Private constructor, the class only holds constants.
+     */
+    private Protocol() {
+    }
+
+    /**
+     * Gets a readable name for an operation code, used when printing reports.
+     *
+     * @param opcode The operation code.
+     * @return The name of the operation.
+     */
+    public static String opcodeName(int opcode) {
+        switch (opcode) {
+            case EXIT:
+                return "exit";
+            case INSERT:
+                return "insert";
+            case REMOVE:
+                return "remove";
+            case SEARCH:
+                return "search";
+            case IN_ORDER:
+                return "in-order";
+            case PRE_ORDER:
+                return "pre-order";
+            case POST_ORDER:
+                return "post-order";
+            case BINARY_MODE:
+                return "binary-mode";
+            case STATS:
+                return "stats";
+            case KV_PUT:
+                return "kv-put";
+            case KV_GET:
+                return "kv-get";
+            case KV_DELETE:
+                return "kv-delete";
+            case KV_PUT_BYTES:
+                return "kv-put-bytes";
+            case KV_GET_BYTES:
+                return "kv-get-bytes";
+            case KV_DELETE_BYTES:
+                return "kv-delete-bytes";
+            case MULTI_SEARCH:
+                return "multi-search";
+            case SUBSCRIBE:
+                return "subscribe";
+            case TRAVERSAL_COMPACT:
+                return "traversal-compact";
+            case CHANGES_SINCE:
+                return "changes-since";
+            case FREEZE:
+                return "freeze";
+            case THAW:
+                return "thaw";
+            case TREE_STATS:
+                return "tree-stats";
+            case USE_NAMESPACE:
+                return "use-namespace";
+            case INSERT_TTL:
+                return "insert-ttl";
+            case FLOOR:
+                return "floor";
+            case CEILING:
+                return "ceiling";
+            case LOWER:
+                return "lower";
+            case HIGHER:
+                return "higher";
+            case MIN:
+                return "min";
+            case MAX:
+                return "max";
+            case BATCH:
+                return "batch";
+            default:
+                return "op-" + opcode;
+        }
+    }
+}
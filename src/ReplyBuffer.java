@@ -0,0 +1,150 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * The ReplyBuffer class collects the bytes of one connection's replies in memory, so the threads that perform
+ * requests never block on the client's socket.
+ * <p>
+ * The connection's ObjectOutputStream writes into it. Whichever lane thread answered a request appends the reply
+ * here, and flushing only wakes the connection's sender thread. That thread swaps the filled array for a spare one
+ * and writes the bytes to the socket outside the lock. A client that stops reading therefore holds up only its own
+ * sender thread. Its handler thread also stops reading requests once too many reply bytes are waiting.
+ * <p>
+ * The two arrays grow to the largest burst of replies and are then reused, so steady traffic does not allocate.
+ */
+public class ReplyBuffer extends OutputStream {
+
+    /** Starting size of each array */
+    private static final int INITIAL_CAPACITY = 8192;
+
+    /** Wakes the sender thread, called on every flush */
+    private final Runnable onFlush;
+
+    /** Array replies are appended to */
+    private byte[] pending = new byte[INITIAL_CAPACITY];
+
+    /** Bytes appended to pending */
+    private int count;
+
+    /** Array to append to while pending is being sent, null while it is the one being sent */
+    private byte[] spare = new byte[INITIAL_CAPACITY];
+
+    /** Bytes appended and not yet written to the socket, only changed under the lock */
+    private volatile long unsent;
+
+    /** Set once the socket failed; later replies are dropped */
+    private boolean discarding;
+
+    /**
+     * Constructor for ReplyBuffer.
+     *
+     * @param onFlush Wakes the thread sending the buffer.
+     */
+    public ReplyBuffer(Runnable onFlush) {
+        this.onFlush = onFlush;
+    }
+
+    /**
+     * Appends a byte.
+     *
+     * @param b The byte.
+     */
+    @Override
+    public synchronized void write(int b) {
+        if (discarding) {
+            return;
+        }
+        ensureCapacity(count + 1);
+        pending[count++] = (byte) b;
+        unsent++;
+    }
+
+    /**
+     * Appends bytes.
+     *
+     * @param bytes  The array holding the bytes.
+     * @param offset Index of the first byte.
+     * @param length Number of bytes.
+     */
+    @Override
+    public synchronized void write(byte[] bytes, int offset, int length) {
+        if (discarding) {
+            return;
+        }
+        ensureCapacity(count + length);
+        System.arraycopy(bytes, offset, pending, count, length);
+        count += length;
+        unsent += length;
+    }
+
+    /**
+     * Wakes the sender thread so the bytes appended so far go out.
+     */
+    @Override
+    public void flush() {
+        onFlush.run();
+    }
+
+    /**
+     * Gets the number of bytes appended and not yet written to the socket.
+     *
+     * @return The number of bytes.
+     */
+    public long unsentBytes() {
+        return unsent;
+    }
+
+    /**
+     * Writes the bytes appended so far to the socket. Only the sender thread calls this; the lock is not held
+     * while writing, so appending goes on into the spare array.
+     *
+     * @param out The socket's stream.
+     * @return True if there were bytes to write, false if the buffer was empty.
+     * @throws IOException if writing to the socket fails.
+     */
+    public boolean sendTo(OutputStream out) throws IOException {
+        byte[] bytes;
+        int length;
+        synchronized (this) {
+            if (count == 0) {
+                return false;
+            }
+            bytes = pending;
+            length = count;
+            pending = spare;
+            spare = null;
+            count = 0;
+        }
+        try {
+            out.write(bytes, 0, length);
+            out.flush();
+        } finally {
+            synchronized (this) {
+                spare = bytes;
+                unsent = discarding ? 0 : unsent - length;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drops the bytes not sent yet and every later reply, once the socket has failed.
+     */
+    public synchronized void discard() {
+        discarding = true;
+        count = 0;
+        unsent = 0;
+    }
+
+    /**
+     * Grows the pending array to hold at least a number of bytes.
+     *
+     * @param capacity The number of bytes.
+     */
+    private void ensureCapacity(int capacity) {
+        if (capacity > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(pending.length * 2, capacity));
+        }
+    }
+}
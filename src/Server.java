@@ -1,16 +1,46 @@
 import java.io.*;
 import java.net.*;
-import java.util.List;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ExecutorService;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
 
 /**
  * The Server class represents a multi-client server that handles requests related to interacting with a shared
  * BinarySearchTree class instance.
  */
 public class Server {
+    /** Start of the names of the client handler threads, which are numbered from 1 */
+    public static final String HANDLER_THREAD_PREFIX = "client-handler-";
+
+    /** Start of the names of the threads writing replies to the sockets, followed by the connection's ID */
+    public static final String SENDER_THREAD_PREFIX = "client-sender-";
+
+    /** Longest a closing connection waits for its unsent replies to go out, in milliseconds */
+    private static final long CLOSE_WAIT_MILLIS = 5_000;
+
+    /** Text replies a connection sends before its output stream is reset */
+    private static final int TEXT_REPLIES_PER_RESET = 256;
+
+    /** Requests of one connection read ahead of their replies, a power of two */
+    private static final int PIPELINE_DEPTH = 64;
+
+    /** Requests of one connection a lane thread answers in a row before it lets other connections' turns in */
+    private static final int RUNS_BEFORE_YIELD = 16;
+
     /** Thread pool for handling client connections */
-    private ExecutorService executor;
+    private ThreadPoolExecutor executor;
 
     /** Server socket for accepting client connections */
     private ServerSocket server;
@@ -21,14 +51,41 @@ public class Server {
     /** Counter for assigning unique IDs for clients */
     private int counter = 1;
 
-    /** Number of currently connected clients */
-    private int nClientsActive = 0;
-
     /** Port on which server listens */
-    private final int port = 23612;
+    private final int port;
 
     /** Shared binary search tree instance */
-    private BinarySearchTree binarySearchTree;
+    private SharedTree binarySearchTree;
+
+    /** Key/value store with long keys */
+    private final LongKeyValueTree longStore = new LongKeyValueTree();
+
+    /** Key/value store with byte array keys */
+    private final BytesKeyValueTree bytesStore = new BytesKeyValueTree();
+
+    /** Endpoint answering searches over UDP, null if it is off */
+    private UdpSearchEndpoint udpEndpoint;
+
+    /** The default namespace holding the shared tree, and the named trees created on demand */
+    private final TreeRegistry namespaces;
+
+    /** Request counters and latency histograms, also exposed through JMX */
+    private final ServerMetrics metrics;
+
+    /** Log shared by all client handlers */
+    private final AsyncLogger log;
+
+    /** Server settings */
+    private final ServerConfig config;
+
+    /** Records every request for later replay, null unless trace.file is set */
+    private final TraceRecorder trace;
+
+    /** Threads requests run on, with point reads, writes and whole-tree requests kept apart */
+    private final ExecutionLanes lanes;
+
+    /** Subscribers whose queued invalidations overflowed and were replaced by a flush frame */
+    private final LongAdder invalidationOverflows = new LongAdder();
 
     /**
      * Constructor for the Server class.
@@ -36,11 +93,58 @@ public class Server {
      * The constructor creates an array to hold individual client handler instances,
      * initializes a fixed-size thread pool for handling client connections concurrently,
      * and creates a new instance of the Binary Search Tree for shared data storage.
+     * The metrics are registered with JMX so they can be watched while the server runs.
      */
     public Server() {
+        this(new ServerConfig());
+    }
+
+    /**
+     * Constructor for the Server class using the given settings.
+     *
+     * @param config The server settings.
+     */
+    public Server(ServerConfig config) {
+        this.config = config;
+        port = config.port;
+        log = AsyncLogger.create(config);
         sockServer = new SockServer[100];
-        executor = Executors.newFixedThreadPool(100);
-        binarySearchTree = new BinarySearchTree();
+
+        // Clients waiting for a handler thread queue up to a fixed limit, past it they are turned away
+        BlockingQueue<Runnable> acceptQueue = config.acceptQueue > 0
+                ? new ArrayBlockingQueue<>(config.acceptQueue) : new SynchronousQueue<>();
+        AtomicInteger handlerThreads = new AtomicInteger();
+        executor = new ThreadPoolExecutor(config.handlerThreads, config.handlerThreads,
+                0L, TimeUnit.MILLISECONDS, acceptQueue,
+                task -> new Thread(task, HANDLER_THREAD_PREFIX + handlerThreads.incrementAndGet()));
+        binarySearchTree = SharedTree.create(config);
+        namespaces = new TreeRegistry(binarySearchTree, config, log);
+        namespaces.startExpiry();
+        lanes = ExecutionLanes.create(config);
+        metrics = new ServerMetrics(() -> executor.getQueue().size());
+        metrics.registerMBean();
+        trace = openTrace(config, log);
+    }
+
+    /**
+     * Opens the trace file if the settings ask for one.
+     *
+     * @param config The server settings.
+     * @param log    The log, told if the file cannot be created.
+     * @return The recorder, or null if tracing is off or the file cannot be created.
+     */
+    private static TraceRecorder openTrace(ServerConfig config, AsyncLogger log) {
+        if (config.traceFile.isEmpty()) {
+            return null;
+        }
+        try {
+            TraceRecorder recorder = new TraceRecorder(Paths.get(config.traceFile), config.traceBufferSize);
+            log.log(AsyncLogger.Level.INFO, "Recording requests to {}", config.traceFile);
+            return recorder;
+        } catch (IOException e) {
+            log.log(AsyncLogger.Level.WARN, "Could not create trace file: {}", e);
+            return null;
+        }
     }
 
     /**
@@ -53,25 +157,38 @@ public class Server {
         try {
             // Initialize the ServerSocket to listen for client connections
             server = new ServerSocket(port, 100);
-            System.out.println("Server is running");
+            log.log(AsyncLogger.Level.INFO, "Server is running on port {}", port, 0);
+
+            // Read-only searches can also come in over UDP
+            if (config.udpPort > 0) {
+                udpEndpoint = new UdpSearchEndpoint(config.udpPort, binarySearchTree, log);
+                udpEndpoint.start(config.udpThreads);
+            }
 
             while (true) {
                 try {
 
-                    // Create new SockServer instance for the current client connection
-                    sockServer[counter] = new SockServer(counter, binarySearchTree);
+                    // Create new SockServer instance for the current client connection, reusing slots of the array
+                    int slot = counter % sockServer.length;
+                    sockServer[slot] = new SockServer(counter, namespaces.defaultNamespace());
 
                     // Wait for a client to connect
-                    sockServer[counter].waitForClientConnection();
+                    sockServer[slot].waitForClientConnection();
 
                     // Increment number of clients connected counter
-                    nClientsActive++;
-
-                    // Execute client handler in a separate thread
-                    executor.execute(sockServer[counter]);
+                    metrics.connectionOpened();
+
+                    // Execute client handler in a separate thread, or turn the client away if the queue is full
+                    try {
+                        executor.execute(sockServer[slot]);
+                    } catch (RejectedExecutionException e) {
+                        metrics.connectionClosed();
+                        metrics.connectionRejected();
+                        sockServer[slot].rejectConnection();
+                    }
 
                 } catch (EOFException e) {
-                    System.out.println("\nServer terminated connection");
+                    log.log(AsyncLogger.Level.INFO, "\nServer terminated connection", null);
                 } finally {
                     ++counter;  // Increment unique ID counter for next client
 
@@ -82,27 +199,111 @@ public class Server {
         }
     }
 
+    /**
+     * A request read from a client and waiting for its turn, one slot of a connection's ring. The slots are reused,
+     * so reading a request does not allocate beyond the arrays and strings of its operands.
+     * <p>
+     * A request is also the cancellation check of bulk work, which stops once the deadline has passed.
+     */
+    private static final class Request implements BooleanSupplier {
+        int opcode;         // Operation code
+        long start;         // When the request was read, from System.nanoTime
+        long deadline;      // When a bulk request is given up on, from System.nanoTime, 0 for never
+        int value;          // The value of the request, 0 for operations without a single value
+        int ttlMillis;      // Time to live of an insert
+        int order;          // Order of a compact traversal
+        int flags;          // Flags of a compact traversal
+        long epoch;         // Epoch of the version changes are asked since
+        long since;         // Version changes are asked since
+        long key;           // Long key of a key/value request
+        int[] values;       // Probes of a multi-search or values of a batch
+        byte[] operations;  // Operations of a batch
+        byte[] keyBytes;    // Byte array key of a key/value request
+        byte[] bytes;       // Value of a key/value put
+        String name;        // Name of a namespace
+
+        /**
+         * Checks whether the request has run past its deadline.
+         *
+         * @return True once the deadline has passed.
+         */
+        @Override
+        public boolean getAsBoolean() {
+            return deadline != 0 && System.nanoTime() - deadline > 0;
+        }
+
+        /**
+         * Drops the operands, so a slot does not keep a large array alive until it is reused.
+         */
+        void clear() {
+            values = null;
+            operations = null;
+            keyBytes = null;
+            bytes = null;
+            name = null;
+        }
+    }
+
     /**
      * Inner class representing an individual client handler.
      * Each SockServer instance manages the communication with a single client,
      * handling requests related to the shared Binary Search Tree.
      */
-    private class SockServer implements Runnable {
+    private class SockServer implements Runnable, InvalidationBroadcaster.Subscriber {
         private ObjectOutputStream outputStream;    // Output stream for sending data to the client
         private ObjectInputStream inputStream;   // Input stream for receiving data from the client
         private Socket clientConnection;    // Socket representing the connection with the client
-        private BinarySearchTree binarySearchTree;  // Shared Binary Search Tree instance
+        private TreeRegistry.Namespace namespace;  // Namespace this client's requests go to
+        private SharedTree binarySearchTree;  // Shared Binary Search Tree instance of the namespace
+        private InvalidationBroadcaster invalidations;  // Subscribers to changes of the namespace
+        private boolean subscribed;  // Whether this client gets invalidations
         private int myConID;        // Unique ID assigned to the client connection
+        private boolean binaryMode; // Whether replies are sent as binary status codes instead of messages
+        private final TokenBucket requestLimit;    // Limits requests of this client, null if unlimited
+        private final TokenBucket writeLimit;      // Limits inserts and removes of this client, null if unlimited
+        private final Object outputLock = new Object();    // Held while writing a binary reply or an invalidation
+        private int repliesSinceReset;  // Text replies written since the output stream last forgot its objects
+        private final Request[] requests = new Request[PIPELINE_DEPTH];  // Requests read and not yet answered
+        private volatile long requestsRead;  // Requests put in the ring, only written by the handler thread
+        private volatile long requestsDone;  // Requests answered, only written by the thread running the ring
+        private final AtomicBoolean running = new AtomicBoolean();  // Set while a thread runs the ring
+        private final Runnable[] laneRunners;  // Runs the ring on the threads of each lane, indexed by ordinal
+        private Thread handler;    // Thread reading the requests, woken when a slot frees up
+        private volatile boolean handlerWaiting;  // Set while the handler thread is about to park or parked
+        private ReplyBuffer replies;   // Encoded replies the sender thread has not written to the socket yet
+        private Thread sender;         // Thread writing the replies to the socket
+        private volatile boolean senderIdle;  // Set while the sender thread is about to park or parked
+        private volatile boolean closing;     // Set once the sender thread should stop when the buffer is empty
+        private final Object invalidationLock = new Object();  // Guards the invalidation queue and its counters
+        private int[] invalidationQueue;     // Invalidations the sender thread has not encoded yet, from subscribing
+        private int invalidationHead;        // Index of the oldest queued invalidation
+        private int invalidationCount;       // Number of queued invalidations
+        private boolean invalidationsDropped;  // Set when the queue overflowed and a flush frame is owed instead
+        private volatile boolean invalidationsPending;  // Set while there are invalidations or a flush to send
 
         /**
          * Constructor for the SockServer class.
          *
          * @param counterIn The unique ID assigned to the client.
-         * @param bst       The shared Binary Search Tree.
+         * @param ns        The namespace requests go to until the client selects another.
          */
-        public SockServer(int counterIn, BinarySearchTree bst) {
+        public SockServer(int counterIn, TreeRegistry.Namespace ns) {
             myConID = counterIn;
-            binarySearchTree = bst;
+            namespace = ns;
+            binarySearchTree = ns.tree();
+            invalidations = ns.invalidations();
+            requestLimit = config.requestRateLimit > 0
+                    ? new TokenBucket(config.requestRateLimit, config.rateBurst) : null;
+            writeLimit = config.writeRateLimit > 0
+                    ? new TokenBucket(config.writeRateLimit, config.rateBurst) : null;
+            for (int i = 0; i < requests.length; i++) {
+                requests[i] = new Request();
+            }
+            ExecutionLanes.Lane[] laneValues = ExecutionLanes.Lane.values();
+            laneRunners = new Runnable[laneValues.length];
+            for (ExecutionLanes.Lane lane : laneValues) {
+                laneRunners[lane.ordinal()] = () -> runRequests(lane);
+            }
         }
 
         /**
@@ -111,6 +312,7 @@ public class Server {
          * handling client requests and closing the connection.
          */
         public void run() {
+            handler = Thread.currentThread();
             try {
 
                 // Establishes input and output streams for communication
@@ -119,18 +321,20 @@ public class Server {
                 // Processes the initial connection with the client
                 processInitialConnection();
 
-                // Client disconnects when this point is reached, decrement number of connected clients counter
-                nClientsActive--;
-
             } catch (IOException e) {
                 // IOException may occur during stream operations or initial connection
-                System.out.println("\nServer " + myConID + " terminated connection");
+                log.log(AsyncLogger.Level.INFO, "\nServer {} terminated connection", myConID, 0);
             } finally {
+                // Client disconnects when this point is reached, decrement number of connected clients counter
+                metrics.connectionClosed();
+                invalidations.unsubscribe(this);
+                namespaces.release(namespace);
+
                 try {
                     closeConnection();
                 } catch (IOException e) {
                     // Exception may occur when attempting to close the connection
-                    System.out.println("Failed to properly close connection");
+                    log.log(AsyncLogger.Level.WARN, "Failed to properly close connection: {}", e);
                     e.printStackTrace();
                 }
             }
@@ -146,10 +350,19 @@ public class Server {
             try {
 
                 // Create ObjectInputStream to read data from the client
-                inputStream = new ObjectInputStream(clientConnection.getInputStream());
+                // Buffered, because the socket's own single byte read allocates an array for each request header
+                inputStream = new ObjectInputStream(metrics.countingInputStream(
+                        new BufferedInputStream(clientConnection.getInputStream())));
+
+                // Replies are encoded into memory and written to the socket by the connection's own sender thread
+                OutputStream socketOutput = metrics.countingOutputStream(clientConnection.getOutputStream());
+                replies = new ReplyBuffer(this::wakeSender);
+                sender = new Thread(() -> sendReplies(socketOutput), SENDER_THREAD_PREFIX + myConID);
+                sender.setDaemon(true);
+                sender.start();
 
                 // Create ObjectOutputStream to send data to the client
-                outputStream = new ObjectOutputStream(clientConnection.getOutputStream());
+                outputStream = new ObjectOutputStream(replies);
 
                 // Flush output stream
                 outputStream.flush();
@@ -172,8 +385,11 @@ public class Server {
             // Accept an incoming client connection and set clientConnection to the connected socket
             clientConnection = server.accept();
 
+            // Send replies right away instead of waiting to combine them with later writes
+            clientConnection.setTcpNoDelay(true);
+
             // Print information about the connected client's IP address
-            System.out.println("Client connected: " + clientConnection.getInetAddress().getHostAddress());
+            log.log(AsyncLogger.Level.INFO, "Client connected: {}", clientConnection.getInetAddress().getHostAddress());
 
         }
 
@@ -197,114 +413,862 @@ public class Server {
 
         /**
          * Processes user input received from the connected client.
-         * Processes what to do for every action a client can perform when interacting with the binary search tree.
+         * The handler thread only reads each request and puts it in the ring; the requests are then performed and
+         * answered in order on the threads of their lanes. When the client disconnects, the requests already read
+         * are still answered before the connection is closed.
          */
         private void processUserInput() {
+            try {
+                while (true) {
+                    // Wait for a free slot and for the unsent replies to go out, so a client that sends without
+                    // reading replies is held back
+                    long read = requestsRead;
+                    awaitTurn(read - requests.length + 1, config.replyBufferBytes);
+
+                    // Read the choice of operation sent from client side, then its operands
+                    Request request = requests[(int) read & (requests.length - 1)];
+                    readRequest(request, inputStream.readInt());
+
+                    // Publish the request, and hand the ring to its lane unless a lane thread already has it
+                    requestsRead = read + 1;
+                    if (running.compareAndSet(false, true)) {
+                        runRequests(null);
+                    }
+                }
+            } catch (IOException e) {
+                log.log(AsyncLogger.Level.INFO, "Error processing user input: {}", e);
+            } finally {
+                awaitTurn(requestsRead, Long.MAX_VALUE);
+            }
+        }
+
+        /**
+         * Reads the operands of a request into a slot of the ring. Runs on the handler thread.
+         *
+         * @param request The slot.
+         * @param choice  The operation code.
+         * @throws IOException if reading fails or an operand is out of range, in which case the connection is
+         *                     closed.
+         */
+        private void readRequest(Request request, int choice) throws IOException {
+            // Time the request from here, waiting for the next request is not part of it
+            request.opcode = choice;
+            request.start = System.nanoTime();
+            request.deadline = ExecutionLanes.laneOf(choice) == ExecutionLanes.Lane.BULK
+                    ? lanes.bulkDeadline(request.start) : 0;
+
+            // The request's value for the trace, left at 0 by operations without a single value
+            request.value = 0;
+
+            // Log information about client request, off unless the log level is DEBUG
+            log.logSampled(AsyncLogger.Level.DEBUG, "Client ID {} REQ>>> {}", myConID, choice);
+
+            switch (choice) {
+                case Protocol.INSERT:
+                case Protocol.REMOVE:
+                case Protocol.SEARCH:
+                case Protocol.FLOOR:
+                case Protocol.CEILING:
+                case Protocol.LOWER:
+                case Protocol.HIGHER:
+                    request.value = inputStream.readInt();
+                    break;
+                case Protocol.INSERT_TTL:
+                    request.value = inputStream.readInt();
+                    request.ttlMillis = inputStream.readInt();
+                    break;
+                case Protocol.MULTI_SEARCH:
+                    request.values = readInts(config.multiSearchMax);
+                    break;
+                case Protocol.TRAVERSAL_COMPACT:
+                    request.order = inputStream.readInt();
+                    request.flags = inputStream.readInt();
+                    break;
+                case Protocol.CHANGES_SINCE:
+                    request.epoch = inputStream.readLong();
+                    request.since = inputStream.readLong();
+                    break;
+                case Protocol.BATCH:
+                    int batchLength = inputStream.readInt();
+                    if (batchLength < 0 || batchLength > config.batchMax) {
+                        throw new IOException("Invalid count " + batchLength + ", the limit is "
+                                + config.batchMax);
+                    }
+                    request.operations = new byte[batchLength];
+                    request.values = new int[batchLength];
+                    for (int i = 0; i < batchLength; i++) {
+                        request.operations[i] = inputStream.readByte();
+                        request.values[i] = inputStream.readInt();
+                    }
+                    break;
+                case Protocol.USE_NAMESPACE:
+                    request.name = inputStream.readUTF();
+                    break;
+                case Protocol.KV_PUT:
+                    request.key = inputStream.readLong();
+                    request.bytes = readBytes(config.kvMaxValueBytes);
+                    break;
+                case Protocol.KV_GET:
+                case Protocol.KV_DELETE:
+                    request.key = inputStream.readLong();
+                    break;
+                case Protocol.KV_PUT_BYTES:
+                    request.keyBytes = readBytes(config.kvMaxKeyBytes);
+                    request.bytes = readBytes(config.kvMaxValueBytes);
+                    break;
+                case Protocol.KV_GET_BYTES:
+                case Protocol.KV_DELETE_BYTES:
+                    request.keyBytes = readBytes(config.kvMaxKeyBytes);
+                    break;
+                default:
+                    // The other operations have no operands
+                    break;
+            }
+        }
 
-            while (true)
+        /**
+         * Performs and answers the requests in the ring in order for as long as they are in the given lane, then
+         * hands the ring over to the lane of the next request. Only the thread that set running runs this, so the
+         * requests of one connection never run at once and their replies keep their order.
+         *
+         * @param current The lane of the calling thread, null on the handler thread.
+         */
+        private void runRequests(ExecutionLanes.Lane current) {
+            int ran = 0;
+            while (true) {
+                long next = requestsDone;
+                if (next == requestsRead) {
+                    // Either a request published after the check sees running cleared, or it is seen here
+                    running.set(false);
+                    if (next == requestsRead || !running.compareAndSet(false, true)) {
+                        return;
+                    }
+                    continue;
+                }
+
+                Request request = requests[(int) next & (requests.length - 1)];
+                ExecutionLanes.Lane lane = ExecutionLanes.laneOf(request.opcode);
+                if (lane != current || ran == RUNS_BEFORE_YIELD) {
+                    if (lanes.execute(lane, laneRunners[lane.ordinal()])) {
+                        return;
+                    }
+                    if (lane != current) {
+                        // The lane is full, turn the request away in its place among the replies
+                        metrics.requestRejected();
+                        sendBusy(config.busyRetryMillis, "Too many requests waiting in their lane");
+                        finish(request, next);
+                        continue;
+                    }
+
+                    // No room to go to the back of the lane, so carry on here
+                    ran = 0;
+                }
+
+                execute(request);
+                finish(request, next);
+                ran++;
+            }
+        }
+
+        /**
+         * Frees the slot of an answered request and wakes the handler thread if it waits for one.
+         *
+         * @param request The request.
+         * @param done    Its sequence number.
+         */
+        private void finish(Request request, long done) {
+            request.clear();
+            requestsDone = done + 1;
+            if (handlerWaiting) {
+                LockSupport.unpark(handler);
+            }
+        }
+
+        /**
+         * Waits on the handler thread until a number of requests have been answered and the replies not yet
+         * written to the socket are within a limit.
+         *
+         * @param count       The number of requests.
+         * @param unsentLimit Most reply bytes that may still be waiting for the sender thread.
+         */
+        private void awaitTurn(long count, long unsentLimit) {
+            while (requestsDone < count || replies.unsentBytes() > unsentLimit) {
+                // Announce the wait before the last check, so an answer or a send after it wakes this thread
+                handlerWaiting = true;
+                if (requestsDone < count || replies.unsentBytes() > unsentLimit) {
+                    LockSupport.park(this);
+                }
+                handlerWaiting = false;
+            }
+        }
+
+        /**
+         * Writes the replies to the socket as they are flushed into the buffer, until the connection closes.
+         * Runs on the connection's sender thread, the only one that blocks on a client that reads slowly.
+         *
+         * @param socketOutput The socket's stream.
+         */
+        private void sendReplies(OutputStream socketOutput) {
+            try {
+                while (true) {
+                    if (invalidationsPending) {
+                        encodeInvalidations();
+                    }
+                    if (replies.sendTo(socketOutput)) {
+                        if (handlerWaiting) {
+                            LockSupport.unpark(handler);
+                        }
+                        continue;
+                    }
+                    if (closing) {
+                        return;
+                    }
+
+                    // Announce the park before the last check, so a reply or invalidation after it wakes this thread
+                    senderIdle = true;
+                    if (replies.unsentBytes() == 0 && !invalidationsPending && !closing) {
+                        LockSupport.park(this);
+                    }
+                    senderIdle = false;
+                }
+            } catch (IOException e) {
+                // The client went away; drop what is left and close the socket, so the handler thread stops too
+                log.log(AsyncLogger.Level.INFO, "Error writing replies: {}", e);
+                replies.discard();
+                if (handlerWaiting) {
+                    LockSupport.unpark(handler);
+                }
                 try {
+                    clientConnection.close();
+                } catch (IOException closeFailure) {
+                    // The handler thread notices the closed socket either way
+                }
+            }
+        }
 
-                    // Read the choice of operation sent from client side
-                    int choice = inputStream.readInt();
+        /**
+         * Moves the queued invalidations into the reply buffer, or a single flush frame if some were dropped.
+         * Runs on the sender thread, so the only socket an invalidation waits for is its own subscriber's.
+         *
+         * @throws IOException if encoding fails.
+         */
+        private void encodeInvalidations() throws IOException {
+            synchronized (outputLock) {
+                synchronized (invalidationLock) {
+                    if (invalidationsDropped) {
+                        outputStream.writeInt(Protocol.PUSH_FLUSH);
+                    } else {
+                        for (int i = 0; i < invalidationCount; i++) {
+                            outputStream.writeInt(Protocol.PUSH_INVALIDATE);
+                            outputStream.writeInt(invalidationQueue[(invalidationHead + i) % invalidationQueue.length]);
+                        }
+                    }
+                    invalidationHead = 0;
+                    invalidationCount = 0;
+                    invalidationsDropped = false;
+                    invalidationsPending = false;
+                }
+                outputStream.flush();
+            }
+        }
 
-                    // Print information about client request
-                    System.out.println("Client ID " + myConID + " REQ>>> " + choice);
+        /**
+         * Wakes the sender thread if it is parked. Called whenever replies are flushed into the buffer.
+         */
+        private void wakeSender() {
+            if (senderIdle) {
+                LockSupport.unpark(sender);
+            }
+        }
 
-                    switch (choice) {
-                        // Insert value
-                        case 1:
-                            // Read value to be inserted
-                            int valueToInsert = inputStream.readInt();
+        /**
+         * Performs a request and records it. A request that fails is answered with an error, so the requests
+         * after it still run.
+         *
+         * @param request The request.
+         */
+        private void execute(Request request) {
+            long treeNanos = 0;
+            try {
+                treeNanos = perform(request);
+            } catch (RuntimeException e) {
+                // The tree failed the request, for example on the sequencer's writer thread; the connection is
+                // still in step since the request was read in full
+                log.log(AsyncLogger.Level.WARN, "Request failed: {}", e);
+                if (binaryMode) {
+                    sendStatus(Protocol.STATUS_ERROR);
+                } else {
+                    sendData("BST_UPDATE Request failed on the server");
+                    sendConfirmationToClient();
+                }
+            }
 
-                            // Perform insert on binary search tree instance
-                            binarySearchTree.insert(valueToInsert);
+            // Record how long the request took and how much of that was spent in the tree
+            metrics.recordRequest(request.opcode, System.nanoTime() - request.start, treeNanos);
+            if (trace != null) {
+                trace.record(request.start, myConID, request.opcode, request.value);
+            }
+        }
 
-                            // Send message to client that confirms server is ready for another action
-                            sendData("BST_UPDATE Successfully inserted value: " + valueToInsert);
-                            sendConfirmationToClient();
-                            break;
+        /**
+         * Performs a request and answers it.
+         * Processes what to do for every action a client can perform when interacting with the binary search tree.
+         *
+         * @param request The request.
+         * @return Nanoseconds spent in the tree.
+         */
+        private long perform(Request request) {
+            long treeNanos = 0;
+            int choice = request.opcode;
+
+            // A bulk request that waited past its deadline is not started
+            if (request.getAsBoolean()) {
+                sendCancelled();
+                return treeNanos;
+            }
 
-                        // Remove value
-                        case 2:
-                            // Read value to be removed
-                            int valueToRemove = inputStream.readInt();
+            switch (choice) {
+                // Insert value
+                case Protocol.INSERT:
+                    // Value to be inserted
+                    int valueToInsert = request.value;
+                    if (rejectIfOverLimit(true)) {
+                        break;
+                    }
 
-                            // Perform remove, if true value existed in bst, if false it does not exist in bst
-                            boolean removed = binarySearchTree.remove(valueToRemove);
+                    // Perform insert on binary search tree instance
+                    long insertStart = System.nanoTime();
+                    boolean inserted = binarySearchTree.insert(valueToInsert);
+                    treeNanos = System.nanoTime() - insertStart;
 
-                            // If remove was successful, send corresponding message to client
-                            if (removed) {
-                                sendData("BST_UPDATE Successfully removed value: " + valueToRemove
-                                        + "\nNew size of Binary Search Tree: " + binarySearchTree.height());
+                    // Subscribers hear about the change before this client gets its reply
+                    if (inserted) {
+                        invalidations.publish(valueToInsert);
+                    }
 
-                                // Else send message that value was not found
-                            } else {
-                                sendData("BST_UPDATE Value was not found");
-                            }
+                    if (binaryMode) {
+                        sendStatus(inserted ? Protocol.STATUS_OK : Protocol.STATUS_ALREADY_PRESENT);
+                        break;
+                    }
 
-                            // Send message to client that confirms server is ready for another action
-                            sendConfirmationToClient();
-                            break;
+                    // Send message to client that confirms server is ready for another action
+                    sendData("BST_UPDATE Successfully inserted value: " + valueToInsert);
+                    sendConfirmationToClient();
+                    break;
 
-                        // Search for value
-                        case 3:
-                            // Read value to be searched for
-                            int valueToSearchFor = inputStream.readInt();
+                // Insert value that expires after a time to live
+                case Protocol.INSERT_TTL:
+                    int valueWithTtl = request.value;
+                    int ttlMillis = request.ttlMillis;
+                    if (rejectIfOverLimit(true)) {
+                        break;
+                    }
+                    if (ttlMillis <= 0) {
+                        sendStatus(Protocol.STATUS_ERROR);
+                        break;
+                    }
 
-                            // Perform search, if true value existed in bst, if false it does not exist in bst
-                            boolean found = binarySearchTree.search(valueToSearchFor);
+                    long insertTtlStart = System.nanoTime();
+                    boolean insertedWithTtl = binarySearchTree.insertWithTtl(valueWithTtl, ttlMillis);
+                    treeNanos = System.nanoTime() - insertTtlStart;
+                    if (insertedWithTtl) {
+                        invalidations.publish(valueWithTtl);
+                    }
+                    sendStatus(insertedWithTtl ? Protocol.STATUS_OK : Protocol.STATUS_ALREADY_PRESENT);
+                    break;
 
-                            // If value was found, send corresponding message to client
-                            if (found) {
-                                sendData("BST_UPDATE Value: " + valueToSearchFor + " was found");
+                // Remove value
+                case Protocol.REMOVE:
+                    // Value to be removed
+                    int valueToRemove = request.value;
+                    if (rejectIfOverLimit(true)) {
+                        break;
+                    }
 
-                                // Else send message that value was not found
-                            } else {
-                                sendData("BST_UPDATE Value: " + valueToSearchFor + " was not found");
-                            }
+                    // Perform remove, if true value existed in bst, if false it does not exist in bst
+                    long removeStart = System.nanoTime();
+                    boolean removed = binarySearchTree.remove(valueToRemove);
+                    treeNanos = System.nanoTime() - removeStart;
+                    if (removed) {
+                        invalidations.publish(valueToRemove);
+                    }
 
-                            // Send message to client that confirms server is ready for another action
-                            sendConfirmationToClient();
-                            break;
+                    if (binaryMode) {
+                        sendStatus(removed ? Protocol.STATUS_OK : Protocol.STATUS_NOT_FOUND);
+                        break;
+                    }
 
-                        // Traverse in order
-                        case 4:
-                            // Call send traversal method to get the in order traversal from the BST along with sending a message to client
-                            sendBSTTraversalToClients(binarySearchTree.inOrderTraversal(), " In-order");
+                    // If remove was successful, send corresponding message to client
+                    if (removed) {
+                        sendData("BST_UPDATE Successfully removed value: " + valueToRemove
+                                + "\nNew size of Binary Search Tree: " + binarySearchTree.size());
 
-                            // Send message to client that confirms server is ready for another action
-                            sendConfirmationToClient();
-                            break;
+                        // Else send message that value was not found
+                    } else {
+                        sendData("BST_UPDATE Value was not found");
+                    }
 
-                        // Traverse pre order
-                        case 5:
-                            // Call send traversal method to get the pre-order traversal from the BST along with sending a message to client
-                            sendBSTTraversalToClients(binarySearchTree.preOrderTraversal(), " Pre-order");
+                    // Send message to client that confirms server is ready for another action
+                    sendConfirmationToClient();
+                    break;
 
-                            // Send message to client that confirms server is ready for another action
-                            sendConfirmationToClient();
-                            break;
+                // Search for value
+                case Protocol.SEARCH:
+                    // Value to be searched for
+                    int valueToSearchFor = request.value;
+                    if (rejectIfOverLimit(false)) {
+                        break;
+                    }
 
-                        // Traverse post order
-                        case 6:
-                            // Call send traversal method to get the post-order traversal from the BST along with sending a message to client
-                            sendBSTTraversalToClients(binarySearchTree.postOrderTraversal(), " Post-order");
+                    // Perform search, if true value existed in bst, if false it does not exist in bst
+                    long searchStart = System.nanoTime();
+                    boolean found = binarySearchTree.search(valueToSearchFor);
+                    treeNanos = System.nanoTime() - searchStart;
 
-                            // Send message to client that confirms server is ready for another action
-                            sendConfirmationToClient();
-                            break;
+                    if (binaryMode) {
+                        sendStatus(found ? Protocol.STATUS_OK : Protocol.STATUS_NOT_FOUND);
+                        break;
+                    }
 
-                        // Send exit signal indicating client wants to quit (NOTE: Inactive currently)
-                        case 0:
-                            sendData("SERVER>>> EXIT_SIGNAL");
-                            break;
+                    // If value was found, send corresponding message to client
+                    if (found) {
+                        sendData("BST_UPDATE Value: " + valueToSearchFor + " was found");
 
+                        // Else send message that value was not found
+                    } else {
+                        sendData("BST_UPDATE Value: " + valueToSearchFor + " was not found");
                     }
-                } catch (IOException e) {
-                    System.out.println("Error processing user input");
+
+                    // Send message to client that confirms server is ready for another action
+                    sendConfirmationToClient();
+                    break;
+
+                // Traverse in order
+                case Protocol.IN_ORDER:
+                    if (rejectIfOverLimit(false)) {
+                        break;
+                    }
+                    // Call send traversal method to get the in order traversal from the BST along with sending a
+                    // message to client
+                    long inOrderStart = System.nanoTime();
+                    int[] inOrder = binarySearchTree.traversalValues(Protocol.IN_ORDER, request);
+                    treeNanos = System.nanoTime() - inOrderStart;
+                    sendBSTTraversalToClients(inOrder, " In-order");
+                    break;
+
+                // Traverse pre order
+                case Protocol.PRE_ORDER:
+                    if (rejectIfOverLimit(false)) {
+                        break;
+                    }
+                    // Call send traversal method to get the pre-order traversal from the BST along with sending a
+                    // message to client
+                    long preOrderStart = System.nanoTime();
+                    int[] preOrder = binarySearchTree.traversalValues(Protocol.PRE_ORDER, request);
+                    treeNanos = System.nanoTime() - preOrderStart;
+                    sendBSTTraversalToClients(preOrder, " Pre-order");
                     break;
+
+                // Traverse post order
+                case Protocol.POST_ORDER:
+                    if (rejectIfOverLimit(false)) {
+                        break;
+                    }
+                    // Call send traversal method to get the post-order traversal from the BST along with sending a
+                    // message to client
+                    long postOrderStart = System.nanoTime();
+                    int[] postOrder = binarySearchTree.traversalValues(Protocol.POST_ORDER, request);
+                    treeNanos = System.nanoTime() - postOrderStart;
+                    sendBSTTraversalToClients(postOrder, " Post-order");
+                    break;
+
+                // Switch this connection to binary replies
+                case Protocol.BINARY_MODE:
+                    binaryMode = true;
+                    sendStatus(Protocol.STATUS_OK);
+                    break;
+
+                // Send the server metrics
+                case Protocol.STATS:
+                    Map<String, Long> stats = new LinkedHashMap<>();
+                    metrics.addStats(stats);
+                    binarySearchTree.addStats(stats);
+                    stats.put("subscribers", (long) invalidations.subscriberCount());
+                    stats.put("subscribers.flushed", invalidationOverflows.sum());
+                    namespaces.addStats(stats);
+                    if (udpEndpoint != null) {
+                        udpEndpoint.addStats(stats);
+                    }
+                    stats.put("kv.long.size", (long) longStore.size());
+                    stats.put("kv.bytes.size", (long) bytesStore.size());
+                    stats.put("log.dropped", log.droppedCount());
+                    lanes.addStats(stats);
+                    if (trace != null) {
+                        stats.put("trace.recorded", trace.recordedCount());
+                        stats.put("trace.dropped", trace.droppedCount());
+                    }
+                    sendStats(stats);
+                    break;
+
+                // Send the tree's shape, including how many values sit at each depth
+                case Protocol.TREE_STATS:
+                    if (rejectIfOverLimit(false)) {
+                        break;
+                    }
+                    long treeStatsStart = System.nanoTime();
+                    Map<String, Long> treeStats = new LinkedHashMap<>();
+                    binarySearchTree.addTreeStats(treeStats);
+                    treeNanos = System.nanoTime() - treeStatsStart;
+                    sendStats(treeStats);
+                    break;
+
+                // Search for many values at once
+                case Protocol.MULTI_SEARCH:
+                    int[] probes = request.values;
+                    if (rejectIfOverLimit(false)) {
+                        break;
+                    }
+                    long multiSearchStart = System.nanoTime();
+                    long[] hits = binarySearchTree.searchAll(probes);
+                    treeNanos = System.nanoTime() - multiSearchStart;
+                    sendBitset(hits);
+                    break;
+
+                // Traverse in the compact binary encoding
+                case Protocol.TRAVERSAL_COMPACT:
+                    int order = request.order;
+                    int flags = request.flags;
+                    if (rejectIfOverLimit(false)) {
+                        break;
+                    }
+                    if (order != Protocol.IN_ORDER && order != Protocol.PRE_ORDER
+                            && order != Protocol.POST_ORDER) {
+                        sendStatus(Protocol.STATUS_ERROR);
+                        break;
+                    }
+
+                    // One snapshot unless the client asked for an in-order traversal in chunks
+                    boolean chunked = order == Protocol.IN_ORDER && (flags & TraversalCodec.FLAG_CHUNKED) != 0;
+                    long compactStart = System.nanoTime();
+                    int[] traversal = chunked ? binarySearchTree.chunkedInOrderValues(request)
+                            : binarySearchTree.traversalValues(order, request);
+                    treeNanos = System.nanoTime() - compactStart;
+                    if (traversal == null) {
+                        sendCancelled();
+                        break;
+                    }
+                    sendCompactTraversal(traversal, chunked ? flags : flags & ~TraversalCodec.FLAG_CHUNKED);
+                    break;
+
+                // Send the changes since a version, or a snapshot
+                case Protocol.CHANGES_SINCE:
+                    if (rejectIfOverLimit(false)) {
+                        break;
+                    }
+                    long changesStart = System.nanoTime();
+                    ChangeLog.Changes changes = binarySearchTree.changesSince(request.epoch, request.since);
+                    treeNanos = System.nanoTime() - changesStart;
+                    sendChanges(changes);
+                    break;
+
+                // Freeze the tree into the read-only index
+                case Protocol.FREEZE:
+                    if (rejectIfOverLimit(false)) {
+                        break;
+                    }
+                    long freezeStart = System.nanoTime();
+                    int frozenValues = binarySearchTree.freeze();
+                    treeNanos = System.nanoTime() - freezeStart;
+                    sendInt(frozenValues);
+                    break;
+
+                // Go back to reading the tree itself
+                case Protocol.THAW:
+                    if (rejectIfOverLimit(false)) {
+                        break;
+                    }
+                    binarySearchTree.thaw();
+                    sendStatus(Protocol.STATUS_OK);
+                    break;
+
+                // Several conditional operations applied atomically
+                case Protocol.BATCH:
+                    byte[] batchOperations = request.operations;
+                    int[] batchValues = request.values;
+                    if (rejectIfOverLimit(true)) {
+                        break;
+                    }
+
+                    int[] batchChanged = new int[batchValues.length];
+                    int batchResult;
+                    long batchStart = System.nanoTime();
+                    try {
+                        batchResult = binarySearchTree.applyBatch(batchOperations, batchValues, batchChanged);
+                    } catch (IllegalArgumentException e) {
+                        sendStatus(Protocol.STATUS_ERROR);
+                        break;
+                    }
+                    treeNanos = System.nanoTime() - batchStart;
+
+                    if (batchResult < 0) {
+                        sendStatusAndInt(Protocol.STATUS_CONDITION_FAILED, -1 - batchResult);
+                        break;
+                    }
+                    for (int i = 0; i < batchResult; i++) {
+                        invalidations.publish(batchChanged[i]);
+                    }
+                    sendInt(batchResult);
+                    break;
+
+                // Nearest value to a given one
+                case Protocol.FLOOR:
+                case Protocol.CEILING:
+                case Protocol.LOWER:
+                case Protocol.HIGHER:
+                case Protocol.MIN:
+                case Protocol.MAX:
+                    int neighborOf = request.value;
+                    if (rejectIfOverLimit(false)) {
+                        break;
+                    }
+                    long neighborStart = System.nanoTime();
+                    long neighbor = binarySearchTree.neighbor(choice, neighborOf);
+                    treeNanos = System.nanoTime() - neighborStart;
+                    if (neighbor == OrderedIntSet.NONE) {
+                        sendStatus(Protocol.STATUS_NOT_FOUND);
+                    } else {
+                        sendInt((int) neighbor);
+                    }
+                    break;
+
+                // Push invalidations to this client from now on
+                case Protocol.SUBSCRIBE:
+                    // Text replies are two objects, an invalidation could land between them
+                    if (!binaryMode) {
+                        sendStatus(Protocol.STATUS_ERROR);
+                        break;
+                    }
+                    if (invalidationQueue == null) {
+                        invalidationQueue = new int[config.invalidationQueue];
+                    }
+                    invalidations.subscribe(this);
+                    subscribed = true;
+                    sendStatus(Protocol.STATUS_OK);
+                    break;
+
+                // Send later requests to another namespace
+                case Protocol.USE_NAMESPACE:
+                    if (rejectIfOverLimit(false)) {
+                        break;
+                    }
+                    long useStart = System.nanoTime();
+                    useNamespace(request.name);
+                    treeNanos = System.nanoTime() - useStart;
+                    break;
+
+                // Map a long key to a value
+                case Protocol.KV_PUT:
+                    if (rejectIfOverLimit(true)) {
+                        break;
+                    }
+                    long putStart = System.nanoTime();
+                    boolean added = longStore.put(request.key, request.bytes);
+                    treeNanos = System.nanoTime() - putStart;
+                    sendStatus(added ? Protocol.STATUS_OK : Protocol.STATUS_ALREADY_PRESENT);
+                    break;
+
+                // Get the value of a long key
+                case Protocol.KV_GET:
+                    if (rejectIfOverLimit(false)) {
+                        break;
+                    }
+                    long getStart = System.nanoTime();
+                    byte[] value = longStore.get(request.key);
+                    treeNanos = System.nanoTime() - getStart;
+                    sendValue(value);
+                    break;
+
+                // Remove a long key
+                case Protocol.KV_DELETE:
+                    if (rejectIfOverLimit(true)) {
+                        break;
+                    }
+                    long deleteStart = System.nanoTime();
+                    boolean deleted = longStore.delete(request.key);
+                    treeNanos = System.nanoTime() - deleteStart;
+                    sendStatus(deleted ? Protocol.STATUS_OK : Protocol.STATUS_NOT_FOUND);
+                    break;
+
+                // Map a byte array key to a value
+                case Protocol.KV_PUT_BYTES:
+                    if (rejectIfOverLimit(true)) {
+                        break;
+                    }
+                    long putBytesStart = System.nanoTime();
+                    boolean bytesAdded = bytesStore.put(request.keyBytes, request.bytes);
+                    treeNanos = System.nanoTime() - putBytesStart;
+                    sendStatus(bytesAdded ? Protocol.STATUS_OK : Protocol.STATUS_ALREADY_PRESENT);
+                    break;
+
+                // Get the value of a byte array key
+                case Protocol.KV_GET_BYTES:
+                    if (rejectIfOverLimit(false)) {
+                        break;
+                    }
+                    long getBytesStart = System.nanoTime();
+                    byte[] bytesValue = bytesStore.get(request.keyBytes);
+                    treeNanos = System.nanoTime() - getBytesStart;
+                    sendValue(bytesValue);
+                    break;
+
+                // Remove a byte array key
+                case Protocol.KV_DELETE_BYTES:
+                    if (rejectIfOverLimit(true)) {
+                        break;
+                    }
+                    long deleteBytesStart = System.nanoTime();
+                    boolean bytesDeleted = bytesStore.delete(request.keyBytes);
+                    treeNanos = System.nanoTime() - deleteBytesStart;
+                    sendStatus(bytesDeleted ? Protocol.STATUS_OK : Protocol.STATUS_NOT_FOUND);
+                    break;
+
+                // Send exit signal indicating client wants to quit (NOTE: Inactive currently)
+                case Protocol.EXIT:
+                    sendData(Protocol.EXIT_SIGNAL);
+                    break;
+
+            }
+            return treeNanos;
+        }
+
+        /**
+         * Reads a byte array sent as an int length followed by the bytes.
+         *
+         * @param maxLength The longest array accepted.
+         * @return The bytes.
+         * @throws IOException if reading fails or the length is out of range, in which case the rest of the
+         *                     stream cannot be trusted and the connection is closed.
+         */
+        private byte[] readBytes(int maxLength) throws IOException {
+            int length = inputStream.readInt();
+            if (length < 0 || length > maxLength) {
+                throw new IOException("Invalid length " + length + ", the limit is " + maxLength);
+            }
+            byte[] bytes = new byte[length];
+            inputStream.readFully(bytes);
+            return bytes;
+        }
+
+        /**
+         * Reads an int array sent as an int count followed by the ints.
+         *
+         * @param maxLength The most ints accepted.
+         * @return The ints.
+         * @throws IOException if reading fails or the count is out of range, in which case the connection is
+         *                     closed.
+         */
+        private int[] readInts(int maxLength) throws IOException {
+            int length = inputStream.readInt();
+            if (length < 0 || length > maxLength) {
+                throw new IOException("Invalid count " + length + ", the limit is " + maxLength);
+            }
+            int[] ints = new int[length];
+            for (int i = 0; i < length; i++) {
+                ints[i] = inputStream.readInt();
+            }
+            return ints;
+        }
+
+        /**
+         * Checks the rate limits of this client for a request whose operands have already been read.
+         * If the client is over a limit the request is answered with a busy reply instead of being performed.
+         *
+         * @param write Whether the request modifies the tree.
+         * @return True if the request was turned away.
+         */
+        private boolean rejectIfOverLimit(boolean write) {
+            TokenBucket exceeded = null;
+            if (requestLimit != null && !requestLimit.tryAcquire()) {
+                exceeded = requestLimit;
+            } else if (write && writeLimit != null && !writeLimit.tryAcquire()) {
+                exceeded = writeLimit;
+            }
+            if (exceeded == null) {
+                return false;
+            }
+
+            metrics.requestRejected();
+            sendBusy(exceeded.millisUntilAvailable(), "Rate limit exceeded");
+            return true;
+        }
+
+        /**
+         * Tells the client its request was turned away: STATUS_BUSY and the wait in binary mode, a BST_BUSY
+         * message otherwise.
+         *
+         * @param retryAfter Suggested wait before retrying, in milliseconds.
+         * @param reason     Why, for the text message.
+         */
+        private void sendBusy(long retryAfter, String reason) {
+            if (binaryMode) {
+                try {
+                    synchronized (outputLock) {
+                        outputStream.writeInt(Protocol.STATUS_BUSY);
+                        outputStream.writeInt((int) Math.min(Integer.MAX_VALUE, retryAfter));
+                        outputStream.flush();
+                    }
+                } catch (IOException e) {
+                    log.log(AsyncLogger.Level.WARN, "Error writing status: {}", e);
+                }
+            } else {
+                sendData("BST_BUSY " + reason + ", retry after " + retryAfter + " ms");
+                sendConfirmationToClient();
+            }
+        }
+
+        /**
+         * Tells the client a bulk request was given up on because it ran past its deadline: STATUS_CANCELLED in
+         * binary mode, a message otherwise.
+         */
+        private void sendCancelled() {
+            lanes.recordCancelled();
+            if (binaryMode) {
+                sendStatus(Protocol.STATUS_CANCELLED);
+            } else {
+                sendData("BST_UPDATE Traversal cancelled, it ran past the server's time limit");
+                sendConfirmationToClient();
+            }
+        }
+
+        /**
+         * Turns away a client that was accepted while every handler thread was busy and the accept queue was full.
+         * Instead of the connection successful message the client gets the busy message with a suggested wait,
+         * then the connection is closed. Runs on the accepting thread, so it only waits briefly for the client.
+         */
+        private void rejectConnection() {
+            try {
+                // Consume the client's stream header so closing does not reset the connection before it reads
+                clientConnection.setSoTimeout(50);
+                try {
+                    clientConnection.getInputStream().readNBytes(4);
+                } catch (SocketTimeoutException e) {
+                    // The client has not sent its header yet, close anyway
                 }
 
+                ObjectOutputStream rejection = new ObjectOutputStream(clientConnection.getOutputStream());
+                rejection.writeObject(Protocol.BUSY_PREFIX + config.busyRetryMillis);
+                rejection.flush();
+                clientConnection.shutdownOutput();
+            } catch (IOException e) {
+                // The client is being turned away anyway
+            } finally {
+                try {
+                    clientConnection.close();
+                } catch (IOException e) {
+                    // Nothing left to do with a connection that fails to close
+                }
+            }
+            log.log(AsyncLogger.Level.WARN, "Server full, turned away connection {}", myConID, 0);
         }
 
         /**
@@ -314,7 +1278,14 @@ public class Server {
         private void sendConfirmationToClient() {
             try {
                 // Write confirmation message to client
-                outputStream.writeObject("SERVER>>> READY_FOR_NEXT_ACTION\n");
+                outputStream.writeObject(Protocol.READY_FOR_NEXT_ACTION);
+
+                // The stream keeps every string it sent so it can refer back to it; forget them now and then so a
+                // long text session does not hold all its replies, on this side or the client's
+                if (++repliesSinceReset == TEXT_REPLIES_PER_RESET) {
+                    outputStream.reset();
+                    repliesSinceReset = 0;
+                }
                 outputStream.flush();
             } catch (IOException e) {
                 e.printStackTrace();
@@ -323,17 +1294,262 @@ public class Server {
 
         /**
          * Sends the result of a binary search tree traversal to all connected clients.
+         * In binary mode the values are sent as a count followed by the ints, otherwise as a formatted message
+         * followed by the confirmation message.
          *
-         * @param traversalResult The result of the binary search tree traversal.
+         * @param traversalResult The result of the binary search tree traversal, null if it was cancelled.
          * @param traversalType   The type of traversal (e.g., In-order, Pre-order, Post-order).
          */
-        private void sendBSTTraversalToClients(List<Integer> traversalResult, String traversalType) {
+        private void sendBSTTraversalToClients(int[] traversalResult, String traversalType) {
+            if (traversalResult == null) {
+                sendCancelled();
+                return;
+            }
+
+            if (binaryMode) {
+                try {
+                    synchronized (outputLock) {
+                        outputStream.writeInt(Protocol.STATUS_OK);
+                        outputStream.writeInt(traversalResult.length);
+                        for (int value : traversalResult) {
+                            outputStream.writeInt(value);
+                        }
+                        outputStream.flush();
+                    }
+                } catch (IOException e) {
+                    log.log(AsyncLogger.Level.WARN, "Error writing traversal: {}", e);
+                }
+                return;
+            }
 
             // Format the traversal message that sends to client
-            String bstUpdate = String.format("BST_TRAVERSAL%s: %s", traversalType, traversalResult);
+            String bstUpdate = String.format("BST_TRAVERSAL%s: %s", traversalType, Arrays.toString(traversalResult));
 
             // Send the message to connected clients
             sendData(bstUpdate);
+
+            // Send message to client that confirms server is ready for another action
+            sendConfirmationToClient();
+        }
+
+        /**
+         * Sends a traversal in TraversalCodec's encoding: STATUS_OK, the number of values, the flags applied, the
+         * number of bytes and the bytes. The values are encoded before the output lock is taken.
+         *
+         * @param values The traversal.
+         * @param flags  The flags the client asked for, FLAG_CHUNKED only if the traversal was copied in chunks.
+         */
+        private void sendCompactTraversal(int[] values, int flags) {
+            byte[] encoded = TraversalCodec.encode(values);
+            int applied = 0;
+            if ((flags & TraversalCodec.FLAG_DEFLATE) != 0) {
+                encoded = TraversalCodec.deflate(encoded);
+                applied |= TraversalCodec.FLAG_DEFLATE;
+            }
+            applied |= flags & TraversalCodec.FLAG_CHUNKED;
+            try {
+                synchronized (outputLock) {
+                    outputStream.writeInt(Protocol.STATUS_OK);
+                    outputStream.writeInt(values.length);
+                    outputStream.writeInt(applied);
+                    outputStream.writeInt(encoded.length);
+                    outputStream.write(encoded);
+                    outputStream.flush();
+                }
+            } catch (IOException e) {
+                log.log(AsyncLogger.Level.WARN, "Error writing traversal: {}", e);
+            }
+        }
+
+        /**
+         * Sends changes since a version, or a snapshot in TraversalCodec's encoding.
+         *
+         * @param changes The changes or snapshot.
+         */
+        private void sendChanges(ChangeLog.Changes changes) {
+            byte[] encoded = changes.snapshot ? TraversalCodec.encode(changes.values) : null;
+            try {
+                synchronized (outputLock) {
+                    outputStream.writeInt(changes.snapshot ? Protocol.STATUS_SNAPSHOT : Protocol.STATUS_OK);
+                    outputStream.writeLong(changes.epoch);
+                    outputStream.writeLong(changes.version);
+                    outputStream.writeInt(changes.values.length);
+                    if (changes.snapshot) {
+                        outputStream.writeInt(encoded.length);
+                        outputStream.write(encoded);
+                    } else {
+                        for (int i = 0; i < changes.values.length; i++) {
+                            outputStream.writeByte(changes.operations[i]);
+                            outputStream.writeInt(changes.values[i]);
+                        }
+                    }
+                    outputStream.flush();
+                }
+            } catch (IOException e) {
+                log.log(AsyncLogger.Level.WARN, "Error writing changes: {}", e);
+            }
+        }
+
+        /**
+         * Sends a binary status reply to the connected client.
+         *
+         * @param status The status code from the Protocol class.
+         */
+        private void sendStatus(int status) {
+            try {
+                synchronized (outputLock) {
+                    outputStream.writeInt(status);
+                    outputStream.flush();
+                }
+            } catch (IOException e) {
+                log.log(AsyncLogger.Level.WARN, "Error writing status: {}", e);
+            }
+        }
+
+        /**
+         * Sends a key/value lookup result: STATUS_OK, the length and the bytes, or STATUS_NOT_FOUND.
+         *
+         * @param value The value, or null if the key was not found.
+         */
+        private void sendValue(byte[] value) {
+            if (value == null) {
+                sendStatus(Protocol.STATUS_NOT_FOUND);
+                return;
+            }
+            try {
+                synchronized (outputLock) {
+                    outputStream.writeInt(Protocol.STATUS_OK);
+                    outputStream.writeInt(value.length);
+                    outputStream.write(value);
+                    outputStream.flush();
+                }
+            } catch (IOException e) {
+                log.log(AsyncLogger.Level.WARN, "Error writing value: {}", e);
+            }
+        }
+
+        /**
+         * Selects the namespace later requests go to and replies with the status. A subscription moves with the
+         * client, and the namespace it leaves may be evicted once no other client uses it.
+         *
+         * @param name The name of the namespace, empty for the default one.
+         */
+        private void useNamespace(String name) {
+            TreeRegistry.Namespace next;
+            try {
+                next = namespaces.acquire(name);
+            } catch (IllegalArgumentException e) {
+                sendStatus(Protocol.STATUS_ERROR);
+                return;
+            } catch (IOException e) {
+                log.log(AsyncLogger.Level.WARN, "Could not load namespace: {}", e);
+                sendStatus(Protocol.STATUS_ERROR);
+                return;
+            }
+
+            if (subscribed) {
+                invalidations.unsubscribe(this);
+                next.invalidations().subscribe(this);
+            }
+            namespaces.release(namespace);
+            namespace = next;
+            binarySearchTree = next.tree();
+            invalidations = next.invalidations();
+            sendStatus(Protocol.STATUS_OK);
+        }
+
+        /**
+         * Sends STATUS_OK followed by an int, such as a count or a value found.
+         *
+         * @param value The int.
+         */
+        private void sendInt(int value) {
+            sendStatusAndInt(Protocol.STATUS_OK, value);
+        }
+
+        /**
+         * Sends a status followed by an int.
+         *
+         * @param status The status code.
+         * @param value  The int.
+         */
+        private void sendStatusAndInt(int status, int value) {
+            try {
+                synchronized (outputLock) {
+                    outputStream.writeInt(status);
+                    outputStream.writeInt(value);
+                    outputStream.flush();
+                }
+            } catch (IOException e) {
+                log.log(AsyncLogger.Level.WARN, "Error writing int: {}", e);
+            }
+        }
+
+        /**
+         * Sends a bitset: STATUS_OK, the number of longs, then the longs.
+         *
+         * @param bits The bitset.
+         */
+        private void sendBitset(long[] bits) {
+            try {
+                synchronized (outputLock) {
+                    outputStream.writeInt(Protocol.STATUS_OK);
+                    outputStream.writeInt(bits.length);
+                    for (long word : bits) {
+                        outputStream.writeLong(word);
+                    }
+                    outputStream.flush();
+                }
+            } catch (IOException e) {
+                log.log(AsyncLogger.Level.WARN, "Error writing bitset: {}", e);
+            }
+        }
+
+        /**
+         * Sends metrics to the connected client as a binary reply: the status, the number of entries, then each
+         * entry as a name and a value.
+         *
+         * @param stats The metrics to send.
+         */
+        private void sendStats(Map<String, Long> stats) {
+            try {
+                synchronized (outputLock) {
+                    outputStream.writeInt(Protocol.STATUS_OK);
+                    outputStream.writeInt(stats.size());
+                    for (Map.Entry<String, Long> entry : stats.entrySet()) {
+                        outputStream.writeUTF(entry.getKey());
+                        outputStream.writeLong(entry.getValue());
+                    }
+                    outputStream.flush();
+                }
+            } catch (IOException e) {
+                log.log(AsyncLogger.Level.WARN, "Error writing stats: {}", e);
+            }
+        }
+
+        /**
+         * Queues an invalidation for the connected client and wakes its sender thread. Called by whichever thread
+         * changed the tree, which never waits for this client's socket. When the queue is full the queued
+         * invalidations are replaced by a flush frame, which makes the client drop its whole near cache.
+         *
+         * @param value The value that was inserted or removed.
+         */
+        @Override
+        public void invalidate(int value) {
+            synchronized (invalidationLock) {
+                if (!invalidationsDropped) {
+                    if (invalidationCount == invalidationQueue.length) {
+                        invalidationsDropped = true;
+                        invalidationCount = 0;
+                        invalidationOverflows.increment();
+                    } else {
+                        invalidationQueue[(invalidationHead + invalidationCount) % invalidationQueue.length] = value;
+                        invalidationCount++;
+                    }
+                }
+                invalidationsPending = true;
+            }
+            wakeSender();
         }
 
         /**
@@ -352,7 +1568,7 @@ public class Server {
 
             } catch (IOException e) {
                 // Handle IOException if an error occurs while writing the object
-                System.out.println("Error writing object");
+                log.log(AsyncLogger.Level.WARN, "Error writing object: {}", e);
             }
         }
 
@@ -364,11 +1580,20 @@ public class Server {
         private void closeConnection() throws IOException {
 
             // Display the closing connection information
-            System.out.println("\nTerminating connection " + myConID + "\n");
-            System.out.println("\nNumber of connections = " + nClientsActive + "\n");
+            log.log(AsyncLogger.Level.INFO, "\nTerminating connection {}\n", myConID, 0);
+            log.log(AsyncLogger.Level.INFO, "\nNumber of connections = {}\n", metrics.getActiveConnections(), 0);
 
-            // Close the input/output streams and the client connection
+            // Close the output stream, then give the sender thread a while to write out the replies still waiting
             outputStream.close();
+            closing = true;
+            LockSupport.unpark(sender);
+            try {
+                sender.join(CLOSE_WAIT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            // Close the input stream and the client connection
             inputStream.close();
             clientConnection.close();
 
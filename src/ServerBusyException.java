@@ -0,0 +1,33 @@
+import java.io.IOException;
+
+/**
+ * The ServerBusyException class signals that the server turned a connection or request away because it is
+ * overloaded or the client went over its rate limit. The request may be retried after the suggested delay.
+ */
+public class ServerBusyException extends IOException {
+
+    /** Version of the serialized form */
+    private static final long serialVersionUID = 1L;
+
+    /** Suggested wait before retrying, in milliseconds */
+    private final long retryAfterMillis;
+
+    /**
+     * Constructor for ServerBusyException.
+     *
+     * @param retryAfterMillis Suggested wait before retrying, in milliseconds.
+     */
+    public ServerBusyException(long retryAfterMillis) {
+        super("Server busy, retry after " + retryAfterMillis + " ms");
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * Gets the suggested wait before retrying.
+     *
+     * @return The wait in milliseconds.
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
@@ -0,0 +1,373 @@
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * The ServerConfig class holds the settings of the server.
+ * Every setting has a default and can be changed with a system property of the form {@code -Dbst.name=value}
+ * or with a {@code name=value} argument to ServerMain, the argument taking precedence.
+ */
+public class ServerConfig {
+
+    /** Prefix of the system properties read by the server */
+    private static final String PROPERTY_PREFIX = "bst.";
+
+    /** Port on which server listens */
+    int port = Protocol.DEFAULT_PORT;
+
+    /** UDP port answering single-datagram searches, 0 to leave the UDP endpoint off */
+    int udpPort = 0;
+
+    /** Number of threads answering UDP searches */
+    int udpThreads = 1;
+
+    /** Number of threads handling client connections, each connected client occupies one */
+    int handlerThreads = 100;
+
+    /** Number of accepted clients that may wait for a handler thread before new clients are turned away */
+    int acceptQueue = 100;
+
+    /** Requests per second allowed on one connection, 0 for no limit */
+    double requestRateLimit = 0;
+
+    /** Inserts and removes per second allowed on one connection, 0 for no limit */
+    double writeRateLimit = 0;
+
+    /** Requests a connection may make in a burst above its rate limit */
+    int rateBurst = 100;
+
+    /** Suggested wait sent to clients that are turned away because the server is full */
+    int busyRetryMillis = 100;
+
+    /** Number of threads running searches and other requests that read one value or its neighbors */
+    int readThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    /** Number of connections whose point reads may wait for a read thread before more are turned away as busy */
+    int readQueue = 1024;
+
+    /** Number of threads running inserts, removes and other writes */
+    int writeThreads = 2;
+
+    /** Number of connections whose writes may wait for a write thread before more are turned away as busy */
+    int writeQueue = 1024;
+
+    /** Reply bytes a connection may have waiting for its socket before it stops reading requests */
+    int replyBufferBytes = 1 << 20;
+
+    /** Invalidations a subscribed connection may have waiting before it is told to clear its whole near cache */
+    int invalidationQueue = 1024;
+
+    /** Number of threads running traversals and other requests that walk the whole tree */
+    int bulkThreads = 2;
+
+    /** Number of whole-tree requests that may wait for a bulk thread before more are turned away as busy */
+    int bulkQueue = 8;
+
+    /** Milliseconds a whole-tree request may take before it is cancelled, 0 for no limit */
+    int bulkTimeoutMillis = 10_000;
+
+    /** Whether log records are printed by the calling thread or handed to a background thread */
+    AsyncLogger.Mode logMode = AsyncLogger.Mode.ASYNC;
+
+    /** Least severe level that is logged; per-request records are logged at DEBUG */
+    AsyncLogger.Level logLevel = AsyncLogger.Level.INFO;
+
+    /** Only one in this many per-request records is logged */
+    int logSampleRate = 1;
+
+    /** Number of records the asynchronous log buffer holds, rounded up to a power of two */
+    int logBufferSize = 8192;
+
+    /** File every request is recorded to for replay with TraceReplay, empty to not record */
+    String traceFile = "";
+
+    /** Number of requests the trace buffer holds before new ones are dropped, rounded up to a power of two */
+    int traceBufferSize = 1 << 16;
+
+    /** Structure the shared tree keeps its values in */
+    OrderedIntSet.Backend treeBackend = OrderedIntSet.Backend.AVL;
+
+    /** Most values per node of the B+ tree backend */
+    int treeFanout = 64;
+
+    /** Directory namespaces evicted from memory are written to */
+    String namespaceDirectory = "namespaces";
+
+    /** Estimated megabytes the named namespaces may use before unused ones are evicted, 0 for no limit */
+    int namespaceMemoryMegabytes = 0;
+
+    /** Number of recent changes each named namespace remembers for clients catching up */
+    int namespaceChangeLogSize = 1024;
+
+    /** Milliseconds without a change after which the tree is frozen for fast reads, 0 to only freeze on request */
+    int freezeIdleMillis = 0;
+
+    /** One in this many successful searches is sampled to promote hot values toward the root, 0 for a balanced tree */
+    int adaptiveSampleRate = 0;
+
+    /** Milliseconds between passes that promote the sampled values */
+    int adaptiveIntervalMillis = 100;
+
+    /** Milliseconds per tick of the timing wheel that expires values inserted with a time to live */
+    int ttlTickMillis = 10;
+
+    /** Most expired values removed under one hold of a tree's write lock */
+    int ttlBatch = 1024;
+
+    /** Whether inserts and removes lock the tree on the write lane threads or go through one writer thread */
+    SharedTree.WriteMode writeMode = SharedTree.WriteMode.LOCKED;
+
+    /** Number of commands the writer thread's ring buffer holds, rounded up to a power of two */
+    int sequencerRing = 1024;
+
+    /** Most commands the writer thread applies under one lock */
+    int sequencerBatch = 256;
+
+    /** Number of values the tree's Bloom filter is sized for, 0 to search without a filter */
+    int bloomExpected = 0;
+
+    /** False-positive rate of the Bloom filter once it holds bloomExpected values */
+    double bloomFalsePositiveRate = 0.01;
+
+    /** Number of recent changes remembered for clients catching up, 0 to always send snapshots */
+    int changeLogSize = 1 << 16;
+
+    /** Most values one multi-search request may ask for */
+    int multiSearchMax = 1 << 16;
+
+    /** Most operations one atomic batch may hold, all applied under one hold of the write lock */
+    int batchMax = 256;
+
+    /** Longest byte array key accepted by the key/value store */
+    int kvMaxKeyBytes = 1024;
+
+    /** Longest value accepted by the key/value store */
+    int kvMaxValueBytes = 1 << 20;
+
+    /**
+     * Loads the configuration from system properties and command-line arguments.
+     *
+     * @param args Command-line arguments in the form name=value.
+     * @return The configuration.
+     * @throws IllegalArgumentException if a setting is unknown or has an invalid value.
+     */
+    public static ServerConfig load(String[] args) {
+        Properties settings = new Properties();
+
+        // System properties first so the command line can override them
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith(PROPERTY_PREFIX)) {
+                settings.setProperty(name.substring(PROPERTY_PREFIX.length()), System.getProperty(name));
+            }
+        }
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals <= 0) {
+                throw new IllegalArgumentException("Expected name=value but got: " + arg);
+            }
+            settings.setProperty(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+
+        ServerConfig config = new ServerConfig();
+        for (String name : settings.stringPropertyNames()) {
+            config.set(name, settings.getProperty(name).trim());
+        }
+        return config;
+    }
+
+    /**
+     * Changes one setting.
+     *
+     * @param name  The name of the setting.
+     * @param value The new value.
+     * @throws IllegalArgumentException if the setting is unknown or the value is invalid.
+     */
+    void set(String name, String value) {
+        switch (name) {
+            case "port":
+                port = Integer.parseInt(value);
+                break;
+            case "udp.port":
+                udpPort = notNegative(name, Integer.parseInt(value));
+                break;
+            case "udp.threads":
+                udpThreads = positive(name, Integer.parseInt(value));
+                break;
+            case "handler.threads":
+                handlerThreads = positive(name, Integer.parseInt(value));
+                break;
+            case "accept.queue":
+                acceptQueue = notNegative(name, Integer.parseInt(value));
+                break;
+            case "rate.requests":
+                requestRateLimit = notNegative(name, Double.parseDouble(value));
+                break;
+            case "rate.writes":
+                writeRateLimit = notNegative(name, Double.parseDouble(value));
+                break;
+            case "rate.burst":
+                rateBurst = positive(name, Integer.parseInt(value));
+                break;
+            case "busy.retry.ms":
+                busyRetryMillis = positive(name, Integer.parseInt(value));
+                break;
+            case "lanes.read.threads":
+                readThreads = positive(name, Integer.parseInt(value));
+                break;
+            case "lanes.read.queue":
+                readQueue = notNegative(name, Integer.parseInt(value));
+                break;
+            case "lanes.write.threads":
+                writeThreads = positive(name, Integer.parseInt(value));
+                break;
+            case "lanes.write.queue":
+                writeQueue = notNegative(name, Integer.parseInt(value));
+                break;
+            case "reply.buffer.bytes":
+                replyBufferBytes = positive(name, Integer.parseInt(value));
+                break;
+            case "invalidation.queue":
+                invalidationQueue = positive(name, Integer.parseInt(value));
+                break;
+            case "lanes.bulk.threads":
+                bulkThreads = positive(name, Integer.parseInt(value));
+                break;
+            case "lanes.bulk.queue":
+                bulkQueue = notNegative(name, Integer.parseInt(value));
+                break;
+            case "lanes.bulk.timeout.ms":
+                bulkTimeoutMillis = notNegative(name, Integer.parseInt(value));
+                break;
+            case "log.mode":
+                logMode = AsyncLogger.Mode.valueOf(value.toUpperCase(Locale.ROOT));
+                break;
+            case "log.level":
+                logLevel = AsyncLogger.Level.valueOf(value.toUpperCase(Locale.ROOT));
+                break;
+            case "log.sample":
+                logSampleRate = positive(name, Integer.parseInt(value));
+                break;
+            case "log.buffer":
+                logBufferSize = positive(name, Integer.parseInt(value));
+                break;
+            case "trace.file":
+                traceFile = value;
+                break;
+            case "trace.buffer":
+                traceBufferSize = positive(name, Integer.parseInt(value));
+                break;
+            case "tree.backend":
+                treeBackend = OrderedIntSet.Backend.valueOf(value.toUpperCase(Locale.ROOT));
+                break;
+            case "tree.fanout":
+                treeFanout = Integer.parseInt(value);
+                if (treeFanout < BPlusTree.MIN_FANOUT) {
+                    throw new IllegalArgumentException(name + " must be at least " + BPlusTree.MIN_FANOUT);
+                }
+                break;
+            case "namespace.dir":
+                namespaceDirectory = value;
+                break;
+            case "namespace.memory.mb":
+                namespaceMemoryMegabytes = notNegative(name, Integer.parseInt(value));
+                break;
+            case "namespace.changelog.size":
+                namespaceChangeLogSize = notNegative(name, Integer.parseInt(value));
+                break;
+            case "freeze.idle.ms":
+                freezeIdleMillis = notNegative(name, Integer.parseInt(value));
+                break;
+            case "adaptive.sample":
+                adaptiveSampleRate = notNegative(name, Integer.parseInt(value));
+                break;
+            case "adaptive.interval.ms":
+                adaptiveIntervalMillis = positive(name, Integer.parseInt(value));
+                break;
+            case "ttl.tick.ms":
+                ttlTickMillis = positive(name, Integer.parseInt(value));
+                break;
+            case "ttl.batch":
+                ttlBatch = positive(name, Integer.parseInt(value));
+                break;
+            case "write.mode":
+                writeMode = SharedTree.WriteMode.valueOf(value.toUpperCase(Locale.ROOT));
+                break;
+            case "sequencer.ring":
+                sequencerRing = positive(name, Integer.parseInt(value));
+                break;
+            case "sequencer.batch":
+                sequencerBatch = positive(name, Integer.parseInt(value));
+                break;
+            case "bloom.expected":
+                bloomExpected = notNegative(name, Integer.parseInt(value));
+                break;
+            case "bloom.fpp":
+                bloomFalsePositiveRate = Double.parseDouble(value);
+                if (!(bloomFalsePositiveRate > 0 && bloomFalsePositiveRate < 1)) {
+                    throw new IllegalArgumentException(name + " must be between 0 and 1");
+                }
+                break;
+            case "changelog.size":
+                changeLogSize = notNegative(name, Integer.parseInt(value));
+                break;
+            case "multi.search.max":
+                multiSearchMax = positive(name, Integer.parseInt(value));
+                break;
+            case "batch.max":
+                batchMax = positive(name, Integer.parseInt(value));
+                break;
+            case "kv.max.key":
+                kvMaxKeyBytes = positive(name, Integer.parseInt(value));
+                break;
+            case "kv.max.value":
+                kvMaxValueBytes = notNegative(name, Integer.parseInt(value));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown setting: " + name);
+        }
+    }
+
+    /**
+     * Checks that a setting is not negative.
+     *
+     * @param name  The name of the setting, used in the error message.
+     * @param value The value to check.
+     * @return The value.
+     * @throws IllegalArgumentException if the value is negative.
+     */
+    private static int notNegative(String name, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException(name + " must not be negative");
+        }
+        return value;
+    }
+
+    /**
+     * Checks that a setting is not negative.
+     *
+     * @param name  The name of the setting, used in the error message.
+     * @param value The value to check.
+     * @return The value.
+     * @throws IllegalArgumentException if the value is negative.
+     */
+    private static double notNegative(String name, double value) {
+        if (value < 0) {
+            throw new IllegalArgumentException(name + " must not be negative");
+        }
+        return value;
+    }
+
+    /**
+     * Checks that a setting is positive.
+     *
+     * @param name  The name of the setting, used in the error message.
+     * @param value The value to check.
+     * @return The value.
+     * @throws IllegalArgumentException if the value is not positive.
+     */
+    private static int positive(String name, int value) {
+        if (value <= 0) {
+            throw new IllegalArgumentException(name + " must be positive");
+        }
+        return value;
+    }
+}
@@ -5,12 +5,22 @@ public class ServerMain {
     /**
      * The main method is the entry point. Creates the instance of the Server class and starts it.
      *
-     * @param args Command-line arguments which are not used in this.
+     * @param args Command-line settings in the form name=value, see ServerConfig.
      */
     public static void main(String[] args) {
 
+        // Read the settings from system properties and the command line
+        ServerConfig config;
+        try {
+            config = ServerConfig.load(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid setting: " + e.getMessage());
+            System.exit(2);
+            return;
+        }
+
         // Create and start the server instance, listening on the given port
-        Server server = new Server();
+        Server server = new Server(config);
         server.startServer();
 
     }
@@ -0,0 +1,299 @@
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * The ServerMetrics class collects counters and latency histograms for the server.
+ * Recording is meant for the request path: counters are striped LongAdders and every operation code has a set
+ * of preallocated histograms, one per stripe, picked by the recording thread. Nothing is allocated or locked
+ * while recording; the stripes are only merged when the metrics are read.
+ */
+public class ServerMetrics implements ServerStatsMXBean {
+
+    /** JMX name the metrics are registered under */
+    public static final String OBJECT_NAME = "BinarySearchTreeServer:type=Stats";
+
+    /** Number of histogram stripes per operation code, a power of two */
+    private static final int STRIPES = Math.min(8, Integer.highestOneBit(
+            Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1));
+
+    /** Requests handled for each operation code */
+    private final LongAdder[] requestCounts = new LongAdder[Protocol.OPCODE_SLOTS];
+
+    /** Request latency for each operation code, split into stripes */
+    private final LatencyHistogram[][] latencies = new LatencyHistogram[Protocol.OPCODE_SLOTS][STRIPES];
+
+    /** Bytes read from clients */
+    private final LongAdder bytesIn = new LongAdder();
+
+    /** Bytes written to clients */
+    private final LongAdder bytesOut = new LongAdder();
+
+    /** Time spent inside tree operations */
+    private final LongAdder treeNanos = new LongAdder();
+
+    /** Time spent handling requests outside tree operations */
+    private final LongAdder ioNanos = new LongAdder();
+
+    /** Number of connected clients */
+    private final AtomicInteger activeConnections = new AtomicInteger();
+
+    /** Number of clients that have connected */
+    private final LongAdder totalConnections = new LongAdder();
+
+    /** Clients turned away because the accept queue was full */
+    private final LongAdder rejectedConnections = new LongAdder();
+
+    /** Requests turned away because a connection went over its rate limit */
+    private final LongAdder rejectedRequests = new LongAdder();
+
+    /** Supplies the number of connections waiting for a handler thread */
+    private final IntSupplier queueDepth;
+
+    /**
+     * Constructor for ServerMetrics, allocates every counter and histogram up front.
+     *
+     * @param queueDepth Supplies the number of connections waiting for a handler thread.
+     */
+    public ServerMetrics(IntSupplier queueDepth) {
+        this.queueDepth = queueDepth;
+        for (int opcode = 0; opcode < Protocol.OPCODE_SLOTS; opcode++) {
+            requestCounts[opcode] = new LongAdder();
+            for (int stripe = 0; stripe < STRIPES; stripe++) {
+                latencies[opcode][stripe] = new LatencyHistogram();
+            }
+        }
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server so they can be read with JMX tools.
+     * A failure is reported but does not stop the server.
+     */
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            System.out.println("Could not register server metrics with JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Records a handled request.
+     *
+     * @param opcode     The operation code of the request.
+     * @param totalNanos Time from reading the operation code to flushing the reply.
+     * @param treeNanos  Part of that time spent inside tree operations.
+     */
+    public void recordRequest(int opcode, long totalNanos, long treeNanos) {
+        if (opcode < 0 || opcode >= Protocol.OPCODE_SLOTS) {
+            return;
+        }
+        requestCounts[opcode].increment();
+        latencies[opcode][stripe()].record(totalNanos);
+        this.treeNanos.add(treeNanos);
+        this.ioNanos.add(totalNanos - treeNanos);
+    }
+
+    /**
+     * Records a newly connected client.
+     */
+    public void connectionOpened() {
+        activeConnections.incrementAndGet();
+        totalConnections.increment();
+    }
+
+    /**
+     * Records a disconnected client.
+     */
+    public void connectionClosed() {
+        activeConnections.decrementAndGet();
+    }
+
+    /**
+     * Records a client turned away because the server was full.
+     */
+    public void connectionRejected() {
+        rejectedConnections.increment();
+    }
+
+    /**
+     * Records a request turned away because of a rate limit.
+     */
+    public void requestRejected() {
+        rejectedRequests.increment();
+    }
+
+    /**
+     * Wraps a socket input stream so the bytes read from it are counted.
+     *
+     * @param in The stream to wrap.
+     * @return The counting stream.
+     */
+    public InputStream countingInputStream(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    bytesIn.increment();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int n = super.read(buffer, offset, length);
+                if (n > 0) {
+                    bytesIn.add(n);
+                }
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Wraps a socket output stream so the bytes written to it are counted.
+     *
+     * @param out The stream to wrap.
+     * @return The counting stream.
+     */
+    public OutputStream countingOutputStream(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytesOut.increment();
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                // FilterOutputStream would write the bytes one at a time
+                out.write(buffer, offset, length);
+                bytesOut.add(length);
+            }
+        };
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    @Override
+    public long getTotalConnections() {
+        return totalConnections.sum();
+    }
+
+    @Override
+    public int getExecutorQueueDepth() {
+        return queueDepth.getAsInt();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getTreeTimeNanos() {
+        return treeNanos.sum();
+    }
+
+    @Override
+    public long getIoTimeNanos() {
+        return ioNanos.sum();
+    }
+
+    @Override
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        addStats(stats);
+        return stats;
+    }
+
+    /**
+     * Adds every metric to a map. Operations that have not been used are left out.
+     *
+     * @param stats The map to add the metrics to.
+     */
+    public void addStats(Map<String, Long> stats) {
+        stats.put("connections.active", (long) getActiveConnections());
+        stats.put("connections.total", getTotalConnections());
+        stats.put("connections.rejected", rejectedConnections.sum());
+        stats.put("requests.rejected", rejectedRequests.sum());
+        stats.put("executor.queue", (long) getExecutorQueueDepth());
+        stats.put("bytes.in", getBytesIn());
+        stats.put("bytes.out", getBytesOut());
+        stats.put("time.tree.nanos", getTreeTimeNanos());
+        stats.put("time.io.nanos", getIoTimeNanos());
+
+        ExecutionLanes.Lane[] lanes = ExecutionLanes.Lane.values();
+        LatencyHistogram[] laneLatencies = new LatencyHistogram[lanes.length];
+        for (int opcode = 0; opcode < Protocol.OPCODE_SLOTS; opcode++) {
+            long count = requestCounts[opcode].sum();
+            if (count == 0) {
+                continue;
+            }
+
+            // Merge the stripes of this operation into one histogram
+            LatencyHistogram merged = new LatencyHistogram();
+            for (LatencyHistogram stripe : latencies[opcode]) {
+                merged.add(stripe);
+            }
+            addLatencies(stats, "op." + Protocol.opcodeName(opcode) + ".", merged);
+
+            // And into the histogram of its lane
+            int lane = ExecutionLanes.laneOf(opcode).ordinal();
+            if (laneLatencies[lane] == null) {
+                laneLatencies[lane] = new LatencyHistogram();
+            }
+            laneLatencies[lane].add(merged);
+        }
+        for (ExecutionLanes.Lane lane : lanes) {
+            if (laneLatencies[lane.ordinal()] != null) {
+                addLatencies(stats, "lane." + lane.name().toLowerCase(Locale.ROOT) + ".",
+                        laneLatencies[lane.ordinal()]);
+            }
+        }
+    }
+
+    /**
+     * Adds the count and latency percentiles of a histogram to a map of metrics.
+     *
+     * @param stats     The map to add the metrics to.
+     * @param prefix    Prefix of the metric names.
+     * @param histogram The latencies.
+     */
+    private static void addLatencies(Map<String, Long> stats, String prefix, LatencyHistogram histogram) {
+        stats.put(prefix + "count", histogram.count());
+        stats.put(prefix + "p50.nanos", histogram.valueAtPercentile(50));
+        stats.put(prefix + "p99.nanos", histogram.valueAtPercentile(99));
+        stats.put(prefix + "p999.nanos", histogram.valueAtPercentile(99.9));
+        stats.put(prefix + "max.nanos", histogram.max());
+    }
+
+    /**
+     * Picks the histogram stripe for the current thread.
+     *
+     * @return The stripe index.
+     */
+    private static int stripe() {
+        return (int) Thread.currentThread().getId() & (STRIPES - 1);
+    }
+}
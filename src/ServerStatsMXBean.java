@@ -0,0 +1,64 @@
+import java.util.Map;
+
+/**
+ * The ServerStatsMXBean interface is the JMX view of the server's metrics.
+ * It is registered under the name {@code BinarySearchTreeServer:type=Stats}.
+ */
+public interface ServerStatsMXBean {
+
+    /**
+     * Gets the number of clients currently connected.
+     *
+     * @return The number of open connections.
+     */
+    int getActiveConnections();
+
+    /**
+     * Gets the number of clients that have connected since the server started.
+     *
+     * @return The number of accepted connections.
+     */
+    long getTotalConnections();
+
+    /**
+     * Gets the number of accepted connections waiting for a handler thread.
+     *
+     * @return The executor queue depth.
+     */
+    int getExecutorQueueDepth();
+
+    /**
+     * Gets the number of bytes read from clients.
+     *
+     * @return The bytes received.
+     */
+    long getBytesIn();
+
+    /**
+     * Gets the number of bytes written to clients.
+     *
+     * @return The bytes sent.
+     */
+    long getBytesOut();
+
+    /**
+     * Gets the total time requests spent inside tree operations.
+     *
+     * @return The time in nanoseconds.
+     */
+    long getTreeTimeNanos();
+
+    /**
+     * Gets the total time requests spent outside tree operations, reading operands and writing replies.
+     *
+     * @return The time in nanoseconds.
+     */
+    long getIoTimeNanos();
+
+    /**
+     * Gets every metric by name, including the request counts and latency percentiles of each operation.
+     *
+     * @return The metrics in a stable order.
+     */
+    Map<String, Long> getStats();
+}
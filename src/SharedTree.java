@@ -0,0 +1,952 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+
+/**
+ * The SharedTree class is the tree shared by every client handler.
+ * The values are kept in an OrderedIntSet, a BinarySearchTree or a BPlusTree depending on the configuration.
+ * <p>
+ * Searches are optimistic: they walk the tree without locking and only take the read lock if a write happened
+ * while they ran. Traversals hold the read lock. Inserts and removes either take the write lock on the calling
+ * thread, or in sequencer mode are handed to a MutationSequencer whose single writer thread applies them in
+ * batches, so the write lane threads never compete for the write lock.
+ * <p>
+ * During read-only stretches the tree can be frozen: its values are copied into a FrozenIndex, and searches and
+ * in-order traversals are answered from that copy without locking. The first insert or remove that changes the
+ * tree drops the copy again. The tree can be frozen on request, or automatically once no write has arrived for a
+ * configured time.
+ * <p>
+ * Values can be inserted with a time to live. Their deadlines are kept in a TimingWheel, and a background thread
+ * calls expireDue to remove the ones whose time is up, a batch at a time under the write lock, so requests never
+ * pay for expiry.
+ * <p>
+ * In adaptive mode searches that find their value record it, one in every few, in a small ring that is
+ * overwritten as it wraps. A background thread drains the ring now and then and promotes the values it saw toward
+ * the root, under the write lock so optimistic readers notice the restructuring and retry. Under skewed access the
+ * values searched for most often end up near the root and take fewer steps to find.
+ */
+public class SharedTree {
+
+    /** How inserts and removes reach the tree */
+    public enum WriteMode {
+        /** Each write lane thread takes the write lock itself */
+        LOCKED,
+        /** Write lane threads queue commands for one writer thread */
+        SEQUENCER
+    }
+
+    /** Most nodes an optimistic search visits before falling back to the read lock */
+    private static final int OPTIMISTIC_MAX_STEPS = 4096;
+
+    /** Values a chunked in-order traversal copies under one hold of the read lock */
+    private static final int TRAVERSAL_CHUNK = 4096;
+
+    /** Number of sampled searches the adaptive ring holds, a power of two */
+    private static final int ACCESS_RING = 4096;
+
+    /** Most values promoted under one hold of the write lock, so readers are not held up for long */
+    private static final int PROMOTE_BATCH = 64;
+
+    /** The tree itself, only changed while holding the write lock */
+    private final OrderedIntSet tree;
+
+    /** Guards the tree, its stamp also tells optimistic readers whether a write overlapped them */
+    private final StampedLock lock = new StampedLock();
+
+    /** Writer thread for inserts and removes, null in locked mode */
+    private final MutationSequencer sequencer;
+
+    /** Filter that answers definite misses before the tree is searched, null if disabled */
+    private final CountingBloomFilter filter;
+
+    /** Recent changes and the tree version, only touched while holding the lock */
+    private final ChangeLog changeLog;
+
+    /** Searches that had to retry under the read lock */
+    private final LongAdder optimisticFailures = new LongAdder();
+
+    /** Read-only copy of the values while the tree is frozen, null while it is being written */
+    private volatile FrozenIndex frozen;
+
+    /** When the tree was last changed, for freezing after a quiet period */
+    private volatile long lastWriteNanos = System.nanoTime();
+
+    /** Number of times the tree was frozen */
+    private final LongAdder freezes = new LongAdder();
+
+    /** Length of a tick of the expiry wheel */
+    private final long ttlTickNanos;
+
+    /** Deadlines of the values inserted with a time to live, created on first use, guarded by the write lock */
+    private TimingWheel expiry;
+
+    /** Number of values waiting to expire, so the expiry thread can skip trees without any */
+    private volatile int expiring;
+
+    /** Number of values removed because their time to live ran out */
+    private final LongAdder expired = new LongAdder();
+
+    /** Values recently found by searches, null unless adaptive mode is on; written without locking */
+    private volatile int[] accessSamples;
+
+    /** One in this many searches that find their value is recorded in accessSamples */
+    private int accessSampleRate;
+
+    /** Number of searches recorded so far, its low bits give the next slot in accessSamples */
+    private final AtomicInteger accessCursor = new AtomicInteger();
+
+    /**
+     * Constructor for SharedTree.
+     *
+     * @param tree          The structure the values are kept in. Values already in it are added to the filter.
+     * @param writeMode     How inserts and removes reach the tree.
+     * @param sequencerRing Number of commands the sequencer ring holds, used in sequencer mode.
+     * @param sequencerBatch Most commands the sequencer applies at once, used in sequencer mode.
+     * @param filter        Filter kept in step with the tree to answer misses, or null for none.
+     * @param changeLog     Log that records every change, for clients catching up.
+     * @param ttlTickMillis Resolution of time to live expiry; deadlines are rounded up to it.
+     */
+    public SharedTree(OrderedIntSet tree, WriteMode writeMode, int sequencerRing, int sequencerBatch,
+                      CountingBloomFilter filter, ChangeLog changeLog, int ttlTickMillis) {
+        this.tree = tree;
+        this.ttlTickNanos = ttlTickMillis * 1_000_000L;
+        if (filter != null) {
+            for (int value : tree.traversalValues(Protocol.IN_ORDER)) {
+                filter.add(value);
+            }
+        }
+        this.filter = filter;
+        this.changeLog = changeLog;
+        sequencer = writeMode == WriteMode.SEQUENCER
+                ? new MutationSequencer(this, sequencerRing, sequencerBatch) : null;
+    }
+
+    /**
+     * Creates the tree described by the server configuration.
+     *
+     * @param config The server configuration.
+     * @return The tree.
+     */
+    public static SharedTree create(ServerConfig config) {
+        CountingBloomFilter filter = config.bloomExpected > 0
+                ? new CountingBloomFilter(config.bloomExpected, config.bloomFalsePositiveRate) : null;
+        SharedTree tree = new SharedTree(OrderedIntSet.create(config.treeBackend, config.treeFanout),
+                config.writeMode, config.sequencerRing, config.sequencerBatch, filter,
+                new ChangeLog(config.changeLogSize), config.ttlTickMillis);
+        if (config.freezeIdleMillis > 0) {
+            tree.startAutoFreeze(config.freezeIdleMillis);
+        }
+        if (config.adaptiveSampleRate > 0 && config.treeBackend == OrderedIntSet.Backend.AVL) {
+            tree.startAdaptive(config.adaptiveSampleRate, config.adaptiveIntervalMillis);
+        }
+        return tree;
+    }
+
+    /**
+     * Freezes the tree: copies its values into a read-only index that searches and in-order traversals use until
+     * the next change. Does nothing if the tree is already frozen.
+     *
+     * @return The number of values frozen.
+     */
+    public int freeze() {
+        // The read lock keeps writers out while the values are copied
+        long stamp = lock.readLock();
+        try {
+            FrozenIndex index = frozen;
+            if (index == null) {
+                index = new FrozenIndex(tree.traversalValues(Protocol.IN_ORDER));
+                frozen = index;
+                freezes.increment();
+            }
+            return index.size();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Drops the read-only index, if any, so reads go to the tree again.
+     */
+    public void thaw() {
+        frozen = null;
+    }
+
+    /**
+     * Starts a daemon thread that freezes the tree once no change has been made for a while.
+     *
+     * @param idleMillis How long the tree must go unchanged before it is frozen.
+     */
+    private void startAutoFreeze(long idleMillis) {
+        Thread freezer = new Thread(() -> {
+            long idleNanos = idleMillis * 1_000_000L;
+            while (true) {
+                try {
+                    Thread.sleep(Math.max(1, idleMillis / 4));
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (frozen == null && System.nanoTime() - lastWriteNanos >= idleNanos) {
+                    freeze();
+                }
+            }
+        }, "tree-freezer");
+        freezer.setDaemon(true);
+        freezer.start();
+    }
+
+    /**
+     * Turns on adaptive mode: starts sampling the searches that find their value and a daemon thread that promotes
+     * the sampled values toward the root. Each interval the thread counts the samples taken since the last one and
+     * promotes every value seen, the most frequent last so it ends up highest. From then on the tree is shaped by
+     * the workload and is no longer AVL-balanced, see BinarySearchTree.promote.
+     *
+     * @param sampleRate     One in this many successful searches is sampled.
+     * @param intervalMillis How often the samples are drained and promoted.
+     * @return The thread, which stops when interrupted.
+     */
+    Thread startAdaptive(int sampleRate, long intervalMillis) {
+        accessSampleRate = sampleRate;
+        accessSamples = new int[ACCESS_RING];
+        Thread adjuster = new Thread(() -> {
+            int[] drained = new int[ACCESS_RING];
+            long[] counted = new long[ACCESS_RING];
+            int seen = accessCursor.get();
+            while (true) {
+                try {
+                    Thread.sleep(intervalMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                // Copy the samples taken since the last pass, or the newest ring's worth if it wrapped
+                int cursor = accessCursor.get();
+                int count = Math.min(cursor - seen, ACCESS_RING);
+                int[] samples = accessSamples;
+                for (int i = 0; i < count; i++) {
+                    drained[i] = samples[(cursor - count + i) & (ACCESS_RING - 1)];
+                }
+                seen = cursor;
+
+                // Count each value, packing the count above the value so sorting orders them coldest first
+                Arrays.sort(drained, 0, count);
+                int distinct = 0;
+                for (int i = 0; i < count; ) {
+                    int end = i + 1;
+                    while (end < count && drained[end] == drained[i]) {
+                        end++;
+                    }
+                    counted[distinct++] = (long) (end - i) << 32 | (drained[i] & 0xFFFFFFFFL);
+                    i = end;
+                }
+                Arrays.sort(counted, 0, distinct);
+
+                // Values sampled once are as likely cold as hot; skip them so they do not push the hot ones down
+                int first = 0;
+                while (first < distinct && counted[first] >>> 32 < 2) {
+                    first++;
+                }
+                promoteAll(counted, first, distinct);
+            }
+        }, "tree-adjuster");
+        adjuster.setDaemon(true);
+        adjuster.start();
+        return adjuster;
+    }
+
+    /**
+     * Promotes values toward the root, a batch at a time under the write lock. Promoting does not change which
+     * values are in the tree, so the change log, filter and frozen index are left alone.
+     *
+     * @param counted The values to promote in their low 32 bits, in the order to promote them.
+     * @param from    Index of the first value to promote.
+     * @param to      Index after the last value to promote.
+     */
+    private void promoteAll(long[] counted, int from, int to) {
+        for (int start = from; start < to; start += PROMOTE_BATCH) {
+            int end = Math.min(to, start + PROMOTE_BATCH);
+            long stamp = lock.writeLock();
+            try {
+                for (int i = start; i < end; i++) {
+                    tree.promote((int) counted[i]);
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    /**
+     * Records a value found by a search, in one in accessSampleRate calls, for the adaptive thread.
+     *
+     * @param samples The sample ring.
+     * @param value   The value found.
+     */
+    private void sampleAccess(int[] samples, int value) {
+        if (ThreadLocalRandom.current().nextInt(accessSampleRate) == 0) {
+            samples[accessCursor.getAndIncrement() & (ACCESS_RING - 1)] = value;
+        }
+    }
+
+    /**
+     * Inserts a value.
+     *
+     * @param value The value to insert.
+     * @return True if the value was added, false if it was already in the tree.
+     */
+    public boolean insert(int value) {
+        if (sequencer != null) {
+            return sequencer.submit(MutationSequencer.INSERT, value);
+        }
+        long stamp = lock.writeLock();
+        try {
+            return applyInsert(value);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes a value.
+     *
+     * @param value The value to remove.
+     * @return True if the value was removed, false if it was not in the tree.
+     */
+    public boolean remove(int value) {
+        if (sequencer != null) {
+            return sequencer.submit(MutationSequencer.REMOVE, value);
+        }
+        long stamp = lock.writeLock();
+        try {
+            return applyRemove(value);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Applies a batch of operations atomically under the write lock, in sequencer mode too. The operations are
+     * first checked in order against the tree as the earlier ones would leave it; only if every condition holds
+     * are the inserts and removes applied, so a failed batch changes nothing and leaves no trace in the change
+     * log.
+     *
+     * @param operations Protocol.BATCH_INSERT, BATCH_REMOVE, BATCH_REQUIRE_PRESENT or BATCH_REQUIRE_ABSENT.
+     * @param values     The value of each operation.
+     * @param changed    Receives the values actually inserted or removed, at least as long as values.
+     * @return The number of values changed, or -1 - i if the condition at index i did not hold.
+     * @throws IllegalArgumentException if an operation is unknown.
+     */
+    public int applyBatch(byte[] operations, int[] values, int[] changed) {
+        long stamp = lock.writeLock();
+        try {
+            // Values the batch has inserted or removed so far, overriding the tree while checking
+            Map<Integer, Boolean> pending = new HashMap<>();
+            for (int i = 0; i < operations.length; i++) {
+                Boolean overridden = pending.get(values[i]);
+                boolean present = overridden != null ? overridden : tree.search(values[i]);
+                switch (operations[i]) {
+                    case Protocol.BATCH_INSERT:
+                        pending.put(values[i], true);
+                        break;
+                    case Protocol.BATCH_REMOVE:
+                        pending.put(values[i], false);
+                        break;
+                    case Protocol.BATCH_REQUIRE_PRESENT:
+                        if (!present) {
+                            return -1 - i;
+                        }
+                        break;
+                    case Protocol.BATCH_REQUIRE_ABSENT:
+                        if (present) {
+                            return -1 - i;
+                        }
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown batch operation " + operations[i]);
+                }
+            }
+
+            int changedCount = 0;
+            for (int i = 0; i < operations.length; i++) {
+                boolean applied = operations[i] == Protocol.BATCH_INSERT ? applyInsert(values[i])
+                        : operations[i] == Protocol.BATCH_REMOVE && applyRemove(values[i]);
+                if (applied) {
+                    changed[changedCount++] = values[i];
+                }
+            }
+            return changedCount;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Inserts a value that expires after a time to live. If the value is already in the tree, its time to live
+     * is reset to this one. Always takes the write lock on the calling thread, in sequencer mode too: the
+     * sequencer's commands carry no deadline.
+     *
+     * @param value     The value to insert.
+     * @param ttlMillis Milliseconds until the value is removed, positive.
+     * @return True if the value was added, false if it was already in the tree.
+     */
+    public boolean insertWithTtl(int value, int ttlMillis) {
+        long deadline = System.nanoTime() + ttlMillis * 1_000_000L;
+        long stamp = lock.writeLock();
+        try {
+            boolean inserted = applyInsert(value);
+            if (expiry == null) {
+                expiry = new TimingWheel(ttlTickNanos, System.nanoTime());
+            }
+            expiry.schedule(value, deadline);
+            expiring = expiry.size();
+            return inserted;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes the values whose time to live has run out. The write lock is taken once per batch and released in
+     * between, so searches and writes waiting on it get in even when many values expire at once.
+     *
+     * @param nowNanos  The current System.nanoTime().
+     * @param batchSize Most values removed under one hold of the write lock.
+     * @param onExpired Told about each value removed, after the lock is released.
+     * @return The number of values removed.
+     */
+    public int expireDue(long nowNanos, int batchSize, IntConsumer onExpired) {
+        if (expiring == 0) {
+            return 0;
+        }
+        int[] due;
+        long stamp = lock.writeLock();
+        try {
+            due = expiry.advance(nowNanos);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+
+        int removedCount = 0;
+        for (int start = 0; start < due.length; start += batchSize) {
+            int end = Math.min(due.length, start + batchSize);
+            int removedInBatch = 0;
+            stamp = lock.writeLock();
+            try {
+                for (int i = start; i < end; i++) {
+                    // A value given a new time to live or removed since the wheel moved is left alone; the ones
+                    // actually removed are kept at the front of the batch
+                    if (expiry.takeDue(due[i]) && applyRemove(due[i])) {
+                        due[start + removedInBatch++] = due[i];
+                    }
+                }
+                expiring = expiry.size();
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+            for (int i = start; i < start + removedInBatch; i++) {
+                onExpired.accept(due[i]);
+            }
+            removedCount += removedInBatch;
+        }
+        expired.add(removedCount);
+        return removedCount;
+    }
+
+    /**
+     * Gets the values waiting to expire and their deadlines, for saving the tree.
+     *
+     * @return Pairs of a value and its deadline in System.currentTimeMillis() terms.
+     */
+    public long[] expiryDeadlines() {
+        long stamp = lock.readLock();
+        try {
+            if (expiry == null) {
+                return new long[0];
+            }
+            long[] pairs = new long[expiry.size() * 2];
+            long nanosToMillis = System.currentTimeMillis() * 1_000_000L - System.nanoTime();
+            int[] next = {0};
+            expiry.forEach((value, deadlineNanos) -> {
+                pairs[next[0]++] = value;
+                pairs[next[0]++] = (deadlineNanos + nanosToMillis) / 1_000_000L;
+            });
+            return pairs;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Gives values of a loaded tree their saved deadlines back. Deadlines already past expire on the next tick.
+     *
+     * @param pairs Pairs of a value and its deadline in System.currentTimeMillis() terms, as from
+     *              expiryDeadlines.
+     */
+    public void restoreDeadlines(long[] pairs) {
+        if (pairs.length == 0) {
+            return;
+        }
+        long nowNanos = System.nanoTime();
+        long nowMillis = System.currentTimeMillis();
+        long stamp = lock.writeLock();
+        try {
+            if (expiry == null) {
+                expiry = new TimingWheel(ttlTickNanos, nowNanos);
+            }
+            for (int i = 0; i < pairs.length; i += 2) {
+                expiry.schedule((int) pairs[i], nowNanos + (pairs[i + 1] - nowMillis) * 1_000_000L);
+            }
+            expiring = expiry.size();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Searches for a value, first without locking and again under the read lock if a write got in the way.
+     * If there is a filter, values it rules out are not searched for at all.
+     *
+     * @param value The value to search for.
+     * @return True if the value is in the tree.
+     */
+    public boolean search(int value) {
+        FrozenIndex index = frozen;
+        if (index != null) {
+            return index.contains(value);
+        }
+        if (filter != null && !filter.mightContain(value)) {
+            return false;
+        }
+        boolean found = searchTree(value);
+        if (!found && filter != null) {
+            filter.recordFalsePositive();
+        }
+        int[] samples = accessSamples;
+        if (found && samples != null) {
+            sampleAccess(samples, value);
+        }
+        return found;
+    }
+
+    /**
+     * Searches the tree itself for a value.
+     *
+     * @param value The value to search for.
+     * @return True if the value is in the tree.
+     */
+    private boolean searchTree(int value) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            int found = tree.searchBounded(value, OPTIMISTIC_MAX_STEPS);
+            if (found >= 0 && lock.validate(stamp)) {
+                return found == 1;
+            }
+        }
+
+        optimisticFailures.increment();
+        stamp = lock.readLock();
+        try {
+            return tree.search(value);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Searches for many values at once, in the frozen index if there is one and otherwise under the read lock.
+     *
+     * @param values The values to search for.
+     * @return A bitset with bit i set if values[i] is in the tree, packed 64 bits per long.
+     */
+    public long[] searchAll(int[] values) {
+        FrozenIndex index = frozen;
+        if (index != null) {
+            return index.searchAll(values);
+        }
+        long stamp = lock.readLock();
+        try {
+            return tree.searchAll(values);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Answers a neighbor query: Protocol.FLOOR, CEILING, LOWER, HIGHER, MIN or MAX. Each comes down to one floor
+     * or ceiling lookup, answered from the frozen index without locking if there is one, or from the tree under
+     * the read lock.
+     *
+     * @param query The query.
+     * @param value The value to look from, ignored by MIN and MAX.
+     * @return The value found, or OrderedIntSet.NONE if there is none.
+     * @throws IllegalArgumentException if the query is not a neighbor query.
+     */
+    public long neighbor(int query, int value) {
+        // Strictly below or above is at most or at least the next int over, unless there is none
+        boolean floor;
+        int from;
+        switch (query) {
+            case Protocol.FLOOR:
+                floor = true;
+                from = value;
+                break;
+            case Protocol.CEILING:
+                floor = false;
+                from = value;
+                break;
+            case Protocol.LOWER:
+                if (value == Integer.MIN_VALUE) {
+                    return OrderedIntSet.NONE;
+                }
+                floor = true;
+                from = value - 1;
+                break;
+            case Protocol.HIGHER:
+                if (value == Integer.MAX_VALUE) {
+                    return OrderedIntSet.NONE;
+                }
+                floor = false;
+                from = value + 1;
+                break;
+            case Protocol.MIN:
+                floor = false;
+                from = Integer.MIN_VALUE;
+                break;
+            case Protocol.MAX:
+                floor = true;
+                from = Integer.MAX_VALUE;
+                break;
+            default:
+                throw new IllegalArgumentException("Not a neighbor query: " + query);
+        }
+
+        FrozenIndex index = frozen;
+        if (index != null) {
+            return floor ? index.floor(from) : index.ceiling(from);
+        }
+        long stamp = lock.readLock();
+        try {
+            return floor ? tree.floor(from) : tree.ceiling(from);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Gets a traversal as an int array, copied from the frozen index for an in-order traversal of a frozen tree
+     * and otherwise walked under the read lock.
+     *
+     * @param order Protocol.IN_ORDER, Protocol.PRE_ORDER or Protocol.POST_ORDER.
+     * @return The values in the requested order.
+     */
+    public int[] traversalValues(int order) {
+        return traversalValues(order, OrderedIntSet.NOT_CANCELLED);
+    }
+
+    /**
+     * Gets a traversal as one consistent snapshot that can be abandoned part way. The tree is walked under one
+     * hold of the read lock, which is let go as soon as the traversal is cancelled, so writers only wait for the
+     * part that was copied.
+     *
+     * @param order     Protocol.IN_ORDER, Protocol.PRE_ORDER or Protocol.POST_ORDER.
+     * @param cancelled Checked every few thousand values; the traversal is abandoned once it returns true.
+     * @return The values in the requested order, or null if the traversal was abandoned.
+     */
+    public int[] traversalValues(int order, BooleanSupplier cancelled) {
+        FrozenIndex index = frozen;
+        if (index != null && order == Protocol.IN_ORDER) {
+            return index.sortedValues();
+        }
+        long stamp = lock.readLock();
+        try {
+            return tree.traversalValues(order, cancelled);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Gets an in-order traversal TRAVERSAL_CHUNK values at a time, each chunk under its own hold of the read lock
+     * and starting after the last value of the one before, so writers get in between chunks instead of waiting
+     * for the whole traversal. The values are in ascending order, but unlike traversalValues they are not one
+     * snapshot: a value inserted or removed while the traversal runs may or may not be in it.
+     *
+     * @param cancelled Checked before each chunk; the traversal is abandoned once it returns true.
+     * @return The values in ascending order, or null if the traversal was abandoned.
+     */
+    public int[] chunkedInOrderValues(BooleanSupplier cancelled) {
+        if (cancelled.getAsBoolean()) {
+            return null;
+        }
+        FrozenIndex index = frozen;
+        if (index != null) {
+            return index.sortedValues();
+        }
+
+        int[] chunk = new int[TRAVERSAL_CHUNK];
+        int[] values = new int[TRAVERSAL_CHUNK];
+        int count = 0;
+        long after = OrderedIntSet.NONE;
+        while (true) {
+            int copied;
+            long stamp = lock.readLock();
+            try {
+                copied = tree.valuesAfter(after, chunk);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+            if (count + copied > values.length) {
+                values = Arrays.copyOf(values, Math.max(values.length * 2, count + copied));
+            }
+            System.arraycopy(chunk, 0, values, count, copied);
+            count += copied;
+            if (copied < chunk.length) {
+                return Arrays.copyOf(values, count);
+            }
+            if (cancelled.getAsBoolean()) {
+                return null;
+            }
+            after = chunk[copied - 1];
+        }
+    }
+
+    /**
+     * Gets the changes after a version under the read lock.
+     * A snapshot is returned instead if some of the changes are no longer in the log, or if there are more
+     * changes than values in the tree so the snapshot is smaller.
+     *
+     * @param epoch The epoch the client's version belongs to, 0 for a client with no copy yet.
+     * @param since The version the client has, 0 for a client with no copy yet.
+     * @return The changes, or a snapshot in ascending order.
+     */
+    public ChangeLog.Changes changesSince(long epoch, long since) {
+        long stamp = lock.readLock();
+        try {
+            if (changeLog.covers(epoch, since) && changeLog.version() - since <= tree.size()) {
+                return changeLog.since(since);
+            }
+            return new ChangeLog.Changes(ChangeLog.EPOCH, changeLog.version(), true,
+                    tree.traversalValues(Protocol.IN_ORDER), null);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Gets a traversal together with the version of the tree it shows, under the read lock.
+     *
+     * @param order Protocol.IN_ORDER, Protocol.PRE_ORDER or Protocol.POST_ORDER.
+     * @return A snapshot holding the version and the values in the requested order.
+     */
+    public ChangeLog.Changes snapshot(int order) {
+        long stamp = lock.readLock();
+        try {
+            return new ChangeLog.Changes(ChangeLog.EPOCH, changeLog.version(), true, tree.traversalValues(order),
+                    null);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Gets the in-order traversal.
+     *
+     * @return The values in ascending order.
+     */
+    public List<Integer> inOrderTraversal() {
+        long stamp = lock.readLock();
+        try {
+            return tree.inOrderTraversal();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Gets the pre-order traversal.
+     *
+     * @return The values in pre-order.
+     */
+    public List<Integer> preOrderTraversal() {
+        long stamp = lock.readLock();
+        try {
+            return tree.preOrderTraversal();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Gets the post-order traversal.
+     *
+     * @return The values in post-order.
+     */
+    public List<Integer> postOrderTraversal() {
+        long stamp = lock.readLock();
+        try {
+            return tree.postOrderTraversal();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Gets the number of values in the tree.
+     *
+     * @return The number of values.
+     */
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return tree.size();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Adds the counters describing the shape of the tree and the number of values at each depth, as
+     * tree.depth.0, tree.depth.1 and so on. The depth counts walk the whole tree under the read lock.
+     *
+     * @param stats The map to add the counters to.
+     */
+    public void addTreeStats(Map<String, Long> stats) {
+        long stamp = lock.readLock();
+        try {
+            tree.addShapeStats(stats);
+            long[] depths = tree.depthHistogram();
+            for (int depth = 0; depth < depths.length; depth++) {
+                stats.put("tree.depth." + depth, depths[depth]);
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Gets the height of the tree.
+     *
+     * @return The height.
+     */
+    public int height() {
+        long stamp = lock.readLock();
+        try {
+            return tree.height();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Adds the tree's counters to a map of metrics.
+     *
+     * @param stats The map to add the counters to.
+     */
+    public void addStats(Map<String, Long> stats) {
+        stats.put("tree.search.locked", optimisticFailures.sum());
+        stats.put("tree.frozen", frozen != null ? 1L : 0L);
+        stats.put("tree.freezes", freezes.sum());
+        stats.put("ttl.pending", (long) expiring);
+        stats.put("ttl.expired", expired.sum());
+        stats.put("adaptive.samples", (long) accessCursor.get());
+        long stamp = lock.readLock();
+        try {
+            stats.put("tree.version", changeLog.version());
+            tree.addShapeStats(stats);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        if (sequencer != null) {
+            stats.put("sequencer.batches", sequencer.batchCount());
+            stats.put("sequencer.applied", sequencer.appliedCount());
+        }
+        if (filter != null) {
+            filter.addStats(stats);
+        }
+    }
+
+    /**
+     * Takes the write lock for a batch of commands. Used by the sequencer's writer thread.
+     *
+     * @return The stamp to pass to unlockBatch.
+     */
+    long lockForBatch() {
+        return lock.writeLock();
+    }
+
+    /**
+     * Releases the write lock taken by lockForBatch.
+     *
+     * @param stamp The stamp returned by lockForBatch.
+     */
+    void unlockBatch(long stamp) {
+        lock.unlockWrite(stamp);
+    }
+
+    /**
+     * Inserts a value, the caller must hold the write lock.
+     * The filter is updated before the lock is released, so a search that starts after the insert returns
+     * cannot be turned away by it.
+     *
+     * @param value The value to insert.
+     * @return True if the value was added.
+     */
+    boolean applyInsert(int value) {
+        // A frozen tree that already has the value stays frozen, anything else thaws it before it changes
+        FrozenIndex index = frozen;
+        if (index != null) {
+            if (index.contains(value)) {
+                return false;
+            }
+            frozen = null;
+        }
+        lastWriteNanos = System.nanoTime();
+
+        boolean inserted = tree.insert(value);
+        if (inserted) {
+            changeLog.append(Protocol.INSERT, value);
+            if (filter != null) {
+                filter.add(value);
+            }
+        }
+        return inserted;
+    }
+
+    /**
+     * Removes a value, the caller must hold the write lock.
+     *
+     * @param value The value to remove.
+     * @return True if the value was removed.
+     */
+    boolean applyRemove(int value) {
+        // A removed value no longer expires, even if it is inserted again later
+        if (expiry != null && expiry.cancel(value)) {
+            expiring = expiry.size();
+        }
+
+        // A frozen tree without the value stays frozen, anything else thaws it before it changes
+        FrozenIndex index = frozen;
+        if (index != null) {
+            if (!index.contains(value)) {
+                return false;
+            }
+            frozen = null;
+        }
+        lastWriteNanos = System.nanoTime();
+
+        boolean removed = tree.remove(value);
+        if (removed) {
+            changeLog.append(Protocol.REMOVE, value);
+            if (filter != null) {
+                filter.remove(value);
+            }
+        }
+        return removed;
+    }
+}
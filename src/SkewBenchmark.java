@@ -0,0 +1,206 @@
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The SkewBenchmark class is a command-line tool that compares searching a balanced tree with searching one in
+ * adaptive mode, when some keys are searched for far more often than others.
+ * <p>
+ * Each mode gets a tree holding every key in the range, built perfectly balanced from a pre-order of medians.
+ * Several threads then search it in the same process, each drawing keys from a Zipfian distribution, first for a
+ * warm-up period and then for the measured one. In adaptive mode the tree's adjuster thread promotes the sampled
+ * keys meanwhile. For each mode the tool prints the searches per second, the time per search, and the average
+ * depth of the keys searched for, measured afterwards on a fresh sample from the same distribution.
+ * <p>
+ * Usage: {@code java SkewBenchmark --keys=1000000 --threads=4 --duration=5 --zipf-theta=0.99 --sample=16}
+ */
+public class SkewBenchmark {
+
+    /** Keys drawn to measure the average depth of searched keys */
+    private static final int DEPTH_SAMPLE = 100_000;
+
+    /** Number of keys in the tree */
+    private int keys = 1_000_000;
+
+    /** Number of searching threads */
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    /** Seconds measured in each mode */
+    private int durationSeconds = 5;
+
+    /** Seconds of searching before each measurement, which in adaptive mode is also when the tree adapts */
+    private int warmupSeconds = 2;
+
+    /** Skew of the Zipfian key distribution */
+    private double zipfTheta = 0.99;
+
+    /** One in this many successful searches is sampled in adaptive mode */
+    private int sampleRate = 16;
+
+    /** Milliseconds between promotion passes in adaptive mode */
+    private int intervalMillis = 100;
+
+    /** Seed of the key generators, so both modes search the same keys */
+    private long seed = 42;
+
+    /** Set once the warm-up is over and searches are counted */
+    private volatile boolean measuring;
+
+    /** Set when the searching threads should stop */
+    private volatile boolean stopping;
+
+    /**
+     * The main method is the entry point. Runs both modes and prints the comparison.
+     *
+     * @param args Command-line options in the form --name=value.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        SkewBenchmark benchmark = new SkewBenchmark();
+        try {
+            benchmark.parseArguments(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+            return;
+        }
+        System.out.printf("%d keys, %d threads, zipf theta %.2f%n", benchmark.keys, benchmark.threads,
+                benchmark.zipfTheta);
+        benchmark.run(false);
+        benchmark.run(true);
+    }
+
+    /**
+     * Reads the command-line options.
+     *
+     * @param args Command-line options in the form --name=value.
+     * @throws IllegalArgumentException if an option is unknown or has an invalid value.
+     */
+    private void parseArguments(String[] args) {
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                throw new IllegalArgumentException("Expected --name=value but got: " + arg);
+            }
+            String name = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+
+            switch (name) {
+                case "keys":
+                    keys = Integer.parseInt(value);
+                    break;
+                case "threads":
+                    threads = Integer.parseInt(value);
+                    break;
+                case "duration":
+                    durationSeconds = Integer.parseInt(value);
+                    break;
+                case "warmup":
+                    warmupSeconds = Integer.parseInt(value);
+                    break;
+                case "zipf-theta":
+                    zipfTheta = Double.parseDouble(value);
+                    break;
+                case "sample":
+                    sampleRate = Integer.parseInt(value);
+                    break;
+                case "interval":
+                    intervalMillis = Integer.parseInt(value);
+                    break;
+                case "seed":
+                    seed = Long.parseLong(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + name);
+            }
+        }
+
+        if (keys <= 0 || threads <= 0 || durationSeconds <= 0 || warmupSeconds < 0 || sampleRate <= 0
+                || intervalMillis <= 0) {
+            throw new IllegalArgumentException("keys, threads, duration, sample and interval must be positive");
+        }
+    }
+
+    /**
+     * Builds a tree, searches it for the warm-up and measured periods and prints the results.
+     *
+     * @param adaptive Whether the tree runs in adaptive mode.
+     */
+    private void run(boolean adaptive) throws InterruptedException {
+        BinarySearchTree values = new BinarySearchTree();
+        int[] preOrder = new int[keys];
+        medians(preOrder, 0, 0, keys - 1);
+        values.rebuild(preOrder);
+        SharedTree tree = new SharedTree(values, SharedTree.WriteMode.LOCKED, 0, 0, null, new ChangeLog(0), 10);
+        Thread adjuster = adaptive ? tree.startAdaptive(sampleRate, intervalMillis) : null;
+
+        LongAdder searches = new LongAdder();
+        measuring = false;
+        stopping = false;
+        Thread[] searchers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            KeyGenerator generator = new KeyGenerator(KeyGenerator.Distribution.ZIPF, keys, zipfTheta, seed + i);
+            searchers[i] = new Thread(() -> {
+                long count = 0;
+                boolean counting = false;
+                while (!stopping) {
+                    // Check the phase every so often rather than on every search
+                    for (int j = 0; j < 1024; j++) {
+                        if (!tree.search(generator.nextKey())) {
+                            throw new IllegalStateException("Key missing from the tree");
+                        }
+                    }
+                    if (counting) {
+                        count += 1024;
+                    } else if (measuring) {
+                        counting = true;
+                    }
+                }
+                searches.add(count);
+            }, "searcher-" + i);
+            searchers[i].start();
+        }
+
+        Thread.sleep(warmupSeconds * 1000L);
+        measuring = true;
+        long start = System.nanoTime();
+        Thread.sleep(durationSeconds * 1000L);
+        stopping = true;
+        for (Thread searcher : searchers) {
+            searcher.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if (adjuster != null) {
+            adjuster.interrupt();
+            adjuster.join();
+        }
+
+        // Depth of the keys searched for, now that no thread is changing the tree
+        KeyGenerator generator = new KeyGenerator(KeyGenerator.Distribution.ZIPF, keys, zipfTheta, seed);
+        long depth = 0;
+        for (int i = 0; i < DEPTH_SAMPLE; i++) {
+            depth += values.depthOf(generator.nextKey());
+        }
+
+        double perSecond = searches.sum() / seconds;
+        System.out.printf(Locale.ROOT, "%-9s %,14.0f searches/s %8.1f ns/search %6.2f avg depth, height %d%n",
+                adaptive ? "adaptive" : "balanced", perSecond, threads * 1e9 / perSecond,
+                (double) depth / DEPTH_SAMPLE, values.height());
+    }
+
+    /**
+     * Lists a range of keys in the pre-order of the perfectly balanced tree over them, each range's median first.
+     *
+     * @param preOrder The array to fill.
+     * @param next     Index of the first free element.
+     * @param low      The smallest key of the range.
+     * @param high     The largest key of the range.
+     * @return Index of the first free element after the range.
+     */
+    private static int medians(int[] preOrder, int next, int low, int high) {
+        if (low > high) {
+            return next;
+        }
+        int middle = (low + high) >>> 1;
+        preOrder[next++] = middle;
+        next = medians(preOrder, next, low, middle - 1);
+        return medians(preOrder, next, middle + 1, high);
+    }
+}
@@ -0,0 +1,390 @@
+import java.util.Arrays;
+
+/**
+ * The TimingWheel class schedules values to expire at a deadline, for keys inserted with a time to live.
+ * <p>
+ * Time is cut into ticks. The wheel has four levels of 256 slots: level 0 holds values due within the current run
+ * of 256 ticks, one slot per tick, and each higher level holds values due further away, one slot per 256 slots of
+ * the level below. Scheduling appends the value to one slot, which is O(1) whatever the number of values. When the
+ * clock reaches the start of a higher level slot, its values are spread over the slots of the lower levels, so
+ * every value moves down at most three times before it expires.
+ * <p>
+ * The latest deadline of each value is also kept in a hash table. A value rescheduled or cancelled is not looked
+ * for in its slot; the old entry stays there and is skipped when its slot comes up because its deadline no longer
+ * matches the table. The wheel is not thread-safe, its owner must lock it.
+ */
+public class TimingWheel {
+
+    /** Receives scheduled values and their deadlines */
+    public interface Entry {
+        /**
+         * Receives a value.
+         *
+         * @param value         The value.
+         * @param deadlineNanos Its deadline, in System.nanoTime() terms.
+         */
+        void accept(int value, long deadlineNanos);
+    }
+
+    /** Bits of a tick number each level covers */
+    private static final int SLOT_BITS = 8;
+
+    /** Slots per level */
+    private static final int SLOTS = 1 << SLOT_BITS;
+
+    /** Number of levels */
+    private static final int LEVELS = 4;
+
+    /** Marks a free entry of the deadline table */
+    private static final long FREE = -1;
+
+    /**
+     * The values of one slot and the tick each is due at.
+     */
+    private static final class Bucket {
+        int[] values = new int[8];
+        long[] ticks = new long[8];
+        int count;
+
+        void add(int value, long tick) {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+                ticks = Arrays.copyOf(ticks, count * 2);
+            }
+            values[count] = value;
+            ticks[count] = tick;
+            count++;
+        }
+    }
+
+    /** Length of a tick */
+    private final long tickNanos;
+
+    /** Time of tick 0 */
+    private final long startNanos;
+
+    /** Slots of each level, created when first used */
+    private final Bucket[][] buckets = new Bucket[LEVELS][SLOTS];
+
+    /** Next tick to process, every deadline before it has fired */
+    private long currentTick;
+
+    /** Entries in the slots, including ones that were rescheduled or cancelled */
+    private long stored;
+
+    /** Values of the deadline table */
+    private int[] tableValues = new int[16];
+
+    /** Tick each value of the table is due at, FREE for an unused entry */
+    private long[] tableTicks = newTicks(16);
+
+    /** Number of values scheduled */
+    private int size;
+
+    /**
+     * Constructor for TimingWheel.
+     *
+     * @param tickNanos  Length of a tick; deadlines are rounded up to whole ticks.
+     * @param startNanos The current System.nanoTime().
+     */
+    public TimingWheel(long tickNanos, long startNanos) {
+        this.tickNanos = tickNanos;
+        this.startNanos = startNanos;
+    }
+
+    /**
+     * Schedules a value, replacing any deadline it had.
+     *
+     * @param value         The value.
+     * @param deadlineNanos When it expires, in System.nanoTime() terms.
+     */
+    public void schedule(int value, long deadlineNanos) {
+        long tick = Math.max(currentTick, ceilDiv(deadlineNanos - startNanos, tickNanos));
+        put(value, tick);
+        place(value, tick);
+    }
+
+    /**
+     * Cancels a value's deadline.
+     *
+     * @param value The value.
+     * @return True if the value was scheduled.
+     */
+    public boolean cancel(int value) {
+        return removeFromTable(value);
+    }
+
+    /**
+     * Gets the number of values scheduled.
+     *
+     * @return The number of values.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Passes every scheduled value and its deadline to a consumer.
+     *
+     * @param entry Receives the values.
+     */
+    public void forEach(Entry entry) {
+        for (int i = 0; i < tableTicks.length; i++) {
+            if (tableTicks[i] != FREE) {
+                entry.accept(tableValues[i], startNanos + tableTicks[i] * tickNanos);
+            }
+        }
+    }
+
+    /**
+     * Moves the clock forward and collects the values that are now due. They stay scheduled until takeDue takes
+     * them out, so the owner can release its lock in between and still notice values rescheduled or cancelled
+     * meanwhile.
+     *
+     * @param nowNanos The current System.nanoTime().
+     * @return The values due. Empty if none are.
+     */
+    public int[] advance(long nowNanos) {
+        long nowTick = Math.floorDiv(nowNanos - startNanos, tickNanos);
+        if (nowTick < currentTick) {
+            return new int[0];
+        }
+
+        // Nothing is scheduled, so only cancelled entries are left; drop them and jump ahead
+        if (size == 0) {
+            if (stored > 0) {
+                for (Bucket[] level : buckets) {
+                    for (Bucket bucket : level) {
+                        if (bucket != null) {
+                            bucket.count = 0;
+                        }
+                    }
+                }
+                stored = 0;
+            }
+            currentTick = nowTick + 1;
+            return new int[0];
+        }
+
+        int[] due = new int[0];
+        int count = 0;
+        for (; currentTick <= nowTick; currentTick++) {
+            int slot = (int) currentTick & (SLOTS - 1);
+            if (slot == 0) {
+                cascade(1);
+            }
+
+            Bucket bucket = buckets[0][slot];
+            if (bucket == null || bucket.count == 0) {
+                continue;
+            }
+            int entries = bucket.count;
+            bucket.count = 0;
+            stored -= entries;
+            for (int i = 0; i < entries; i++) {
+                int value = bucket.values[i];
+                long tick = bucket.ticks[i];
+
+                // Skip entries whose value was rescheduled or cancelled since
+                if (tableTick(value) != tick) {
+                    continue;
+                }
+                if (tick > currentTick) {
+                    place(value, tick);
+                    continue;
+                }
+                if (count == due.length) {
+                    due = Arrays.copyOf(due, Math.max(16, count * 2));
+                }
+                due[count++] = value;
+            }
+        }
+        return Arrays.copyOf(due, count);
+    }
+
+    /**
+     * Takes out a value that advance found due, unless it was rescheduled or cancelled since.
+     *
+     * @param value The value.
+     * @return True if the value was still due and is no longer scheduled.
+     */
+    public boolean takeDue(int value) {
+        long tick = tableTick(value);
+        if (tick == FREE || tick >= currentTick) {
+            return false;
+        }
+        return removeFromTable(value);
+    }
+
+    /**
+     * Spreads the slot of a level that starts at the current tick over the lower levels, after doing the same
+     * for the level above if its slot starts here too.
+     *
+     * @param level The level.
+     */
+    private void cascade(int level) {
+        if (level >= LEVELS) {
+            return;
+        }
+        int slot = (int) (currentTick >>> (SLOT_BITS * level)) & (SLOTS - 1);
+        if (slot == 0) {
+            cascade(level + 1);
+        }
+
+        Bucket bucket = buckets[level][slot];
+        if (bucket == null || bucket.count == 0) {
+            return;
+        }
+        int entries = bucket.count;
+        bucket.count = 0;
+        stored -= entries;
+        for (int i = 0; i < entries; i++) {
+            if (tableTick(bucket.values[i]) == bucket.ticks[i]) {
+                place(bucket.values[i], bucket.ticks[i]);
+            }
+        }
+    }
+
+    /**
+     * Puts an entry in the slot for its tick: the lowest level whose current run of slots includes the tick.
+     *
+     * @param value The value.
+     * @param tick  The tick it is due at, not before the current tick.
+     */
+    private void place(int value, long tick) {
+        int level = 0;
+        while (level < LEVELS - 1
+                && (tick >>> (SLOT_BITS * (level + 1))) != (currentTick >>> (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        int slot = (int) (tick >>> (SLOT_BITS * level)) & (SLOTS - 1);
+        Bucket bucket = buckets[level][slot];
+        if (bucket == null) {
+            bucket = new Bucket();
+            buckets[level][slot] = bucket;
+        }
+        bucket.add(value, tick);
+        stored++;
+    }
+
+    /**
+     * Divides rounding up.
+     *
+     * @param dividend The dividend.
+     * @param divisor  The divisor, positive.
+     * @return The quotient rounded towards positive infinity.
+     */
+    private static long ceilDiv(long dividend, long divisor) {
+        return -Math.floorDiv(-dividend, divisor);
+    }
+
+    /**
+     * Finds the table entry of a value, or the free entry where it would go.
+     *
+     * @param value The value.
+     * @return The index of the entry.
+     */
+    private int find(int value) {
+        int mask = tableTicks.length - 1;
+        int index = home(value);
+        while (tableTicks[index] != FREE && tableValues[index] != value) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    /**
+     * Gets the entry of the table a value is looked for first: the top bits of the value times the golden ratio.
+     *
+     * @param value The value.
+     * @return The index of the entry.
+     */
+    private int home(int value) {
+        return (value * 0x9E3779B9) >>> Integer.numberOfLeadingZeros(tableTicks.length - 1);
+    }
+
+    /**
+     * Gets the tick a value is due at.
+     *
+     * @param value The value.
+     * @return The tick, or FREE if the value is not scheduled.
+     */
+    private long tableTick(int value) {
+        return tableTicks[find(value)];
+    }
+
+    /**
+     * Records the tick a value is due at, growing the table past half full.
+     *
+     * @param value The value.
+     * @param tick  The tick.
+     */
+    private void put(int value, long tick) {
+        int index = find(value);
+        if (tableTicks[index] == FREE) {
+            if (++size * 2 > tableTicks.length) {
+                grow();
+                index = find(value);
+            }
+            tableValues[index] = value;
+        }
+        tableTicks[index] = tick;
+    }
+
+    /**
+     * Removes a value from the table, moving later entries of its probe run back so lookups still find them.
+     *
+     * @param value The value.
+     * @return True if the value was in the table.
+     */
+    private boolean removeFromTable(int value) {
+        int index = find(value);
+        if (tableTicks[index] == FREE) {
+            return false;
+        }
+        int mask = tableTicks.length - 1;
+        int free = index;
+        for (int next = (free + 1) & mask; tableTicks[next] != FREE; next = (next + 1) & mask) {
+            int home = home(tableValues[next]);
+
+            // Move the entry back unless its home lies after the free entry, within the run
+            if (((next - home) & mask) >= ((next - free) & mask)) {
+                tableValues[free] = tableValues[next];
+                tableTicks[free] = tableTicks[next];
+                free = next;
+            }
+        }
+        tableTicks[free] = FREE;
+        size--;
+        return true;
+    }
+
+    /**
+     * Doubles the table.
+     */
+    private void grow() {
+        int[] oldValues = tableValues;
+        long[] oldTicks = tableTicks;
+        tableValues = new int[oldValues.length * 2];
+        tableTicks = newTicks(oldTicks.length * 2);
+        for (int i = 0; i < oldTicks.length; i++) {
+            if (oldTicks[i] != FREE) {
+                int index = find(oldValues[i]);
+                tableValues[index] = oldValues[i];
+                tableTicks[index] = oldTicks[i];
+            }
+        }
+    }
+
+    /**
+     * Creates an array of free table entries.
+     *
+     * @param length The length.
+     * @return The array.
+     */
+    private static long[] newTicks(int length) {
+        long[] ticks = new long[length];
+        Arrays.fill(ticks, FREE);
+        return ticks;
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * The TokenBucket class limits how often something may happen.
+ * The bucket holds up to a burst of tokens and refills at a fixed rate; every allowed action takes one token.
+ * An instance is not thread safe, each client handler keeps its own buckets.
+ */
+public class TokenBucket {
+
+    /** Tokens added per nanosecond */
+    private final double tokensPerNano;
+
+    /** Most tokens the bucket can hold */
+    private final double capacity;
+
+    /** Tokens currently in the bucket */
+    private double tokens;
+
+    /** Time of the last refill, in System.nanoTime() terms */
+    private long lastRefill;
+
+    /**
+     * Constructor for TokenBucket, the bucket starts full.
+     *
+     * @param perSecond Tokens added per second, must be positive.
+     * @param burst     Most tokens the bucket can hold, at least one.
+     */
+    public TokenBucket(double perSecond, int burst) {
+        if (perSecond <= 0) {
+            throw new IllegalArgumentException("Rate must be positive");
+        }
+        this.tokensPerNano = perSecond / 1_000_000_000.0;
+        this.capacity = Math.max(1, burst);
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Takes a token if one is available.
+     *
+     * @return True if the action is allowed.
+     */
+    public boolean tryAcquire() {
+        refill();
+        if (tokens >= 1) {
+            tokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Gets how long until the next token is available.
+     *
+     * @return The wait in milliseconds, at least one.
+     */
+    public long millisUntilAvailable() {
+        refill();
+        double missing = Math.max(0, 1 - tokens);
+        return Math.max(1, (long) Math.ceil(missing / tokensPerNano / 1_000_000.0));
+    }
+
+    /**
+     * Adds the tokens earned since the last refill.
+     */
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+    }
+}
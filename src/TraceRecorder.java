@@ -0,0 +1,218 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The TraceRecorder class writes every request the server receives to a binary trace file, so a real workload can
+ * be replayed later with TraceReplay.
+ * <p>
+ * The file starts with a header of MAGIC, VERSION and the wall-clock time the trace started in milliseconds. Each
+ * request then takes RECORD_BYTES: the nanoseconds since the trace started as a long, the connection id as an int,
+ * the operation code as a byte and the request's value as an int, 0 for operations without a single value.
+ * <p>
+ * Like AsyncLogger, request threads only copy the four fields into a preallocated ring buffer and a background
+ * thread writes them out, so recording never waits on the disk and allocates nothing. When the buffer is full the
+ * record is dropped and counted. Records are written in the order their slots were claimed, which can differ
+ * slightly from timestamp order when several connections arrive at once.
+ */
+public class TraceRecorder {
+
+    /** First int of a trace file, "BSTR" */
+    static final int MAGIC = 0x42535452;
+
+    /** Format version written after the magic number */
+    static final int VERSION = 1;
+
+    /** Size of one request in the file */
+    static final int RECORD_BYTES = 17;
+
+    /** Nanoseconds the background thread sleeps when there is nothing to write */
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /** The trace file */
+    private final DataOutputStream out;
+
+    /** System.nanoTime when the trace started, timestamps are relative to it */
+    private final long startNanos;
+
+    /** Ring buffer size minus one, the size is a power of two */
+    private final int mask;
+
+    /** Sequence number of the record stored in each slot, set last to publish the record */
+    private final AtomicLongArray published;
+
+    /** Timestamp of each slot */
+    private final long[] times;
+
+    /** Connection id of each slot */
+    private final int[] connections;
+
+    /** Operation code of each slot */
+    private final byte[] opcodes;
+
+    /** Value of each slot */
+    private final int[] values;
+
+    /** Next sequence number to claim */
+    private final AtomicLong tail = new AtomicLong();
+
+    /** Next sequence number to write, only written by the background thread */
+    private volatile long head;
+
+    /** Records dropped because the buffer was full */
+    private final LongAdder dropped = new LongAdder();
+
+    /** Set once the file is closed, after which records are dropped */
+    private volatile boolean closed;
+
+    /**
+     * Constructor for TraceRecorder. Creates the file, writes the header, starts the background thread and
+     * registers a shutdown hook that writes whatever is left in the buffer.
+     *
+     * @param file       The trace file, replaced if it exists.
+     * @param bufferSize Number of records the buffer holds, rounded up to a power of two.
+     * @throws IOException if the file cannot be created.
+     */
+    public TraceRecorder(Path file, int bufferSize) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(System.currentTimeMillis());
+        startNanos = System.nanoTime();
+
+        int capacity = Integer.highestOneBit(Math.max(2, bufferSize) * 2 - 1);
+        mask = capacity - 1;
+        published = new AtomicLongArray(capacity);
+        times = new long[capacity];
+        connections = new int[capacity];
+        opcodes = new byte[capacity];
+        values = new int[capacity];
+
+        // Mark every slot as empty, sequence numbers start at zero
+        for (int i = 0; i < capacity; i++) {
+            published.set(i, -1);
+        }
+
+        Thread writer = new Thread(this::drainLoop, "trace-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "trace-flush"));
+    }
+
+    /**
+     * Records a request.
+     *
+     * @param requestNanos System.nanoTime when the request arrived.
+     * @param connection   Id of the connection it came in on.
+     * @param opcode       Its operation code.
+     * @param value        Its value, or 0 if it has none.
+     */
+    public void record(long requestNanos, int connection, int opcode, int value) {
+        // Claim a sequence number, giving up if the background thread has not freed its slot yet
+        long sequence;
+        do {
+            sequence = tail.get();
+            if (sequence - head > mask) {
+                dropped.increment();
+                return;
+            }
+        } while (!tail.compareAndSet(sequence, sequence + 1));
+
+        int slot = (int) sequence & mask;
+        times[slot] = requestNanos - startNanos;
+        connections[slot] = connection;
+        opcodes[slot] = (byte) opcode;
+        values[slot] = value;
+
+        // Publishing the sequence number makes the fields above visible to the background thread
+        published.lazySet(slot, sequence);
+    }
+
+    /**
+     * Gets the number of records written to the file.
+     *
+     * @return The number of records written.
+     */
+    public long recordedCount() {
+        return head;
+    }
+
+    /**
+     * Gets the number of records dropped because the buffer was full.
+     *
+     * @return The number of dropped records.
+     */
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Writes what is left in the buffer and closes the file. Records made after this are lost.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        drain();
+        closed = true;
+        try {
+            out.close();
+        } catch (IOException e) {
+            System.err.println("Could not close trace file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes records as they are published, parking briefly whenever the buffer is empty.
+     */
+    private void drainLoop() {
+        while (!closed) {
+            if (drain() == 0) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Writes every record published so far.
+     *
+     * @return The number of records written.
+     */
+    private synchronized int drain() {
+        if (closed) {
+            return 0;
+        }
+        int written = 0;
+        long next = head;
+        try {
+            while (true) {
+                int slot = (int) next & mask;
+                if (published.get(slot) != next) {
+                    break;
+                }
+                out.writeLong(times[slot]);
+                out.writeInt(connections[slot]);
+                out.writeByte(opcodes[slot]);
+                out.writeInt(values[slot]);
+                next++;
+                head = next;
+                written++;
+            }
+            if (written > 0) {
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Give up on the file, later records fill the buffer and are counted as dropped
+            System.err.println("Could not write trace: " + e.getMessage());
+            closed = true;
+        }
+        return written;
+    }
+}
@@ -0,0 +1,536 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The TraceReplay class is a command-line tool that plays a trace recorded by the server (see TraceRecorder)
+ * against a running Server, so a real workload can be repeated to measure a change.
+ * <p>
+ * Each recorded connection is played by its own connection, which sends that connection's requests in their
+ * recorded order, each at its recorded time divided by the speed, and waits for each reply as the original client
+ * did. The same trace therefore always produces the same requests in the same order on every connection. Latency
+ * is measured from the scheduled time, so a server that falls behind shows up as queueing delay rather than a
+ * slower replay. With a speed of 0 requests are sent back to back and latency is measured from the send.
+ * <p>
+ * Copies plays every recorded connection that many times at once, for N times the recorded load. Replies are read
+ * in binary mode whatever mode the recorded client used. Operations the trace does not hold enough of to rebuild,
+ * such as multi-searches, batches and key/value requests, are skipped and counted. Inserts with a time to live are
+ * sent with the ttl option's time to live, since the trace does not record it.
+ * <p>
+ * Usage: {@code java TraceReplay --trace=requests.trace --speed=1 --copies=1}
+ * <br>
+ * Options: trace (the file), host, port, speed (1 for recorded speed, 2 for twice as fast, 0 for as fast as
+ * possible), copies and ttl (milliseconds).
+ */
+public class TraceReplay {
+
+    /** Host of the server */
+    private String host = "localhost";
+
+    /** Port of the server */
+    private int port = Protocol.DEFAULT_PORT;
+
+    /** The trace file */
+    private String traceFile;
+
+    /** Recorded time is divided by this, 0 to send without waiting */
+    private double speed = 1;
+
+    /** Number of connections that play each recorded connection */
+    private int copies = 1;
+
+    /** Time to live sent with inserts that had one */
+    private int ttlMillis = 1000;
+
+    /** Time of the first request in the trace, played at the start so time the server sat idle is skipped */
+    private long origin = Long.MAX_VALUE;
+
+    /** Latencies of each operation */
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Protocol.OPCODE_SLOTS];
+
+    /** Requests skipped because the trace cannot rebuild them, by operation code */
+    private final AtomicLongArray skipped = new AtomicLongArray(Protocol.OPCODE_SLOTS);
+
+    /** Requests the server turned away as busy */
+    private final LongAdder busy = new LongAdder();
+
+    /** Connections that failed */
+    private final LongAdder errors = new LongAdder();
+
+    /**
+     * The main method is the entry point. Reads the options and the trace, replays it and prints the report.
+     *
+     * @param args Command-line options in the form --name=value.
+     */
+    public static void main(String[] args) {
+        TraceReplay replay = new TraceReplay();
+        try {
+            replay.parseArguments(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+            return;
+        }
+
+        List<RecordedConnection> recorded;
+        try {
+            recorded = readTrace(replay.traceFile);
+        } catch (IOException e) {
+            System.err.println("Could not read trace: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        replay.run(recorded);
+    }
+
+    /**
+     * Constructor for TraceReplay.
+     */
+    public TraceReplay() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Reads the command-line options.
+     *
+     * @param args Command-line options in the form --name=value.
+     * @throws IllegalArgumentException if an option is unknown or has an invalid value.
+     */
+    private void parseArguments(String[] args) {
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                throw new IllegalArgumentException("Expected --name=value but got: " + arg);
+            }
+            String name = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+
+            switch (name) {
+                case "trace":
+                    traceFile = value;
+                    break;
+                case "host":
+                    host = value;
+                    break;
+                case "port":
+                    port = Integer.parseInt(value);
+                    break;
+                case "speed":
+                    speed = Double.parseDouble(value);
+                    break;
+                case "copies":
+                    copies = Integer.parseInt(value);
+                    break;
+                case "ttl":
+                    ttlMillis = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + name);
+            }
+        }
+
+        if (traceFile == null) {
+            throw new IllegalArgumentException("The trace option is required");
+        }
+        if (speed < 0 || copies <= 0 || ttlMillis <= 0) {
+            throw new IllegalArgumentException("speed must not be negative, copies and ttl must be positive");
+        }
+    }
+
+    /**
+     * Reads a trace file and splits it by connection.
+     *
+     * @param file The trace file.
+     * @return The requests of each recorded connection, in the order the connections first appear.
+     * @throws IOException if the file cannot be read or is not a trace.
+     */
+    static List<RecordedConnection> readTrace(String file) throws IOException {
+        Map<Integer, RecordedConnection> connections = new LinkedHashMap<>();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(Paths.get(file)), 1 << 16))) {
+            if (in.readInt() != TraceRecorder.MAGIC) {
+                throw new IOException("Not a trace file: " + file);
+            }
+            int version = in.readInt();
+            if (version != TraceRecorder.VERSION) {
+                throw new IOException("Unsupported trace version " + version);
+            }
+            in.readLong();
+
+            while (true) {
+                long time;
+                try {
+                    time = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                int connection = in.readInt();
+                byte opcode = in.readByte();
+                int value = in.readInt();
+                connections.computeIfAbsent(connection, id -> new RecordedConnection())
+                        .add(time, opcode, value);
+            }
+        }
+        return new ArrayList<>(connections.values());
+    }
+
+    /**
+     * Connects, plays every recorded connection and prints the report.
+     *
+     * @param recorded The recorded connections.
+     */
+    private void run(List<RecordedConnection> recorded) {
+        long requests = 0;
+        long last = 0;
+        for (RecordedConnection connection : recorded) {
+            requests += connection.size;
+            if (connection.size > 0) {
+                origin = Math.min(origin, connection.times[0]);
+                last = Math.max(last, connection.times[connection.size - 1]);
+            }
+        }
+        long span = requests == 0 ? 0 : last - origin;
+        System.out.printf("Replaying %d requests on %d connections x %d copies, recorded over %.1fs, at %s%n",
+                requests, recorded.size(), copies, span / 1e9, speed == 0 ? "full speed" : speed + "x");
+
+        List<Player> players = new ArrayList<>();
+        try {
+            for (RecordedConnection connection : recorded) {
+                for (int copy = 0; copy < copies; copy++) {
+                    players.add(new Player(connection));
+                }
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            System.err.println("Could not connect to " + host + ":" + port + ": " + e.getMessage());
+            for (Player player : players) {
+                player.close();
+            }
+            return;
+        }
+
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(200);
+        for (Player player : players) {
+            player.start(start);
+        }
+        for (Player player : players) {
+            player.join();
+        }
+        printReport((System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Prints throughput and latency percentiles for every operation replayed.
+     *
+     * @param seconds How long the replay took.
+     */
+    private void printReport(double seconds) {
+        System.out.printf("%n%-12s %10s %12s %10s %10s %10s %10s%n",
+                "operation", "count", "ops/s", "p50(us)", "p99(us)", "p99.9(us)", "max(us)");
+
+        LatencyHistogram all = new LatencyHistogram();
+        for (int opcode = 0; opcode < histograms.length; opcode++) {
+            LatencyHistogram histogram = histograms[opcode];
+            if (histogram.count() == 0) {
+                continue;
+            }
+            all.add(histogram);
+            printRow(Protocol.opcodeName(opcode), histogram, seconds);
+        }
+        printRow("all", all, seconds);
+        System.out.printf("Replay took %.2fs%n", seconds);
+
+        for (int opcode = 0; opcode < Protocol.OPCODE_SLOTS; opcode++) {
+            if (skipped.get(opcode) > 0) {
+                System.out.println("Skipped " + skipped.get(opcode) + " " + Protocol.opcodeName(opcode) + " requests");
+            }
+        }
+        if (busy.sum() > 0) {
+            System.out.println("Turned away as busy: " + busy.sum());
+        }
+        if (errors.sum() > 0) {
+            System.out.println("Failed connections: " + errors.sum());
+        }
+    }
+
+    /**
+     * Prints one line of the report.
+     *
+     * @param name      The name of the row.
+     * @param histogram The latencies of the row.
+     * @param seconds   How long the replay took.
+     */
+    private void printRow(String name, LatencyHistogram histogram, double seconds) {
+        System.out.printf("%-12s %10d %12.1f %10.1f %10.1f %10.1f %10.1f%n",
+                name,
+                histogram.count(),
+                histogram.count() / seconds,
+                histogram.valueAtPercentile(50) / 1000.0,
+                histogram.valueAtPercentile(99) / 1000.0,
+                histogram.valueAtPercentile(99.9) / 1000.0,
+                histogram.max() / 1000.0);
+    }
+
+    /**
+     * The requests of one recorded connection, in the order they arrived.
+     */
+    static class RecordedConnection {
+
+        /** Nanoseconds from the start of the trace to each request */
+        long[] times = new long[64];
+
+        /** Operation code of each request */
+        byte[] opcodes = new byte[64];
+
+        /** Value of each request */
+        int[] values = new int[64];
+
+        /** Number of requests */
+        int size;
+
+        /**
+         * Adds a request.
+         *
+         * @param time   Nanoseconds from the start of the trace.
+         * @param opcode The operation code.
+         * @param value  The value.
+         */
+        void add(long time, byte opcode, int value) {
+            if (size == times.length) {
+                times = Arrays.copyOf(times, size * 2);
+                opcodes = Arrays.copyOf(opcodes, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            times[size] = time;
+            opcodes[size] = opcode;
+            values[size] = value;
+            size++;
+        }
+    }
+
+    /**
+     * Plays one recorded connection over its own connection to the server, on its own thread.
+     */
+    private class Player {
+
+        /** The requests to play */
+        private final RecordedConnection recorded;
+
+        /** Connection to the server */
+        private final Socket socket;
+
+        /** Output stream to the server */
+        private final ObjectOutputStream outputStream;
+
+        /** Input stream from the server */
+        private final ObjectInputStream inputStream;
+
+        /** Thread sending the requests */
+        private Thread thread;
+
+        /**
+         * Constructor for Player. Connects and switches the connection to binary replies.
+         *
+         * @param recorded The requests to play.
+         * @throws IOException if the connection fails.
+         */
+        Player(RecordedConnection recorded) throws IOException, ClassNotFoundException {
+            this.recorded = recorded;
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            outputStream = new ObjectOutputStream(socket.getOutputStream());
+            outputStream.flush();
+            inputStream = new ObjectInputStream(socket.getInputStream());
+            inputStream.readObject();
+
+            outputStream.writeInt(Protocol.BINARY_MODE);
+            outputStream.flush();
+            inputStream.readInt();
+        }
+
+        /**
+         * Starts playing.
+         *
+         * @param start System.nanoTime the trace's first request is played at.
+         */
+        void start(long start) {
+            thread = new Thread(() -> play(start), "replay");
+            thread.start();
+        }
+
+        /**
+         * Waits for the player to finish, then closes its connection.
+         */
+        void join() {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            close();
+        }
+
+        /**
+         * Closes the connection.
+         */
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing left to do with a connection that will not close
+            }
+        }
+
+        /**
+         * Sends each request at its scheduled time and waits for its reply.
+         *
+         * @param start System.nanoTime the trace's first request is played at.
+         */
+        private void play(long start) {
+            try {
+                for (int i = 0; i < recorded.size; i++) {
+                    int opcode = recorded.opcodes[i];
+                    if (!canReplay(opcode)) {
+                        if (opcode != Protocol.BINARY_MODE) {
+                            skipped.incrementAndGet(opcode);
+                        }
+                        continue;
+                    }
+
+                    long scheduled = start + (speed == 0 ? 0 : (long) ((recorded.times[i] - origin) / speed));
+                    long now;
+                    while ((now = System.nanoTime()) < scheduled) {
+                        LockSupport.parkNanos(scheduled - now);
+                    }
+
+                    send(opcode, recorded.values[i]);
+                    readReply(opcode);
+                    histograms[opcode].record(System.nanoTime() - (speed == 0 ? now : scheduled));
+                }
+            } catch (IOException e) {
+                errors.increment();
+                System.err.println("Replay failed: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Writes a request.
+         *
+         * @param opcode The operation code.
+         * @param value  The recorded value.
+         * @throws IOException if writing fails.
+         */
+        private void send(int opcode, int value) throws IOException {
+            outputStream.writeInt(opcode);
+            switch (opcode) {
+                case Protocol.INSERT:
+                case Protocol.REMOVE:
+                case Protocol.SEARCH:
+                case Protocol.FLOOR:
+                case Protocol.CEILING:
+                case Protocol.LOWER:
+                case Protocol.HIGHER:
+                    outputStream.writeInt(value);
+                    break;
+                case Protocol.INSERT_TTL:
+                    outputStream.writeInt(value);
+                    outputStream.writeInt(ttlMillis);
+                    break;
+                default:
+                    break;
+            }
+            outputStream.flush();
+        }
+
+        /**
+         * Reads the binary reply to a request.
+         *
+         * @param opcode The operation code of the request.
+         * @throws IOException if reading fails.
+         */
+        private void readReply(int opcode) throws IOException {
+            int status = inputStream.readInt();
+            if (status == Protocol.STATUS_BUSY) {
+                inputStream.readInt();
+                busy.increment();
+                return;
+            }
+            if (status != Protocol.STATUS_OK) {
+                return;
+            }
+            switch (opcode) {
+                case Protocol.IN_ORDER:
+                case Protocol.PRE_ORDER:
+                case Protocol.POST_ORDER:
+                    for (int count = inputStream.readInt(); count > 0; count--) {
+                        inputStream.readInt();
+                    }
+                    break;
+                case Protocol.STATS:
+                case Protocol.TREE_STATS:
+                    for (int count = inputStream.readInt(); count > 0; count--) {
+                        inputStream.readUTF();
+                        inputStream.readLong();
+                    }
+                    break;
+                case Protocol.FREEZE:
+                case Protocol.FLOOR:
+                case Protocol.CEILING:
+                case Protocol.LOWER:
+                case Protocol.HIGHER:
+                case Protocol.MIN:
+                case Protocol.MAX:
+                    inputStream.readInt();
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Checks whether a recorded operation can be rebuilt from its operation code and value.
+     *
+     * @param opcode The operation code.
+     * @return True if the request can be replayed.
+     */
+    private static boolean canReplay(int opcode) {
+        switch (opcode) {
+            case Protocol.INSERT:
+            case Protocol.INSERT_TTL:
+            case Protocol.REMOVE:
+            case Protocol.SEARCH:
+            case Protocol.IN_ORDER:
+            case Protocol.PRE_ORDER:
+            case Protocol.POST_ORDER:
+            case Protocol.STATS:
+            case Protocol.TREE_STATS:
+            case Protocol.FREEZE:
+            case Protocol.THAW:
+            case Protocol.FLOOR:
+            case Protocol.CEILING:
+            case Protocol.LOWER:
+            case Protocol.HIGHER:
+            case Protocol.MIN:
+            case Protocol.MAX:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The TraversalCodec class packs traversal results into a compact binary form.
+ * <p>
+ * Each value is stored as its difference from the previous value, zig-zag encoded so small negative differences
+ * stay small, and written as a varint of 7 bits per byte. An in-order traversal is sorted, so its differences are
+ * small and most values take one or two bytes instead of the four of an int or the ten or more of decimal text.
+ * Pre-order and post-order results jump around more; for those the encoded bytes can additionally be compressed
+ * with Deflate, which finds the repetition that plain deltas miss.
+ */
+public final class TraversalCodec {
+
+    /** Flag: the encoded bytes are Deflate compressed */
+    public static final int FLAG_DEFLATE = 1;
+
+    /** Flag: the in-order traversal was copied in chunks rather than as one snapshot of the tree */
+    public static final int FLAG_CHUNKED = 2;
+
+    /** Most bytes one value can take, a zig-zag encoded 33-bit difference needs five */
+    private static final int MAX_VARINT_BYTES = 5;
+
+    /**
+     * Private constructor, the class only has static methods.
+     */
+    private TraversalCodec() {
+    }
+
+    /**
+     * Encodes values as zig-zag varint differences.
+     *
+     * @param values The values.
+     * @return The encoded bytes.
+     */
+    public static byte[] encode(int[] values) {
+        byte[] out = new byte[values.length * MAX_VARINT_BYTES];
+        int position = 0;
+        long previous = 0;
+        for (int value : values) {
+            long delta = value - previous;
+            previous = value;
+
+            // Zig-zag: 0, -1, 1, -2, 2 ... become 0, 1, 2, 3, 4 ...
+            long zigZag = (delta << 1) ^ (delta >> 63);
+            while ((zigZag & ~0x7FL) != 0) {
+                out[position++] = (byte) ((zigZag & 0x7F) | 0x80);
+                zigZag >>>= 7;
+            }
+            out[position++] = (byte) zigZag;
+        }
+        return Arrays.copyOf(out, position);
+    }
+
+    /**
+     * Decodes values written by encode.
+     *
+     * @param bytes  The encoded bytes.
+     * @param length Number of encoded bytes to read.
+     * @param count  Number of values encoded.
+     * @return The values.
+     * @throws IOException if the bytes end before every value was read.
+     */
+    public static int[] decode(byte[] bytes, int length, int count) throws IOException {
+        return new Decoder(bytes, length, count).decodeAll();
+    }
+
+    /**
+     * Decodes encoded values a chunk at a time, so a large traversal can be shown while it is still being decoded.
+     */
+    public static final class Decoder {
+        /** The encoded bytes */
+        private final byte[] bytes;
+
+        /** Number of encoded bytes */
+        private final int length;
+
+        /** Number of values encoded */
+        private final int count;
+
+        /** Position of the next byte to read */
+        private int position;
+
+        /** Number of values decoded so far */
+        private int decoded;
+
+        /** Last value decoded, the next difference is added to it */
+        private long previous;
+
+        /**
+         * Constructor for Decoder.
+         *
+         * @param bytes  The encoded bytes.
+         * @param length Number of encoded bytes.
+         * @param count  Number of values encoded.
+         */
+        public Decoder(byte[] bytes, int length, int count) {
+            this.bytes = bytes;
+            this.length = length;
+            this.count = count;
+        }
+
+        /**
+         * Gets the number of values encoded.
+         *
+         * @return The number of values.
+         */
+        public int count() {
+            return count;
+        }
+
+        /**
+         * Gets the number of values not decoded yet.
+         *
+         * @return The number of values left.
+         */
+        public int remaining() {
+            return count - decoded;
+        }
+
+        /**
+         * Decodes the next values.
+         *
+         * @param out    Array to decode into.
+         * @param offset First index of out to fill.
+         * @param max    Most values to decode.
+         * @return Number of values decoded, 0 once every value has been decoded.
+         * @throws IOException if the bytes end before every value was read.
+         */
+        public int next(int[] out, int offset, int max) throws IOException {
+            int n = Math.min(max, remaining());
+            for (int i = 0; i < n; i++) {
+                long zigZag = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    if (position >= length) {
+                        throw new IOException("Traversal data ended after " + decoded + " of " + count + " values");
+                    }
+                    b = bytes[position++];
+                    zigZag |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+
+                previous += (zigZag >>> 1) ^ -(zigZag & 1);
+                out[offset + i] = (int) previous;
+                decoded++;
+            }
+            return n;
+        }
+
+        /**
+         * Decodes every value not decoded yet.
+         *
+         * @return The values.
+         * @throws IOException if the bytes end before every value was read.
+         */
+        public int[] decodeAll() throws IOException {
+            int[] values = new int[remaining()];
+            next(values, 0, values.length);
+            return values;
+        }
+    }
+
+    /**
+     * Compresses encoded bytes with Deflate, favouring speed over size.
+     *
+     * @param bytes The bytes.
+     * @return The compressed bytes.
+     */
+    public static byte[] deflate(byte[] bytes) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            byte[] out = new byte[bytes.length + bytes.length / 1000 + 64];
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                length += deflater.deflate(out, length, out.length - length);
+            }
+            return Arrays.copyOf(out, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompresses bytes written by deflate.
+     *
+     * @param bytes The compressed bytes.
+     * @param count Number of values encoded, used to size the output.
+     * @return The encoded bytes.
+     * @throws IOException if the bytes are not valid Deflate data.
+     */
+    public static byte[] inflate(byte[] bytes, int count) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes);
+            byte[] out = new byte[Math.max(64, count * 2)];
+            int length = 0;
+            while (!inflater.finished()) {
+                if (length == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                int inflated = inflater.inflate(out, length, out.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated compressed traversal");
+                }
+                length += inflated;
+            }
+            return Arrays.copyOf(out, length);
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed traversal", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
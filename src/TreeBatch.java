@@ -0,0 +1,104 @@
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
+/**
+ * The TreeBatch class collects operations for BSTClient.apply, which has the server run them atomically.
+ * <p>
+ * Conditions and changes can be mixed in any order. Each condition is checked against the tree as the operations
+ * before it leave it, and the inserts and removes are only made if every condition holds. Moving a key from a to
+ * b, for example, is requirePresent(a), requireAbsent(b), remove(a), insert(b): no other client can see a and b
+ * both present or both absent, and if either condition fails nothing changes.
+ */
+public class TreeBatch {
+
+    /** The operation codes, Protocol.BATCH_INSERT and so on */
+    private byte[] operations = new byte[8];
+
+    /** The value of each operation */
+    private int[] values = new int[8];
+
+    /** Number of operations added */
+    private int size;
+
+    /**
+     * Adds an insert of a value, which does nothing if the value is already in the tree.
+     *
+     * @param value The value.
+     * @return This batch.
+     */
+    public TreeBatch insert(int value) {
+        return add(Protocol.BATCH_INSERT, value);
+    }
+
+    /**
+     * Adds a remove of a value, which does nothing if the value is not in the tree.
+     *
+     * @param value The value.
+     * @return This batch.
+     */
+    public TreeBatch remove(int value) {
+        return add(Protocol.BATCH_REMOVE, value);
+    }
+
+    /**
+     * Adds a condition that a value is in the tree.
+     *
+     * @param value The value.
+     * @return This batch.
+     */
+    public TreeBatch requirePresent(int value) {
+        return add(Protocol.BATCH_REQUIRE_PRESENT, value);
+    }
+
+    /**
+     * Adds a condition that a value is not in the tree.
+     *
+     * @param value The value.
+     * @return This batch.
+     */
+    public TreeBatch requireAbsent(int value) {
+        return add(Protocol.BATCH_REQUIRE_ABSENT, value);
+    }
+
+    /**
+     * Gets the number of operations in the batch.
+     *
+     * @return The number of operations.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Writes the operand of a BATCH request: the number of operations, then each operation and its value.
+     *
+     * @param outputStream The stream to write to.
+     * @throws IOException if writing fails.
+     */
+    void write(ObjectOutputStream outputStream) throws IOException {
+        outputStream.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            outputStream.writeByte(operations[i]);
+            outputStream.writeInt(values[i]);
+        }
+    }
+
+    /**
+     * Adds an operation.
+     *
+     * @param operation The operation code.
+     * @param value     The value.
+     * @return This batch.
+     */
+    private TreeBatch add(byte operation, int value) {
+        if (size == operations.length) {
+            operations = Arrays.copyOf(operations, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        operations[size] = operation;
+        values[size] = value;
+        size++;
+        return this;
+    }
+}
@@ -0,0 +1,524 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * The TreeRegistry class holds the named trees a server hosts, so each tenant gets its own keyspace and lock.
+ * <p>
+ * The default namespace, named by the empty string, is the server's main tree and is always in memory. Other
+ * namespaces are created empty the first time a connection selects them. Each has its own SharedTree and its own
+ * invalidation subscribers. A namespace is in use while at least one connection has it selected.
+ * <p>
+ * Namespaces no connection is using are kept in least recently used order. When the estimated memory of the
+ * loaded namespaces goes over the budget, the coldest unused ones are written to snapshot files and dropped. The
+ * next connection to select one loads it back, with the same shape and version. Namespaces in use are never
+ * evicted, so the budget can be exceeded while many are busy.
+ * <p>
+ * Snapshot files are read and written outside the registry's lock, so a slow disk only holds up the connections
+ * selecting the namespace being loaded. While a namespace is loading, other connections selecting it wait for it.
+ * While one is being written out, connections selecting it use it right away, and the eviction is called off once
+ * the file is written.
+ * Named namespaces always take the write lock on the calling thread and have no Bloom filter. A writer thread or a
+ * filter sized for the main tree, for each of hundreds of mostly idle namespaces, would cost more than it saves.
+ * <p>
+ * One expiry thread serves every namespace in memory: each tick it removes the values whose time to live ran out
+ * and tells the namespace's subscribers. The deadlines of an evicted namespace are saved with it, and values that
+ * expired while it was on disk are removed on the first tick after it is loaded.
+ */
+public class TreeRegistry {
+
+    /** Name of the default namespace */
+    public static final String DEFAULT = "";
+
+    /** Allowed namespace names, which are also used as file names */
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_-][A-Za-z0-9._-]{0,63}");
+
+    /** Marks a snapshot file */
+    private static final int SNAPSHOT_MAGIC = 0x42535432;
+
+    /** Marks a snapshot file written before deadlines were saved */
+    private static final int SNAPSHOT_MAGIC_NO_DEADLINES = 0x42535431;
+
+    /** Where a namespace is between its snapshot file and memory */
+    private enum State {
+        /** Its tree is being created or read from its snapshot file */
+        LOADING,
+        /** Its tree is in memory */
+        READY,
+        /** Its tree is in memory and being written to its snapshot file */
+        EVICTING,
+        /** Its snapshot file could not be read, it is no longer in the registry */
+        FAILED
+    }
+
+    /**
+     * A namespace: a tree and the connections subscribed to its changes.
+     */
+    public static final class Namespace {
+        private final String name;
+        private final InvalidationBroadcaster invalidations = new InvalidationBroadcaster();
+        private SharedTree tree;            // Set once loaded, guarded by the registry until then
+        private State state;                // Guarded by the registry
+        private int users;                  // Connections that selected this namespace, guarded by the registry
+        private boolean reacquired;         // Selected again while being evicted, guarded by the registry
+        private IOException loadFailure;    // Why loading failed, guarded by the registry
+
+        Namespace(String name, SharedTree tree) {
+            this.name = name;
+            this.tree = tree;
+            this.state = State.READY;
+        }
+
+        Namespace(String name) {
+            this.name = name;
+            this.state = State.LOADING;
+        }
+
+        /**
+         * Gets the name of the namespace.
+         *
+         * @return The name, empty for the default namespace.
+         */
+        public String name() {
+            return name;
+        }
+
+        /**
+         * Gets the namespace's tree.
+         *
+         * @return The tree.
+         */
+        public SharedTree tree() {
+            return tree;
+        }
+
+        /**
+         * Gets the connections subscribed to the namespace's changes.
+         *
+         * @return The broadcaster.
+         */
+        public InvalidationBroadcaster invalidations() {
+            return invalidations;
+        }
+    }
+
+    /** The server's main tree */
+    private final Namespace defaultNamespace;
+
+    /** Named namespaces in memory, least recently selected first */
+    private final LinkedHashMap<String, Namespace> loaded = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** Server settings */
+    private final ServerConfig config;
+
+    /** Directory evicted namespaces are written to */
+    private final Path directory;
+
+    /** Estimated bytes the named namespaces may use before unused ones are evicted, 0 for no limit */
+    private final long budgetBytes;
+
+    /** Log for evictions and failures */
+    private final AsyncLogger log;
+
+    /** Number of namespaces created empty, guarded by this */
+    private long created;
+
+    /** Number of namespaces loaded back from a snapshot, guarded by this */
+    private long reloads;
+
+    /** Number of namespaces written out and dropped, guarded by this */
+    private long evictions;
+
+    /**
+     * Constructor for TreeRegistry.
+     *
+     * @param defaultTree The server's main tree.
+     * @param config      Server settings.
+     * @param log         Log for evictions and failures.
+     */
+    public TreeRegistry(SharedTree defaultTree, ServerConfig config, AsyncLogger log) {
+        this.defaultNamespace = new Namespace(DEFAULT, defaultTree);
+        this.config = config;
+        this.directory = Paths.get(config.namespaceDirectory);
+        this.budgetBytes = config.namespaceMemoryMegabytes * 1024L * 1024L;
+        this.log = log;
+    }
+
+    /**
+     * Gets the default namespace.
+     *
+     * @return The namespace holding the server's main tree.
+     */
+    public Namespace defaultNamespace() {
+        return defaultNamespace;
+    }
+
+    /**
+     * Checks whether a name can be used for a namespace.
+     *
+     * @param name The name.
+     * @return True for the empty name of the default namespace or a valid name.
+     */
+    public static boolean isValidName(String name) {
+        return name.isEmpty() || NAME.matcher(name).matches();
+    }
+
+    /**
+     * Selects a namespace for a connection, creating or loading it if needed. The namespace stays in memory until
+     * the connection releases it.
+     *
+     * @param name The name of the namespace, empty for the default one.
+     * @return The namespace.
+     * @throws IllegalArgumentException if the name is not valid.
+     * @throws IOException              if the namespace's snapshot cannot be read.
+     */
+    public Namespace acquire(String name) throws IOException {
+        if (!isValidName(name)) {
+            throw new IllegalArgumentException("Invalid namespace name: " + name);
+        }
+        if (name.isEmpty()) {
+            return defaultNamespace;
+        }
+
+        Namespace namespace;
+        boolean loading;
+        synchronized (this) {
+            namespace = loaded.get(name);
+            loading = namespace == null;
+            if (loading) {
+                namespace = new Namespace(name);
+                loaded.put(name, namespace);
+            } else if (namespace.state == State.EVICTING) {
+                namespace.reacquired = true;
+            }
+            namespace.users++;
+        }
+
+        if (loading) {
+            finishLoading(namespace);
+        } else {
+            awaitLoaded(namespace);
+        }
+        evictCold();
+        return namespace;
+    }
+
+    /**
+     * Releases a namespace selected with acquire. Once no connection uses it, it may be evicted.
+     *
+     * @param namespace The namespace.
+     */
+    public void release(Namespace namespace) {
+        if (namespace == defaultNamespace) {
+            return;
+        }
+        synchronized (this) {
+            namespace.users--;
+        }
+        evictCold();
+    }
+
+    /**
+     * Adds the registry's counters to a map of metrics.
+     *
+     * @param stats The map to add the counters to.
+     */
+    public synchronized void addStats(Map<String, Long> stats) {
+        stats.put("namespaces.loaded", (long) loaded.size());
+        stats.put("namespaces.bytes", residentBytes());
+        stats.put("namespaces.created", created);
+        stats.put("namespaces.reloads", reloads);
+        stats.put("namespaces.evictions", evictions);
+    }
+
+    /**
+     * Starts the daemon thread that removes expired values from the namespaces in memory, once per tick.
+     */
+    public void startExpiry() {
+        Thread expirer = new Thread(() -> {
+            List<Namespace> namespaces = new ArrayList<>();
+            while (true) {
+                try {
+                    Thread.sleep(config.ttlTickMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                namespaces.clear();
+                namespaces.add(defaultNamespace);
+                synchronized (this) {
+                    for (Namespace namespace : loaded.values()) {
+                        if (namespace.tree != null) {
+                            namespaces.add(namespace);
+                        }
+                    }
+                }
+
+                // An evicted namespace may still be expired here, its saved deadlines just fire again on reload
+                long now = System.nanoTime();
+                for (Namespace namespace : namespaces) {
+                    try {
+                        namespace.tree.expireDue(now, config.ttlBatch, namespace.invalidations::publish);
+                    } catch (RuntimeException e) {
+                        log.log(AsyncLogger.Level.WARN, "Expiry failed: {}", e);
+                    }
+                }
+            }
+        }, "ttl-expiry");
+        expirer.setDaemon(true);
+        expirer.start();
+    }
+
+    /**
+     * Loads the tree of a namespace this thread added to the registry, outside the registry's lock, then wakes the
+     * connections waiting for it. If loading fails the namespace is dropped from the registry again.
+     *
+     * @param namespace The namespace, in the LOADING state.
+     * @throws IOException if the namespace's snapshot cannot be read.
+     */
+    private void finishLoading(Namespace namespace) throws IOException {
+        SharedTree tree = null;
+        IOException failure = null;
+        try {
+            tree = load(namespace.name);
+        } catch (IOException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            failure = new IOException("Corrupt snapshot of namespace " + namespace.name, e);
+        }
+
+        synchronized (this) {
+            if (failure == null) {
+                namespace.tree = tree;
+                namespace.state = State.READY;
+            } else {
+                namespace.state = State.FAILED;
+                namespace.loadFailure = failure;
+                loaded.remove(namespace.name);
+            }
+            notifyAll();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Waits until another connection has finished loading a namespace.
+     *
+     * @param namespace The namespace.
+     * @throws IOException if loading failed or the thread was interrupted while waiting.
+     */
+    private synchronized void awaitLoaded(Namespace namespace) throws IOException {
+        while (namespace.state == State.LOADING) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                namespace.users--;
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while namespace " + namespace.name + " was loading");
+            }
+        }
+        if (namespace.state == State.FAILED) {
+            throw new IOException("Could not load namespace " + namespace.name, namespace.loadFailure);
+        }
+    }
+
+    /**
+     * Creates the tree of a namespace, from its snapshot file if it was evicted before. Runs outside the
+     * registry's lock.
+     *
+     * @param name The name of the namespace.
+     * @return The tree.
+     * @throws IOException if the snapshot cannot be read.
+     */
+    private SharedTree load(String name) throws IOException {
+        Path file = snapshotFile(name);
+        OrderedIntSet values = OrderedIntSet.create(config.treeBackend, config.treeFanout);
+        long version = 0;
+        long[] deadlines = new long[0];
+
+        if (Files.exists(file)) {
+            try (DataInputStream input = new DataInputStream(Files.newInputStream(file))) {
+                int magic = input.readInt();
+                if (magic != SNAPSHOT_MAGIC && magic != SNAPSHOT_MAGIC_NO_DEADLINES) {
+                    throw new IOException("Not a namespace snapshot: " + file);
+                }
+                version = input.readLong();
+                int count = input.readInt();
+                byte[] compressed = new byte[input.readInt()];
+                input.readFully(compressed);
+                byte[] encoded = TraversalCodec.inflate(compressed, count);
+
+                // The pre-order rebuilds the tree with the shape it was saved with
+                values.rebuild(TraversalCodec.decode(encoded, encoded.length, count));
+                if (magic == SNAPSHOT_MAGIC) {
+                    deadlines = new long[input.readInt() * 2];
+                    for (int i = 0; i < deadlines.length; i += 2) {
+                        deadlines[i] = input.readInt();
+                        deadlines[i + 1] = input.readLong();
+                    }
+                }
+            }
+
+            // The tree in memory is the only copy from now on, an old snapshot must not come back after a crash
+            Files.delete(file);
+            synchronized (this) {
+                reloads++;
+            }
+        } else {
+            synchronized (this) {
+                created++;
+            }
+        }
+
+        SharedTree tree = new SharedTree(values, SharedTree.WriteMode.LOCKED, 0, 0, null,
+                new ChangeLog(config.namespaceChangeLogSize, version), config.ttlTickMillis);
+        tree.restoreDeadlines(deadlines);
+        return tree;
+    }
+
+    /**
+     * Evicts unused namespaces, least recently selected first, until the loaded ones fit in the budget.
+     * Victims are picked under the registry's lock and written out after it is released.
+     */
+    private void evictCold() {
+        if (budgetBytes <= 0) {
+            return;
+        }
+        List<Namespace> victims = new ArrayList<>();
+        synchronized (this) {
+            long resident = residentBytes();
+            Iterator<Namespace> coldest = loaded.values().iterator();
+            while (resident > budgetBytes && coldest.hasNext()) {
+                Namespace namespace = coldest.next();
+                if (namespace.users > 0 || namespace.state != State.READY) {
+                    continue;
+                }
+                namespace.state = State.EVICTING;
+                namespace.reacquired = false;
+                resident -= bytesOf(namespace);
+                victims.add(namespace);
+            }
+        }
+        for (Namespace namespace : victims) {
+            evict(namespace);
+        }
+    }
+
+    /**
+     * Writes a namespace picked by evictCold to its snapshot file and drops it, unless a connection selected it
+     * in the meantime. A namespace that cannot be written stays in memory.
+     *
+     * @param namespace The namespace, in the EVICTING state.
+     */
+    private void evict(Namespace namespace) {
+        try {
+            writeSnapshot(namespace);
+        } catch (IOException e) {
+            log.log(AsyncLogger.Level.WARN, "Could not evict namespace: {}", e);
+            synchronized (this) {
+                namespace.state = State.READY;
+            }
+            return;
+        }
+
+        synchronized (this) {
+            if (!namespace.reacquired) {
+                loaded.remove(namespace.name);
+                evictions++;
+                log.log(AsyncLogger.Level.DEBUG, "Evicted namespace {}", namespace.name);
+                return;
+            }
+        }
+
+        // Selected again while being written, so the tree in memory stays the only copy. The namespace is still
+        // EVICTING, which keeps other evictions away from the file until it is gone.
+        try {
+            Files.deleteIfExists(snapshotFile(namespace.name));
+        } catch (IOException e) {
+            log.log(AsyncLogger.Level.WARN, "Could not delete snapshot of a namespace in use: {}", e);
+        }
+        synchronized (this) {
+            namespace.state = State.READY;
+        }
+    }
+
+    /**
+     * Writes a namespace's tree to its snapshot file: the version, then the pre-order traversal in
+     * TraversalCodec's encoding, Deflate compressed, then the values with a time to live and their deadlines in
+     * wall clock milliseconds. The file is written under another name and renamed, so a
+     * crash cannot leave half a snapshot.
+     *
+     * @param namespace The namespace.
+     * @throws IOException if the file cannot be written.
+     */
+    private void writeSnapshot(Namespace namespace) throws IOException {
+        ChangeLog.Changes snapshot = namespace.tree.snapshot(Protocol.PRE_ORDER);
+        byte[] compressed = TraversalCodec.deflate(TraversalCodec.encode(snapshot.values));
+        long[] deadlines = namespace.tree.expiryDeadlines();
+
+        Files.createDirectories(directory);
+        Path file = snapshotFile(namespace.name);
+        Path temporary = directory.resolve(namespace.name + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(Files.newOutputStream(temporary))) {
+            output.writeInt(SNAPSHOT_MAGIC);
+            output.writeLong(snapshot.version);
+            output.writeInt(snapshot.values.length);
+            output.writeInt(compressed.length);
+            output.write(compressed);
+            output.writeInt(deadlines.length / 2);
+            for (int i = 0; i < deadlines.length; i += 2) {
+                output.writeInt((int) deadlines[i]);
+                output.writeLong(deadlines[i + 1]);
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Gets the snapshot file of a namespace.
+     *
+     * @param name The name of the namespace.
+     * @return The path of the file.
+     */
+    private Path snapshotFile(String name) {
+        return directory.resolve(name + ".tree");
+    }
+
+    /**
+     * Estimates the memory used by the loaded named namespaces, leaving out those being loaded or evicted.
+     *
+     * @return The estimated bytes.
+     */
+    private long residentBytes() {
+        long bytes = 0;
+        for (Namespace namespace : loaded.values()) {
+            if (namespace.state == State.READY) {
+                bytes += bytesOf(namespace);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Estimates the memory used by a namespace's values and its change log, which holds an int and a byte for
+     * each remembered change.
+     *
+     * @param namespace The namespace.
+     * @return The estimated bytes.
+     */
+    private long bytesOf(Namespace namespace) {
+        return (long) namespace.tree.size() * config.treeBackend.bytesPerValue + 5L * config.namespaceChangeLogSize;
+    }
+}
@@ -0,0 +1,119 @@
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The TreeReplica class keeps a local copy of the server's tree up to date.
+ * Each sync asks the server only for the changes since the version the replica has, so keeping up costs as much
+ * as the number of changes rather than the size of the tree. The first sync, and any sync after the replica fell
+ * further behind than the server's change log reaches, downloads a snapshot instead. So does a sync after the
+ * server restarted, which the replica notices because the server's epoch changed.
+ */
+public class TreeReplica {
+
+    /** Client used to reach the server */
+    private final BSTClient client;
+
+    /** Local copy of the tree's values, guarded by this */
+    private final TreeSet<Integer> values = new TreeSet<>();
+
+    /** Epoch of the server process the version belongs to, 0 before the first sync, guarded by this */
+    private long epoch;
+
+    /** Version of the tree the local copy matches, guarded by this */
+    private long version;
+
+    /** Number of snapshots downloaded, guarded by this */
+    private long snapshots;
+
+    /**
+     * Constructor for TreeReplica, the copy is empty until the first sync.
+     *
+     * @param client Client used to reach the server.
+     */
+    public TreeReplica(BSTClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Brings the local copy up to date with the server.
+     *
+     * @return A future completed with the version the copy is at once the changes have been applied.
+     */
+    public CompletableFuture<Long> sync() {
+        long syncEpoch;
+        long syncVersion;
+        synchronized (this) {
+            syncEpoch = epoch;
+            syncVersion = version;
+        }
+        return client.changesSince(syncEpoch, syncVersion).thenApply(this::apply);
+    }
+
+    /**
+     * Applies changes or a snapshot from the server. Changes older than the local copy are ignored, which happens
+     * when two syncs overlap, and so are changes from an epoch the copy has already left. A snapshot from a new
+     * epoch always replaces the copy, whatever its version.
+     *
+     * @param changes The changes or snapshot.
+     * @return The version the copy is at.
+     */
+    private synchronized long apply(ChangeLog.Changes changes) {
+        if (changes.epoch != epoch) {
+            // Changes are only sent for the epoch a sync asked with, so these are for an epoch already left
+            if (!changes.snapshot) {
+                return version;
+            }
+        } else if (changes.version < version) {
+            return version;
+        }
+
+        if (changes.snapshot) {
+            values.clear();
+            for (int value : changes.values) {
+                values.add(value);
+            }
+            snapshots++;
+        } else {
+            // Skip the part of the changes a concurrent sync already applied
+            int skip = changes.values.length - (int) (changes.version - version);
+            for (int i = Math.max(0, skip); i < changes.values.length; i++) {
+                if (changes.operations[i] == Protocol.INSERT) {
+                    values.add(changes.values[i]);
+                } else {
+                    values.remove(changes.values[i]);
+                }
+            }
+        }
+        epoch = changes.epoch;
+        version = changes.version;
+        return version;
+    }
+
+    /**
+     * Gets the version of the tree the local copy matches.
+     *
+     * @return The version, 0 before the first sync.
+     */
+    public synchronized long version() {
+        return version;
+    }
+
+    /**
+     * Gets the number of snapshots downloaded instead of changes.
+     *
+     * @return The number of snapshots.
+     */
+    public synchronized long snapshotCount() {
+        return snapshots;
+    }
+
+    /**
+     * Gets a copy of the local values.
+     *
+     * @return The values in ascending order.
+     */
+    public synchronized NavigableSet<Integer> values() {
+        return new TreeSet<>(values);
+    }
+}
@@ -0,0 +1,147 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * The UdpSearchClient class sends searches to the server's UDP search endpoint.
+ * Each request is one datagram with a fresh request ID. If no reply with that ID arrives within the timeout the
+ * request is sent again, up to a number of attempts; replies to earlier attempts or requests are skipped. The
+ * client is meant for one thread at a time, its methods are synchronized.
+ */
+public class UdpSearchClient implements AutoCloseable {
+
+    /** Socket used to send requests and receive replies */
+    private final DatagramSocket socket;
+
+    /** Address of the server */
+    private final InetAddress address;
+
+    /** UDP port of the server */
+    private final int port;
+
+    /** Times a request is sent before giving up */
+    private final int attempts;
+
+    /** Buffer for requests */
+    private final ByteBuffer requestBuffer = ByteBuffer.allocate(UdpSearchEndpoint.MAX_DATAGRAM);
+
+    /** Buffer for replies */
+    private final byte[] replyBytes = new byte[UdpSearchEndpoint.MAX_DATAGRAM];
+
+    /** ID of the next request */
+    private int nextRequestId;
+
+    /**
+     * Constructor for UdpSearchClient.
+     *
+     * @param host          The host of the server.
+     * @param port          The UDP port of the server.
+     * @param timeoutMillis Time to wait for each reply before sending again.
+     * @param attempts      Times a request is sent before giving up.
+     * @throws IOException if the host cannot be resolved or the socket cannot be opened.
+     */
+    public UdpSearchClient(String host, int port, int timeoutMillis, int attempts) throws IOException {
+        this.address = InetAddress.getByName(host);
+        this.port = port;
+        this.attempts = Math.max(1, attempts);
+        this.socket = new DatagramSocket();
+        this.socket.setSoTimeout(timeoutMillis);
+    }
+
+    /**
+     * Searches for a value.
+     *
+     * @param value The value to search for.
+     * @return True if the value is in the tree.
+     * @throws IOException if no reply arrived after every attempt, or the server reported an error.
+     */
+    public synchronized boolean search(int value) throws IOException {
+        int requestId = startRequest(Protocol.SEARCH);
+        requestBuffer.putInt(value);
+        return exchange(requestId).getInt() == Protocol.STATUS_OK;
+    }
+
+    /**
+     * Searches for many values in one datagram.
+     *
+     * @param values The values to search for, at most UdpSearchEndpoint.MAX_MULTI_SEARCH.
+     * @return A bitset in which bit i is set if values[i] is in the tree.
+     * @throws IOException if no reply arrived after every attempt, or the server reported an error.
+     */
+    public synchronized BitSet searchAll(int... values) throws IOException {
+        if (values.length > UdpSearchEndpoint.MAX_MULTI_SEARCH) {
+            throw new IllegalArgumentException("At most " + UdpSearchEndpoint.MAX_MULTI_SEARCH + " values fit");
+        }
+        int requestId = startRequest(Protocol.MULTI_SEARCH);
+        requestBuffer.putInt(values.length);
+        for (int value : values) {
+            requestBuffer.putInt(value);
+        }
+
+        ByteBuffer reply = exchange(requestId);
+        reply.getInt();
+        long[] words = new long[reply.getInt()];
+        reply.asLongBuffer().get(words);
+        return BitSet.valueOf(words);
+    }
+
+    /**
+     * Closes the socket.
+     */
+    @Override
+    public void close() {
+        socket.close();
+    }
+
+    /**
+     * Starts a request in the request buffer.
+     *
+     * @param opcode The operation code.
+     * @return The request ID.
+     */
+    private int startRequest(int opcode) {
+        int requestId = nextRequestId++;
+        requestBuffer.clear();
+        requestBuffer.putInt(requestId);
+        requestBuffer.putInt(opcode);
+        return requestId;
+    }
+
+    /**
+     * Sends the request in the request buffer and waits for its reply, sending it again on each timeout.
+     *
+     * @param requestId The ID of the request.
+     * @return The reply positioned at its status code.
+     * @throws IOException if no reply arrived after every attempt, or the server reported an error.
+     */
+    private ByteBuffer exchange(int requestId) throws IOException {
+        DatagramPacket request = new DatagramPacket(requestBuffer.array(), requestBuffer.position(), address, port);
+        DatagramPacket reply = new DatagramPacket(replyBytes, replyBytes.length);
+
+        for (int attempt = 0; attempt < attempts; attempt++) {
+            socket.send(request);
+            try {
+                while (true) {
+                    reply.setLength(replyBytes.length);
+                    socket.receive(reply);
+                    ByteBuffer buffer = ByteBuffer.wrap(replyBytes, 0, reply.getLength());
+
+                    // Replies to earlier attempts may still arrive, only the current request counts
+                    if (reply.getLength() >= 8 && buffer.getInt() == requestId) {
+                        if (buffer.getInt(buffer.position()) == Protocol.STATUS_ERROR) {
+                            throw new IOException("Server could not handle the request");
+                        }
+                        return buffer;
+                    }
+                }
+            } catch (SocketTimeoutException e) {
+                // Lost on the way there or back, send again
+            }
+        }
+        throw new SocketTimeoutException("No reply after " + attempts + " attempts");
+    }
+}
@@ -0,0 +1,175 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The UdpSearchEndpoint class answers read-only searches sent as single UDP datagrams.
+ * <p>
+ * There is no connection and no state per client: each request datagram carries a request ID, the operation code
+ * and its operands, and is answered with one datagram carrying the same request ID and the result. A lookup
+ * therefore costs one receive and one send, without a TCP handshake, the object stream headers or a handler
+ * thread. Only SEARCH and MULTI_SEARCH are accepted; inserts and removes stay on TCP. UDP may lose datagrams, so
+ * clients retry on a timeout, which is safe because searches change nothing.
+ * <p>
+ * Request: int request ID, int operation code, then the operands as on TCP (an int value, or an int count followed
+ * by the values). Reply: int request ID, int status, then for MULTI_SEARCH the int number of longs in the bitset
+ * and the longs. Malformed datagrams are dropped.
+ */
+public class UdpSearchEndpoint {
+
+    /** Largest payload of a UDP datagram */
+    public static final int MAX_DATAGRAM = 65507;
+
+    /** Most values one multi-search datagram can hold after the three header ints */
+    public static final int MAX_MULTI_SEARCH = (MAX_DATAGRAM - 12) / 4;
+
+    /** Socket the requests arrive on */
+    private final DatagramSocket socket;
+
+    /** Tree the searches run against */
+    private final SharedTree tree;
+
+    /** Log for failures */
+    private final AsyncLogger log;
+
+    /** Requests answered */
+    private final LongAdder answered = new LongAdder();
+
+    /** Datagrams dropped because they were malformed */
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * Constructor for UdpSearchEndpoint, binds the socket.
+     *
+     * @param port The UDP port to listen on.
+     * @param tree The tree the searches run against.
+     * @param log  Log for failures.
+     * @throws SocketException if the port cannot be bound.
+     */
+    public UdpSearchEndpoint(int port, SharedTree tree, AsyncLogger log) throws SocketException {
+        this.socket = new DatagramSocket(port);
+        this.tree = tree;
+        this.log = log;
+    }
+
+    /**
+     * Starts the threads that receive and answer requests.
+     *
+     * @param threads Number of threads.
+     */
+    public void start(int threads) {
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(this::serve, "udp-search-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+        log.log(AsyncLogger.Level.INFO, "UDP search endpoint is running on port {}", socket.getLocalPort(), 0);
+    }
+
+    /**
+     * Gets the port the endpoint listens on.
+     *
+     * @return The port.
+     */
+    public int port() {
+        return socket.getLocalPort();
+    }
+
+    /**
+     * Adds the endpoint's counters to a map of metrics.
+     *
+     * @param stats The map to add the counters to.
+     */
+    public void addStats(Map<String, Long> stats) {
+        stats.put("udp.answered", answered.sum());
+        stats.put("udp.dropped", dropped.sum());
+    }
+
+    /**
+     * Receives and answers requests until the socket is closed. Each thread reuses its own buffers.
+     */
+    private void serve() {
+        byte[] requestBytes = new byte[MAX_DATAGRAM];
+        byte[] replyBytes = new byte[MAX_DATAGRAM];
+        DatagramPacket request = new DatagramPacket(requestBytes, requestBytes.length);
+        DatagramPacket reply = new DatagramPacket(replyBytes, replyBytes.length);
+        ByteBuffer replyBuffer = ByteBuffer.wrap(replyBytes);
+
+        while (!socket.isClosed()) {
+            try {
+                request.setLength(requestBytes.length);
+                socket.receive(request);
+
+                replyBuffer.clear();
+                if (!answer(ByteBuffer.wrap(requestBytes, 0, request.getLength()), replyBuffer)) {
+                    dropped.increment();
+                    continue;
+                }
+
+                reply.setData(replyBytes, 0, replyBuffer.position());
+                reply.setSocketAddress(request.getSocketAddress());
+                socket.send(reply);
+                answered.increment();
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    log.log(AsyncLogger.Level.WARN, "UDP search failed: {}", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Answers one request.
+     *
+     * @param request The request datagram.
+     * @param reply   Buffer the reply is written to.
+     * @return False if the request was malformed and should be dropped.
+     */
+    private boolean answer(ByteBuffer request, ByteBuffer reply) {
+        try {
+            int requestId = request.getInt();
+            int opcode = request.getInt();
+            reply.putInt(requestId);
+
+            switch (opcode) {
+                case Protocol.SEARCH:
+                    boolean found = tree.search(request.getInt());
+                    reply.putInt(found ? Protocol.STATUS_OK : Protocol.STATUS_NOT_FOUND);
+                    return true;
+
+                case Protocol.MULTI_SEARCH:
+                    int count = request.getInt();
+                    if (count < 0 || count > request.remaining() / 4) {
+                        return false;
+                    }
+                    int[] values = new int[count];
+                    request.asIntBuffer().get(values);
+                    long[] hits = tree.searchAll(values);
+                    reply.putInt(Protocol.STATUS_OK);
+                    reply.putInt(hits.length);
+                    reply.asLongBuffer().put(hits);
+                    reply.position(reply.position() + hits.length * 8);
+                    return true;
+
+                default:
+                    // Not a read, or not a request at all
+                    reply.putInt(Protocol.STATUS_ERROR);
+                    return true;
+            }
+        } catch (BufferUnderflowException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Closes the socket, which stops the threads.
+     */
+    public void close() {
+        socket.close();
+    }
+}